@@ -23,6 +23,20 @@ class UserPolicy
     allow
   end
 
+  # As has_permission?, for many objects at once, returning an Array of booleans
+  def has_permission_for_each(operation, objects)
+    objects.each { |object| object.compute_attrs_if_required! }
+    allowed = @user.permissions.allow_each(operation, objects.map { |object| object.labels })
+    allowed.each_with_index.map do |allow, index|
+      unless allow
+        call_hook(:hOperationAllowOnObject) do |hooks|
+          allow = hooks.run(@user, objects[index], operation).allow
+        end
+      end
+      allow
+    end
+  end
+
   def allowed_applicable_labels_for_type(type, type_desc = nil)
     type_desc ||= KObjectStore.schema.type_descriptor(type)
     type_desc ? type_desc.applicable_labels.select { |l| @user.permissions.label_is_allowed?(:create, l) } : nil
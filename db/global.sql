@@ -25,9 +25,11 @@ CREATE TABLE jobs (
     retries_left INT NOT NULL DEFAULT(1),
     run_after TIMESTAMP NOT NULL DEFAULT(NOW()),
     runner_pid INT NOT NULL DEFAULT(0), -- which process is currently running the job
+    priority SMALLINT NOT NULL DEFAULT(0), -- higher priority jobs for an application run first
     object BYTEA NOT NULL       -- Job Object in Ruby serialised format
 );
 CREATE INDEX idx_jobs ON jobs(queue,run_after);
+CREATE INDEX idx_jobs_claim ON jobs(queue,application_id,priority DESC,id) WHERE runner_pid=0;
 
 
 --------------------------------------------------------------------------------------
@@ -58,6 +60,17 @@ CREATE TABLE js_message_bus_queue (
     body TEXT NOT NULL,
     transport_options TEXT NOT NULL
 );
+CREATE INDEX idx_js_message_bus_queue ON js_message_bus_queue(application_id,id);
+
+-- Wake the message bus delivery task, with the application_id as the payload.
+CREATE FUNCTION js_message_bus_queue_notify() RETURNS trigger AS $$
+BEGIN
+    PERFORM pg_notify('haplo_message_bus', NEW.application_id::TEXT);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER js_message_bus_queue_notify AFTER INSERT ON js_message_bus_queue FOR EACH ROW EXECUTE PROCEDURE js_message_bus_queue_notify();
 
 
 --------------------------------------------------------------------------------------
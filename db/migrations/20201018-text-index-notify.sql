@@ -0,0 +1,11 @@
+ALTER TABLE os_dirty_text ADD COLUMN created_at TIMESTAMP NOT NULL DEFAULT(NOW());
+
+CREATE FUNCTION os_text_index_notify() RETURNS trigger AS $$
+BEGIN
+    PERFORM pg_notify('haplo_text_index', NEW.app_id::TEXT);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER os_dirty_text_notify AFTER INSERT ON os_dirty_text FOR EACH ROW EXECUTE PROCEDURE os_text_index_notify();
+CREATE TRIGGER os_store_reindex_notify AFTER INSERT ON os_store_reindex FOR EACH ROW EXECUTE PROCEDURE os_text_index_notify();
@@ -0,0 +1,3 @@
+ALTER TABLE jobs ADD COLUMN priority SMALLINT NOT NULL DEFAULT(0);
+
+CREATE INDEX idx_jobs_claim ON jobs(queue,application_id,priority DESC,id) WHERE runner_pid=0;
@@ -0,0 +1,10 @@
+CREATE INDEX idx_js_message_bus_queue ON js_message_bus_queue(application_id,id);
+
+CREATE FUNCTION js_message_bus_queue_notify() RETURNS trigger AS $$
+BEGIN
+    PERFORM pg_notify('haplo_message_bus', NEW.application_id::TEXT);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER js_message_bus_queue_notify AFTER INSERT ON js_message_bus_queue FOR EACH ROW EXECUTE PROCEDURE js_message_bus_queue_notify();
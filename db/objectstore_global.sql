@@ -11,7 +11,8 @@
 CREATE TABLE os_dirty_text (
     id SERIAL PRIMARY KEY,
     app_id INT NOT NULL,        -- which store this referes to
-    osobj_id INT NOT NULL       -- os_objects(id) in the app
+    osobj_id INT NOT NULL,      -- os_objects(id) in the app
+    created_at TIMESTAMP NOT NULL DEFAULT(NOW())    -- for measuring indexing lag
 );
 
 -- Which stores need reindexing?
@@ -22,3 +23,15 @@ CREATE TABLE os_store_reindex (
     progress INT NOT NULL DEFAULT(0),
     requested_at TIMESTAMP NOT NULL DEFAULT(NOW())  -- when the reindex was requested
 );
+
+-- Wake the text indexer, with the app_id as the payload. Notifications are only delivered after
+-- the transaction commits, and duplicate payloads within a transaction are merged.
+CREATE FUNCTION os_text_index_notify() RETURNS trigger AS $$
+BEGIN
+    PERFORM pg_notify('haplo_text_index', NEW.app_id::TEXT);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER os_dirty_text_notify AFTER INSERT ON os_dirty_text FOR EACH ROW EXECUTE PROCEDURE os_text_index_notify();
+CREATE TRIGGER os_store_reindex_notify AFTER INSERT ON os_store_reindex FOR EACH ROW EXECUTE PROCEDURE os_text_index_notify();
@@ -25,6 +25,7 @@ require 'framework/lib/ingredient/annotations'
 
 require 'framework/lib/kframework/console'
 require 'framework/lib/kframework/background_tasks'
+require 'framework/lib/kapp_cache_pool'
 require 'framework/lib/kframework/scheduler'
 require 'framework/lib/kframework/console_server'
 require 'framework/lib/kframework/http'
@@ -126,6 +126,7 @@ module KApp
     app_info.lock.synchronize do
       app_info.globals[sym] = value
     end
+    _apply_globals_to_java_application(ag) if sym == :request_scheduling_weight
     KNotificationCentre.notify(:app_global_change, sym, value)
   end
 
@@ -401,9 +402,16 @@ private
           # Prefer to use the older version, as it might have had updates applied to it
           global_ag_copy = app_info.globals.dup # shallow copy
         end
+        _apply_globals_to_java_application(global_ag_copy)
       end
       # Use the copy of the global app_globals
       global_ag_copy
     end
   end
+
+  # Some globals configure the Java side of the framework
+  def self._apply_globals_to_java_application(globals)
+    japp = Java::OrgHaploFramework::Application.fromApplicationID(KApp.current_application)
+    japp.setRequestSchedulingWeight(globals[:request_scheduling_weight] || 1)
+  end
 end
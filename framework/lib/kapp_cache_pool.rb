@@ -0,0 +1,182 @@
+# frozen_string_literal: true
+
+# Haplo Platform                                    https://haplo.org
+# (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+
+
+module KApp
+
+  # ----------------------------------------------------------------------------------------------------
+  # Pooled caches
+  #
+  # Idle objects from all applications are tracked in least recently used order, so the total can be
+  # limited to bound the memory used. A background task builds replacements after invalidation, and
+  # builds a minimum number of idle objects for applications which found none idle when checking out,
+  # as long as the pool isn't already full.
+  #
+  # Never take the CACHE_POOL_LOCK while holding an AppInfo lock, or the other way round.
+
+  CACHE_POOL_METRICS = Java::OrgHaploFramework::CachePoolMetrics
+  CACHE_POOL_ACTIVE_TIME = 900 # seconds since last checkout for an application to be considered in use
+  CACHE_POOL_LOCK = Mutex.new
+  CACHE_POOL_IDLE = Hash.new # cache number -> identity Hash of idle object -> AppInfo, oldest first
+  CACHE_POOL_WARM_UP_PENDING = Hash.new # [app_id, cache_number] -> number of idle objects wanted
+  CACHE_POOL_WARM_UP_FLAG = Java::OrgHaploCommonUtils::WaitingFlag.new
+  CACHE_POOL_WARM_UP_HEALTH_EVENTS = KFramework::HealthEventReporter.new('CACHE_POOL_WARM_UP')
+
+  def self._cache_pool_checked_out(app_info, cache_number, cache, created, idle_remaining)
+    cache_info = CACHE_INFO[cache_number]
+    if created
+      CACHE_POOL_METRICS.miss(cache_info.description)
+    else
+      CACHE_POOL_METRICS.hit(cache_info.description)
+      CACHE_POOL_LOCK.synchronize do
+        idle = (CACHE_POOL_IDLE[cache_number] ||= {}.compare_by_identity)
+        idle.delete(cache)
+        CACHE_POOL_METRICS.setIdle(cache_info.description, idle.length)
+      end
+    end
+    # Top up the idle objects for this application, but only when it had to wait for an object to be
+    # built. Otherwise an application using one object at a time would build another on every checkout.
+    if created && (idle_remaining < cache_info.pool_options[:min_warm])
+      _cache_pool_request_warm_up(app_info, cache_number, 0)
+    end
+  end
+
+  def self._cache_pool_checked_in(app_info, pooled_checkins)
+    evicted = []
+    CACHE_POOL_LOCK.synchronize do
+      pooled_checkins.each do |cache_number, cache|
+        cache_info = CACHE_INFO[cache_number]
+        idle = (CACHE_POOL_IDLE[cache_number] ||= {}.compare_by_identity)
+        idle.delete(cache) # so it's reinserted as the most recently used
+        idle[cache] = app_info
+        while idle.length > cache_info.pool_options[:max_idle]
+          victim, victim_app_info = idle.shift
+          evicted << [cache_number, victim, victim_app_info]
+        end
+        CACHE_POOL_METRICS.setIdle(cache_info.description, idle.length)
+      end
+    end
+    # Remove evicted objects from their application's list, outside the pool lock. If an object has
+    # been checked out in the meantime, it's not there, and will be tracked again when it's checked in.
+    evicted.each do |cache_number, victim, victim_app_info|
+      victim_app_info.lock.synchronize do
+        victim_app_info.caches[cache_number].caches.delete_if { |o| o.equal?(victim) }
+      end
+      CACHE_POOL_METRICS.evicted(CACHE_INFO[cache_number].description, 1)
+    end
+  end
+
+  def self._cache_pool_forget(cache_number, caches)
+    return if caches.nil? || caches.empty?
+    CACHE_POOL_LOCK.synchronize do
+      idle = CACHE_POOL_IDLE[cache_number]
+      if idle
+        caches.each { |cache| idle.delete(cache) }
+        CACHE_POOL_METRICS.setIdle(CACHE_INFO[cache_number].description, idle.length)
+      end
+    end
+  end
+
+  def self._cache_pool_request_warm_up(app_info, cache_number, wanted)
+    pool_options = CACHE_INFO[cache_number].pool_options
+    wanted = [[wanted, pool_options[:min_warm]].max, pool_options[:max_idle]].min
+    return if wanted < 1
+    key = [app_info.app_id, cache_number]
+    CACHE_POOL_LOCK.synchronize do
+      pending = CACHE_POOL_WARM_UP_PENDING[key]
+      CACHE_POOL_WARM_UP_PENDING[key] = wanted if pending.nil? || pending < wanted
+    end
+    CACHE_POOL_WARM_UP_FLAG.setFlag()
+  end
+
+  # Build idle objects for all pending warm ups, returning true if there was anything to do
+  def self._cache_pool_do_warm_ups
+    work = nil
+    CACHE_POOL_LOCK.synchronize do
+      work = CACHE_POOL_WARM_UP_PENDING.to_a
+      CACHE_POOL_WARM_UP_PENDING.clear
+    end
+    work.each do |(app_id, cache_number), wanted|
+      begin
+        _cache_pool_warm_up(app_id, cache_number, wanted)
+      rescue => e
+        CACHE_POOL_WARM_UP_HEALTH_EVENTS.log_and_report_exception(e, "warming #{CACHE_INFO[cache_number].description} for app #{app_id}")
+      end
+    end
+    !work.empty?
+  end
+
+  def self._cache_pool_warm_up(app_id, cache_number, wanted)
+    wanted.times do
+      return unless KFramework.should_continue_running_background_tasks
+      # When the pool is full, another warmed object would just evict an idle object belonging to
+      # another application, which would then be warmed up again, so only warm up when there's room.
+      return if _cache_pool_full?(cache_number)
+      built = false
+      KApp.in_application(app_id) do
+        thread_context = self._thread_context
+        app_info = thread_context.current_app_info
+        cache_info = CACHE_INFO[cache_number]
+        serial = nil
+        app_info.lock.synchronize do
+          cache_list = app_info.caches[cache_number]
+          if cache_list.caches.length < wanted
+            serial = cache_list.serial
+          end
+        end
+        if serial
+          # Build a new object, and leave it checked out so it's checked into the pool when the
+          # application is cleared. If the cache was invalidated in the meantime, it's discarded.
+          cache = cache_info.cache_class.new
+          checkouts = (thread_context.cache_checkouts ||= Array.new)
+          checkouts[cache_number] = CacheCheckout.new(cache, serial)
+          begin
+            build_time = KApp.execution_time_ms do
+              cache.kapp_cache_checkout if cache.respond_to?(:kapp_cache_checkout, false)
+            end
+          rescue
+            checkouts[cache_number] = nil
+            raise
+          end
+          CACHE_POOL_METRICS.built(cache_info.description, true, build_time)
+          built = true
+        end
+      end
+      return unless built
+    end
+  end
+
+  def self._cache_pool_full?(cache_number)
+    CACHE_POOL_LOCK.synchronize do
+      idle = CACHE_POOL_IDLE[cache_number]
+      !!idle && (idle.length >= CACHE_INFO[cache_number].pool_options[:max_idle])
+    end
+  end
+
+  class CachePoolWarmUpTask < KFramework::BackgroundTask
+    def start
+      @do_warm_ups = true
+      while @do_warm_ups
+        unless KApp._cache_pool_do_warm_ups
+          CACHE_POOL_WARM_UP_FLAG.waitForFlag(600000)
+        end
+      end
+    end
+    def stop
+      @do_warm_ups = false
+      CACHE_POOL_WARM_UP_FLAG.setFlag()
+    end
+    def description
+      "Cache pool warm up"
+    end
+  end
+
+  KFramework.register_background_task(CachePoolWarmUpTask.new)
+
+end
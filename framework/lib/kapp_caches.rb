@@ -19,9 +19,9 @@ module KApp
   CACHE_CHECKIN_EXCEPTION_HEALTH_EVENTS = KFramework::HealthEventReporter.new('CACHE_CHECKIN')
 
   # Info about each cache
-  CacheInfo = Struct.new(:cache_class, :description, :cache_kind)
+  CacheInfo = Struct.new(:cache_class, :description, :cache_kind, :pool_options)
   # Holds the caches in the AppInfo object. Serial is a monotonically increasing int to know whether or not to return caches after a clear
-  CacheList = Struct.new(:caches, :serial)
+  CacheList = Struct.new(:caches, :serial, :last_checkout)
   # Looks after checked out caches, stored in Thread local storage
   CacheCheckout = Struct.new(:cache, :serial_when_checked_out)
 
@@ -34,8 +34,16 @@ module KApp
   # Optional cache_kind argument, which defaults to :per_thread, creating as many cache objects as there are
   # concurent threads requesting a cache. Set to :shared to just use a single cache object.
   # If :shared, then cache_invalidate does nothing, and objects stored within it must behave as immutable.
-  def self.cache_register(klass, description, cache_kind = :per_thread)
-    info = CacheInfo.new(klass, description, cache_kind)
+  # Set to :pooled for objects which are expensive to create, like JavaScript runtimes. These behave like
+  # :per_thread, but replacements are built in the background after invalidation, and the idle objects
+  # are limited across all applications. pool_options must be given for :pooled caches:
+  #    :min_warm - number of idle objects to build for an active application after it had to wait for one
+  #    :max_idle - maximum number of idle objects across all applications, least recently used are discarded
+  def self.cache_register(klass, description, cache_kind = :per_thread, pool_options = nil)
+    if cache_kind == :pooled
+      raise "pool_options required for :pooled cache" unless pool_options && pool_options[:min_warm] && pool_options[:max_idle]
+    end
+    info = CacheInfo.new(klass, description, cache_kind, pool_options)
     # In development mode, check to see if a cache has already been registered with that description
     if KFRAMEWORK_ENV == 'development'
       c = nil
@@ -69,6 +77,8 @@ module KApp
       cache_info = CACHE_INFO[cache_number]
       cache = nil
       serial = 0
+      created = false
+      idle_remaining = 0
       app_info.lock.synchronize do
         cache_list = app_info.caches[cache_number]
         if cache_info.cache_kind == :shared
@@ -80,17 +90,30 @@ module KApp
           if cache_list.caches.empty?
             # Create a new cache
             cache = cache_info.cache_class.new
+            created = true
           else
             # Checkout a cache
             cache = cache_list.caches.pop
           end
+          cache_list.last_checkout = Time.now
+          idle_remaining = cache_list.caches.length
         end
       end
+      if cache_info.cache_kind == :pooled
+        _cache_pool_checked_out(app_info, cache_number, cache, created, idle_remaining)
+      end
       # Store the checkout in case it's requested again
       checkouts[cache_number] = CacheCheckout.new(cache, serial)
       begin
         # Inform the cache that it's being checked out (outside the lock)
-        cache.kapp_cache_checkout if cache.respond_to?(:kapp_cache_checkout, false)
+        if created && cache_info.cache_kind == :pooled
+          build_time = KApp.execution_time_ms do
+            cache.kapp_cache_checkout if cache.respond_to?(:kapp_cache_checkout, false)
+          end
+          CACHE_POOL_METRICS.built(cache_info.description, false, build_time)
+        else
+          cache.kapp_cache_checkout if cache.respond_to?(:kapp_cache_checkout, false)
+        end
       rescue => e
         # Failure in the cache object checkout method: give up on this cache object which is probably in a bad state
         checkouts[cache_number] = nil
@@ -120,9 +143,11 @@ module KApp
     app_info = thread_context.current_app_info
     raise "No app selected" if app_info == nil
     old_caches = nil
+    last_checkout = nil
     app_info.lock.synchronize do
       cache_list = app_info.caches[cache_number]
       old_caches = cache_list.caches
+      last_checkout = cache_list.last_checkout
       cache_list.caches = Array.new
       # Increment serial number so old caches don't get checked in
       cache_list.serial = cache_list.serial + 1
@@ -137,6 +162,13 @@ module KApp
         checkouts[cache_number] = nil
       end
     end
+    # Pooled caches rebuild replacements in the background, if the application is in use
+    if CACHE_INFO[cache_number].cache_kind == :pooled
+      _cache_pool_forget(cache_number, old_caches)
+      if last_checkout && (Time.now - last_checkout) < CACHE_POOL_ACTIVE_TIME
+        _cache_pool_request_warm_up(app_info, cache_number, old_caches.length)
+      end
+    end
     # Tell any inactive objects they were invalidated?
     if old_caches
       old_caches.each do |cache|
@@ -148,17 +180,22 @@ module KApp
   # Very specific functionality Used by developer loader
   def self._devmode__cache_invalidate_maybe_preserving_cached_objects(cache_number)
     did_preservation = false
+    removed_caches = nil
     thread_context = self._thread_context
     app_info = thread_context.current_app_info
     app_info.lock.synchronize do
       cache_list = app_info.caches[cache_number]
       filtered_caches = cache_list.caches.select { |o| yield o }
       if filtered_caches.length > 0
+        removed_caches = cache_list.caches - filtered_caches
         cache_list.caches = filtered_caches
         cache_list.serial = cache_list.serial + 1
         did_preservation = true
       end
     end
+    if did_preservation && CACHE_INFO[cache_number].cache_kind == :pooled
+      _cache_pool_forget(cache_number, removed_caches)
+    end
     did_preservation
   end
 
@@ -184,6 +221,7 @@ module KApp
       return if failure
       # Finally check in the caches, inside the lock
       app_info = thread_context.current_app_info
+      pooled_checkins = nil
       app_info.lock.synchronize do
         checkouts.each_with_index do |cache_checkout, cache_number|
           if cache_checkout != nil
@@ -192,22 +230,31 @@ module KApp
             cache_list = app_info.caches[cache_number]
             if cache_list.serial == cache_checkout.serial_when_checked_out
               cache_list.caches << cache
+              if CACHE_INFO[cache_number].cache_kind == :pooled
+                (pooled_checkins ||= []) << [cache_number, cache]
+              end
             end
           end
         end
       end
+      _cache_pool_checked_in(app_info, pooled_checkins) if pooled_checkins
     end
   end
 
   def self.clear_all_cached_data_for_app(app_id)
     app_info = get_app_info_for(app_id)
     if app_info != nil
+      old_caches = []
       app_info.lock.synchronize do
         app_info.caches.each do |cache_list|
+          old_caches << cache_list.caches
           cache_list.caches = Array.new
           cache_list.serial = cache_list.serial + 1
         end
       end
+      old_caches.each_with_index do |caches, cache_number|
+        _cache_pool_forget(cache_number, caches) if CACHE_INFO[cache_number].cache_kind == :pooled
+      end
     end
   end
 
@@ -242,6 +289,12 @@ module KApp
       end
       puts "NOTE: Counts will not include any caches which are currently checked out."
     end
+    CACHE_POOL_LOCK.synchronize do
+      CACHE_POOL_IDLE.each do |cache_number, idle|
+        puts "Pool '#{CACHE_INFO[cache_number].description}': #{idle.length} idle in all applications"
+      end
+      puts "Pool warm ups pending: #{CACHE_POOL_WARM_UP_PENDING.length}"
+    end
   end
 
 end
@@ -87,7 +87,12 @@ class KFramework
     end
 
     def make_java_object
-      Java::OrgHaploAppserver::DataResponse.new(@body.to_java_bytes, @response_code)
+      if @body.kind_of?(java.lang.CharSequence)
+        # Java text is encoded as it's written, without copying it into a Ruby String first
+        Java::OrgHaploAppserver::TextResponse.new(@body, @response_code)
+      else
+        Java::OrgHaploAppserver::DataResponse.new(@body.to_java_bytes, @response_code)
+      end
     end
   end
 
@@ -28,6 +28,11 @@ end
 
 class KHTTPClientJob < KJob
 
+  # Requests are made asynchronously, so the job defers itself while the request
+  # is in progress, and HTTPClient schedules it to run as soon as the response
+  # is complete. This delay is only used if that fails.
+  REQUEST_CHECK_DELAY = 300
+
   def default_queue
     QUEUE_HTTP_CLIENT
   end
@@ -122,6 +127,23 @@ class KHTTPClientJob < KJob
   end
 
   def run(context)
+    if @request_token
+      if Java::OrgHaploHttpclient::HTTPClient.isRequestInProgress(@request_token)
+        context.defer_job(REQUEST_CHECK_DELAY)
+        return
+      end
+      @result = Java::OrgHaploHttpclient::HTTPClient.takeResult(@request_token)
+      @request_token = nil
+      if @result
+        process_result(context)
+        return
+      end
+      # Otherwise the request was lost, eg when the server was restarted, so make it again
+    end
+    start_request(context)
+  end
+
+  def start_request(context)
     # Authentication
     if @request_settings.has_key?("auth")
       name = @request_settings["auth"]
@@ -149,16 +171,25 @@ class KHTTPClientJob < KJob
       @keychain_data["tls_client_certificate_key"] = credential.secret['Key']
     end
 
-    @body_spill_pathname = @temp_pathname_prefix = "#{FILE_UPLOADS_TEMPORARY_DIR}/tmp.httpclient.body.#{Thread.current.object_id}"
+    @request_token = KRandom.random_hex(16)
+    @body_spill_pathname = "#{FILE_UPLOADS_TEMPORARY_DIR}/tmp.httpclient.body.#{@request_token}"
 
-    begin
-      @result = Java::OrgHaploHttpclient::HTTPClient.attemptHTTP(
-        @request_settings,
-        @keychain_data,
-        @body_spill_pathname,
-        KInstallProperties.get(:network_client_blacklist))
+    Java::OrgHaploHttpclient::HTTPClient.startRequest(
+      @request_token,
+      context.job_id,
+      @request_settings,
+      @keychain_data,
+      @body_spill_pathname,
+      KInstallProperties.get(:network_client_blacklist))
 
-      # Result map is set up in HTTPOperation.java
+    # Keychain data isn't needed until the request is made again
+    @keychain_data = {}
+    context.defer_job(REQUEST_CHECK_DELAY)
+  end
+
+  def process_result(context)
+    begin
+      # Result map is set up in HTTPRequest.java
       if @result["type"] == "TEMP_FAIL"
         context.job_failed_and_retry(@result["errorMessage"], @request_settings["retryDelay"].to_i)
       else
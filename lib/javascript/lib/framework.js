@@ -144,6 +144,13 @@ _.mixin(_.str.exports());
         return output;
     };
 
+    O.loadMany = function(refs) {
+        return $StoreObject._loadMany(refs || []);
+    };
+    O.prefetch = function(refs) {
+        $StoreObject._prefetch(refs || []);
+    };
+
     var constructRefdict = function(klass, valueConstructorFn, sizeHint) {
         var fn = null;
         if(valueConstructorFn !== null && valueConstructorFn !== undefined) {
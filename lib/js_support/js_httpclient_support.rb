@@ -20,3 +20,4 @@ module JSHTTPClientSupport
 end
 
 Java::OrgHaploHttpclient::HTTPClient.setRubyInterface(JSHTTPClientSupport)
+Java::OrgHaploHttpclient::HTTPClient.setJobRunFlag(KJob.get_run_flag(KJob::QUEUE_HTTP_CLIENT))
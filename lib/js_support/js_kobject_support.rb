@@ -59,6 +59,14 @@ module JSKObjectSupport
     KObjectStore.read(KObjRef.new(obj_id))
   end
 
+  def self.readObjects(obj_ids)
+    KObjectStore.read_many(obj_ids.map { |obj_id| (obj_id == 0) ? nil : KObjRef.new(obj_id) }).map { |obj| obj && obj.to_java }
+  end
+
+  def self.prefetchObjects(obj_ids)
+    KObjectStore.prefetch(obj_ids.select { |obj_id| obj_id != 0 }.map { |obj_id| KObjRef.new(obj_id) })
+  end
+
   def self.readObjectVersion(obj_id, version)
     KObjectStore.read_version(KObjRef.new(obj_id), version)
   end
@@ -9,7 +9,11 @@
 
 
 class KJSPluginRuntime
-  RUNTIME_CACHE = KApp.cache_register(KJSPluginRuntime, "JavaScript runtimes")
+  # Runtimes are expensive to build, so keep a pool which is refilled in the background
+  RUNTIME_CACHE = KApp.cache_register(KJSPluginRuntime, "JavaScript runtimes", :pooled, {
+    :min_warm => KInstallProperties.get(:js_runtime_pool_min_warm, "1").to_i,
+    :max_idle => KInstallProperties.get(:js_runtime_pool_max_idle, "64").to_i
+  })
   Runtime = Java::OrgHaploJavascript::Runtime
 
   JS_PLUGIN_RUNTIME_HEALTH_REPORTER = KFramework::HealthEventReporter.new("JS_PLUGIN_RUNTIME")
@@ -104,7 +108,7 @@ class KJSPluginRuntime
               end
             end
             # Load basic schema information into runtime
-            @runtime.evaluateString(KSchemaToJavaScript.schema_to_js(KObjectStore.schema), "<schema>")
+            @runtime.evaluateCachedString(KSchemaToJavaScript.schema_to_js(KObjectStore.schema), "<schema>")
             # Parse the plugin schema requirements so it can be passed to the plugins when loading
             schema_for_js_runtime = SchemaRequirements::SchemaForJavaScriptRuntime.new()
             db_namespaces = DatabaseNamespaces.new
@@ -123,6 +127,7 @@ class KJSPluginRuntime
             end
             @plugins_loaded = true
           end
+          Runtime.observeBuildTime("plugins", (ms * 1000000).to_i)
           KApp.logger.info("Initialised application JavaScript runtime, took #{ms.to_i}ms for application #{KApp.current_application}\n")
         end
         finalise_runtime_checkout()
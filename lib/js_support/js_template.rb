@@ -28,4 +28,7 @@ module JsTemplateLoader
   end
 end
 
-Java::OrgHaploJavascript::Runtime.setStandardTemplateLoader(JsTemplateLoader)
\ No newline at end of file
+Java::OrgHaploJavascript::Runtime.setStandardTemplateLoader(JsTemplateLoader)
+
+# Parsed templates are shared between runtimes, limited by the total length of their source
+Java::OrgHaploJsinterfaceTemplate::TemplateParseCache.setMaximumTotalSourceLength(KInstallProperties.get(:template_cache_size_mb, "16").to_i * 1024 * 1024)
@@ -113,7 +113,7 @@ class KJavaScriptPlugin < KPlugin
 
   def javascript_load(runtime, schema_for_js_runtime)
     global_javascript = javascript_generate_global_js()
-    runtime.evaluateString(global_javascript, "p/#{name}/global.js") if global_javascript.length > 0
+    runtime.evaluateCachedString(global_javascript, "p/#{name}/global.js") if global_javascript.length > 0
     prefix, suffix = javascript_file_wrappers(schema_for_js_runtime)
     javascript_load_all_js(runtime, prefix, suffix)
   end
@@ -230,6 +230,8 @@ class KJavaScriptPlugin < KPlugin
   def self.register_javascript_plugin(plugin_path)
     plugin = KJavaScriptPlugin.new(plugin_path)
     KPlugin.register_plugin(plugin, plugin.restrict_to_application_id)
+    # Templates parsed for any previous version of the plugin won't be used again
+    Java::OrgHaploJsinterfaceTemplate::TemplateParseCache.evictPlugin(plugin.name)
     plugin.name
   end
 
@@ -39,6 +39,25 @@ module JSMessageBus
     end
   end
 
+  # Messages for a bus are delivered in one use of the runtime, rather than obtaining it for each message.
+  BUS_BATCH_DELIVERY['Inter-application'] = Proc.new do |credential, messages|
+    raise "Inter-application messages shouldn't have send entries in queue" if messages.any? { |is_send, *rest| is_send }
+    bus_name = credential.account['Bus']
+    bus_secret = credential.secret['Secret']
+    runtime = KJSPluginRuntime.current
+    runtime.using_runtime do
+      messages.each do |is_send, reliability, body, transport_options|
+        begin
+          runtime.runtime.callSharedScopeJSClassFunction("O", "$messageBusInterApplicationMessageDeliver", [bus_name, bus_secret, body])
+          KApp.logger.info("INTER-APP MESSAGE: Delivered message on #{bus_name} to app #{KApp.current_application}")
+        rescue => e
+          KApp.logger.error("INTER-APP MESSAGE: Exception when delivering message on #{bus_name} to app #{KApp.current_application}")
+          KApp.logger.log_exception(e)
+        end
+      end
+    end
+  end
+
   # -------------------------------------------------------------------------
 
   module InterApplication
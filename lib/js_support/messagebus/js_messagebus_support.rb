@@ -26,6 +26,8 @@ module JSMessageBus
 
   BUS_QUERY = {}
   BUS_DELIVERY = {}
+  # Optional, delivers consecutive messages for a bus together, given an array of [is_send, reliability, body, transport_options]
+  BUS_BATCH_DELIVERY = {}
 
   class MessageBusSupport
     def self.setBusPlatformConfig(json)
@@ -113,62 +115,107 @@ module JSMessageBus
 
   # -------------------------------------------------------------------------
   # Delivery of messages to JS runtime and external systems
+  #
+  # Messages are claimed in batches with FOR UPDATE SKIP LOCKED, in a transaction on a pooled connection
+  # which isn't bound to the delivery thread, so the delivery can use the database normally. They're
+  # deleted when the batch has been delivered, committing once per batch rather than once per message.
+  # The trade-off is that if the server stops during delivery, up to BATCH_SIZE messages which were
+  # delivered will be delivered again. Delivery is at least once anyway, as a message could be delivered
+  # just before a failed COMMIT, so receivers must already tolerate duplicates.
   class DeliverMessages
-    SELECT_MESSAGES = "SELECT id,bus_id,is_send,reliability,body,transport_options FROM public.js_message_bus_queue WHERE application_id=$1 ORDER BY id LIMIT 20"
-    DELETE_MESSAGE = "DELETE FROM public.js_message_bus_queue WHERE id=$1"
+    BATCH_SIZE = 100
+    CLAIM_MESSAGES = "SELECT id,bus_id,is_send,reliability,body,transport_options,EXTRACT(EPOCH FROM (NOW()-created_at)) FROM public.js_message_bus_queue WHERE application_id=$1 ORDER BY id LIMIT #{BATCH_SIZE} FOR UPDATE SKIP LOCKED"
     def initialize(application_id)
       @application_id = application_id
       @credentials = {}
     end
     def deliver_from_queue
       raise "In wrong application" unless @application_id == KApp.current_application
-      KApp.with_pg_database do |db|
-        results = db.exec(SELECT_MESSAGES, @application_id)
-        results.each do |id,bus_id,is_send_s,reliability,body,transport_options|
-          is_send = (is_send_s == 't')
-          credential = @credentials[bus_id.to_i] ||= begin
-            KeychainCredential.where_id_maybe(bus_id.to_i).where(:kind => 'Message Bus').first()
+      connection = Java::OrgHaploFramework::Database.getUnboundPooledConnection()
+      claim_db = PostgresConnWrapper.new(connection)
+      begin
+        # Keep going until the queue is empty, or the rest of the messages have been claimed elsewhere
+        while deliver_batch(claim_db) == BATCH_SIZE
+        end
+      rescue => e
+        # Don't return the connection to the pool with a transaction in progress
+        claim_db.perform('ROLLBACK')
+        raise
+      ensure
+        connection.close()
+      end
+    end
+    def deliver_batch(claim_db)
+      claim_db.perform('BEGIN')
+      delivered = []
+      messages = []
+      begin
+        messages = claim_db.exec(CLAIM_MESSAGES, @application_id).to_a
+        # Consecutive messages for the same bus are delivered together
+        messages.chunk { |message| message[1].to_i } .each do |bus_id, bus_messages|
+          credential = @credentials[bus_id] ||= begin
+            KeychainCredential.where_id_maybe(bus_id).where(:kind => 'Message Bus').first()
           end
+          kind = credential ? credential.instance_kind : nil
           if credential.nil?
-            KApp.logger.error("Dropping message for bus id #{bus_id} as no credential exists")
-          else
-            delivery = BUS_DELIVERY[credential.instance_kind]
-            if delivery.nil?
-              KApp.logger.error("Dropping message for bus id #{bus_id} as bus credential has unknown instance kind #{credential.instance_kind}")
-            else
-              delivery.call(is_send, credential, reliability.to_i, body, transport_options)
-            end
-            JSMessageBus.with_transaction_for_reliability(reliability.to_i) do
-              db.perform(DELETE_MESSAGE, id.to_i)
+            KApp.logger.error("Dropping #{bus_messages.length} messages for bus id #{bus_id} as no credential exists")
+          elsif BUS_BATCH_DELIVERY.has_key?(kind)
+            BUS_BATCH_DELIVERY[kind].call(credential, bus_messages.map { |m| [m[2] == 't', m[3].to_i, m[4], m[5]] })
+          elsif BUS_DELIVERY.has_key?(kind)
+            bus_messages.each do |message|
+              id, bus_id_s, is_send_s, reliability, body, transport_options = message
+              BUS_DELIVERY[kind].call(is_send_s == 't', credential, reliability.to_i, body, transport_options)
+              delivered << message
             end
+            next
+          else
+            KApp.logger.error("Dropping #{bus_messages.length} messages for bus id #{bus_id} as bus credential has unknown instance kind #{kind}")
           end
+          delivered.concat(bus_messages)
         end
+      ensure
+        # If delivery failed, delete the messages which were delivered before the exception, then release the others.
+        unless delivered.empty?
+          if delivered.map { |message| message[3].to_i } .max < RELIABILITY__MIN_SYNC_COMMIT
+            claim_db.perform('SET LOCAL synchronous_commit TO OFF')
+          end
+          claim_db.perform("DELETE FROM public.js_message_bus_queue WHERE id IN (#{delivered.map { |message| message[0].to_i } .join(',')})")
+          delivered.each do |message|
+            credential = @credentials[message[1].to_i]
+            Java::OrgHaploFramework::MessageBusMetrics.delivered(credential ? credential.instance_kind : '', credential ? credential.name : '', message[6].to_f)
+          end
+        end
+        claim_db.perform('COMMIT')
       end
+      messages.length
     end
   end
 
   # -------------------------------------------------------------------------
   # Task to deliver messages from the queue
+  #
+  # Applications with messages to deliver are found from the notifications sent by a trigger on
+  # js_message_bus_queue, but the queue is scanned at this interval, in case a notification was missed.
   DELIVERY_WORK_FLAG = Java::OrgHaploCommonUtils::WaitingFlag.new
-  SELECT_APPLICATIONS_WITH_MESSAGES = 'SELECT application_id,count(id) FROM public.js_message_bus_queue GROUP BY application_id ORDER BY application_id'
+  DELIVERY_RESCAN_INTERVAL = 600 # seconds
+  DELIVERY_NOTIFY_CHANNEL = 'haplo_message_bus'
+  SELECT_APPLICATIONS_WITH_MESSAGES = 'SELECT DISTINCT application_id FROM public.js_message_bus_queue ORDER BY application_id'
   class DeliveryTask < KFramework::BackgroundTask
     def initialize
       @do_delivery = true
       @current_threads = {} # app_id -> Thread
+      @pending_applications = [] # app_ids waiting for a delivery thread
+      @notifications = nil
+      @next_scan = nil
     end
 
     def start
+      listen_for_notifications
       while @do_delivery
-        did_something = [
-          join_with_finished_threads(),
-          deliver_queued_messages()
-        ]
-        if did_something.include?(true)
-          # short delay to avoid too much work when messages are being generated quickly (use Java's sleep, because Ruby's tends to return immediately)
-          java.lang.Thread.sleep(200)
-        else
-          DELIVERY_WORK_FLAG.waitForFlag(900000)
-        end
+        join_with_finished_threads()
+        find_applications_with_messages()
+        start_delivery_threads()
+        DELIVERY_WORK_FLAG.waitForFlag(DELIVERY_RESCAN_INTERVAL * 1000)
       end
     end
 
@@ -181,6 +228,20 @@ module JSMessageBus
       "Message delivery for JS message busses"
     end
 
+    def listen_for_notifications
+      trigger_installed = KApp.in_application(:no_app) do
+        KApp.with_pg_database do |db|
+          db.exec("SELECT 1 FROM pg_trigger WHERE tgname='js_message_bus_queue_notify'").length > 0
+        end
+      end
+      if trigger_installed
+        @notifications = Java::OrgHaploFramework::DatabaseNotifications.listen(DELIVERY_NOTIFY_CHANNEL, DELIVERY_WORK_FLAG)
+      else
+        KApp.logger.warn("js_message_bus_queue_notify trigger not installed, message bus delivery will scan for work")
+        KApp.logger.flush_buffered
+      end
+    end
+
     def join_with_finished_threads
       completed_threads = []
       @current_threads.each do |application_id, thread|
@@ -190,26 +251,43 @@ module JSMessageBus
       completed_threads.each do |application_id|
         @current_threads.delete(application_id).join
       end
-      !completed_threads.empty?
     end
 
-    def deliver_queued_messages
-      did_something = false
-      applications_with_messages_in_queue.each do |application_id|
-        if @current_threads.has_key?(application_id)
-          KApp.logger.info("Application #{application_id} has a delivery thread running, not starting another")
-        else
-          did_something = true
-          @current_threads[application_id] = Thread.new do
-            delivery_thread(application_id)
+    def find_applications_with_messages
+      if @notifications.nil? || @notifications.takeNotificationsMissed() || @next_scan.nil? || Time.now > @next_scan
+        KApp.in_application(:no_app) do
+          KApp.with_pg_database do |db|
+            db.exec(SELECT_APPLICATIONS_WITH_MESSAGES).each do |application_id,|
+              KApp.logger.info("Application #{application_id} has messages in queue")
+              application_pending(application_id.to_i)
+            end
           end
         end
+        @next_scan = Time.now + DELIVERY_RESCAN_INTERVAL
+      end
+      if @notifications
+        @notifications.takePayloads().each { |application_id| application_pending(application_id.to_i) }
       end
-      did_something
     ensure
       KApp.logger.flush_buffered
     end
 
+    def application_pending(application_id)
+      @pending_applications.push(application_id) unless @pending_applications.include?(application_id)
+    end
+
+    def start_delivery_threads
+      @pending_applications.dup.each do |application_id|
+        # If a thread is running, the application stays pending, so a new thread will check
+        # for messages which arrived after the running thread last looked.
+        next if @current_threads.has_key?(application_id)
+        @pending_applications.delete(application_id)
+        @current_threads[application_id] = Thread.new do
+          delivery_thread(application_id)
+        end
+      end
+    end
+
     def delivery_thread(application_id)
       # Each bus type has different requirements for error handling and reports back to the JS, so retry isn't implemented here.
       # TODO: More control over bus specific retry mechanisms, and stopping promptly when server is shutting down.
@@ -217,25 +295,15 @@ module JSMessageBus
         deliver = JSMessageBus::DeliverMessages.new(application_id)
         deliver.deliver_from_queue
       end
+    rescue => e
+      KApp.logger.error("Exception delivering messages for application #{application_id}")
+      KApp.logger.log_exception(e)
     ensure
       # Trigger main loop to join this thread
       KApp.logger.flush_buffered
       Thread.current[:messagebus_delivery_work_complete] = true
       DELIVERY_WORK_FLAG.setFlag()
     end
-
-    def applications_with_messages_in_queue
-      applications = []
-      KApp.in_application(:no_app) do
-        KApp.with_pg_database do |db|
-          db.exec(SELECT_APPLICATIONS_WITH_MESSAGES).each do |application_id, count|
-            KApp.logger.info("Application #{application_id} has message queue length #{count}")
-            applications.push(application_id.to_i)
-          end
-        end
-      end
-      applications
-    end
   end
   KFramework.register_background_task(DeliveryTask.new)
 
@@ -40,6 +40,9 @@ class KObjectStoreApplicationDelegate
     def has_permission?(operation, object)
       @enforce_permissions ? @user.policy.has_permission?(operation, object) : true
     end
+    def has_permission_for_each(operation, objects)
+      @enforce_permissions ? @user.policy.has_permission_for_each(operation, objects) : objects.map { true }
+    end
     def attribute_restriction_labels
       @user.attribute_restriction_labels
     end
@@ -29,6 +29,11 @@ class KJob
 
   DEFAULT_RETRY_DELAY = 60
   DEFAULT_RETRIES_ALLOWED = 8
+  DEFAULT_PRIORITY = 0
+
+  # How many runners for a queue can run jobs for the same application, unless no other application has jobs waiting
+  PER_APPLICATION_CONCURRENCY = {}
+  BACKGROUND_TASK_COUNTS.each { |queue, count| PER_APPLICATION_CONCURRENCY[queue] = [1, count - 1].max }
 
   # For signalling to job runner threads
   @@run_flags = Array.new
@@ -56,6 +61,9 @@ class KJob
   #   For temporary failures and deferments, the object is reserialised to update state in the queue.
   #
   #   Use context.user_id to get the (integer) user which initiated the job.
+  #   Use context.job_id to get the (integer) id of the job in the queue.
+  #
+  #   Override default_priority to run a job before other jobs for the same application in its queue.
   #
   def run(context)
   end
@@ -77,15 +85,19 @@ class KJob
     DEFAULT_RETRIES_ALLOWED
   end
 
+  def default_priority
+    DEFAULT_PRIORITY
+  end
+
   # Call to queue the job for execution later
   # Will be run within the current pg transaction; if the transaction fails the job won't be run.
-  def submit(delay_for = nil, queue = nil, retries_allowed = nil)
+  def submit(delay_for = nil, queue = nil, retries_allowed = nil, priority = nil)
     serialised = Marshal.dump(self)
     job_queue = queue || self.default_queue
     state = AuthContext.state
     raise "Cannot submit job without AuthContext" unless state
     KApp.with_pg_database do |db|
-      db.update("INSERT INTO public.jobs (application_id,user_id,auth_user_id,queue,retries_left,run_after,object) VALUES (#{KApp.current_application},#{state.user.id.to_i},#{state.auth_user.id.to_i},#{job_queue},#{retries_allowed || default_retries_allowed},NOW()+interval '#{delay_for || 0} seconds',E'#{PGconn.escape_bytea(serialised)}')")
+      db.update("INSERT INTO public.jobs (application_id,user_id,auth_user_id,queue,retries_left,priority,run_after,object) VALUES (#{KApp.current_application},#{state.user.id.to_i},#{state.auth_user.id.to_i},#{job_queue},#{retries_allowed || default_retries_allowed},#{(priority || default_priority).to_i},NOW()+interval '#{delay_for || 0} seconds',E'#{PGconn.escape_bytea(serialised)}')")
     end
 
     # Send a notification about an entry in the job queue, which causes the queue to be
@@ -102,8 +114,10 @@ class KJob
     attr_reader :status
     attr_reader :log_message
     attr_reader :delay
-    def initialize
+    attr_reader :job_id
+    def initialize(job_id = nil)
       @status = :complete
+      @job_id = job_id
     end
     def job_failed_and_retry(log_message = nil, delay = nil)
       @status = :failure
@@ -142,54 +156,208 @@ class KJob
     @@run_flags[queue]
   end
 
+  # ---------------------------------------------------------------------------------------------------------------------
+  #   Claiming jobs from the queue
+  # ---------------------------------------------------------------------------------------------------------------------
+  #
+  # Jobs are claimed in small batches with FOR UPDATE SKIP LOCKED, so runners don't contend for the same rows.
+  # Each batch takes a few jobs from each application with jobs ready to run, starting after the last
+  # application in the previous batch. The runners for a queue share a Claimer, and take the claimed jobs
+  # from each application in turn, so one application with lots of jobs can't hold up all the others.
+  #
+  class Claimer
+    BATCH_SIZE = 16
+    JOBS_PER_APPLICATION_IN_BATCH = 4
+
+    CLAIMERS = {}
+    CLAIMERS_LOCK = Mutex.new
+
+    def self.for_queue(queue)
+      CLAIMERS_LOCK.synchronize { CLAIMERS[queue] ||= Claimer.new(queue) }
+    end
+
+    def initialize(queue, only_application_id = nil)
+      @queue = queue
+      @only_application_id = only_application_id
+      @lock = Mutex.new
+      @claimed = {}             # application_id -> claimed job rows, in the order they should run
+      @rotation = []            # application_ids with claimed jobs, round robin
+      @running = Hash.new(0)    # application_id -> number of jobs running
+      @last_application_id = 0  # last application in the previous batch
+      @concurrency = PER_APPLICATION_CONCURRENCY[queue] || 1
+      @runner_pid = Thread.current.object_id
+    end
+
+    # Returns the row for the next job to run, or nil if there isn't one ready
+    def claim_next
+      @lock.synchronize do
+        application_id = next_application_below_concurrency_limit
+        unless application_id
+          capped_application_ids = applications_at_concurrency_limit
+          claim_batch(capped_application_ids)
+          application_id = next_application_below_concurrency_limit
+          unless application_id
+            # If nothing else is waiting, applications can use all the runners
+            claim_batch([]) if @rotation.empty? && !capped_application_ids.empty?
+            application_id = @rotation.first
+          end
+        end
+        return nil unless application_id
+        jobs = @claimed[application_id]
+        job_info = jobs.shift
+        @rotation.delete(application_id)
+        if jobs.empty?
+          @claimed.delete(application_id)
+        else
+          @rotation.push(application_id)
+        end
+        @running[application_id] += 1
+        job_info
+      end
+    end
+
+    def finished(application_id)
+      was_at_limit = @lock.synchronize do
+        at_limit = (@running[application_id] >= @concurrency)
+        @running[application_id] -= 1
+        @running.delete(application_id) if @running[application_id] <= 0
+        at_limit
+      end
+      # Waiting runners ignore applications at their limit, so wake one to run this application's next job
+      KJob.get_run_flag(@queue).setFlag() if was_at_limit
+    end
+
+    # Returns nil if there aren't any jobs waiting, ignoring applications at their concurrency limit
+    # as finished() will wake a runner when they can run another job.
+    def seconds_until_next_job
+      condition = @lock.synchronize { excluding_applications(claimable_condition, applications_at_concurrency_limit) }
+      KApp.with_pg_database do |db|
+        r = db.exec("SELECT EXTRACT(EPOCH FROM (MIN(run_after) - NOW())) FROM public.jobs WHERE #{condition}").first
+        (r && r.first) ? r.first.to_f : nil
+      end
+    rescue => e
+      KApp.logger.log_exception(e)
+      nil
+    end
+
+    # Claimed jobs which haven't been started are returned to the queue when the runners stop
+    def release_claimed_jobs
+      @lock.synchronize do
+        ids = @claimed.values.flatten(1).map { |job_info| job_info.first.to_i }
+        @claimed.clear
+        @rotation.clear
+        unless ids.empty?
+          KApp.with_pg_database do |db|
+            db.perform("UPDATE public.jobs SET runner_pid=0 WHERE id IN (#{ids.join(',')})")
+          end
+        end
+      end
+    end
+
+  private
+
+    def next_application_below_concurrency_limit
+      @rotation.find { |a| @running[a] < @concurrency }
+    end
+
+    def applications_at_concurrency_limit
+      @running.keys.select { |a| @running[a] >= @concurrency }
+    end
+
+    def excluding_applications(condition, application_ids)
+      application_ids.empty? ? condition : "#{condition} AND application_id NOT IN (#{application_ids.map { |a| a.to_i }.join(',')})"
+    end
+
+    def claimable_condition
+      condition = "queue=#{@queue} AND runner_pid=0"
+      @only_application_id ? "#{condition} AND application_id=#{@only_application_id}" : condition
+    end
+
+    def claim_batch(excluded_application_ids)
+      ready = "#{claimable_condition} AND run_after <= NOW()"
+      applications = excluding_applications(ready, excluded_application_ids)
+      rows = KApp.with_pg_database do |db|
+        db.exec(<<__E).to_a
+          UPDATE public.jobs SET runner_pid=#{@runner_pid} WHERE id IN (
+            SELECT j.id FROM
+              (SELECT application_id FROM public.jobs WHERE #{applications} GROUP BY application_id
+                ORDER BY application_id <= #{@last_application_id}, application_id LIMIT #{BATCH_SIZE}) AS a,
+              LATERAL (SELECT id FROM public.jobs WHERE #{ready} AND application_id=a.application_id
+                ORDER BY priority DESC, id LIMIT #{JOBS_PER_APPLICATION_IN_BATCH} FOR UPDATE SKIP LOCKED) AS j
+            LIMIT #{BATCH_SIZE}
+          ) RETURNING id,application_id,user_id,auth_user_id,retries_left,priority,object
+__E
+      end
+      return if rows.empty?
+      Java::OrgHaploFramework::JobQueueMetrics.claimed(@queue, rows.length)
+      # Applications after the last application in the previous batch were claimed first
+      application_ids = rows.map { |job_info| job_info[1].to_i }.uniq.sort
+      wrapped = application_ids.select { |a| a <= @last_application_id }
+      @last_application_id = (wrapped.empty? ? application_ids : wrapped).last
+      rows.sort_by { |job_info| [-(job_info[5].to_i), job_info.first.to_i] }.each do |job_info|
+        application_id = job_info[1].to_i
+        (@claimed[application_id] ||= []) << job_info
+        @rotation.push(application_id) unless @rotation.include?(application_id)
+      end
+    rescue => e
+      JOB_HEALTH_EVENTS.log_and_report_exception(e, 'claiming jobs failed')
+    end
+  end
+
+  # Update the job queue metrics, at most once every interval
+
+  QUEUE_METRICS_INTERVAL = 30
+  QUEUE_METRICS_LOCK = Mutex.new
+  @@next_queue_metrics_update = nil
+
+  def self.update_queue_metrics
+    QUEUE_METRICS_LOCK.synchronize do
+      now = Time.now
+      return if @@next_queue_metrics_update && now < @@next_queue_metrics_update
+      @@next_queue_metrics_update = now + QUEUE_METRICS_INTERVAL
+      KApp.with_pg_database do |db|
+        r = db.exec("SELECT queue,application_id,COUNT(*),EXTRACT(EPOCH FROM (NOW() - MIN(run_after))) FROM public.jobs WHERE runner_pid=0 AND run_after <= NOW() GROUP BY queue,application_id")
+        Java::OrgHaploFramework::JobQueueMetrics.clearDepths()
+        r.each do |queue,application_id,count,age|
+          Java::OrgHaploFramework::JobQueueMetrics.setDepth(queue.to_i, application_id.to_i, count.to_i, age.to_f)
+        end
+      end
+    end
+  rescue => e
+    KApp.logger.log_exception(e)
+  end
+
   # ---------------------------------------------------------------------------------------------------------------------
   #   Runner class
   # ---------------------------------------------------------------------------------------------------------------------
 
   class Runner
-    def initialize(queue)
+    # only_application_id is for tests, so they only run jobs for their own application
+    def initialize(queue, only_application_id = nil)
       @queue = queue.to_i
       @should_process_jobs = true
-      # Generate the SQL for the next job process -- uses a serialisable transcation so simulatious reads
-      # don't get the same job. UPDATE ... RETURNING isn't atomic.
-      @next_job_sql = "UPDATE public.jobs SET runner_pid=#{Thread.current.object_id} WHERE id=(SELECT id FROM public.jobs WHERE queue=#{@queue} AND run_after <= NOW() AND runner_pid=0 ORDER BY id LIMIT 1) RETURNING id,application_id,user_id,auth_user_id,retries_left,object"
+      @claimer = only_application_id ? Claimer.new(@queue, only_application_id.to_i) : Claimer.for_queue(@queue)
     end
 
     # Returns true if a job was processed (even if it errored)
     def run_next_job
-      job_info = nil
-      KApp.with_pg_database do |pg|
-        db_retries = 10
-        res = nil
-        while res == nil && db_retries > 0
-          begin
-            # Need to use a separate command to start the transaction; underlying JDBC interface won't allow it to be wrapped into the UPDATE stmt
-            pg.perform("BEGIN ISOLATION LEVEL SERIALIZABLE")
-            res = pg.exec(@next_job_sql)
-            if res.length == 0
-              pg.perform('ROLLBACK')
-              res = nil
-              break # nothing happened
-            end
-            pg.perform('COMMIT')
-          rescue
-            # Exceptions are resonably likely as two job runners querying for a new job at the same time would
-            # update the same row and conflict.
-            pg.perform('ROLLBACK')
-            db_retries -= 1
-            res = nil
-            sleep((db_retries == 0) ? 100 : 1)  # throttle
-          end
-        end
-        job_info = res.first if res
-      end
-
-      # No job, or a repeated exception, return saying that nothing happened.
+      job_info = @claimer.claim_next
+      # No job, or an exception, return saying that nothing happened.
       return false unless job_info
 
-      job_id,application_id,user_id,auth_user_id,retries_left,serialised = job_info
+      job_id,application_id,user_id,auth_user_id,retries_left,priority,serialised = job_info
       application_id = application_id.to_i
+      begin
+        run_claimed_job(job_id,application_id,user_id,auth_user_id,retries_left,serialised)
+      ensure
+        @claimer.finished(application_id)
+      end
+    ensure
+      # Make sure logs get flushed
+      KApp.logger.flush_buffered
+    end
 
+    def run_claimed_job(job_id,application_id,user_id,auth_user_id,retries_left,serialised)
       begin
         job = Marshal.load(PGconn.unescape_bytea(serialised))
       rescue => e
@@ -210,7 +378,7 @@ class KJob
       KApp.logger.flush_buffered
       KApp.logger.info "Run job: #{log_info}"
 
-      context = Context.new
+      context = Context.new(job_id.to_i)
       job_result = nil
       begin
         KApp.in_application(application_id) do
@@ -243,7 +411,6 @@ class KJob
           else
             # Mark it for retrying, and re-serialize the job so it can have updated state
             d = context.delay || DEFAULT_RETRY_DELAY
-            @last_delay = d
             KApp.with_pg_database do |db|
               db.update("UPDATE public.jobs SET runner_pid=0,retries_left=(retries_left-1),run_after=NOW()+interval '#{d} seconds',object=E'#{PGconn.escape_bytea(Marshal.dump(job))}' WHERE id=#{job_id}")
             end
@@ -256,7 +423,6 @@ class KJob
         when :defer
           # Reserialise the job so it can update it's state
           d = context.delay || DEFAULT_RETRY_DELAY
-          @last_delay = d
           KApp.with_pg_database do |db|
             db.update("UPDATE public.jobs SET runner_pid=0,run_after=NOW()+interval '#{d} seconds',object=E'#{PGconn.escape_bytea(Marshal.dump(job))}' WHERE id=#{job_id}")
           end
@@ -281,9 +447,6 @@ class KJob
       KJob.trigger_jobs_in_worker_processes
 
       true
-    ensure
-      # Make sure logs get flushed
-      KApp.logger.flush_buffered
     end
 
     def delete_job(job_id)
@@ -300,27 +463,31 @@ class KJob
       # Keep going round the loop processing jobs, waiting on the semaphore for the queue
       while @should_process_jobs
 
-        while run_next_job()
+        while @should_process_jobs && run_next_job()
           # (empty loop)
         end
 
-        timeout = 600
-        if @last_delay != nil && @last_delay > 0
-          # If a previous job had a delay, wait for around that time instead of the main timeout
-          timeout = @last_delay + 1
-          @last_delay = nil
-        end
-        timeout = 4 if timeout < 4  # Don't wait tiny short times
-        timeout += rand(8).to_i     # Make it wait a random time to avoid things happening all at the same time
+        KJob.update_queue_metrics
 
-        run_flag.waitForFlag(timeout * 1000)  # convert to ms
+        # Wait until the next delayed job is due, or the flag is set because a job was submitted
+        timeout = @claimer.seconds_until_next_job || MAX_RUNNER_WAIT
+        timeout = MAX_RUNNER_WAIT if timeout > MAX_RUNNER_WAIT
+        # Applications at their concurrency limit aren't included, as finishing a job sets the run flag.
+        # The minimum stops a runner spinning if ready jobs are locked by another runner's claim.
+        timeout = MIN_RUNNER_WAIT if timeout < MIN_RUNNER_WAIT
+
+        run_flag.waitForFlag((timeout * 1000).to_i)  # convert to ms
       end
     end
 
+    MIN_RUNNER_WAIT = 1
+    MAX_RUNNER_WAIT = 600
+
     # Shutdown is done in two phases so to avoid a race condition with thread being signalled
     # too early for their stop flags to be set.
     def set_to_stop
       @should_process_jobs = false
+      @claimer.release_claimed_jobs
     end
     def flag_to_stop
       KJob.get_run_flag(@queue).wakeAllWaiting()
@@ -366,7 +533,8 @@ class Console
 
   _Description "Examine job queue"
   _Help <<-__E
-    With no arguments, list the current size of job queue split by application.
+    With no arguments, list the current size of job queue split by application and queue, with the number
+    of jobs ready to run, and how long the oldest ready job has been waiting.
     With a single integer argument, list the jobs for a particular application.
   __E
   def jobs(app_id = nil)
@@ -374,13 +542,13 @@ class Console
       KApp.with_pg_database do |db|
         if app_id == nil
           # List counts of jobs
-          r = db.exec("SELECT application_id,COUNT(id) FROM public.jobs GROUP BY application_id ORDER BY application_id")
-          puts "  APP_ID   COUNT"
+          r = db.exec("SELECT application_id,queue,COUNT(id),COUNT(NULLIF(runner_pid=0 AND run_after <= NOW(),FALSE)),EXTRACT(EPOCH FROM (NOW() - MIN(CASE WHEN runner_pid=0 AND run_after <= NOW() THEN run_after END))) FROM public.jobs GROUP BY application_id,queue ORDER BY application_id,queue")
+          puts "  APP_ID   Q  COUNT    READY    AGE"
           total = 0
-          r.each do |application_id,count_s|
+          r.each do |application_id,queue,count_s,ready_s,age|
             count = count_s.to_i
             total += count
-            puts sprintf("  %-8d %-8d", application_id, count)
+            puts sprintf("  %-8d %-2d %-8d %-8d %s", application_id.to_i, queue.to_i, count, ready_s.to_i, age ? "#{age.to_i}s" : '-')
           end
           puts "(#{total} jobs queued)"
         else
@@ -155,6 +155,11 @@ end
 class KLabelStatements
   include Java::OrgHaploJsinterfaceApp::AppLabelStatements # required because auto-include when passing to Java breaks if instance is frozen
 
+  def initialize
+    # Compiled evaluators for each operation, created when first used. Only frozen statements are compiled.
+    @compiled = java.util.concurrent.ConcurrentHashMap.new
+  end
+
   def is_simple_statements?
     false # base class doesn't represent a simple statement about rules
   end
@@ -164,7 +169,8 @@ class KLabelStatements
   end
 
   def label_is_allowed?(operation, label)
-    false
+    compiled = _compiled(operation)
+    compiled ? compiled.labelIsAllowed(label.to_i) : _evaluate_label_is_allowed?(operation, label)
   end
   def label_is_denied?(operation, label)
     true
@@ -175,6 +181,25 @@ class KLabelStatements
   end
 
   def allow?(operation, label_list)
+    compiled = _compiled(operation)
+    compiled ? compiled.allow(label_list._to_internal.to_java(:int)) : _evaluate_allow?(operation, label_list)
+  end
+
+  # Checks an operation for many label lists in one call, eg for a set of search results, returning an array of booleans
+  def allow_each(operation, label_lists)
+    compiled = _compiled(operation)
+    if compiled
+      compiled.allowEach(label_lists.map { |l| l._to_internal.to_java(:int) } .to_java(Java::int[])).to_a
+    else
+      label_lists.map { |l| _evaluate_allow?(operation, l) }
+    end
+  end
+
+  # Evaluation of statements without compilation, implemented by sub-classes
+  def _evaluate_label_is_allowed?(operation, label)
+    false
+  end
+  def _evaluate_allow?(operation, label_list)
     false # base class allows nothing
   end
 
@@ -186,6 +211,27 @@ class KLabelStatements
     []
   end
 
+  # Compiled evaluator for an operation, or nil if the statements can't be compiled
+  def _compiled(operation)
+    key = operation.to_s
+    compiled = @compiled[key]
+    if compiled.nil?
+      return nil unless self.frozen?
+      builder = Java::OrgHaploApp::CompiledLabelStatements::Builder.new
+      # false if the statements can't be compiled, or are too complex, so it's only tried once
+      compiled = (_add_to_compiled_statements(builder, operation) && builder.compile()) || false
+      @compiled[key] = compiled
+    end
+    compiled || nil
+  end
+
+  # Add these statements to a CompiledLabelStatements::Builder, returning false if they can't be compiled
+  def _add_to_compiled_statements(builder, operation)
+    return false unless self.frozen?
+    builder.constant(false)
+    true
+  end
+
   # Create labels statements from bitmask storage
   #   bitmasks is array of arrays [label, allow, deny]
   #   operation_bits is array of arrays [operation, bit]
@@ -254,7 +300,7 @@ class KLabelStatementsOps < KLabelStatements
   end
 
   # Checks if a specific label is in the lists
-  def label_is_allowed?(operation, label)
+  def _evaluate_label_is_allowed?(operation, label)
     allow = @allow[operation] || []
     deny = @deny[operation] || []
     allow.include?(label.to_i) && !(deny.include?(label.to_i))
@@ -270,7 +316,7 @@ class KLabelStatementsOps < KLabelStatements
   end
 
   # Checks if an operation is allowed for a given label list
-  def allow?(operation, label_list)
+  def _evaluate_allow?(operation, label_list)
     labels = label_list._to_internal
     statement_allow = @allow[operation]
     statement_deny = @deny[operation]
@@ -279,6 +325,15 @@ class KLabelStatementsOps < KLabelStatements
     !((statement_allow & labels).empty?) && (statement_deny & labels).empty?
   end
 
+  def _add_to_compiled_statements(builder, operation)
+    statement_allow = @allow[operation]
+    statement_deny = @deny[operation]
+    # Missing statements are left to the uncompiled evaluation to report
+    return false unless self.frozen? && statement_allow && statement_deny
+    builder.statement(statement_allow.to_java(:int), statement_deny.to_java(:int))
+    true
+  end
+
   # For building SQL conditions matching operation
   def _sql_condition(operation, column, additional_excludes = nil)
     statement_allow = @allow[operation]
@@ -309,6 +364,7 @@ end
 class KLabelStatementsCombined < KLabelStatements
 
   def initialize(a, b)
+    super()
     @a = a
     @b = b
   end
@@ -317,16 +373,26 @@ class KLabelStatementsCombined < KLabelStatements
     [@a, _sql_operator, @b]
   end
 
-  def self._define_combiner_method(symbol)
+  def self._define_combiner_method(symbol, statement_symbol = symbol)
     define_method(symbol) do |*args|
-      _combine(@a.__send__(symbol, *args), @b.__send__(symbol, *args))
+      _combine(@a.__send__(statement_symbol, *args), @b.__send__(statement_symbol, *args))
     end
   end
 
-  _define_combiner_method :label_is_allowed?
+  _define_combiner_method :_evaluate_label_is_allowed?, :label_is_allowed?
   _define_combiner_method :label_is_denied?
   _define_combiner_method :something_allowed?
-  _define_combiner_method :allow?
+  _define_combiner_method :_evaluate_allow?, :allow?
+
+  def _add_to_compiled_statements(builder, operation)
+    return false unless self.frozen?
+    [@a, @b].each do |statements|
+      # Statements might be implemented by something other than a KLabelStatements
+      return false unless statements.respond_to?(:_add_to_compiled_statements) && statements._add_to_compiled_statements(builder, operation)
+    end
+    _add_compiled_operator(builder)
+    true
+  end
 
   def _sql_condition(*args)
     # TODO: Optimise generation of combined SQL conditions - could do much better than this (and intarray has a 'query' operator which uses the index)
@@ -340,6 +406,9 @@ class KLabelStatementsCombined < KLabelStatements
   def _combine(x, y)
     raise "Not implemented"
   end
+  def _add_compiled_operator(builder)
+    raise "Not implemented"
+  end
 end
 
 class KLabelStatementsAnd < KLabelStatementsCombined
@@ -349,6 +418,9 @@ class KLabelStatementsAnd < KLabelStatementsCombined
   def _combine(x, y)
     x && y
   end
+  def _add_compiled_operator(builder)
+    builder.combineWithAnd()
+  end
 end
 
 class KLabelStatementsOr < KLabelStatementsCombined
@@ -358,6 +430,9 @@ class KLabelStatementsOr < KLabelStatementsCombined
   def _combine(x, y)
     x || y
   end
+  def _add_compiled_operator(builder)
+    builder.combineWithOr()
+  end
 end
 
 # -------------------------------------------------------------------------------------
@@ -388,6 +463,15 @@ class KLabelStatementsSuperUser < KLabelStatements
     true # super-user can always do everything
   end
 
+  def allow_each(operation, label_lists)
+    label_lists.map { true }
+  end
+
+  def _add_to_compiled_statements(builder, operation)
+    builder.constant(true)
+    true
+  end
+
   def _sql_condition(operation, column, additional_excludes = nil)
     if additional_excludes != nil
       # Super-user can see everything, except the stuff passed in here
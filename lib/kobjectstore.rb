@@ -13,6 +13,7 @@ require 'kobjref'
 require 'kschema'
 require 'kobjectstore_textidx'  # text indexing implementation
 require 'kobjectstore_query'  # the query implementation
+require 'kobjectstore_shared_cache'  # object cache shared between threads
 
 require 'set'
 
@@ -68,16 +69,18 @@ class KObjectStore
     ensure
       @@reindex_close_app = nil
     end
-    # Remove cached schema
+    # Remove cached schema and objects
     @@schema_caches_lock.synchronize { @@schema_caches.delete(app_id) }
+    SHARED_OBJECT_CACHE.clear_app(app_id)
   end
 
   # for testing, flush the store
   def self._test_reset_currently_selected_store
     old_store = self.store
     reset_thread_state
-    # Remove cached schema
+    # Remove cached schema and objects
     @@schema_caches_lock.synchronize { @@schema_caches.delete(old_store.application_id) }
+    SHARED_OBJECT_CACHE.clear_app(old_store.application_id)
     # Select a nice clean new store
     select_store(old_store.application_id)
     self.store.instance_variable_set(:@user_permissions, old_store.instance_variable_get(:@user_permissions))
@@ -128,6 +131,11 @@ class KObjectStore
     # Method to check permissions on a single object, which presumably uses self.permissions
     def has_permission?(operation, object); raise "Not implemented"; end
 
+    # Check permissions on many objects at once, returning an Array of booleans
+    def has_permission_for_each(operation, objects)
+      objects.map { |object| has_permission?(operation, object) }
+    end
+
     # Generate clause for underlying SQL read queries
     def sql_for_read_query_filter(column, additional_excludes = nil)
       self.permissions._sql_condition(:read, column, additional_excludes)
@@ -185,6 +193,18 @@ class KObjectStore
     end
   end
 
+  # As enforce_permissions(), but checks all the objects in one call to the user permissions
+  def enforce_permissions_for_each(operation, objects)
+    return if @act_as_superuser || objects.empty?
+    raise PermissionDenied, "Object is not labelled" unless objects.all? { |object| object.labels }
+    @user_permissions.has_permission_for_each(operation, objects).each_with_index do |allowed, index|
+      unless allowed
+        object = objects[index]
+        raise PermissionDenied, "Operation #{operation} not permitted for object #{object.objref} with labels [#{object.labels._to_internal.join(',')}]"
+      end
+    end
+  end
+
   # ----------------------------------------------------------------------------------------------------------
 
   # Get schema, lazily loaded
@@ -215,7 +235,7 @@ class KObjectStore
   # For each of the counters is has:
   #  -- an attr_accessor
   #  -- and inc_{name} function to increment it
-  STATISTICS_COUNTERS = [:create, :read, :cache_hit, :update, :delete, :relabel, :erase, :query]
+  STATISTICS_COUNTERS = [:create, :read, :cache_hit, :shared_cache_hit, :update, :delete, :relabel, :erase, :query]
   begin
     statistics_class_code = "class Statistics\ndef initialize\n".dup
     STATISTICS_COUNTERS.each { |n| statistics_class_code << "@#{n} = 0\n" }
@@ -250,27 +270,87 @@ class KObjectStore
 
   # Returns frozen object, maybe from the cache
   def read(objref)
+    obj = _read_without_enforcing_permissions(objref)
+    enforce_permissions(:read, obj) if obj
+    obj
+  end
+
+  def _read_without_enforcing_permissions(objref)
     @statistics.inc_read
     # Look up in cache first
     cached_obj = @object_cache[objref.to_i]
     if cached_obj
       @statistics.inc_cache_hit
-      enforce_permissions(:read, cached_obj)
       return cached_obj
     end
-    obj = nil
-    KApp.with_pg_database do |db|
-      data = db.exec("SELECT id,object,labels FROM #{@db_schema_name}.os_objects WHERE id=#{objref.obj_id}")
-      return nil if data.length < 1
-      obj = KObjectStore._deserialize_object(data.first[1], data.first[2])
+    # Then in the cache shared with other threads, before reading from the database
+    obj = SHARED_OBJECT_CACHE.get(@application_id, objref.obj_id)
+    if obj
+      @statistics.inc_shared_cache_hit
+    else
+      generation = SHARED_OBJECT_CACHE.generation(@application_id)
+      KApp.with_pg_database do |db|
+        data = db.exec("SELECT id,object,labels FROM #{@db_schema_name}.os_objects WHERE id=#{objref.obj_id}")
+        return nil if data.length < 1
+        obj = KObjectStore._deserialize_object(data.first[1], data.first[2])
+        SHARED_OBJECT_CACHE.put(@application_id, obj.objref.obj_id, obj, KObjectStore._serialized_size(data.first[1]), generation)
+      end
     end
     # Cache using objref in object (before enforcement)
     @object_cache.clear if @object_cache.length > MAX_OBJECT_CACHE_ENTRIES
     @object_cache[obj.objref.to_i] = obj
-    enforce_permissions(:read, obj)
     obj
   end
 
+  # Read many objects at once, returning an Array in the same order as objrefs, with nil for objects
+  # which don't exist. Permissions are enforced in the same way as read(), but checked in one go.
+  def read_many(objrefs)
+    prefetch(objrefs)
+    objects = objrefs.map { |objref| objref ? _read_without_enforcing_permissions(objref) : nil }
+    enforce_permissions_for_each(:read, objects.compact)
+    objects
+  end
+
+  # Load objects into the cache with as few queries as possible, so they can be read() without
+  # further database access. No permissions are checked, as no objects are returned.
+  def prefetch(objrefs)
+    obj_ids = objrefs.map { |objref| objref.obj_id if objref }.compact.uniq
+    _load_objects(obj_ids, true) unless obj_ids.empty?
+    nil
+  end
+
+  # Returns Hash of obj_id -> object for all the obj_ids which exist, using the caches where possible.
+  # Does not enforce permissions, for use by prefetch() and query results.
+  def _load_objects(obj_ids, cache_in_store)
+    loaded = {}
+    needed = []
+    obj_ids.each do |obj_id|
+      obj = @object_cache[obj_id] || SHARED_OBJECT_CACHE.get(@application_id, obj_id)
+      if obj
+        loaded[obj_id] = obj
+      else
+        needed << obj_id
+      end
+    end
+    unless needed.empty?
+      generation = SHARED_OBJECT_CACHE.generation(@application_id)
+      KApp.with_pg_database do |db|
+        needed.each_slice(Results::CHUNK_LOAD_SIZE) do |chunk|
+          db.exec("SELECT id,object,labels FROM #{@db_schema_name}.os_objects WHERE id IN (#{chunk.join(',')})").each do |row|
+            obj = KObjectStore._deserialize_object(row[1], row[2])
+            SHARED_OBJECT_CACHE.put(@application_id, obj.objref.obj_id, obj, KObjectStore._serialized_size(row[1]), generation)
+            loaded[obj.objref.obj_id] = obj
+          end
+        end
+      end
+    end
+    if cache_in_store
+      @object_cache.clear if (@object_cache.length + loaded.length) > MAX_OBJECT_CACHE_ENTRIES
+      loaded.each { |obj_id, obj| @object_cache[obj_id] = obj }
+    end
+    loaded
+  end
+
   def read_version(objref, version)
     # PERM TODO: More efficient way of reading arbitary versions of objects which doesn't require two round trips
     # Don't inc stats: the read of the current version will do this.
@@ -348,6 +428,11 @@ class KObjectStore
       @statistics.inc_cache_hit
       return cached_obj.labels
     end
+    cached_obj = SHARED_OBJECT_CACHE.get(@application_id, objref.obj_id)
+    if cached_obj
+      @statistics.inc_shared_cache_hit
+      return cached_obj.labels
+    end
     # PERM TODO: labels_for_ref is going to be horrendously inefficient for common tasks, like generating the navigation
     KApp.with_pg_database do |db|
       data = db.exec("SELECT labels FROM #{@db_schema_name}.os_objects WHERE id=#{objref.obj_id}")
@@ -428,7 +513,7 @@ class KObjectStore
     end
     TEXTIDX_FLAG.setFlag()
     # All good - uncache, inform delegate using definitive object from the database
-    @object_cache.delete(obj.objref.obj_id)
+    uncache_object(obj.objref.obj_id)
     schema_update_and_inform_delegate(obj, modified_obj, :relabel)
     modified_obj
   end
@@ -497,7 +582,7 @@ class KObjectStore
     raise "Cannot use #{obj_or_objref.class} as parameter to KObjectStore#erase" unless objref.class == KObjRef
 
     obj_id = objref.obj_id
-    @object_cache.delete(obj_id)
+    uncache_object(obj_id)
     obj = nil
 
     KApp.with_pg_database do |pg|
@@ -528,6 +613,9 @@ class KObjectStore
 
         pg.perform('COMMIT')
 
+        # Another thread may have cached the object while it was being erased
+        uncache_object(obj_id)
+
         # Start the index job AFTER the transaction has been committed in the db
         TEXTIDX_FLAG.setFlag()
       rescue
@@ -653,6 +741,11 @@ class KObjectStore
     object.freeze
   end
 
+  # Size of the marshalled object from its hex encoded bytea value, as used by the shared cache's memory budget
+  def self._serialized_size(object_str)
+    (object_str.length - 2) / 2 # \x prefix, then two hex digits per byte
+  end
+
   # ----------------------------------------------------------------------------------------------------------
   # Store options
   # (read via schema.store_options)
@@ -1003,7 +1096,7 @@ private
       ensure
         # Must invalidate the cache after the database has committed, as there are plenty of opportunities
         # for plugins to cause a read during an update operation.
-        @object_cache.delete(obj_id)
+        uncache_object(obj_id)
       end
     end
 
@@ -1099,6 +1192,13 @@ private
     sql
   end
 
+  # Remove an object from this store's cache, and the cache shared with other threads.
+  # Call after the change has been committed.
+  def uncache_object(obj_id)
+    @object_cache.delete(obj_id)
+    SHARED_OBJECT_CACHE.invalidate(@application_id, obj_id)
+  end
+
   def _with_object_update_database_transaction_and_retry(pg, obj_id)
     retries = 3
     while true
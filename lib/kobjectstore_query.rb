@@ -382,12 +382,17 @@ class KObjectStore
       @objects ||= Array.new(@ids.length, nil) # init to same size as ids
       obj = @objects[index]
       if obj == nil
-        KApp.with_pg_database do |db|
-          data = db.exec("SELECT object,labels FROM #{@store._db_schema_name}.os_objects WHERE id=#{@ids[index]}")
-          raise "Bad search results" if data.length != 1
-          obj = KObjectStore._deserialize_object(data.first[0], data.first[1])
+        # When the results are read in order, load the following objects at the same time, reading further
+        # ahead each time so iterating over a large set of results only needs a few queries.
+        if index > 0 && index == @read_ahead_next_index
+          @read_ahead = [@read_ahead * 8, CHUNK_LOAD_SIZE].min
+        else
+          @read_ahead = 1
         end
-        @objects[index] = obj
+        ensure_range_loaded(index, index + @read_ahead - 1)
+        @read_ahead_next_index = index + @read_ahead
+        obj = @objects[index]
+        raise "Bad search results" if obj == nil
       end
       obj
     end
@@ -405,34 +410,31 @@ class KObjectStore
       end_index = l - 1 if end_index >= l
       return if end_index < start_index
 
-      KApp.with_pg_database do |db|
-
-        i = start_index
-        needed = Array.new
-        lookup = Hash.new
-        while i <= end_index
-          if @objects[i] == nil
-            needed << @ids[i]
-            lookup[@ids[i]] = i
-          end
-
-          if needed.length >= CHUNK_LOAD_SIZE || (i == end_index && needed.length > 0)
-            data = db.exec("SELECT id,object,labels FROM #{@store._db_schema_name}.os_objects WHERE id IN (#{needed.join(',')})")
-            raise "Unexpected load quantity" if data.length != needed.length
-            data.each do |row|
-              @objects[lookup[row[0].to_i]] = KObjectStore._deserialize_object(row[1],row[2])
-            end
-            needed.clear
-            lookup.clear
-          end
-
-          i += 1
-        end
+      needed = []
+      start_index.upto(end_index) do |i|
+        needed << @ids[i] if @objects[i] == nil
+      end
+      return if needed.empty?
+      # Objects come from the shared cache where possible, but aren't added to the store's own cache
+      loaded = @store._load_objects(needed, false)
+      raise "Unexpected load quantity" if loaded.length != needed.length
+      start_index.upto(end_index) do |i|
+        @objects[i] ||= loaded[@ids[i]]
       end
 
       @objects_complete if start_index == 0 && end_index == (@objects.length - 1)
     end
 
+    # Loads all the objects linked from the results into the store's cache, so they can be read without
+    # a query for each one. desc limits the prefetch to a single attribute.
+    def prefetch_linked_objects(desc = nil)
+      objrefs = []
+      each do |obj|
+        obj.each(desc) { |value,d,q| objrefs << value if value.kind_of?(KObjRef) }
+      end
+      @store.prefetch(objrefs)
+    end
+
     # Returns the KObjRef of the object at that index
     def objref(index)
       if @ids != nil
@@ -0,0 +1,111 @@
+# frozen_string_literal: true
+
+# Haplo Platform                                    https://haplo.org
+# (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+
+
+# Cache of frozen objects shared by all the KObjectStore instances, which are created for every request.
+# The per-store @object_cache is checked first, so a request sees a consistent view of objects it has read.
+#
+# Entries are limited by the size of the serialised object, and the least recently used are evicted.
+# Permissions are not checked by the cache, callers must enforce them on every read.
+#
+# Each application has a generation number which is incremented when any of its objects are invalidated.
+# An object read from the database is only added to the cache if the generation hasn't changed since
+# before the read, so an object read just before another thread commits a change can't be cached
+# after that thread has invalidated it.
+
+class KObjectStore
+
+  class SharedObjectCache
+    Entry = Struct.new(:object, :size)
+
+    # Object IDs are shifted into the key to combine with the application ID
+    OBJ_ID_BITS = 40
+
+    attr_reader :max_bytes
+
+    def initialize(max_bytes)
+      @max_bytes = max_bytes
+      @lock = Mutex.new
+      @entries = {} # key -> Entry, least recently used first
+      @generations = Hash.new(0) # app_id -> generation
+      @bytes = 0
+      @hits = 0
+      @misses = 0
+      @evictions = 0
+    end
+
+    def generation(app_id)
+      @lock.synchronize { @generations[app_id] }
+    end
+
+    def get(app_id, obj_id)
+      key = (app_id << OBJ_ID_BITS) | obj_id
+      @lock.synchronize do
+        entry = @entries.delete(key)
+        if entry
+          @entries[key] = entry # reinsert as most recently used
+          @hits += 1
+          entry.object
+        else
+          @misses += 1
+          nil
+        end
+      end
+    end
+
+    # generation must be obtained before the object was read from the database
+    def put(app_id, obj_id, object, size, generation)
+      return if size > @max_bytes
+      key = (app_id << OBJ_ID_BITS) | obj_id
+      @lock.synchronize do
+        return unless @generations[app_id] == generation
+        previous = @entries.delete(key)
+        @bytes -= previous.size if previous
+        @entries[key] = Entry.new(object, size)
+        @bytes += size
+        while @bytes > @max_bytes
+          _, evicted = @entries.shift
+          @bytes -= evicted.size
+          @evictions += 1
+        end
+      end
+    end
+
+    # Must be called after the change to the object has been committed to the database
+    def invalidate(app_id, obj_id)
+      key = (app_id << OBJ_ID_BITS) | obj_id
+      @lock.synchronize do
+        @generations[app_id] += 1
+        entry = @entries.delete(key)
+        @bytes -= entry.size if entry
+      end
+    end
+
+    def clear_app(app_id)
+      @lock.synchronize do
+        @generations[app_id] += 1
+        @entries.delete_if do |key, entry|
+          if (key >> OBJ_ID_BITS) == app_id
+            @bytes -= entry.size
+            true
+          end
+        end
+      end
+    end
+
+    def to_s
+      @lock.synchronize do
+        "#{@entries.length} objects, #{@bytes} bytes of #{@max_bytes}, hits #{@hits}, misses #{@misses}, evictions #{@evictions}"
+      end
+    end
+  end
+
+  SHARED_OBJECT_CACHE = SharedObjectCache.new(KInstallProperties.get(:object_cache_size_mb, "64").to_i * 1024 * 1024)
+
+end
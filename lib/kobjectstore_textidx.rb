@@ -15,6 +15,10 @@
 # PERM TODO: Add in label support for text index writing in kobjectstore_textidx.rb, or write up properly why it's not required. (could be adding in labels for efficiency in text searching)
 
 class KXapianWriter
+  # Calls to the Xapian extension are sent to the database in batches of statements of about this size,
+  # rather than making a round trip for every call.
+  MAX_BATCH_SQL_LENGTH = 256*1024
+
   def initialize(pathname_full, pathname_fields)
     @pathname_full = pathname_full
     @pathname_fields = pathname_fields
@@ -28,10 +32,27 @@ class KXapianWriter
     doc
   end
 
+  def add_documents(documents)
+    @documents.concat(documents)
+  end
+
   def delete_document(docid)
     @to_delete.push(docid)
   end
 
+  def self.sql_string(value)
+    (value == nil) ? 'NULL' : %Q!E'#{PGconn.escape_string(value.to_s)}'!
+  end
+
+  # Number of terms oxp_w_post_terms() will add, so the position of the next terms is known without
+  # waiting for the result. Must match the parsing in KXapianWriter::PostTerms() in the extension.
+  TERM_SEPARATOR = /[\x00-\x20]+/
+  def self.term_count(terms)
+    count = 0
+    terms.split(TERM_SEPARATOR).each { |term| count += 1 if term.include?(':') }
+    count
+  end
+
   class Document
     def initialize(docid)
       @docid = docid
@@ -41,13 +62,15 @@ class KXapianWriter
       restriction_labels_str = restriction_labels.map { |l| KObjRef.new(l.to_i).to_presentation } .join(',')
       @terms << [terms, restriction_labels_str, prefix1, prefix2, weight]
     end
-    def _write(handle, pg)
-      pg.exec("SELECT oxp_w_start_document($1)", handle)
+    def _append_sql(handle, sql)
+      sql << "SELECT oxp_w_start_document(#{handle.to_i});"
       term_position = 1 # Position starts at 1 for Xapian terms - http://xapian.org/docs/quickstart.html ("preparing the document")
       @terms.each do |terms, restriction_labels_str, prefix1, prefix2, weight|
-        term_position = pg.exec("SELECT oxp_w_post_terms($1,$2,$3,$4,$5,$6,$7)", handle, terms, restriction_labels_str, prefix1, prefix2, term_position, weight).first.first.to_i
+        sql << "SELECT oxp_w_post_terms(#{handle.to_i},#{KXapianWriter.sql_string(terms)},#{KXapianWriter.sql_string(restriction_labels_str)},"
+        sql << "#{KXapianWriter.sql_string(prefix1)},#{KXapianWriter.sql_string(prefix2)},#{term_position},#{weight.to_i});"
+        term_position += KXapianWriter.term_count(terms)
       end
-      pg.exec("SELECT oxp_w_finish_document($1,$2)", handle, @docid)
+      sql << "SELECT oxp_w_finish_document(#{handle.to_i},#{@docid.to_i});"
     end
   end
 
@@ -57,9 +80,15 @@ class KXapianWriter
       begin
         pg.exec("SELECT oxp_w_start_transaction($1)", handle)
         begin
+          sql = ''.dup
           @documents.each do |document|
-            document._write(handle, pg)
+            document._append_sql(handle, sql)
+            if sql.length > MAX_BATCH_SQL_LENGTH
+              pg.exec(sql)
+              sql = ''.dup
+            end
           end
+          pg.exec(sql) unless sql.empty?
           @to_delete.each do |docid|
             begin
               pg.exec("SELECT oxp_w_delete_document($1,$2)", handle, docid)
@@ -87,8 +116,27 @@ class KObjectStore
   # Don't do too many objects for an app before moving to another one - give everything a fair chance
   TEXT_INDEX_MAX_PER_APP = 16
 
-  # How many items to reindex at once in a reindex process
-  TEXT_INDEX_MAX_REINDEX = 16
+  # Rows read from os_dirty_text for each turn, so repeated entries for the same object can be coalesced
+  TEXT_INDEX_MAX_DIRTY_ROWS_PER_APP = 256
+
+  # Applications are found from the notifications sent by triggers on os_dirty_text and os_store_reindex,
+  # but the tables are scanned at this interval, in case a notification was missed.
+  TEXT_INDEX_RESCAN_INTERVAL = 600 # seconds
+  TEXT_INDEX_NOTIFY_CHANNEL = 'haplo_text_index'
+
+  # Minimum interval between queries for the lag metric
+  TEXT_INDEX_LAG_METRIC_INTERVAL = 10 # seconds
+
+  # How many items to reindex at once in a reindex process. Each batch is loaded with one query, has its
+  # terms generated by up to TEXT_INDEX_REINDEX_THREADS threads, and is written in one Xapian transaction.
+  TEXT_INDEX_MAX_REINDEX = 512
+  TEXT_INDEX_REINDEX_THREADS = KInstallProperties.get(:text_index_reindex_threads, "4").to_i
+  TEXT_INDEX_MIN_OBJECTS_PER_THREAD = 32
+
+  # Progress of store reindexing, by app ID, for reporting
+  REINDEX_PROGRESS_LOCK = Mutex.new
+  REINDEX_PROGRESS = {}
+  ReindexProgress = Struct.new(:started, :objects, :last_obj_id, :updated)
 
   # The app ID of an index to close
   @@reindex_close_app = nil
@@ -98,9 +146,27 @@ class KObjectStore
 
   # --------------------------------------------------------------------------------------------------------------------
 
+  # Applications with text indexing work, in round robin order
+  @@textidx_pending_apps = []
+  @@textidx_notifications = nil
+  @@textidx_next_scan = nil
+  @@textidx_next_lag_metric = nil
+
   def self.run_text_indexing
     @@textidx_do_indexing_flag = true
 
+    if @@textidx_notifications.nil?
+      trigger_installed = KApp.with_pg_database do |db|
+        db.exec("SELECT 1 FROM pg_trigger WHERE tgname='os_dirty_text_notify'").length > 0
+      end
+      if trigger_installed
+        @@textidx_notifications = Java::OrgHaploFramework::DatabaseNotifications.listen(TEXT_INDEX_NOTIFY_CHANNEL, TEXTIDX_FLAG)
+      else
+        KApp.logger.warn("os_dirty_text_notify trigger not installed, text indexer will scan for work")
+        KApp.logger.flush_buffered
+      end
+    end
+
     while @@textidx_do_indexing_flag
       do_reindex_close_app() if @@reindex_close_app != nil
       unless do_text_indexing()
@@ -132,30 +198,99 @@ class KObjectStore
   # --------------------------------------------------------------------------------------------------------------------
 
   def self.do_text_indexing
-    done_something = false
-
-    applications_requiring_work = []
-    KApp.with_pg_database do |db|
-      [
-        'SELECT DISTINCT app_id FROM public.os_dirty_text ORDER BY app_id',
-        'SELECT DISTINCT app_id FROM public.os_store_reindex ORDER BY app_id'
-      ].each do |sql|
-        applications_requiring_work.concat(
-          db.exec(sql).map { |r| r.first.to_i }
-        )
+    notifications = @@textidx_notifications
+    if notifications.nil? || notifications.takeNotificationsMissed() || @@textidx_next_scan.nil? || Time.now > @@textidx_next_scan
+      KApp.with_pg_database do |db|
+        [
+          'SELECT DISTINCT app_id FROM public.os_dirty_text ORDER BY app_id',
+          'SELECT DISTINCT app_id FROM public.os_store_reindex ORDER BY app_id'
+        ].each do |sql|
+          db.exec(sql).each { |r| _text_indexing_pending(r.first.to_i) }
+        end
       end
+      @@textidx_next_scan = Time.now + TEXT_INDEX_RESCAN_INTERVAL
+    end
+    if notifications
+      notifications.takePayloads().each { |app_id| _text_indexing_pending(app_id.to_i) }
     end
-    applications_requiring_work.uniq!
+    if @@textidx_pending_apps.empty?
+      clear_text_indexing_lag_metric
+      return false
+    end
+
+    update_text_indexing_lag_metric
 
-    applications_requiring_work.each do |app_id|
+    # Every application waiting gets a turn. Applications without work are dropped until they're notified again.
+    work_list = []
+    @@textidx_pending_apps.dup.each do |app_id|
       work = StoreReindexWork.new(app_id)
       if work.prepare
-        done_something = true 
-        work.perform
+        work_list << work
+      else
+        @@textidx_pending_apps.delete(app_id)
       end
     end
 
-    done_something
+    # Objects changed by users are indexed before any reindexing, so search results are up to date
+    work_list.each { |work| work.perform_dirty_objects }
+    work_list.each do |work|
+      work.perform_reindex
+      # Move to the back of the queue, so the next application goes first if the loop is stopped
+      @@textidx_pending_apps.delete(work.app_id)
+      @@textidx_pending_apps.push(work.app_id)
+      # If objects were changed while reindexing, index them before continuing
+      break if dirty_text_pending?
+    end
+
+    !work_list.empty?
+  end
+
+  def self._text_indexing_pending(app_id)
+    @@textidx_pending_apps.push(app_id) unless @@textidx_pending_apps.include?(app_id)
+  end
+
+  def self.update_text_indexing_lag_metric
+    now = Time.now
+    return if @@textidx_next_lag_metric && now < @@textidx_next_lag_metric
+    @@textidx_next_lag_metric = now + TEXT_INDEX_LAG_METRIC_INTERVAL
+    count, lag = KApp.with_pg_database do |db|
+      db.exec("SELECT COUNT(*),EXTRACT(EPOCH FROM (NOW() - MIN(created_at))) FROM public.os_dirty_text").first
+    end
+    Java::OrgHaploFramework::TextIndexingMetrics.setLag(lag.to_f, count.to_i)
+  end
+
+  # Nothing is waiting to be indexed, so the gauges don't stay at their last values while the indexer is idle
+  def self.clear_text_indexing_lag_metric
+    return if @@textidx_next_lag_metric.nil?
+    @@textidx_next_lag_metric = nil # so it's updated immediately when there's more work
+    Java::OrgHaploFramework::TextIndexingMetrics.setLag(0.0, 0)
+  end
+
+  def self.dirty_text_pending?
+    KApp.with_pg_database do |db|
+      db.exec("SELECT 1 FROM public.os_dirty_text LIMIT 1").length > 0
+    end
+  end
+
+  # --------------------------------------------------------------------------------------------------------------------
+
+  def self.text_reindex_progress
+    REINDEX_PROGRESS_LOCK.synchronize { REINDEX_PROGRESS.dup }
+  end
+
+  def self._update_reindex_progress(app_id, count, last_obj_id, finished)
+    REINDEX_PROGRESS_LOCK.synchronize do
+      if finished
+        REINDEX_PROGRESS.delete(app_id)
+      else
+        now = Time.now
+        progress = (REINDEX_PROGRESS[app_id] ||= ReindexProgress.new(now, 0))
+        progress.objects += count
+        progress.last_obj_id = last_obj_id
+        progress.updated = now
+        progress
+      end
+    end
   end
 
   # --------------------------------------------------------------------------------------------------------------------
@@ -163,13 +298,15 @@ class KObjectStore
   class StoreReindexWork
     include KConstants
 
+    attr_reader :app_id
+
     def initialize(app_id)
       @app_id = app_id
     end
 
     def prepare
       work_to_do = false
-      @dirty_objects = []
+      @dirty_objects = {} # obj_id -> os_dirty_text row IDs
       KApp.with_pg_database do |db|
         # The os_dirty_text table will, most of the time, contain only a few objects for only one application.
         # However, occasionally, it'll contain lots of objects when an object which has many other objects linking
@@ -183,9 +320,18 @@ class KObjectStore
         # and doesn't need to do sorting.
 
         # no ORDER BY clause in the query, to avoid unnecessary sorting
-        sql = "SELECT id,osobj_id FROM public.os_dirty_text WHERE app_id=#{@app_id} LIMIT #{KObjectStore::TEXT_INDEX_MAX_PER_APP}"
+        #
+        # Changing an object which is linked to by lots of other objects can add the same objects many
+        # times, so more rows are read than will be indexed, and all the rows for each object are deleted.
+        # Only rows which were committed before the objects are loaded are deleted, so no changes are missed.
+        sql = "SELECT id,osobj_id FROM public.os_dirty_text WHERE app_id=#{@app_id} LIMIT #{KObjectStore::TEXT_INDEX_MAX_DIRTY_ROWS_PER_APP}"
         db.exec(sql).each do |row_id,osobj_id|
-          @dirty_objects << [row_id.to_i,osobj_id.to_i]
+          row_ids = @dirty_objects[osobj_id.to_i]
+          if row_ids
+            row_ids << row_id.to_i
+          elsif @dirty_objects.length < KObjectStore::TEXT_INDEX_MAX_PER_APP
+            @dirty_objects[osobj_id.to_i] = [row_id.to_i]
+          end
         end
         work_to_do = true unless @dirty_objects.empty?
 
@@ -204,19 +350,28 @@ class KObjectStore
     end
 
     def perform
+      perform_dirty_objects
+      perform_reindex
+    end
+
+    def perform_dirty_objects
       # Dirty objects?
       unless @dirty_objects.empty?
         KApp.in_application(@app_id) do
-          do_text_indexing(@dirty_objects.map { |e| e.last })
+          do_text_indexing(@dirty_objects.keys)
         end
 
         # Delete the entries in the dirty table
         # For efficiency, use a transaction type which won't fsync to disc, but is still safe. Don't care if we redo an index.
         KApp.with_pg_database do |db|
-          db.perform(%Q!BEGIN; SET LOCAL synchronous_commit TO OFF; DELETE FROM public.os_dirty_text WHERE id IN (#{@dirty_objects.map { |e| e.first } .join(',')}); COMMIT!)
+          db.perform(%Q!BEGIN; SET LOCAL synchronous_commit TO OFF; DELETE FROM public.os_dirty_text WHERE id IN (#{@dirty_objects.values.flatten.join(',')}); COMMIT!)
         end
+        Java::OrgHaploFramework::TextIndexingMetrics.indexed(@dirty_objects.length)
+        @dirty_objects = {}
       end
+    end
 
+    def perform_reindex
       # Reindex in progress?
       if @reindex_id
         # Get next chunk of work
@@ -234,11 +389,12 @@ class KObjectStore
           KApp.with_pg_database do |db|
             db.perform("DELETE FROM public.os_store_reindex WHERE id=#{@reindex_id.to_i}")
           end
+          KObjectStore._update_reindex_progress(@app_id, 0, nil, true)
           KApp.logger.info("Completed reindex of application #{@app_id}")
           KApp.logger.flush_buffered
         else
           KApp.in_application(@app_id) do
-            do_text_indexing(reindex_ids) do |obj|
+            do_text_indexing(reindex_ids, true) do |obj|
               if @reindex_filter == nil
                 # No filtering
                 true
@@ -255,19 +411,23 @@ class KObjectStore
           KApp.with_pg_database do |db|
             db.perform(%Q!BEGIN; SET LOCAL synchronous_commit TO OFF; UPDATE public.os_store_reindex SET progress=#{reindex_ids.last.to_i} WHERE id=#{@reindex_id.to_i}; COMMIT!)
           end
+          @reindex_progress = reindex_ids.last
+          progress = KObjectStore._update_reindex_progress(@app_id, reindex_ids.length, reindex_ids.last, false)
+          elapsed = progress.updated - progress.started
+          rate = (elapsed > 0) ? (progress.objects / elapsed).to_i : 0
+          KApp.logger.info("Reindexing application #{@app_id}: #{progress.objects} objects in #{elapsed.to_i}s, #{rate} objects/s, progress #{reindex_ids.last}")
+          KApp.logger.flush_buffered
         end
+        @reindex_id = nil
       end
     end
 
-    def do_text_indexing(obj_list)
+    # Parallel generation of terms should only be used when reindexing, as
+    # plugins see the delegate calls for the objects from several threads.
+    def do_text_indexing(obj_list, parallel = false, &filter)
       # Fetch objects from the database
       sql = %Q!SELECT id,type_object_id,object,labels FROM a#{@app_id}.os_objects WHERE id IN (#{obj_list.join(',')})!
-      fetched_objs = KApp.with_pg_database { |pg| pg.exec(sql) }
-
-      store = KObjectStore.store
-      schema = store.schema
-      delegate = store._delegate
-      attr_weightings = schema.attr_weightings_for_indexing()
+      fetched_objs = KApp.with_pg_database { |pg| pg.exec(sql) }.to_a
 
       writer = KXapianWriter.new(
         KObjectStore.get_text_index_path_for_id(@app_id, :full),
@@ -276,6 +436,53 @@ class KObjectStore
 
       KApp.logger.info "Starting text indexing for application #{@app_id}"
 
+      # Start an exception handler block to make sure the database is closed on errors
+      begin
+        thread_count = parallel ? [TEXT_INDEX_REINDEX_THREADS, fetched_objs.length / TEXT_INDEX_MIN_OBJECTS_PER_THREAD].min : 1
+        if thread_count <= 1
+          writer.add_documents(generate_documents(fetched_objs, &filter))
+        else
+          slice_size = (fetched_objs.length + thread_count - 1) / thread_count
+          workers = fetched_objs.each_slice(slice_size).map do |slice|
+            Thread.new do
+              begin
+                KApp.in_application(@app_id) { generate_documents(slice, &filter) }
+              ensure
+                KApp.logger.flush_buffered
+              end
+            end
+          end
+          # Thread#value waits for the thread, and raises any exception from it
+          workers.map { |worker| worker.value } .each { |documents| writer.add_documents(documents) }
+        end
+
+        # Remove the deleted objects
+        objids_updated = Set.new(fetched_objs.map { |row| row.first.to_i })
+        obj_list.each do |objid|
+          unless objids_updated.include?(objid)
+            # Object was marked as dirty, but doesn't exist any more. Must have been deleted.
+            writer.delete_document(objid)
+          end
+        end
+
+        writer.write
+
+      ensure
+        KApp.logger.info "Finished text indexing for application #{@app_id}"
+        KApp.logger.flush_buffered
+      end
+
+    end
+
+    # Returns the KXapianWriter::Document objects for the rows fetched from os_objects
+    def generate_documents(fetched_objs)
+      store = KObjectStore.store
+      schema = store.schema
+      delegate = store._delegate
+      attr_weightings = schema.attr_weightings_for_indexing()
+
+      documents = []
+
       # Cache of loaded objects -- worth doing as it's likely that the same objects
       # will be repeated when something linked to by a lot of other objects is updated.
       # Cache object knows how to load objects from the store if they're not present.
@@ -290,111 +497,92 @@ class KObjectStore
         obj
       end
 
-      # Start an exception handler block to make sure the database is closed on errors
-      begin
-        objids_updated = Array.new
-
-        fetched_objs.each do |id_t,type_object_id_t,object_m,labels_m|
-          objids_updated << id_t.to_i
-
-          raw_object = KObjectStore._deserialize_object(object_m,labels_m)
+      fetched_objs.each do |id_t,type_object_id_t,object_m,labels_m|
+        raw_object = KObjectStore._deserialize_object(object_m,labels_m)
 
-          KApp.logger.info "Indexing #{raw_object.objref.to_presentation} for application #{@app_id}"
+        KApp.logger.info "Indexing #{raw_object.objref.to_presentation} for application #{@app_id}"
 
-          begin
-            # Delegate may need to alter the indexed object
-            object = delegate.indexed_version_of_object(raw_object, store.is_schema_obj?(raw_object))
+        begin
+          # Delegate may need to alter the indexed object
+          object = delegate.indexed_version_of_object(raw_object, store.is_schema_obj?(raw_object))
 
-            # Pass in _unmodified_ object for determining restrictions, as the delegate may have modified it in a way which changes which restrictions match
-            objs_to_index = store.__send__(:_ungrouped_object_with_restrictions, object, raw_object)
+          # Pass in _unmodified_ object for determining restrictions, as the delegate may have modified it in a way which changes which restrictions match
+          objs_to_index = store.__send__(:_ungrouped_object_with_restrictions, object, raw_object)
 
-            # TODO: Should cache be the unaltered object, or the one modified by the plugin? If modified, the obj_cache needs to be updated too
-            obj_cache[object.objref] = raw_object
+          # TODO: Should cache be the unaltered object, or the one modified by the plugin? If modified, the obj_cache needs to be updated too
+          obj_cache[object.objref] = raw_object
 
-            # If the caller is filtering, check to see if this object should be reindexed
-            next if block_given? && !yield(object)
+          # If the caller is filtering, check to see if this object should be reindexed
+          next if block_given? && !yield(object)
 
-            document = writer.document(id_t.to_i)
+          document = KXapianWriter::Document.new(id_t.to_i)
+          documents << document
 
-            objs_to_index.each do |iobj, restrictions|
+          objs_to_index.each do |iobj, restrictions|
 
-              iobj.each do |value,desc,qualifier_v|
+            iobj.each do |value,desc,qualifier_v|
 
-                # No qualifier needs to be presented as null
-                qualifier = (qualifier_v == nil) ? 0 : qualifier_v
+              # No qualifier needs to be presented as null
+              qualifier = (qualifier_v == nil) ? 0 : qualifier_v
 
-                restriction_labels = restrictions[desc] || []
+              restriction_labels = restrictions[desc] || []
 
-                if value.kind_of? KObjRef
-                  # Add terms from the linked object and parents
-                  limit = TEXT_INDEX_MAX_PARENT_COUNT
-                  scan = value
-                  while limit > 0 && scan && scan.kind_of?(KObjRef)
-                    # Don't let bad stores cause infinite loops
-                    limit -= 1
-                    # Get linked object from store or cache
-                    linked_object = obj_cache[scan]
-                    if linked_object
-                      # Get instructions for which fields to include, and their weights, falling back to a default specification
-                      term_inclusion_spec = nil
-                      linked_type_desc = schema.type_descriptor(linked_object.first_attr(A_TYPE))
-                      if linked_type_desc
-                        term_inclusion_spec = linked_type_desc.term_inclusion
-                      end
-                      term_inclusion_spec ||= KSchema::DEFAULT_TERM_INCLUSION_SPECIFICATION
-                      # Include all terms, according to the spec
-                      term_inclusion_spec.inclusions.each do |inclusion|
-                        linked_object.each(inclusion.desc) do |linked_value,d,q|
-                          # Don't index 'slow' text values, eg files
-                          if linked_value.k_is_string_type? && !(linked_value.to_terms_is_slow?)
-                            # We use the restriction labels of the link
-                            # attribute, not those of the attributes on
-                            # the linked object. TODO: Look into avoiding
-                            # this minor information leak.
-                            post_terms(document, attr_weightings, desc, qualifier, restriction_labels, linked_value, inclusion.relevancy_weight)
-                          end
+              if value.kind_of? KObjRef
+                # Add terms from the linked object and parents
+                limit = TEXT_INDEX_MAX_PARENT_COUNT
+                scan = value
+                while limit > 0 && scan && scan.kind_of?(KObjRef)
+                  # Don't let bad stores cause infinite loops
+                  limit -= 1
+                  # Get linked object from store or cache
+                  linked_object = obj_cache[scan]
+                  if linked_object
+                    # Get instructions for which fields to include, and their weights, falling back to a default specification
+                    term_inclusion_spec = nil
+                    linked_type_desc = schema.type_descriptor(linked_object.first_attr(A_TYPE))
+                    if linked_type_desc
+                      term_inclusion_spec = linked_type_desc.term_inclusion
+                    end
+                    term_inclusion_spec ||= KSchema::DEFAULT_TERM_INCLUSION_SPECIFICATION
+                    # Include all terms, according to the spec
+                    term_inclusion_spec.inclusions.each do |inclusion|
+                      linked_object.each(inclusion.desc) do |linked_value,d,q|
+                        # Don't index 'slow' text values, eg files
+                        if linked_value.k_is_string_type? && !(linked_value.to_terms_is_slow?)
+                          # We use the restriction labels of the link
+                          # attribute, not those of the attributes on
+                          # the linked object. TODO: Look into avoiding
+                          # this minor information leak.
+                          post_terms(document, attr_weightings, desc, qualifier, restriction_labels, linked_value, inclusion.relevancy_weight)
                         end
                       end
-                      # Parent?
-                      scan = linked_object.first_attr(A_PARENT)
                     end
-                    # TODO: Optimise indexing of linked values by storing processed terms, rather than repeatedly converting values
+                    # Parent?
+                    scan = linked_object.first_attr(A_PARENT)
                   end
-
-                elsif value.k_is_string_type?
-                  post_terms(document, attr_weightings, desc, qualifier, restriction_labels, value)
-
+                  # TODO: Optimise indexing of linked values by storing processed terms, rather than repeatedly converting values
                 end
 
+              elsif value.k_is_string_type?
+                post_terms(document, attr_weightings, desc, qualifier, restriction_labels, value)
+
               end
 
             end
 
-          rescue => e
-            # Exception happened, finish the document (not much else can be done)
-            KApp.logger.error "Exception during indexing, object text index will be incomplete for #{raw_object.objref.to_presentation}"
-            KApp.logger.log_exception(e)
-            # log let the delegate report this.
-            delegate.textidx_exception_indexing_object(raw_object, e)
           end
 
+        rescue => e
+          # Exception happened, finish the document (not much else can be done)
+          KApp.logger.error "Exception during indexing, object text index will be incomplete for #{raw_object.objref.to_presentation}"
+          KApp.logger.log_exception(e)
+          # log let the delegate report this.
+          delegate.textidx_exception_indexing_object(raw_object, e)
         end
 
-        # Remove the deleted objects
-        obj_list.each do |objid|
-          unless objids_updated.include?(objid)
-            # Object was marked as dirty, but doesn't exist any more. Must have been deleted.
-            writer.delete_document(objid)
-          end
-        end
-
-        writer.write
-
-      ensure
-        KApp.logger.info "Finished text indexing for application #{@app_id}"
-        KApp.logger.flush_buffered
       end
 
+      documents
     end
 
     # Post terms to database, converting text values to terms
@@ -452,3 +640,42 @@ class KObjectStore
 
 end
 
+
+# Implement a console command
+
+class Console
+
+  _Description "Show text indexing status"
+  _Help <<-__E
+    List the applications with objects waiting to be indexed, the age of the
+    oldest change waiting, and the progress of any store reindexing.
+  __E
+  def text_index
+    KApp.in_application(:no_app) do
+      KApp.with_pg_database do |db|
+        puts "  APP_ID   DIRTY    LAG_SECS REINDEX"
+        dirty = {}
+        db.exec("SELECT app_id,COUNT(*),EXTRACT(EPOCH FROM (NOW() - MIN(created_at))) FROM public.os_dirty_text GROUP BY app_id").each do |app_id,count,lag|
+          dirty[app_id.to_i] = [count.to_i, lag.to_f]
+        end
+        reindexing = db.exec("SELECT DISTINCT app_id FROM public.os_store_reindex").map { |r| r.first.to_i }
+        (dirty.keys | reindexing).sort.each do |app_id|
+          count, lag = dirty[app_id] || [0, 0]
+          puts sprintf("  %-8d %-8d %-8d %s", app_id, count, lag.to_i, reindexing.include?(app_id) ? 'yes' : '')
+        end
+      end
+    end
+    progress = KObjectStore.text_reindex_progress
+    unless progress.empty?
+      puts
+      puts "  APP_ID   OBJECTS  SECS     RATE     LAST_OBJ_ID"
+      progress.keys.sort.each do |app_id|
+        info = progress[app_id]
+        elapsed = info.updated - info.started
+        puts sprintf("  %-8d %-8d %-8d %-8d %d", app_id, info.objects, elapsed.to_i, (elapsed > 0) ? (info.objects / elapsed).to_i : 0, info.last_obj_id)
+      end
+    end
+    nil
+  end
+
+end
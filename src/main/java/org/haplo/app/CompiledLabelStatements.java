@@ -0,0 +1,196 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Evaluates the KLabelStatements in lib/klabels.rb for a single operation,
+ * compiled from the tree of statements and and/or combinations.
+ *
+ * Every label mentioned by any statement is stored in one sorted array,
+ * alongside a mask of the statements which allow and deny it. A label list
+ * is checked by ORing together the masks of its labels, which gives the
+ * result of every statement at once. The and/or combination of those
+ * results is precomputed as a truth table when there are only a few
+ * statements, which is nearly always the case.
+ */
+public class CompiledLabelStatements {
+    // Bit i of the low half of a mask is set if statement i allows the label,
+    // bit i of the high half if statement i denies it.
+    private static final int MAX_STATEMENTS = 32;
+    private static final int MAX_TRUTH_TABLE_STATEMENTS = 6;  // 2^6 results fit in a long
+    private static final int MAX_STACK_DEPTH = 64;
+
+    private static final int OP_FALSE = -1;
+    private static final int OP_TRUE = -2;
+    private static final int OP_AND = -3;
+    private static final int OP_OR = -4;
+    // Other values of program entries are the index of a statement
+
+    private final int[] labels;
+    private final long[] masks;
+    private final int[] program;
+    private final boolean hasTruthTable;
+    private final long truthTable;
+
+    private CompiledLabelStatements(int[] labels, long[] masks, int[] program, int numberOfStatements) {
+        this.labels = labels;
+        this.masks = masks;
+        this.program = program;
+        this.hasTruthTable = (numberOfStatements <= MAX_TRUTH_TABLE_STATEMENTS);
+        long table = 0;
+        if(this.hasTruthTable) {
+            for(int results = 0; results < (1 << numberOfStatements); ++results) {
+                if(evaluate(results)) { table |= (1L << results); }
+            }
+        }
+        this.truthTable = table;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Is the operation allowed on an object with these labels?
+     */
+    public boolean allow(int[] labelList) {
+        long mask = 0;
+        for(int label : labelList) {
+            int index = Arrays.binarySearch(this.labels, label);
+            if(index >= 0) {
+                mask |= this.masks[index];
+            }
+        }
+        int results = (int)mask & ~(int)(mask >>> 32);
+        return this.hasTruthTable ? (((this.truthTable >>> results) & 1) != 0) : evaluate(results);
+    }
+
+    /**
+     * Check many label lists in one call, eg for every object in a set of search results.
+     */
+    public boolean[] allowEach(int[][] labelLists) {
+        boolean[] allowed = new boolean[labelLists.length];
+        for(int i = 0; i < labelLists.length; ++i) {
+            allowed[i] = allow(labelLists[i]);
+        }
+        return allowed;
+    }
+
+    public boolean labelIsAllowed(int label) {
+        return allow(new int[] {label});
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    private boolean evaluate(int results) {
+        long stack = 0;
+        int depth = 0;
+        for(int op : this.program) {
+            boolean value;
+            switch(op) {
+                case OP_FALSE: value = false; break;
+                case OP_TRUE:  value = true; break;
+                case OP_AND:
+                case OP_OR:
+                    depth -= 2;
+                    boolean a = ((stack >>> depth) & 1) != 0;
+                    boolean b = ((stack >>> (depth + 1)) & 1) != 0;
+                    value = (op == OP_AND) ? (a && b) : (a || b);
+                    break;
+                default:
+                    value = ((results >>> op) & 1) != 0;
+                    break;
+            }
+            stack = value ? (stack | (1L << depth)) : (stack & ~(1L << depth));
+            depth++;
+        }
+        return (stack & 1) != 0;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Builds the statements in postfix order, so KLabelStatementsAnd adds
+     * both of its statements, then calls combineWithAnd().
+     */
+    public static class Builder {
+        private final TreeMap<Integer, Long> labelMasks = new TreeMap<Integer, Long>();
+        private final ArrayList<Integer> program = new ArrayList<Integer>();
+        private int numberOfStatements = 0;
+        private int depth = 0;
+        private int maxDepth = 0;
+
+        public void statement(int[] allow, int[] deny) {
+            if(this.numberOfStatements < MAX_STATEMENTS) {
+                int bit = this.numberOfStatements;
+                for(int label : allow) { addToMask(label, 1L << bit); }
+                for(int label : deny) { addToMask(label, 1L << (bit + 32)); }
+            }
+            push(this.numberOfStatements++);
+        }
+
+        public void constant(boolean value) {
+            push(value ? OP_TRUE : OP_FALSE);
+        }
+
+        public void combineWithAnd() {
+            combine(OP_AND);
+        }
+
+        public void combineWithOr() {
+            combine(OP_OR);
+        }
+
+        /**
+         * Returns null if the statements are too complex to compile, in which
+         * case the caller should evaluate them itself.
+         */
+        public CompiledLabelStatements compile() {
+            if(this.depth != 1) {
+                throw new IllegalStateException("Label statements incomplete");
+            }
+            if((this.numberOfStatements > MAX_STATEMENTS) || (this.maxDepth > MAX_STACK_DEPTH)) {
+                return null;
+            }
+            int[] labels = new int[this.labelMasks.size()];
+            long[] masks = new long[labels.length];
+            int i = 0;
+            for(Map.Entry<Integer, Long> entry : this.labelMasks.entrySet()) {
+                labels[i] = entry.getKey();
+                masks[i] = entry.getValue();
+                i++;
+            }
+            int[] program = new int[this.program.size()];
+            for(i = 0; i < program.length; ++i) {
+                program[i] = this.program.get(i);
+            }
+            return new CompiledLabelStatements(labels, masks, program, this.numberOfStatements);
+        }
+
+        private void addToMask(int label, long bit) {
+            Long mask = this.labelMasks.get(label);
+            this.labelMasks.put(label, (mask == null) ? bit : (mask | bit));
+        }
+
+        private void push(int op) {
+            this.program.add(op);
+            this.depth++;
+            if(this.depth > this.maxDepth) { this.maxDepth = this.depth; }
+        }
+
+        private void combine(int op) {
+            if(this.depth < 2) {
+                throw new IllegalStateException("Not enough label statements to combine");
+            }
+            this.program.add(op);
+            this.depth--;
+        }
+    }
+}
@@ -7,8 +7,11 @@
 package org.haplo.app;
 
 import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.lucene.search.Query;
+import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.TokenStream;
@@ -23,32 +26,51 @@ import org.apache.lucene.search.highlight.TextFragment;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Finds the best excerpts of text for search results, with the search terms
+ * highlighted.
+ *
+ * A page of results calls this with the same search terms for every result,
+ * so parsed queries are cached, and each thread reuses the Highlighter and
+ * scorer from its last call. The analyser is thread safe and shared.
+ */
 public class SearchResultExcerptHighlighter {
     final private static int NUMBER_OF_FRAGMENTS = 2;
+    // Terms can be a long way into the text, so analyse as much as Lucene does by default
+    final private static int MAX_CHARS_TO_ANALYSE = Highlighter.DEFAULT_MAX_CHARS_TO_ANALYZE;
+    final private static int MAX_CACHED_QUERIES = 64;
+
+    final private static StandardAnalyzer analyser = new StandardAnalyzer();
+
+    final private static LinkedHashMap<String, Query> queries = new LinkedHashMap<String, Query>(MAX_CACHED_QUERIES, 0.75f, true /* access order */) {
+        protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+            return size() > MAX_CACHED_QUERIES;
+        }
+    };
+
+    private static class ThreadHighlighter {
+        final String searchTerms;
+        final int maxExcerptLength;
+        final Highlighter highlighter;
+
+        ThreadHighlighter(String searchTerms, int maxExcerptLength, Highlighter highlighter) {
+            this.searchTerms = searchTerms;
+            this.maxExcerptLength = maxExcerptLength;
+            this.highlighter = highlighter;
+        }
+    }
+    final private static ThreadLocal<ThreadHighlighter> threadHighlighter = new ThreadLocal<ThreadHighlighter>();
 
     // NOTE: text to highlight must be HTML escaped.
     static public String[] bestHighlightedExcerpts(String escapedText, String searchTerms, int maxExcerptLength) {
         try {
-            // Scorer selects the terms which need highlighting. Created from a 'query' based on the extracted search terms.
-            Scorer scorer;
-            Fragmenter fragmenter;
-            if(searchTerms != null && searchTerms.length() > 0) {
-                QueryParser queryParser = new QueryParser("FIELD", new StandardAnalyzer());
-                Query query = queryParser.parse(searchTerms);
-                scorer = new QueryScorer(query);
-                fragmenter = new SimpleSpanFragmenter((QueryScorer)scorer, maxExcerptLength);
-            } else {
-                scorer = new NoHighlightingScorer();
-                fragmenter = new SimpleFragmenter(maxExcerptLength);
-            }
+            if(searchTerms == null) { searchTerms = ""; }
+            Highlighter highlighter = getHighlighter(searchTerms, maxExcerptLength);
 
             // Parse the escaped text into tokens, which retain the positions in the text
-            StandardAnalyzer analyser = new StandardAnalyzer();
             TokenStream tokenStream = analyser.tokenStream("FIELD", new StringReader(escapedText));
 
             // Finally, do the highlighting!
-            Highlighter highlighter = new Highlighter(new SimpleHTMLFormatter("<b>", "</b>"), scorer);
-            highlighter.setTextFragmenter(fragmenter);
             return highlighter.getBestFragments(tokenStream, escapedText, NUMBER_OF_FRAGMENTS);
         } catch(Exception e) {
             Logger.getLogger("org.haplo.app").info("Exception in SearchResultExcerptHighlighter: ", e);
@@ -56,6 +78,46 @@ public class SearchResultExcerptHighlighter {
         }
     }
 
+    // Highlighters aren't thread safe, but can be used for many texts in turn, as the scorer is reset for each one.
+    private static Highlighter getHighlighter(String searchTerms, int maxExcerptLength) throws ParseException {
+        ThreadHighlighter last = threadHighlighter.get();
+        if(last != null && last.maxExcerptLength == maxExcerptLength && last.searchTerms.equals(searchTerms)) {
+            return last.highlighter;
+        }
+
+        // Scorer selects the terms which need highlighting. Created from a 'query' based on the extracted search terms.
+        Scorer scorer;
+        Fragmenter fragmenter;
+        if(searchTerms.length() > 0) {
+            scorer = new QueryScorer(getQuery(searchTerms));
+            fragmenter = new SimpleSpanFragmenter((QueryScorer)scorer, maxExcerptLength);
+        } else {
+            scorer = new NoHighlightingScorer();
+            fragmenter = new SimpleFragmenter(maxExcerptLength);
+        }
+        Highlighter highlighter = new Highlighter(new SimpleHTMLFormatter("<b>", "</b>"), scorer);
+        highlighter.setTextFragmenter(fragmenter);
+        highlighter.setMaxDocCharsToAnalyze(MAX_CHARS_TO_ANALYSE);
+        threadHighlighter.set(new ThreadHighlighter(searchTerms, maxExcerptLength, highlighter));
+        return highlighter;
+    }
+
+    // Query objects are immutable, so can be shared between threads
+    private static Query getQuery(String searchTerms) throws ParseException {
+        synchronized(queries) {
+            Query query = queries.get(searchTerms);
+            if(query != null) {
+                return query;
+            }
+        }
+        // QueryParser isn't thread safe, so a new one is needed for each parse
+        Query query = new QueryParser("FIELD", analyser).parse(searchTerms);
+        synchronized(queries) {
+            queries.put(searchTerms, query);
+        }
+        return query;
+    }
+
     private static class NoHighlightingScorer implements Scorer {
         public float getFragmentScore() {
             return 0.1f;
@@ -7,6 +7,7 @@
 package org.haplo.appserver;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import org.apache.commons.io.IOUtils;
 
 /**
@@ -47,8 +48,8 @@ public class DataResponse extends Response {
         return data.length;
     }
 
-    public byte[] getRawBuffer() throws IOException {
-        return data;
+    public ByteBuffer getRawBuffer() throws IOException {
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
     }
 
     public void writeToOutputStream(OutputStream stream) throws IOException {
@@ -7,14 +7,33 @@
 package org.haplo.appserver;
 
 import java.io.*;
-import org.apache.commons.io.IOUtils;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.eclipse.jetty.server.HttpOutput;
 
 /**
  * Response object which writes the contents of a file.
  *
+ * Ranges are read directly from their position in the file, without
+ * skipping through it. When writing to the Jetty connection, the file is
+ * read into direct buffers, which are reused between responses, and written
+ * to the connection without copying them through the heap. Other streams,
+ * eg when gzipping, are written with transferTo(), which copies through a
+ * small buffer.
+ *
  * Use the setHeader() in the base class to set the MIME type and other headers.
  */
 public class FileResponse extends Response {
+    // Direct buffers for writing files to the connection, kept for reuse by later responses
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 32;
+    private static final ArrayBlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<ByteBuffer>(MAX_POOLED_BUFFERS);
+
     private File file;
 
     /**
@@ -35,30 +54,54 @@ public class FileResponse extends Response {
     }
 
     public void writeToOutputStream(OutputStream stream) throws IOException {
-        InputStream in = new FileInputStream(file);
-        try {
-            IOUtils.copy(in, stream);
-        } finally {
-            IOUtils.closeQuietly(in);
-        }
+        writeRangeToOutputStream(stream, 0, file.length());
     }
 
     public void writeRangeToOutputStream(OutputStream stream, long offset, long length) throws IOException {
         if(length == 0) {
             return;
         }
-        FileInputStream in = new FileInputStream(file);
-        try {
-            in.skip(offset);
-            byte[] buffer = new byte[4096];
-            long count = 0;
-            int n = 0;
-            while(count < length && (-1 != (n = in.read(buffer, 0, (int)(((length - count) > 4096) ? 4096 : (length - count)))))) {
-                stream.write(buffer, 0, n);
-                count += n;
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if(offset + length > channel.size()) {
+                throw new IOException("File truncated while sending response: " + file.getPath());
+            }
+            if(stream instanceof HttpOutput) {
+                // Jetty writes direct buffers to the connection without copying them into its own buffers
+                HttpOutput output = (HttpOutput)stream;
+                ByteBuffer buffer = buffers.poll();
+                if(buffer == null) {
+                    buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                }
+                long position = offset;
+                long end = offset + length;
+                while(position < end) {
+                    buffer.clear();
+                    if((end - position) < buffer.capacity()) {
+                        buffer.limit((int)(end - position));
+                    }
+                    int read = channel.read(buffer, position);
+                    if(read <= 0) {
+                        throw new IOException("File truncated while sending response: " + file.getPath());
+                    }
+                    buffer.flip();
+                    output.write(buffer);   // blocks until written
+                    position += read;
+                }
+                // Only reused if the write succeeded, so the connection can't still be using it
+                buffers.offer(buffer);
+                return;
+            }
+            // Don't close the channel wrapping the output stream, as that would close the response
+            WritableByteChannel out = Channels.newChannel(stream);
+            long position = offset;
+            long end = offset + length;
+            while(position < end) {
+                long transferred = channel.transferTo(position, end - position, out);
+                if(transferred <= 0) {
+                    throw new IOException("File truncated while sending response: " + file.getPath());
+                }
+                position += transferred;
             }
-        } finally {
-            IOUtils.closeQuietly(in);
         }
     }
 }
@@ -0,0 +1,88 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.appserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+import org.eclipse.jetty.server.InclusiveByteRange;
+
+/**
+ * Layout of a multipart/byteranges response body, for requests which ask for
+ * more than one range. The layout is worked out in advance, so the exact
+ * Content-Length can be sent before the body.
+ */
+public class MultipartByteRanges {
+    // Requests with more ranges than this are sent the entire response, as allowed by RFC 7233
+    public static final int MAXIMUM_RANGES = 32;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private List<InclusiveByteRange> ranges;
+    private byte[][] partHeaders;
+    private byte[] closingBoundary;
+    private String boundary;
+
+    /**
+     * Constructor
+     *
+     * @param ranges Satisfiable ranges, as returned by InclusiveByteRange.satisfiableRanges()
+     * @param partContentType MIME type of the underlying response, may be null
+     * @param totalLength Length of the underlying response
+     */
+    public MultipartByteRanges(List<InclusiveByteRange> ranges, String partContentType, long totalLength) {
+        byte[] boundaryBytes = new byte[12];
+        random.nextBytes(boundaryBytes);
+        this.boundary = "haplo-" + Hex.encodeHexString(boundaryBytes);
+        this.ranges = ranges;
+        this.partHeaders = new byte[ranges.size()][];
+        for(int i = 0; i < ranges.size(); ++i) {
+            StringBuilder h = new StringBuilder(128);
+            h.append("\r\n--").append(boundary).append("\r\n");
+            if(partContentType != null) {
+                h.append("Content-Type: ").append(partContentType).append("\r\n");
+            }
+            h.append("Content-Range: ").append(ranges.get(i).toHeaderRangeString(totalLength)).append("\r\n\r\n");
+            this.partHeaders[i] = h.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+        this.closingBoundary = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Value for the Content-Type header of the response
+     */
+    public String getContentType() {
+        return "multipart/byteranges; boundary=" + boundary;
+    }
+
+    /**
+     * Exact length of the body which will be written by write()
+     */
+    public long getContentLength() {
+        long length = closingBoundary.length;
+        for(int i = 0; i < partHeaders.length; ++i) {
+            length += partHeaders[i].length + ranges.get(i).getSize();
+        }
+        return length;
+    }
+
+    /**
+     * Write each range of the response as a part
+     */
+    public void write(Response response, OutputStream stream) throws IOException {
+        for(int i = 0; i < partHeaders.length; ++i) {
+            InclusiveByteRange range = ranges.get(i);
+            stream.write(partHeaders[i]);
+            response.writeRangeToOutputStream(stream, range.getFirst(), range.getSize());
+        }
+        stream.write(closingBoundary);
+    }
+}
@@ -7,6 +7,7 @@
 package org.haplo.appserver;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.zip.GZIPOutputStream;
@@ -31,6 +32,8 @@ public class Response {
     public static final long MINIMUM_GZIP_SIZE = 128;
     // How big can a response be before it's compressed as a stream?
     public static final long MAXIMUM_ONE_SHOT_COMPRESION_SIZE = 1024 * 1024;
+    // Size of buffer used when compressing as a stream
+    public static final int STREAMING_GZIP_BUFFER_SIZE = 64 * 1024;
 
     private Vector<String[]> headers;
     private byte[] compressed;
@@ -97,6 +100,23 @@ public class Response {
         return false;
     }
 
+    /**
+     * Returns a strong ETag (including quotes) identifying the content of
+     * this response in the given encoding, or null if the response doesn't
+     * have one.
+     */
+    public String getEntityTag(boolean gzipped) {
+        return null;
+    }
+
+    /**
+     * Whether the value of an If-None-Match header matches this response's
+     * ETag in any encoding.
+     */
+    public boolean entityTagMatches(String ifNoneMatch) {
+        return false;
+    }
+
     /**
      * Whether this response supports ranges. If true, getContentLength() must
      * NOT return CONTENT_LENGTH_UNCERTAIN.
@@ -159,8 +179,11 @@ public class Response {
 
     /**
      * Write the content to the a servlet response
+     *
+     * @param multipartRanges Layout of the multipart/byteranges body if more
+     * than one range is requested, otherwise null
      */
-    public final void writeToServletResponse(HttpServletResponse servletResponse, boolean gzipped, List ranges) throws IOException {
+    public final void writeToServletResponse(HttpServletResponse servletResponse, boolean gzipped, List ranges, MultipartByteRanges multipartRanges) throws IOException {
         OutputStream out = servletResponse.getOutputStream();
 
         // Send ranges?
@@ -171,8 +194,8 @@ public class Response {
             if(gzipped) {
                 throw new RuntimeException("HTTP response set up to use gzip, but sending ranges, which isn't supported by Response object.");
             }
-            if(ranges.size() != 1) {
-                throw new RuntimeException("Sending more than one range in a HTTP response isn't supported yet.");
+            if(ranges.size() != 1 && multipartRanges == null) {
+                throw new RuntimeException("Sending more than one range in a HTTP response requires a multipart/byteranges layout.");
             }
 
             long contentLength = getContentLength();
@@ -180,8 +203,12 @@ public class Response {
                 throw new RuntimeException("HTTP Response is not allowed to have an uncertain content length when handling ranges.");
             }
 
+            if(multipartRanges != null) {
+                multipartRanges.write(this, out);
+                return;
+            }
+
             InclusiveByteRange singleSatisfiableRange = (InclusiveByteRange)ranges.get(0);
-            long singleLength = singleSatisfiableRange.getSize();
             this.writeRangeToOutputStream(out,
                     singleSatisfiableRange.getFirst(),
                     singleSatisfiableRange.getSize());
@@ -215,26 +242,27 @@ public class Response {
         if(compressed != null) {
             stream.write(compressed);
         } else {
-            GZIPOutputStream compressor = new GZIPOutputStream(stream, 8 * 1024);
+            // Compress as the data is written, so large responses are never held in memory in compressed form
+            GZIPOutputStream compressor = new GZIPOutputStream(stream, STREAMING_GZIP_BUFFER_SIZE);
             this.writeToOutputStream(compressor);
             compressor.finish();    // don't close the underlying stream
         }
     }
 
     /**
-     * Return an exact length byte[] buffer of the uncompressed content, or null
-     * for not possible.
+     * Return a read only buffer of the uncompressed content, positioned at the
+     * start, or null for not possible.
      */
-    public byte[] getRawBuffer() throws IOException {
+    public ByteBuffer getRawBuffer() throws IOException {
         return null;
     }
 
     /**
-     * Return an exact length byte[] buffer of the gzipped content, or null for
-     * not possible.
+     * Return a read only buffer of the gzipped content, positioned at the
+     * start, or null for not possible.
      */
-    public byte[] getRawGzippedBuffer() throws IOException {
-        return compressed;
+    public ByteBuffer getRawGzippedBuffer() throws IOException {
+        return (compressed == null) ? null : ByteBuffer.wrap(compressed).asReadOnlyBuffer();
     }
 
     /**
@@ -7,8 +7,18 @@
 package org.haplo.appserver;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Deflater;
-import org.apache.commons.io.FileUtils;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.server.HttpOutput;
 
 // java.util.zip.GZIPOutputStream doesn't allow the compression level to be set.
 import org.haplo.utils.GZIPOutputStreamEx;
@@ -16,12 +26,24 @@ import org.haplo.utils.GZIPOutputStreamEx;
 /**
  * Response object which sends a static file. Maybe be returned more than once.
  *
+ * The data is held in direct buffers so it can be written to the connection
+ * without copying through the heap. The gzipped variant is generated on a
+ * background thread when the response is created, so no request thread has
+ * to pay for compression. Until it's ready, the file is sent uncompressed.
+ *
  * Use the setHeader() in the base class to set the MIME type.
  */
 public class StaticFileResponse extends Response {
-    private boolean allowCompression;
-    private byte[] uncompressed;
-    private byte[] compressed;
+    // Don't bother compressing very small files
+    private static final int MINIMUM_COMPRESSIBLE_SIZE = 4;
+    // Compressed data must be smaller than the uncompressed data by this much, to take into account the extra headers
+    private static final int COMPRESSION_HEADER_ALLOWANCE = 20;
+    // Length of hash used in ETags, in bytes
+    private static final int ETAG_HASH_LENGTH = 16;
+
+    private ByteBuffer uncompressed;
+    private volatile ByteBuffer compressed;
+    private String contentHash;
     private int responseCode;
 
     /**
@@ -32,12 +54,7 @@ public class StaticFileResponse extends Response {
      * @param allowCompression Whether to allow the response to be compressed.
      */
     public StaticFileResponse(String pathname, String mimeType, boolean allowCompression) throws IOException {
-        addHeader("Content-Type", mimeType);
-        this.allowCompression = allowCompression;
-        this.compressed = null;
-        this.responseCode = 200;
-        // Read file
-        this.uncompressed = FileUtils.readFileToByteArray(new File(pathname));
+        this(Files.readAllBytes(new File(pathname).toPath()), mimeType, allowCompression);
     }
 
     /**
@@ -49,10 +66,13 @@ public class StaticFileResponse extends Response {
      */
     public StaticFileResponse(byte[] data, String mimeType, boolean allowCompression) throws IOException {
         addHeader("Content-Type", mimeType);
-        this.allowCompression = allowCompression;
-        this.uncompressed = data;
+        this.uncompressed = toDirectBuffer(data, data.length);
         this.compressed = null;
+        this.contentHash = makeContentHash(data);
         this.responseCode = 200;
+        if(allowCompression && data.length >= MINIMUM_COMPRESSIBLE_SIZE) {
+            compressInBackground(data);
+        }
     }
 
     public void setResponseCode(int code) {
@@ -64,53 +84,127 @@ public class StaticFileResponse extends Response {
     }
 
     public long getContentLength() {
-        return uncompressed.length;
+        return uncompressed.capacity();
     }
 
     public boolean getBehavesAsStaticFile() {
         return true;
     }
 
-    public long getContentLengthGzipped() {
-        if(allowCompression) {
-            if(uncompressed.length < 4) {
-                return NOT_GZIPABLE;
-            }
+    public String getEntityTag(boolean gzipped) {
+        // Error responses, like the shared "not found" response, aren't identified by their content
+        if(this.responseCode != 200) {
+            return null;
+        }
+        // Strong ETags must be different for each encoding of the response
+        return gzipped ? ("\"" + contentHash + "-gz\"") : ("\"" + contentHash + "\"");
+    }
 
-            if(compressed == null) {
-                try {
-                    // Compress the file, and cache it so it's only compressed once
-                    ByteArrayOutputStream c = new ByteArrayOutputStream(uncompressed.length / 2);
-                    GZIPOutputStreamEx compressor = new GZIPOutputStreamEx(c, uncompressed.length / 2, Deflater.BEST_COMPRESSION);
-                    compressor.write(uncompressed);
-                    compressor.close();
-                    compressed = c.toByteArray();
-                } catch(IOException e) {
-                    System.out.println("Failed to compress static file");
-                    return NOT_GZIPABLE;
-                }
+    public boolean entityTagMatches(String ifNoneMatch) {
+        if(this.responseCode != 200) {
+            return false;
+        }
+        if(ifNoneMatch.trim().equals("*")) {
+            return true;
+        }
+        // Either encoding matches, as the content is the same
+        for(String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if(tag.startsWith("W/")) { tag = tag.substring(2); }
+            if(tag.equals(getEntityTag(false)) || tag.equals(getEntityTag(true))) {
+                return true;
             }
-
-            // If it's smaller uncompressed (taking into account headers to say it's compressed), send it uncompressed
-            return ((compressed.length + 20) > uncompressed.length) ? NOT_GZIPABLE : compressed.length;
         }
+        return false;
+    }
 
-        return NOT_GZIPABLE;
+    public long getContentLengthGzipped() {
+        ByteBuffer c = compressed;
+        // null if compression not allowed, not worthwhile, or still in progress
+        return (c == null) ? NOT_GZIPABLE : c.capacity();
     }
 
-    public byte[] getRawBuffer() throws IOException {
-        return uncompressed;
+    public ByteBuffer getRawBuffer() throws IOException {
+        return uncompressed.duplicate();
     }
 
-    public byte[] getRawGzippedBuffer() throws IOException {
-        return compressed;
+    public ByteBuffer getRawGzippedBuffer() throws IOException {
+        ByteBuffer c = compressed;
+        return (c == null) ? null : c.duplicate();
     }
 
     public void writeToOutputStream(OutputStream stream) throws IOException {
-        stream.write(uncompressed);
+        writeBuffer(uncompressed, stream);
     }
 
     public void writeToOutputStreamGzipped(OutputStream stream) throws IOException {
-        stream.write(compressed);
+        writeBuffer(compressed, stream);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    private static void writeBuffer(ByteBuffer buffer, OutputStream stream) throws IOException {
+        ByteBuffer b = buffer.duplicate();  // position is per-request
+        if(stream instanceof HttpOutput) {
+            // Jetty can write the direct buffer to the connection without copying it into its own buffers
+            ((HttpOutput)stream).write(b);
+        } else {
+            byte[] chunk = new byte[8 * 1024];
+            while(b.hasRemaining()) {
+                int n = Math.min(chunk.length, b.remaining());
+                b.get(chunk, 0, n);
+                stream.write(chunk, 0, n);
+            }
+        }
+    }
+
+    private static ByteBuffer toDirectBuffer(byte[] data, int length) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(data, 0, length);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private static String makeContentHash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            byte[] truncated = new byte[ETAG_HASH_LENGTH];
+            System.arraycopy(digest, 0, truncated, 0, ETAG_HASH_LENGTH);
+            return Hex.encodeHexString(truncated);
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    private static final ExecutorService compressionExecutor = Executors.newFixedThreadPool(
+        Math.max(1, java.lang.Runtime.getRuntime().availableProcessors() / 2),
+        new java.util.concurrent.ThreadFactory() {
+            private AtomicInteger threadNumber = new AtomicInteger(0);
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "org.haplo.appserver.compression-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        }
+    );
+
+    private void compressInBackground(byte[] data) {
+        compressionExecutor.execute(() -> {
+            try {
+                ByteArrayOutputStream c = new ByteArrayOutputStream(data.length / 2);
+                GZIPOutputStreamEx compressor = new GZIPOutputStreamEx(c, Math.max(512, data.length / 2), Deflater.BEST_COMPRESSION);
+                compressor.write(data);
+                compressor.close();
+                // Only use the compressed variant if it's smaller, taking into account headers to say it's compressed
+                if((c.size() + COMPRESSION_HEADER_ALLOWANCE) <= data.length) {
+                    this.compressed = toDirectBuffer(c.toByteArray(), c.size());
+                }
+            } catch(Exception e) {
+                Logger.getLogger("org.haplo.app").error("Failed to compress static file: " + e.toString());
+            }
+        });
     }
 }
@@ -0,0 +1,116 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.appserver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Response object which writes text as UTF-8, encoding it as it's written
+ * to the HTTP response.
+ *
+ * Unlike DataResponse, the body is never held in memory as a byte array. Large
+ * responses are gzipped as they're written by the Response base class, so the
+ * only copy of a rendered page is the String generated by the renderer.
+ */
+public class TextResponse extends Response {
+    private static final int ENCODE_BUFFER_SIZE = 16 * 1024;
+
+    // Encoders and their output buffers are reused by each thread
+    private static final ThreadLocal<Encoder> encoders = ThreadLocal.withInitial(Encoder::new);
+
+    private CharSequence text;
+    private int responseCode;
+    private long contentLength = -1;    // calculated on first use
+
+    private static class Encoder {
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder().
+            onMalformedInput(CodingErrorAction.REPLACE).
+            onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final ByteBuffer buffer = ByteBuffer.allocate(ENCODE_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param text body of the HTTP response
+     * @param responseCode HTTP resonse code to send with the request
+     */
+    public TextResponse(CharSequence text, int responseCode) {
+        this.text = text;
+        this.responseCode = responseCode;
+    }
+
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    public long getContentLength() {
+        if(this.contentLength == -1) {
+            this.contentLength = utf8Length(this.text);
+        }
+        return this.contentLength;
+    }
+
+    public void writeToOutputStream(OutputStream stream) throws IOException {
+        Encoder e = encoders.get();
+        CharsetEncoder encoder = e.encoder;
+        ByteBuffer buffer = e.buffer;
+        encoder.reset();
+        buffer.clear();
+        CharBuffer input = CharBuffer.wrap(this.text);
+        CoderResult result;
+        while((result = encoder.encode(input, buffer, true)).isOverflow()) {
+            writeBuffer(stream, buffer);
+        }
+        if(result.isError()) { result.throwException(); }
+        while(encoder.flush(buffer).isOverflow()) {
+            writeBuffer(stream, buffer);
+        }
+        writeBuffer(stream, buffer);
+    }
+
+    private static void writeBuffer(OutputStream stream, ByteBuffer buffer) throws IOException {
+        stream.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    /**
+     * Length of text when encoded as UTF-8, with unpaired surrogates replaced
+     * by a single byte, as the encoder does.
+     */
+    public static long utf8Length(CharSequence text) {
+        long length = 0;
+        int len = text.length();
+        for(int i = 0; i < len; ++i) {
+            char c = text.charAt(i);
+            if(c < 0x80) {
+                length += 1;
+            } else if(c < 0x800) {
+                length += 2;
+            } else if(Character.isHighSurrogate(c) && ((i + 1) < len) && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if(Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    public String getAbbreviatedResponseBodyForLogging() {
+        int len = this.text.length();
+        return this.text.subSequence(0, (len > 1536) ? 1536 : len).toString();
+    }
+}
@@ -29,6 +29,10 @@ public class PDFPageRender extends Operation {
         this.success = false;
     }
 
+    public Priority getPriority() {
+        return Priority.INTERACTIVE;
+    }
+
     protected void performOperation() {
         try {
             PDF pdf = new PDF(inputPathname);
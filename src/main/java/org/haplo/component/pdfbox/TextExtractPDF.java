@@ -18,6 +18,10 @@ import org.apache.pdfbox.text.PDFTextStripper;
 import org.haplo.text.TextExtractOp;
 
 public class TextExtractPDF extends TextExtractOp {
+    private TextExtractPDF() {    // for binary decoding
+        super(null);
+    }
+
     public TextExtractPDF(String inputPathname) {
         super(inputPathname);
     }
@@ -76,6 +76,10 @@ public class ThumbnailPDF extends Operation {
     /**
      * Perform the thumbnailing operation
      */
+    public Priority getPriority() {
+        return Priority.INTERACTIVE;
+    }
+
     protected void performOperation() {
         try {
             PDF pdf = new PDF(inputPathname);
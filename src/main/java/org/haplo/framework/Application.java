@@ -8,17 +8,12 @@ package org.haplo.framework;
 
 import java.util.Map;
 import java.util.HashMap;
-import java.util.concurrent.Semaphore;
 import java.util.Collection;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.TimeUnit;
 
 import org.haplo.appserver.Response;
 
@@ -39,9 +34,7 @@ public class Application {
     // Application data
     private long applicationID;
     private Object rubyObject;
-    private Semaphore requestConcurrencySempahore;
-    private Lock requestFinishedLock;
-    private Condition requestFinishedCondition;
+    private RequestScheduler.ApplicationQueue requestQueue;
     private volatile HashMap<String, Response> dynamicFiles; // could probably get away with not being volatile
     private int numAppSpecificStaticFiles;   // the files uploaded by the user for use in styling. -1 means "not set"
     private Set<String> allowedPluginFilePaths;
@@ -95,7 +88,7 @@ public class Application {
      */
     public static String checkAllApplicationConcurrencyLimits() {
         for(Application app : applications.values()) {
-            if(app.getRequestConcurrencySempahore().availablePermits() <= 0) {
+            if(RequestScheduler.isApplicationSaturated(app.getRequestQueue())) {
                 // Too much concurrency - all permits used
                 return String.format("CONCURRENCY_APP %d", app.getApplicationID());
             }
@@ -125,9 +118,7 @@ public class Application {
      */
     private Application(long applicationID) {
         this.applicationID = applicationID;
-        this.requestConcurrencySempahore = new Semaphore(ConcurrencyLimits.APPLICATION_CONCURRENT_REQUESTS_PERMITS, true /* sempahore is fair */);
-        this.requestFinishedLock = new ReentrantLock(true);
-        this.requestFinishedCondition = requestFinishedLock.newCondition();
+        this.requestQueue = new RequestScheduler.ApplicationQueue(applicationID);
         this.numAppSpecificStaticFiles = -1;
     }
 
@@ -158,11 +149,19 @@ public class Application {
     }
 
     /**
-     * Returns the semaphore to stop too many concurrent requests for this
-     * application.
+     * Returns the scheduling state used to stop too many concurrent requests
+     * for this application.
      */
-    public Semaphore getRequestConcurrencySempahore() {
-        return requestConcurrencySempahore;
+    public RequestScheduler.ApplicationQueue getRequestQueue() {
+        return requestQueue;
+    }
+
+    /**
+     * Set the relative share of the server this application gets when it's
+     * busy. Default is 1.
+     */
+    public void setRequestSchedulingWeight(int weight) {
+        RequestScheduler.setWeight(requestQueue, weight);
     }
 
     /**
@@ -270,43 +269,6 @@ public class Application {
         return response;
     }
 
-    // ===============================================================================================================================
-    // Request ending notification and waiting
-    /**
-     * Is there another request in progress?
-     */
-    public boolean isAnotherRequestBeingProcessed() {
-        // This is called by RequestHandler after it gains a semaphore, so if the count is more than total - 1, something else is working too.
-        return requestConcurrencySempahore.availablePermits() < (ConcurrencyLimits.APPLICATION_CONCURRENT_REQUESTS_PERMITS - 1);
-    }
-
-    /**
-     * Call when a request has finished.
-     */
-    public void requestFinished() {
-        requestFinishedLock.lock();
-        try {
-            requestFinishedCondition.signal();
-        } finally {
-            requestFinishedLock.unlock();
-        }
-    }
-
-    /**
-     * Wait for a request to finish
-     * returns true if the wait finished early because a request finished
-     */
-    public boolean waitForARequestToFinish(long timeout) {
-        requestFinishedLock.lock();
-        try {
-            return requestFinishedCondition.await(timeout, TimeUnit.MILLISECONDS);
-        } catch(InterruptedException e) {
-            return false; // request didn't finish
-        } finally {
-            requestFinishedLock.unlock();
-        }
-    }
-
     // ===============================================================================================================================
     // For Ruby code to set mappings
     // It's necessary to create a subclass so that there's a method with the exact type signature we need to use.
@@ -236,6 +236,22 @@ public class Boot {
                 new QueuedThreadPoolStatisticsCollector(jettyThreadPool, "haplo").register();
                 // Monitor the database connection pool
                 Database.collectMetrics();
+                // Monitor request scheduling
+                RequestScheduler.collectMetrics();
+                // Monitor operation workers
+                OperationRunner.collectMetrics();
+                // Monitor JavaScript runtime construction
+                org.haplo.javascript.Runtime.collectMetrics();
+                // Monitor pooled caches
+                CachePoolMetrics.collectMetrics();
+                // Monitor text indexing
+                TextIndexingMetrics.collectMetrics();
+                // Monitor background job queues
+                JobQueueMetrics.collectMetrics();
+                // Monitor message bus delivery
+                MessageBusMetrics.collectMetrics();
+                // Monitor outbound HTTP requests
+                org.haplo.httpclient.HTTPClient.collectMetrics();
                 metricServer.start();
                 context.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
                 logger.info("Enabled prometheus monitoring on port " + metricport);
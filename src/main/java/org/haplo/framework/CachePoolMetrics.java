@@ -0,0 +1,111 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.framework;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Histogram;
+
+/**
+ * Counters for the pooled caches implemented in framework/lib/kapp_caches.rb,
+ * such as the JavaScript runtimes.
+ */
+public class CachePoolMetrics {
+    private static final ConcurrentHashMap<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+
+    // Metrics, only created if collectMetrics() is called
+    private static Histogram buildTimeMetric;
+
+    private static class Pool {
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong backgroundBuilds = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+        volatile long idle = 0;
+    }
+
+    private static Pool pool(String name) {
+        return pools.computeIfAbsent(name, n -> new Pool());
+    }
+
+    public static void hit(String name) {
+        pool(name).hits.incrementAndGet();
+    }
+
+    public static void miss(String name) {
+        pool(name).misses.incrementAndGet();
+    }
+
+    public static void evicted(String name, int count) {
+        pool(name).evictions.addAndGet(count);
+    }
+
+    public static void setIdle(String name, long idle) {
+        pool(name).idle = idle;
+    }
+
+    /**
+     * Record the time taken to build a new object for the pool, either while
+     * handling a request, or in the background.
+     */
+    public static void built(String name, boolean inBackground, long milliseconds) {
+        if(inBackground) {
+            pool(name).backgroundBuilds.incrementAndGet();
+        }
+        if(buildTimeMetric != null) {
+            buildTimeMetric.labels(name, inBackground ? "background" : "request").observe(milliseconds / 1000.0);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Register metrics with prometheus
+     */
+    public static void collectMetrics() {
+        buildTimeMetric = Histogram.build().
+            name("haplo_cache_pool_build_seconds").
+            help("Time taken to build objects for pooled caches.").
+            labelNames("cache", "where").
+            buckets(0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30).
+            register();
+        new Collector() {
+            public List<MetricFamilySamples> collect() {
+                List<String> labelNames = Collections.singletonList("cache");
+                CounterMetricFamily hits = new CounterMetricFamily("haplo_cache_pool_hits_total", "Checkouts which used an idle pooled object.", labelNames);
+                CounterMetricFamily misses = new CounterMetricFamily("haplo_cache_pool_misses_total", "Checkouts which had to build a new object.", labelNames);
+                CounterMetricFamily backgroundBuilds = new CounterMetricFamily("haplo_cache_pool_background_builds_total", "Objects built in the background to keep the pool warm.", labelNames);
+                CounterMetricFamily evictions = new CounterMetricFamily("haplo_cache_pool_evictions_total", "Idle objects discarded because there were too many.", labelNames);
+                GaugeMetricFamily idle = new GaugeMetricFamily("haplo_cache_pool_idle", "Idle objects in the pool, across all applications.", labelNames);
+                for(Map.Entry<String, Pool> entry : pools.entrySet()) {
+                    List<String> labels = Collections.singletonList(entry.getKey());
+                    Pool pool = entry.getValue();
+                    hits.addMetric(labels, pool.hits.get());
+                    misses.addMetric(labels, pool.misses.get());
+                    backgroundBuilds.addMetric(labels, pool.backgroundBuilds.get());
+                    evictions.addMetric(labels, pool.evictions.get());
+                    idle.addMetric(labels, pool.idle);
+                }
+                List<MetricFamilySamples> samples = new ArrayList<MetricFamilySamples>();
+                samples.add(hits);
+                samples.add(misses);
+                samples.add(backgroundBuilds);
+                samples.add(evictions);
+                samples.add(idle);
+                return samples;
+            }
+        }.register();
+    }
+}
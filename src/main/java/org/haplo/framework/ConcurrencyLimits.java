@@ -6,26 +6,36 @@
 
 package org.haplo.framework;
 
-import java.util.concurrent.Semaphore;
-
 /**
- * Container for semaphores to restrict concurrency of various operations.
+ * Container for limits to restrict concurrency of various operations.
  *
+ * See RequestScheduler for how they're used.
  */
 public class ConcurrencyLimits {
-    // How many requests can an application have in-flight at once?
-    public static final int APPLICATION_CONCURRENT_REQUESTS_PERMITS = 8;
+    // How many requests can an application have in-flight at once? The limit adapts between min and max.
+    // The minimum is the fixed number of permits applications had before the limit adapted.
+    public static final int APPLICATION_CONCURRENT_REQUESTS_MIN = 8;
+    public static final int APPLICATION_CONCURRENT_REQUESTS_INITIAL = 8;
+    public static final int APPLICATION_CONCURRENT_REQUESTS_MAX = 16;
 
     // How many active Ruby threads?
     public static final int RUBY_RUNTIME_PERMITS = 96;
 
-    // When another request is in progress, how many times should the handler wait to see if it can be the only request processed at once?
-    public static final int APPLICATION_CONCURRENT_REQUESTS_MAX_SPINS = 4;
-    // And how long should it wait?
-    public static final int APPLICATION_CONCURRENT_REQUESTS_MAX_WAIT_TIME = 5;  /* ms */
+    // How many requests can be waiting for an application before new requests are rejected?
+    public static final int APPLICATION_MAX_QUEUED_REQUESTS = 128;
+    // How long can a request wait before it's rejected?
+    public static final long MAXIMUM_QUEUE_TIME = 20000; /* ms */
+    // What to tell clients when their request is rejected
+    public static final int RETRY_AFTER_SECONDS = 5;
 
-    /**
-     * acquire this semaphore when using the Ruby intepreter.
-     */
-    public static Semaphore rubyRuntime = new Semaphore(RUBY_RUNTIME_PERMITS, true /* semaphore is fair */);
+    // Adapting the application limit to latency
+    // Limit is reduced when smoothed latency is more than this multiple of the baseline latency
+    public static final double LATENCY_TOLERANCE = 2.0;
+    public static final double LIMIT_DECREASE_FACTOR = 0.9;
+    public static final double SMOOTHED_LATENCY_WEIGHT = 0.1;
+    // Baseline is an estimate of this percentile of the application's latency, so applications
+    // with a mix of fast and slow requests aren't compared against their fastest requests
+    public static final double BASELINE_LATENCY_PERCENTILE = 0.9;
+    // Proportion the baseline moves by for each request
+    public static final double BASELINE_LATENCY_STEP = 0.02;
 }
@@ -35,6 +35,12 @@ public class Database {
         // Set size of pool to avoid using too many connection when reltively idle, but scale up under load
         p.setProperty("minimumIdle", "8");
         p.setProperty("maximumPoolSize", "92");
+        // Plugin queries generate identical SQL for each shape of query, so the driver can use
+        // server side prepared statements. Each application has its own schema, so allow for
+        // more distinct statements than the default. The cache is per connection, so keep its
+        // memory use small given the size of the pool.
+        p.setProperty("dataSource.preparedStatementCacheQueries", "1024");
+        p.setProperty("dataSource.preparedStatementCacheSizeMiB", "2");
         configProperties = p;
 
         // Long-running connections aren't in the pool
@@ -51,6 +57,23 @@ public class Database {
         ds = source;
     }
 
+    /**
+     * Returns a connection which isn't part of the pool, for a connection
+     * which will be held open. The caller must close it.
+     */
+    public static Connection getLongRunningConnection() throws java.sql.SQLException {
+        return dsLongRunning.getConnection();
+    }
+
+    /**
+     * Returns a connection from the pool which isn't bound to the current
+     * thread, for use alongside the connection used by withConnection().
+     * The caller must close it to return it to the pool.
+     */
+    public static Connection getUnboundPooledConnection() throws java.sql.SQLException {
+        return ds.getConnection();
+    }
+
     public interface UseConnection {
         public Object use(Connection connection) throws java.sql.SQLException;
     }
@@ -0,0 +1,166 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.framework;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import org.apache.log4j.Logger;
+
+import org.haplo.common.utils.WaitingFlag;
+
+/**
+ * Receives PostgreSQL NOTIFY messages on a single long running connection,
+ * and wakes the background tasks which are waiting for them.
+ *
+ * Notifications are only delivered after the sending transaction commits,
+ * and duplicates within a transaction are merged by the database, so they
+ * can be sent freely from triggers.
+ *
+ * If the connection is lost, notifications sent while it was being
+ * reconnected will have been missed, so each Channel is marked and its
+ * flag is set, and the listener should check for work in the database.
+ */
+public class DatabaseNotifications {
+    private static final int POLL_TIMEOUT = 5000;   // ms
+    private static final int RECONNECT_DELAY = 5000;   // ms
+
+    private static final HashMap<String, Channel> channels = new HashMap<String, Channel>();
+    private static boolean channelsChanged = false;
+    private static Thread listenerThread;
+
+    public static class Channel {
+        private final String name;
+        private final WaitingFlag flag;
+        private final LinkedHashSet<String> payloads = new LinkedHashSet<String>();
+        private boolean notificationsMissed = true;   // nothing received before the first LISTEN
+
+        Channel(String name, WaitingFlag flag) {
+            this.name = name;
+            this.flag = flag;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        synchronized void received(String payload) {
+            if(payload != null && payload.length() > 0) {
+                this.payloads.add(payload);
+            }
+            this.flag.setFlag();
+        }
+
+        synchronized void missed() {
+            this.notificationsMissed = true;
+            this.flag.setFlag();
+        }
+
+        /**
+         * Returns the distinct payloads received since the last call, in
+         * the order they were first received.
+         */
+        public synchronized String[] takePayloads() {
+            String[] taken = this.payloads.toArray(new String[this.payloads.size()]);
+            this.payloads.clear();
+            return taken;
+        }
+
+        /**
+         * Returns true if notifications may have been missed since the last
+         * call, and clears the marker.
+         */
+        public synchronized boolean takeNotificationsMissed() {
+            boolean missed = this.notificationsMissed;
+            this.notificationsMissed = false;
+            return missed;
+        }
+    }
+
+    /**
+     * Start listening on a channel. The flag is set when a notification is
+     * received. Channel names must be valid SQL identifiers.
+     */
+    public static Channel listen(String name, WaitingFlag flag) {
+        if(!name.matches("[a-z_][a-z0-9_]*")) {
+            throw new RuntimeException("Bad notification channel name: " + name);
+        }
+        synchronized(channels) {
+            if(channels.containsKey(name)) {
+                throw new RuntimeException("Already listening on notification channel: " + name);
+            }
+            Channel channel = new Channel(name, flag);
+            channels.put(name, channel);
+            channelsChanged = true;
+            if(listenerThread == null) {
+                listenerThread = new Thread(DatabaseNotifications::run, "haplo-db-notifications");
+                listenerThread.setDaemon(true);
+                listenerThread.start();
+            }
+            return channel;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    private static void run() {
+        Logger logger = Logger.getLogger("org.haplo.database");
+        while(true) {
+            try(Connection connection = Database.getLongRunningConnection()) {
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                ArrayList<String> listening = new ArrayList<String>();
+                while(true) {
+                    ArrayList<Channel> newChannels = new ArrayList<Channel>();
+                    synchronized(channels) {
+                        if(channelsChanged) {
+                            for(Channel channel : channels.values()) {
+                                if(!listening.contains(channel.name)) {
+                                    newChannels.add(channel);
+                                }
+                            }
+                            channelsChanged = false;
+                        }
+                    }
+                    for(Channel channel : newChannels) {
+                        Database.execute(connection, "LISTEN " + channel.name);
+                        listening.add(channel.name);
+                        // Anything sent before LISTEN won't be received
+                        channel.missed();
+                    }
+                    PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT);
+                    if(notifications != null) {
+                        for(PGNotification notification : notifications) {
+                            Channel channel;
+                            synchronized(channels) {
+                                channel = channels.get(notification.getName());
+                            }
+                            if(channel != null) {
+                                channel.received(notification.getParameter());
+                            }
+                        }
+                    }
+                }
+            } catch(Exception e) {
+                logger.error("Lost database connection for notifications, will reconnect", e);
+            }
+            // LISTEN will be sent again to the new connection, marking everything as missed
+            synchronized(channels) {
+                channelsChanged = true;
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch(InterruptedException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.framework;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+/**
+ * Metrics for the background job queues in lib/kjob.rb
+ */
+public class JobQueueMetrics {
+    // Metrics, only created if collectMetrics() is called
+    private static Gauge depthMetric;
+    private static Gauge ageMetric;
+    private static Counter claimedMetric;
+
+    /**
+     * Called before the depths are set, so applications without jobs waiting
+     * are no longer reported.
+     */
+    public static void clearDepths() {
+        if(depthMetric != null) {
+            depthMetric.clear();
+            ageMetric.clear();
+        }
+    }
+
+    /**
+     * Record how many jobs are ready to run for an application in a queue,
+     * and how long the oldest has been waiting.
+     */
+    public static void setDepth(int queue, int applicationId, long jobs, double ageSeconds) {
+        if(depthMetric != null) {
+            String q = Integer.toString(queue);
+            String app = Integer.toString(applicationId);
+            depthMetric.labels(q, app).set(jobs);
+            ageMetric.labels(q, app).set(ageSeconds);
+        }
+    }
+
+    public static void claimed(int queue, int jobs) {
+        if(claimedMetric != null) {
+            claimedMetric.labels(Integer.toString(queue)).inc(jobs);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Register metrics with prometheus
+     */
+    public static void collectMetrics() {
+        depthMetric = Gauge.build().
+            name("haplo_job_queue_depth").
+            help("Jobs ready to run, by queue and application.").
+            labelNames("queue", "application").
+            register();
+        ageMetric = Gauge.build().
+            name("haplo_job_queue_age_seconds").
+            help("Time the oldest job ready to run has been waiting, by queue and application.").
+            labelNames("queue", "application").
+            register();
+        claimedMetric = Counter.build().
+            name("haplo_job_queue_claimed_total").
+            help("Jobs claimed by job runners.").
+            labelNames("queue").
+            register();
+    }
+}
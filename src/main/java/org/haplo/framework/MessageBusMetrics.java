@@ -0,0 +1,49 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.framework;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+/**
+ * Metrics for message bus delivery in lib/js_support/messagebus/js_messagebus_support.rb
+ */
+public class MessageBusMetrics {
+    // Metrics, only created if collectMetrics() is called
+    private static Counter deliveredMetric;
+    private static Histogram lagMetric;
+
+    /**
+     * Record a message taken from the queue for delivery, and how long it
+     * waited in the queue.
+     */
+    public static void delivered(String kind, String bus, double lagSeconds) {
+        if(deliveredMetric != null) {
+            deliveredMetric.labels(kind, bus).inc();
+            lagMetric.labels(kind, bus).observe(lagSeconds);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Register metrics with prometheus
+     */
+    public static void collectMetrics() {
+        deliveredMetric = Counter.build().
+            name("haplo_message_bus_delivered_total").
+            help("Messages taken from the message bus queue for delivery.").
+            labelNames("kind", "bus").
+            register();
+        lagMetric = Histogram.build().
+            name("haplo_message_bus_lag_seconds").
+            help("Time messages waited in the message bus queue before delivery.").
+            labelNames("kind", "bus").
+            buckets(0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60).
+            register();
+    }
+}
@@ -40,6 +40,10 @@ public class OperationRunner {
         }
     }
 
+    static void collectMetrics() {
+        OperationRunner.dispatcher.collectMetrics();
+    }
+
     static class DefaultQueuer implements OpQueuer {
         public void queueOperation(Operation operation, OpNotifyTarget notifyTarget) {
             dispatcher.queueOperation(operation, framework.getCurrentApplicationId(), notifyTarget);
@@ -69,10 +73,9 @@ public class OperationRunner {
 
         public void startSupervision(OpDispatcher.Policy policy) {
             this.logger.info("Starting supervision of in process operation workers");
-            this.processes = new OpWorkerProcess[policy.numberOfWorkers];
-            for(int workerNumber = 0; workerNumber < this.processes.length; ++workerNumber) {
-                this.processes[workerNumber] = new OpWorkerProcess(workerNumber, "TODO-AUTH-TOKEN");
-                this.processes[workerNumber].start();
+            this.processes = new OpWorkerProcess[policy.getNumberOfWorkerSlots()];
+            for(int workerNumber = 0; workerNumber < policy.getInitialNumberOfProcesses(); ++workerNumber) {
+                startWorker(workerNumber);
             }
         }
 
@@ -84,5 +87,18 @@ public class OperationRunner {
             this.processes[workerNumber] = new OpWorkerProcess(workerNumber, "TODO-AUTH-TOKEN");
             this.processes[workerNumber].start();
         }
+
+        public void startWorker(int workerNumber) {
+            if(this.processes[workerNumber] == null || !this.processes[workerNumber].isAlive()) {
+                this.processes[workerNumber] = new OpWorkerProcess(workerNumber, "TODO-AUTH-TOKEN");
+                this.processes[workerNumber].start();
+            }
+        }
+
+        public void stopWorker(int workerNumber) {
+            // Worker thread exits when the server closes the connection
+            this.logger.info("Stopping in process worker " + workerNumber);
+            this.processes[workerNumber] = null;
+        }
     }
 }
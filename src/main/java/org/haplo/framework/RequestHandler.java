@@ -10,7 +10,6 @@ import java.io.*;
 import java.util.Formatter;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.concurrent.Semaphore;
 
 import javax.net.ssl.SSLSession;
 
@@ -194,13 +193,16 @@ public class RequestHandler extends AbstractHandler {
         // SAML2 integration needs special handling
         if(response == null && target.startsWith("/do/saml2-sp/")) {
             final String hostname2 = hostname; // needs to be final for lambda expression
-            withPerApplicationRequestThrottle(app, () -> {
+            response = withPerApplicationRequestThrottle(app, () -> {
                 framework.handleSaml2IntegrationFromJava(target, request, servletResponse, app);
                 long handleTime = System.currentTimeMillis() - startTime;
                 logRequest(baseRequest, request, servletResponse, 0, hostname2, 0, 0, false, handleTime, handleTime);
                 return null;
             });
-            return;
+            if(response == null) {
+                return;
+            }
+            // otherwise the request was rejected by the throttle, and the response is sent below
         }
 
         // Get the Ruby framework to handle the request if nothing else handled it
@@ -223,6 +225,9 @@ public class RequestHandler extends AbstractHandler {
         }
 
         response.applyHeadersTo(servletResponse);
+        if(response.supportsRanges()) {
+            servletResponse.setHeader("Accept-Ranges", "bytes");
+        }
 
         Enumeration<String> reqRanges = request.getHeaders("Range");
         if(reqRanges == null || !(reqRanges.hasMoreElements())) {
@@ -234,13 +239,21 @@ public class RequestHandler extends AbstractHandler {
         long responseContentLength = response.getContentLength();
         long uncompressedContentLength = responseContentLength;
         boolean willGzip = false;
+        // Static files only have a gzipped variant once it's been compressed in the background. When
+        // there is one, the Vary header is required so caches don't send it to clients which can't decode it.
+        boolean isStaticFile = response.getBehavesAsStaticFile();
+        long staticGzipContentLength = isStaticFile ? response.getContentLengthGzipped() : Response.NOT_GZIPABLE;
+        if(staticGzipContentLength != Response.NOT_GZIPABLE) {
+            servletResponse.addHeader("Vary", "Accept-Encoding");
+        }
         // Headers allow gzipping?
         String acceptEncoding = request.getHeader("Accept-Encoding");
         if(reqRanges == null && // Response won't gzip if a range is requested
-                acceptEncoding != null && acceptEncoding.indexOf("gzip") != -1) // not quite the best way of doing it, but sufficient for these purposes
+                clientAcceptsGzip(acceptEncoding))
         {
-            // Can the response do gzipping?
-            long gzipContentLength = response.getContentLengthGzipped();
+            // Can the response do gzipping? Static files use the answer above, so a gzipped
+            // response always has the Vary header.
+            long gzipContentLength = isStaticFile ? staticGzipContentLength : response.getContentLengthGzipped();
             if(gzipContentLength != Response.NOT_GZIPABLE) {
                 // Client can do gzipping, and so can the response. Set everything accordingly,
                 // but only if it's acceptable to compress this response.
@@ -272,31 +285,41 @@ public class RequestHandler extends AbstractHandler {
             servletResponse.setStatus(responseCode);
             responseContentLength = 0;
             uncompressedContentLength = 0;
-        } else if(isStaticResponse && ((request.getHeader("If-None-Match") != null) || (request.getHeader("If-Modified-Since") != null))) {
-            // Static responses never change, so any request from a client which includes these headers is for an unmodified resource.
+        } else if(isStaticResponse && responseCode == 200 && isStaticResponseNotModified(request, response)) {
             responseCode = 304;
             servletResponse.setStatus(responseCode);
             responseContentLength = 0;
             uncompressedContentLength = 0;
         } else {
-            // ETag for static files?
-            if(isStaticResponse) {
-                // Use the pathname as a basis for the etag.
-                servletResponse.setHeader("ETag", Integer.toHexString(target.hashCode() & 0xfffff));
+            // ETag for static files? Error responses aren't cacheable versions of the resource.
+            if(isStaticResponse && responseCode == 200) {
+                String entityTag = response.getEntityTag(willGzip);
+                if(entityTag == null) {
+                    // Use the pathname as a basis for the etag.
+                    entityTag = Integer.toHexString(target.hashCode() & 0xfffff);
+                }
+                servletResponse.setHeader("ETag", entityTag);
             }
 
             // Going to send ranges?
             List<InclusiveByteRange> ranges = null;
+            MultipartByteRanges multipartRanges = null;
             if(reqRanges != null && response.supportsRanges()) {
                 // Decode ranges
                 ranges = InclusiveByteRange.satisfiableRanges(reqRanges, responseContentLength);
 
-                // If there are no satisfiable ranges (or more than one range), send 416 response
-                // TODO: Implement multiple ranges support, see Jetty's DefaultServlet.
-                if(ranges == null || ranges.size() != 1) {
+                // If there are no satisfiable ranges, send 416 response
+                if(ranges == null || ranges.isEmpty()) {
                     responseCode = 416;
                     servletResponse.setHeader("Content-Range", InclusiveByteRange.to416HeaderRangeString(responseContentLength));
                     ranges = null;  // unset so entire response is written
+                } else if(ranges.size() > MultipartByteRanges.MAXIMUM_RANGES) {
+                    ranges = null;  // too many to be a sensible request, send the entire response
+                } else if(ranges.size() > 1) {
+                    responseCode = 206; // partial content
+                    multipartRanges = new MultipartByteRanges(ranges, response.getFirstHeader("Content-Type"), responseContentLength);
+                    servletResponse.setHeader("Content-Type", multipartRanges.getContentType());
+                    responseContentLength = multipartRanges.getContentLength();
                 } else {
                     responseCode = 206; // partial content
                     InclusiveByteRange singleSatisfiableRange = ranges.get(0);
@@ -314,7 +337,7 @@ public class RequestHandler extends AbstractHandler {
             }
 
             // Write body
-            response.writeToServletResponse(servletResponse, willGzip, ranges);
+            response.writeToServletResponse(servletResponse, willGzip, ranges, multipartRanges);
         }
 
         long timeTakenForRequest = System.currentTimeMillis() - startTime;
@@ -322,6 +345,54 @@ public class RequestHandler extends AbstractHandler {
         logRequest(baseRequest, request, servletResponse, responseCode, hostname, responseContentLength, uncompressedContentLength, willGzip, timeTakenForRequest, frameworkHandleTime);
     }
 
+    /**
+     * Check the Accept-Encoding header allows gzip, taking into account
+     * explicit refusals with q=0.
+     */
+    private static boolean clientAcceptsGzip(String acceptEncoding) {
+        if(acceptEncoding == null) {
+            return false;
+        }
+        boolean accepted = false;
+        for(String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim();
+            if(name.equalsIgnoreCase("gzip") || name.equals("*")) {
+                boolean refused = false;
+                for(int i = 1; i < params.length; ++i) {
+                    String p = params[i].trim();
+                    if(p.startsWith("q=")) {
+                        try {
+                            refused = (Float.parseFloat(p.substring(2)) <= 0.0f);
+                        } catch(NumberFormatException e) {
+                            refused = true;
+                        }
+                    }
+                }
+                if(name.equals("*")) {
+                    // Wildcard only applies if gzip isn't mentioned explicitly
+                    if(!refused && acceptEncoding.toLowerCase().indexOf("gzip") == -1) { accepted = true; }
+                } else {
+                    return !refused;
+                }
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Static responses never change their URL without changing their content.
+     * If the response has an ETag, check it against If-None-Match, otherwise
+     * any conditional request is for an unmodified resource.
+     */
+    private static boolean isStaticResponseNotModified(HttpServletRequest request, Response response) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if(ifNoneMatch != null && response.getEntityTag(false) != null) {
+            return response.entityTagMatches(ifNoneMatch);
+        }
+        return (ifNoneMatch != null) || (request.getHeader("If-Modified-Since") != null);
+    }
+
     /**
      * Check to see if it's OK to gzip a response.
      */
@@ -466,9 +537,9 @@ public class RequestHandler extends AbstractHandler {
             }
         }
 
-        // If the concurrency semaphores don't have any permits left, the app will freeze. A semaphore running out is a bad sign.
+        // If the concurrency limits have been reached, the app will freeze. Running out of capacity is a bad sign.
         String javaErrors = null;
-        if(ConcurrencyLimits.rubyRuntime.availablePermits() <= 0) {
+        if(RequestScheduler.isRuntimeSaturated()) {
             javaErrors = "CONCURRENCY_RUNTIME";
         } else {
             javaErrors = Application.checkAllApplicationConcurrencyLimits();
@@ -492,50 +563,28 @@ public class RequestHandler extends AbstractHandler {
     }
 
     /**
-     * Implement the request throttle
+     * Implement the request throttle, returning a 503 response if the request
+     * couldn't be handled in time.
      */
     private Response withPerApplicationRequestThrottle(Application app, ThrottledHandlingAction action) {
-        // Don't allow too many concurrent requests on a single application
-        // Get the app sempahore first, so lots of requests for an app don't use up the global ruby runtime permits
-        Semaphore semaphore = app.getRequestConcurrencySempahore();
-        int queueLength = semaphore.getQueueLength();
-        if(queueLength > 0) {
-            Logger.getLogger("org.haplo.app").warn("Request throttle is queuing requests: Application "+app.getApplicationID()+", queue length "+queueLength);
-        };
-        semaphore.acquireUninterruptibly();
+        // The application caches data which is expensive to recreate, for example, user data and JavaScript runtimes.
+        // If requests are made in parallel, multiple "caches" are created so that the caches and runtimes don't have
+        // to support concurrency and make it a lot easier to write and reason about the code.
+        // The scheduler limits the concurrency for each application, adapting to how quickly the application
+        // handles requests, and shares the Ruby runtime fairly between applications.
+        RequestScheduler.Ticket ticket = RequestScheduler.acquire(app.getRequestQueue());
+        if(ticket == null) {
+            Logger.getLogger("org.haplo.app").warn("Request throttle rejected request: Application "+app.getApplicationID());
+            DataResponse overloaded = new DataResponse("<html><body><h1>Service temporarily unavailable</h1></body></html>".getBytes(), 503);
+            overloaded.addHeader("Content-Type", "text/html; charset=utf-8");
+            overloaded.addHeader("Retry-After", Integer.toString(ConcurrencyLimits.RETRY_AFTER_SECONDS));
+            overloaded.addHeader("Cache-Control", "private, no-cache");
+            return overloaded;
+        }
         try {
-            // The application caches data which is expensive to recreate, for example, user data and JavaScript runtimes.
-            // If requests are made in parallel, multiple "caches" are created so that the caches and runtimes don't have
-            // to support concurrency and make it a lot easier to write and reason about the code.
-            // To avoid creating unnecessary copies of cached data, delay requests when other requests are being processed,
-            // which, if the requests are processed fast enough, limits unnecessary concurrency.
-            // The loop increases the chances of a successfully avoiding currency.
-            for(int i = ConcurrencyLimits.APPLICATION_CONCURRENT_REQUESTS_MAX_SPINS; i > 0; --i) {
-                if(!app.isAnotherRequestBeingProcessed()) {
-                    break;
-                }
-                // Try waiting for a request to finish
-                // if true, then it was woken up because a request had finished
-                // so we know there's a free slot
-                if(app.waitForARequestToFinish(ConcurrencyLimits.APPLICATION_CONCURRENT_REQUESTS_MAX_WAIT_TIME)) {
-                    break;
-                }
-                // TODO: Monitor how many/much requests are getting delayed by request concurrency reduction code.
-            }
-
-            // Don't allow too many threads to go use the Ruby runtime at any one time
-            ConcurrencyLimits.rubyRuntime.acquireUninterruptibly();
-            try {
-                return action.respond();
-            } finally {
-                // Always release the semaphore permit
-                ConcurrencyLimits.rubyRuntime.release();
-            }
+            return action.respond();
         } finally {
-            // Release app permit
-            semaphore.release();
-            // Notify other threads waiting to avoid concurrent requests 
-            app.requestFinished();
+            RequestScheduler.release(ticket);
         }
     }
 
@@ -668,16 +717,10 @@ public class RequestHandler extends AbstractHandler {
             // Call the Ruby framework to see if a reload is necessary
             boolean r = framework.devmodeCheckReload();
             if(r == true) {
-                // A reload is required, get the locks and do it!
-                try {
-                    // Get all the permits from the concurrency lock, so reloads don't happen during requests
-                    ConcurrencyLimits.rubyRuntime.acquireUninterruptibly(ConcurrencyLimits.RUBY_RUNTIME_PERMITS);
-
-                    // Call the reload method with the object returned before
+                // A reload is required, pause request handling so reloads don't happen during requests, and do it!
+                RequestScheduler.withAllRequestsPaused(() -> {
                     framework.devmodeDoReload();
-                } finally {
-                    ConcurrencyLimits.rubyRuntime.release(ConcurrencyLimits.RUBY_RUNTIME_PERMITS);
-                }
+                });
             }
         }
     }
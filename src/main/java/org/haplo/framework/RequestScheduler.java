@@ -0,0 +1,359 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.framework;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Counter;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Histogram;
+
+/**
+ * Schedules requests into the Ruby runtime.
+ *
+ * Each application has a concurrency limit which adapts to the latency of its
+ * requests. The limit only grows above the minimum when the application is
+ * using all of its allowance and latency isn't rising. When recent latency
+ * rises well above the application's baseline, which is an estimate of a
+ * high percentile of its latency rather than the minimum, the limit is
+ * reduced, but never below the minimum.
+ *
+ * When there's no capacity, requests wait in a queue for their application.
+ * Free slots in the Ruby runtime are given to the waiting applications in
+ * weighted round robin order, so a busy application can't starve the others.
+ * An application's weight is the number of requests it can start in each
+ * round, set from the request_scheduling_weight app global.
+ *
+ * Requests which can't be started before their deadline are shed, and the
+ * caller sends a 503 response.
+ */
+public class RequestScheduler {
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Condition allRequestsFinished = lock.newCondition();
+    private static final ArrayDeque<ApplicationQueue> waitingApplications = new ArrayDeque<ApplicationQueue>();
+    private static int requestsInFlight = 0;
+    private static int requestsQueued = 0;
+    private static boolean paused = false;
+
+    // Metrics, only created if collectMetrics() is called
+    private static Histogram queueTimeMetric;
+    private static Counter shedMetric;
+
+    /**
+     * Scheduling state for a single application, held by the Application object.
+     */
+    public static class ApplicationQueue {
+        private final long applicationID;
+        private final ArrayDeque<Waiter> waiting = new ArrayDeque<Waiter>();
+        private int weight = 1;
+        private int turnsRemaining = 0;
+        private boolean inWaitingApplications = false;
+        private int inFlight = 0;
+        private double limit = ConcurrencyLimits.APPLICATION_CONCURRENT_REQUESTS_INITIAL;
+        private double baselineLatency = 0; // ns
+        private double smoothedLatency = 0; // ns
+
+        ApplicationQueue(long applicationID) {
+            this.applicationID = applicationID;
+        }
+
+        private boolean hasCapacity() {
+            return inFlight < (int)limit;
+        }
+
+        /**
+         * Adjust the limit with the handling time of a request which has just finished.
+         */
+        private void adjustLimit(long latency, boolean wasUsingAllCapacity) {
+            // Baseline estimates a high percentile of latency, by moving up a large step when a request
+            // is slower than the baseline and down a small step when it's faster. It settles where the
+            // steps balance, when the proportion of requests slower than the baseline is 1 - percentile.
+            if(baselineLatency == 0) {
+                baselineLatency = latency;
+            } else if(latency > baselineLatency) {
+                baselineLatency *= 1.0 + (ConcurrencyLimits.BASELINE_LATENCY_STEP * ConcurrencyLimits.BASELINE_LATENCY_PERCENTILE);
+            } else {
+                baselineLatency *= 1.0 - (ConcurrencyLimits.BASELINE_LATENCY_STEP * (1.0 - ConcurrencyLimits.BASELINE_LATENCY_PERCENTILE));
+            }
+            smoothedLatency = (smoothedLatency == 0) ? latency :
+                (smoothedLatency + ((latency - smoothedLatency) * ConcurrencyLimits.SMOOTHED_LATENCY_WEIGHT));
+
+            if(smoothedLatency > (baselineLatency * ConcurrencyLimits.LATENCY_TOLERANCE)) {
+                // Multiplicative decrease when requests are getting slower
+                limit = Math.max(ConcurrencyLimits.APPLICATION_CONCURRENT_REQUESTS_MIN,
+                    limit * ConcurrencyLimits.LIMIT_DECREASE_FACTOR);
+            } else if(wasUsingAllCapacity) {
+                // Additive increase, but only when the limit was actually restricting the application
+                limit = Math.min(ConcurrencyLimits.APPLICATION_CONCURRENT_REQUESTS_MAX, limit + (1.0 / limit));
+            }
+        }
+    }
+
+    private static class Waiter {
+        final Condition condition = lock.newCondition();
+        boolean granted = false;
+    }
+
+    /**
+     * Returned by acquire(), must be passed to release().
+     */
+    public static class Ticket {
+        private final ApplicationQueue queue;
+        private final long startTime;
+
+        private Ticket(ApplicationQueue queue) {
+            this.queue = queue;
+            this.startTime = System.nanoTime();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Set the relative share of the Ruby runtime an application gets when
+     * requests are queued.
+     */
+    public static void setWeight(ApplicationQueue queue, int weight) {
+        lock.lock();
+        try {
+            queue.weight = Math.max(1, weight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the request can be handled. Returns null if the request should
+     * be rejected because it couldn't be started before the deadline, or the
+     * application's queue is full.
+     */
+    public static Ticket acquire(ApplicationQueue queue) {
+        long enqueuedAt = System.nanoTime();
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            if(!paused && queue.waiting.isEmpty() && queue.hasCapacity() &&
+                    requestsInFlight < ConcurrencyLimits.RUBY_RUNTIME_PERMITS) {
+                start(queue);
+                observeQueueTime(0);
+                return new Ticket(queue);
+            }
+
+            if(queue.waiting.size() >= ConcurrencyLimits.APPLICATION_MAX_QUEUED_REQUESTS) {
+                shed();
+                return null;
+            }
+
+            Waiter waiter = new Waiter();
+            queue.waiting.addLast(waiter);
+            requestsQueued++;
+            if(!queue.inWaitingApplications) {
+                queue.inWaitingApplications = true;
+                queue.turnsRemaining = queue.weight;
+                waitingApplications.addLast(queue);
+            }
+
+            long remaining = TimeUnit.MILLISECONDS.toNanos(ConcurrencyLimits.MAXIMUM_QUEUE_TIME);
+            while(!waiter.granted) {
+                if(remaining <= 0) {
+                    // Deadline passed without the request being started
+                    queue.waiting.remove(waiter);
+                    requestsQueued--;
+                    shed();
+                    return null;
+                }
+                try {
+                    remaining = waiter.condition.awaitNanos(remaining);
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            observeQueueTime(System.nanoTime() - enqueuedAt);
+            return new Ticket(queue);
+        } finally {
+            lock.unlock();
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Must be called when a request has finished, if acquire() returned a ticket.
+     */
+    public static void release(Ticket ticket) {
+        long latency = System.nanoTime() - ticket.startTime;
+        ApplicationQueue queue = ticket.queue;
+        lock.lock();
+        try {
+            boolean wasUsingAllCapacity = !queue.hasCapacity();
+            queue.inFlight--;
+            requestsInFlight--;
+            queue.adjustLimit(latency, wasUsingAllCapacity);
+            if(requestsInFlight == 0) {
+                allRequestsFinished.signalAll();
+            }
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for all requests to finish, then run the action while no other
+     * requests are being handled. Used for development mode reloading.
+     */
+    public static void withAllRequestsPaused(Runnable action) {
+        lock.lock();
+        try {
+            paused = true;
+            while(requestsInFlight > 0) {
+                allRequestsFinished.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            action.run();
+        } finally {
+            lock.lock();
+            try {
+                paused = false;
+                dispatch();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Returns true if all the Ruby runtime slots are in use.
+     */
+    public static boolean isRuntimeSaturated() {
+        lock.lock();
+        try {
+            return requestsInFlight >= ConcurrencyLimits.RUBY_RUNTIME_PERMITS;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the application is handling as many concurrent requests
+     * as its current limit allows.
+     */
+    public static boolean isApplicationSaturated(ApplicationQueue queue) {
+        lock.lock();
+        try {
+            return !queue.hasCapacity();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    // Lock must be held
+    private static void start(ApplicationQueue queue) {
+        queue.inFlight++;
+        requestsInFlight++;
+    }
+
+    // Lock must be held
+    private static void dispatch() {
+        while(!paused && requestsInFlight < ConcurrencyLimits.RUBY_RUNTIME_PERMITS && !waitingApplications.isEmpty()) {
+            boolean started = false;
+            // Look at each waiting application at most once to find one with capacity
+            for(int n = waitingApplications.size(); n > 0 && !started; --n) {
+                ApplicationQueue queue = waitingApplications.peekFirst();
+                if(queue.waiting.isEmpty()) {
+                    // Waiting requests passed their deadline
+                    waitingApplications.pollFirst();
+                    queue.inWaitingApplications = false;
+                } else if(!queue.hasCapacity()) {
+                    // Application is at its own limit, move on to the next
+                    waitingApplications.addLast(waitingApplications.pollFirst());
+                    queue.turnsRemaining = queue.weight;
+                } else {
+                    Waiter waiter = queue.waiting.pollFirst();
+                    requestsQueued--;
+                    start(queue);
+                    waiter.granted = true;
+                    waiter.condition.signal();
+                    started = true;
+                    if(queue.waiting.isEmpty()) {
+                        waitingApplications.pollFirst();
+                        queue.inWaitingApplications = false;
+                    } else if(--queue.turnsRemaining <= 0) {
+                        // Used all turns for this round, give the other applications a go
+                        waitingApplications.addLast(waitingApplications.pollFirst());
+                        queue.turnsRemaining = queue.weight;
+                    }
+                }
+            }
+            if(!started) {
+                break;
+            }
+        }
+    }
+
+    // Lock must be held
+    private static void shed() {
+        if(shedMetric != null) {
+            shedMetric.inc();
+        }
+    }
+
+    private static void observeQueueTime(long nanoseconds) {
+        if(queueTimeMetric != null) {
+            queueTimeMetric.observe(nanoseconds / 1.0e9);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Register metrics with prometheus
+     */
+    public static void collectMetrics() {
+        queueTimeMetric = Histogram.build().
+            name("haplo_request_queue_seconds").
+            help("Time requests waited before being handled.").
+            buckets(0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10).
+            register();
+        shedMetric = Counter.build().
+            name("haplo_request_shed_total").
+            help("Requests rejected because they could not be handled before their deadline.").
+            register();
+        new Collector() {
+            public List<MetricFamilySamples> collect() {
+                int inFlight, queued, waitingApps;
+                lock.lock();
+                try {
+                    inFlight = requestsInFlight;
+                    queued = requestsQueued;
+                    waitingApps = waitingApplications.size();
+                } finally {
+                    lock.unlock();
+                }
+                List<MetricFamilySamples> samples = new ArrayList<MetricFamilySamples>();
+                samples.add(new GaugeMetricFamily("haplo_requests_in_flight", "Requests being handled.", inFlight));
+                samples.add(new GaugeMetricFamily("haplo_requests_queued", "Requests waiting to be handled.", queued));
+                samples.add(new GaugeMetricFamily("haplo_request_queued_applications", "Applications with requests waiting to be handled.", waitingApps));
+                return samples;
+            }
+        }.register();
+    }
+}
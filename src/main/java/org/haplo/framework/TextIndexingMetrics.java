@@ -0,0 +1,57 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.framework;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+/**
+ * Metrics for the text indexer in lib/kobjectstore_textidx.rb
+ */
+public class TextIndexingMetrics {
+    // Metrics, only created if collectMetrics() is called
+    private static Gauge lagMetric;
+    private static Gauge dirtyMetric;
+    private static Counter indexedMetric;
+
+    /**
+     * Record the age of the oldest object waiting to be indexed, and how many
+     * are waiting.
+     */
+    public static void setLag(double seconds, long dirtyObjects) {
+        if(lagMetric != null) {
+            lagMetric.set(seconds);
+            dirtyMetric.set(dirtyObjects);
+        }
+    }
+
+    public static void indexed(int objects) {
+        if(indexedMetric != null) {
+            indexedMetric.inc(objects);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Register metrics with prometheus
+     */
+    public static void collectMetrics() {
+        lagMetric = Gauge.build().
+            name("haplo_text_index_lag_seconds").
+            help("Age of the oldest object waiting to have its text indexed.").
+            register();
+        dirtyMetric = Gauge.build().
+            name("haplo_text_index_dirty_objects").
+            help("Objects waiting to have their text indexed.").
+            register();
+        indexedMetric = Counter.build().
+            name("haplo_text_index_objects_total").
+            help("Objects indexed after they were changed.").
+            register();
+    }
+}
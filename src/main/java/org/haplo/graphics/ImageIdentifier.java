@@ -8,7 +8,10 @@ package org.haplo.graphics;
 
 import java.util.Iterator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 
 import java.awt.*;
 import java.awt.image.*;
@@ -23,11 +26,12 @@ import javax.imageio.stream.ImageOutputStream;
 import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
 
 import org.haplo.op.Operation;
+import org.haplo.op.OpCodec;
 
 /**
  * Utility class to identify the size and format of an image file.
  */
-public class ImageIdentifier extends Operation {
+public class ImageIdentifier extends Operation implements Operation.BinaryEncoded {
     private String filename;
     private boolean success;
     private int width;
@@ -42,6 +46,29 @@ public class ImageIdentifier extends Operation {
         format = "?";
     }
 
+    private ImageIdentifier() {    // for binary decoding
+    }
+
+    public void writeFields(DataOutput out) throws IOException {
+        OpCodec.writeString(out, filename);
+        out.writeBoolean(success);
+        out.writeInt(width);
+        out.writeInt(height);
+        OpCodec.writeString(out, format);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        filename = OpCodec.readString(in);
+        success = in.readBoolean();
+        width = in.readInt();
+        height = in.readInt();
+        format = OpCodec.readString(in);
+    }
+
+    public Priority getPriority() {
+        return Priority.INTERACTIVE;
+    }
+
     protected void performOperation() {
         try {
             ImageInputStream input = ImageIO.createImageInputStream(new File(filename));
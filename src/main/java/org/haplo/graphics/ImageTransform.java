@@ -76,6 +76,10 @@ public class ImageTransform extends Operation {
     /**
      * Do the transformation.
      */
+    public Priority getPriority() {
+        return Priority.INTERACTIVE;
+    }
+
     protected void performOperation() {
         try {
             BufferedImage sourceImage = ImageIO.read(new File(filename));
@@ -27,11 +27,12 @@ import org.apache.poi.poifs.filesystem.DocumentInputStream;
 import org.apache.poi.poifs.filesystem.POIFSFileSystem;
 
 import org.haplo.op.Operation;
+import org.haplo.op.OpCodec;
 
 /**
  * Thumbnail finder for stuff within zip file documents, eg iWork.
  */
-public class ThumbnailFinder extends Operation {
+public class ThumbnailFinder extends Operation implements Operation.BinaryEncoded {
     public static final int EXPECTATION_IMAGE = 0;
     public static final int EXPECTATION_WMF = 1;
 
@@ -67,6 +68,40 @@ public class ThumbnailFinder extends Operation {
         this.expectatedFormat = expectatedFormat;
     }
 
+    private ThumbnailFinder() {    // for binary decoding
+    }
+
+    public void writeFields(DataOutput out) throws IOException {
+        OpCodec.writeString(out, inFilename);
+        OpCodec.writeString(out, outFilename);
+        OpCodec.writeString(out, outFormat);
+        out.writeInt(maxDimension);
+        OpCodec.writeString(out, internalFilenameBase);
+        OpCodec.writeString(out, internalFilenameBase2);
+        out.writeInt(expectatedFormat);
+        out.writeBoolean(thumbnailDimensions != null);
+        if(thumbnailDimensions != null) {
+            out.writeInt(thumbnailDimensions.width);
+            out.writeInt(thumbnailDimensions.height);
+        }
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        inFilename = OpCodec.readString(in);
+        outFilename = OpCodec.readString(in);
+        outFormat = OpCodec.readString(in);
+        maxDimension = in.readInt();
+        internalFilenameBase = OpCodec.readString(in);
+        internalFilenameBase2 = OpCodec.readString(in);
+        expectatedFormat = in.readInt();
+        if(in.readBoolean()) {
+            int width = in.readInt();
+            thumbnailDimensions = new ThumbnailSize.Dimensions(width, in.readInt());
+        } else {
+            thumbnailDimensions = null;
+        }
+    }
+
     public void addAdditionalInternalFilenameBase(String internalFilenameBase2) {
         if(this.internalFilenameBase2 != null) {
             throw new RuntimeException("Only supports one additional filename base");
@@ -85,6 +120,10 @@ public class ThumbnailFinder extends Operation {
     /**
      * Perform the operation
      */
+    public Priority getPriority() {
+        return Priority.INTERACTIVE;
+    }
+
     protected void performOperation() {
         if(internalFilenameBase.equals("OLD-MSOFFICE")) {
             findFromOldMSOffice();
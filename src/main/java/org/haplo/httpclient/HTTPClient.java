@@ -5,33 +5,123 @@
  * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
 
 package org.haplo.httpclient;
+import java.io.File;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import org.apache.log4j.Logger;
+
+import org.haplo.common.utils.WaitingFlag;
+import org.haplo.framework.Database;
 
 public class HTTPClient {
 
+    // How often to check whether a job can be run after its request has completed,
+    // if the job runner hasn't finished with it yet.
+    private static final long JOB_WAKE_RETRY_DELAY = 250; // ms
+
+    // How long a completed request is kept for its job to collect the result. If the
+    // job was deleted, or was lost, it's forgotten and its spilled body is deleted.
+    // A job which collects the result later just makes the request again.
+    private static final long COMPLETED_REQUEST_EXPIRY = 3600000; // ms
+
+    // Requests in progress, or completed and waiting for their job to collect the result
+    private static final ConcurrentHashMap<String,HTTPRequest> requests = new ConcurrentHashMap<String,HTTPRequest>();
+
+    private static WaitingFlag jobRunFlag;
+
     // Interface from Ruby via KHTTPClientJob in httpclient.rb:
-    public static Map attemptHTTP(Map<String,String> requestSettings,
-                                  Map<String,String> keychainData,
-                                  String bodyPathname,
-                                  String blacklist) throws Exception {
-        HTTPOperation op = new HTTPOperation(requestSettings, keychainData, bodyPathname, blacklist);
+
+    // Start a request without waiting for the response. When it's complete,
+    // the job is scheduled to run immediately, and it collects the result
+    // with takeResult().
+    public static void startRequest(String token,
+                                    long jobId,
+                                    Map<String,String> requestSettings,
+                                    Map<String,String> keychainData,
+                                    String bodyPathname,
+                                    String blacklist) {
+        HTTPRequest request;
+        try {
+            request = new HTTPRequest(requestSettings, keychainData, bodyPathname, blacklist);
+        } catch(Throwable e) {
+            // Invalid settings are reported to the job as a failed request
+            request = HTTPRequest.failedSetup(e, bodyPathname);
+        }
+        requests.put(token, request);
+        final HTTPRequest startedRequest = request;
+        request.start(() -> {
+            wakeJob(jobId);
+            expireLater(token, startedRequest);
+        });
+    }
+
+    public static boolean isRequestInProgress(String token) {
+        HTTPRequest request = requests.get(token);
+        return (request != null) && !request.isComplete();
+    }
+
+    // Returns null if the request isn't known, eg after the server was restarted
+    public static Map takeResult(String token) {
+        HTTPRequest request = requests.get(token);
+        if((request == null) || !request.isComplete()) {
+            return null;
+        }
+        requests.remove(token);
+        return request.result;
+    }
+
+    public static void setJobRunFlag(WaitingFlag flag) {
+        jobRunFlag = flag;
+    }
+
+    private static void wakeJob(long jobId) {
         try {
-            op.perform();
-            return op.result;
-        } catch (Throwable e) {
-            Map<String,Object> result = op.result;
-            result.put("type","FAIL");
-            result.put("exceptionType",e.getClass().getName());
-            if (e.getMessage() != null) {
-                result.put("errorMessage",e.getMessage());
+            boolean done = (Boolean)Database.withConnection((connection) -> {
+                try(PreparedStatement update = connection.prepareStatement("UPDATE public.jobs SET run_after=NOW() WHERE id=? AND runner_pid=0")) {
+                    update.setLong(1, jobId);
+                    if(update.executeUpdate() != 0) {
+                        return true;
+                    }
+                }
+                // If the job still exists, the runner hasn't finished deferring it yet.
+                // If it doesn't, there's nothing to wake.
+                try(PreparedStatement select = connection.prepareStatement("SELECT 1 FROM public.jobs WHERE id=?")) {
+                    select.setLong(1, jobId);
+                    try(ResultSet results = select.executeQuery()) {
+                        return !results.next();
+                    }
+                }
+            });
+            if(done) {
+                if(jobRunFlag != null) { jobRunFlag.setFlag(); }
             } else {
-                result.put("errorMessage",e.toString());
+                HTTPClientPool.schedule(() -> wakeJob(jobId), JOB_WAKE_RETRY_DELAY);
             }
-            return result;
+        } catch(Exception e) {
+            // The job will run anyway when its deferral ends
+            Logger.getLogger(HTTPRequest.LOGGER_NAME).error("Failed to wake HTTP client job "+jobId, e);
         }
     }
 
+    private static void expireLater(String token, HTTPRequest request) {
+        try {
+            HTTPClientPool.schedule(() -> {
+                if(requests.remove(token, request) && (request.getBodyPathname() != null)) {
+                    new File(request.getBodyPathname()).delete();
+                }
+            }, COMPLETED_REQUEST_EXPIRY);
+        } catch(Exception e) {
+            Logger.getLogger(HTTPRequest.LOGGER_NAME).error("Failed to schedule expiry of HTTP request", e);
+        }
+    }
+
+    public static void collectMetrics() {
+        HTTPClientPool.collectMetrics();
+    }
+
     // Interface from JavaScript via KHost:
 
     public static void queueHttpClientRequest(String callbackName,
@@ -0,0 +1,232 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.httpclient;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.io.ConnectionStatistics;
+import org.eclipse.jetty.util.HttpCookieStore;
+import org.eclipse.jetty.util.Promise;
+import org.eclipse.jetty.util.SocketAddressResolver;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.eclipse.jetty.util.thread.Scheduler;
+
+import org.apache.log4j.Logger;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+
+/**
+ * Long lived HttpClients for HTTPRequests, so that connections to the
+ * same servers are kept alive and reused, and TLS sessions are resumed.
+ *
+ * There is a client for each combination of TLS client certificate and
+ * address blacklist. The blacklist is checked by the address resolver,
+ * which is used every time a new connection is made, so connections are
+ * only reused after they have been checked.
+ *
+ * Clients are shared by all applications, so they don't store cookies.
+ */
+class HTTPClientPool {
+    private static final int MAX_CLIENTS = 16;
+    private static final int MAX_CONNECTIONS_PER_DESTINATION = 8;
+    private static final long IDLE_TIMEOUT = 30000;   // ms, for kept alive connections
+    private static final long EVICTED_CLIENT_STOP_DELAY = 300;  // s, to let requests in progress finish
+
+    private static QueuedThreadPool executor;
+    private static ScheduledExecutorScheduler scheduler;
+    private static final ConnectionStatistics connectionStatistics = new ConnectionStatistics();
+    private static final AtomicLong requests = new AtomicLong();
+    private static long clientsCreated = 0;
+
+    private static final LinkedHashMap<String, HttpClient> clients = new LinkedHashMap<String, HttpClient>(16, 0.75f, true /* access order */) {
+        protected boolean removeEldestEntry(Map.Entry<String, HttpClient> eldest) {
+            if(size() > MAX_CLIENTS) {
+                stopEvictedClient(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    public static HttpClient getClient(List<Pattern> blacklist, String blacklistString, Certificate tlsClientCertificate, PrivateKey tlsClientCertificatePrivateKey) throws Exception {
+        requests.incrementAndGet();
+        StringBuilder key = new StringBuilder(blacklistString);
+        if(tlsClientCertificate != null) {
+            key.append('\n').append(fingerprint(tlsClientCertificate.getEncoded())).
+                append('\n').append(fingerprint(tlsClientCertificatePrivateKey.getEncoded()));
+        }
+        synchronized(clients) {
+            HttpClient client = clients.get(key.toString());
+            if(client == null) {
+                client = createClient(blacklist, tlsClientCertificate, tlsClientCertificatePrivateKey);
+                clients.put(key.toString(), client);
+                clientsCreated++;
+            }
+            return client;
+        }
+    }
+
+    private static synchronized void ensureStarted() throws Exception {
+        if(executor == null) {
+            executor = new QueuedThreadPool(200, 2, 60000);
+            executor.setName("http-client");
+            executor.setDaemon(true);
+            executor.start();
+            scheduler = new ScheduledExecutorScheduler("http-client-scheduler", true);
+            scheduler.start();
+            connectionStatistics.start();
+        }
+    }
+
+    /**
+     * Run a task later on the scheduler used by the clients.
+     */
+    public static void schedule(Runnable task, long delay) throws Exception {
+        ensureStarted();
+        scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static HttpClient createClient(List<Pattern> blacklist, Certificate tlsClientCertificate, PrivateKey tlsClientCertificatePrivateKey) throws Exception {
+        ensureStarted();
+
+        SslContextFactory.Client sslContextFactory = new SslContextFactory.Client();
+        // Enable checking of the server's certificate
+        sslContextFactory.setEndpointIdentificationAlgorithm("HTTPS");
+        // Client certificate?
+        if(tlsClientCertificate != null) {
+            KeyStore ks = KeyStore.getInstance("JKS", "SUN");
+            ks.load(null, new char[] {});
+            ks.setKeyEntry("CLIENT", tlsClientCertificatePrivateKey, new char[] {}, new Certificate[] {tlsClientCertificate});
+            sslContextFactory.setKeyStorePassword("");
+            sslContextFactory.setKeyStore(ks);
+        }
+
+        HttpClient httpClient = new HttpClient(sslContextFactory);
+        httpClient.setExecutor(executor);
+        httpClient.setScheduler(scheduler);
+        httpClient.setFollowRedirects(false);   // HTTPRequest handles redirects
+        httpClient.setCookieStore(new HttpCookieStore.Empty());
+        httpClient.setMaxConnectionsPerDestination(MAX_CONNECTIONS_PER_DESTINATION);
+        httpClient.setIdleTimeout(IDLE_TIMEOUT);
+        httpClient.setRemoveIdleDestinations(true);
+        httpClient.setSocketAddressResolver(new ValidatingSocketAddressResolver(blacklist, executor, scheduler, httpClient.getAddressResolutionTimeout()));
+        httpClient.addBean(connectionStatistics, false /* shared by all clients */);
+        httpClient.start();
+        return httpClient;
+    }
+
+    private static void stopEvictedClient(HttpClient client) {
+        scheduler.schedule(() -> {
+            try {
+                client.stop();
+            } catch(Exception e) {
+                Logger.getLogger(HTTPRequest.LOGGER_NAME).error("Failed to stop evicted HTTP client", e);
+            }
+        }, EVICTED_CLIENT_STOP_DELAY, TimeUnit.SECONDS);
+    }
+
+    private static String fingerprint(byte[] data) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+        StringBuilder s = new StringBuilder(64);
+        for(byte b : hash) {
+            s.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return s.toString();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Register metrics with prometheus
+     */
+    public static void collectMetrics() {
+        new Collector() {
+            public List<MetricFamilySamples> collect() {
+                int numberOfClients;
+                long created;
+                synchronized(clients) {
+                    numberOfClients = clients.size();
+                    created = clientsCreated;
+                }
+                List<MetricFamilySamples> samples = new ArrayList<MetricFamilySamples>();
+                samples.add(new GaugeMetricFamily("haplo_http_clients", "HTTP clients kept for outbound requests.", numberOfClients));
+                samples.add(new CounterMetricFamily("haplo_http_clients_created_total", "HTTP clients created for outbound requests.", created));
+                samples.add(new CounterMetricFamily("haplo_http_client_requests_total", "Outbound HTTP requests made.", requests.get()));
+                samples.add(new CounterMetricFamily("haplo_http_client_connections_opened_total", "Connections opened for outbound HTTP requests.", connectionStatistics.getConnectionsTotal()));
+                samples.add(new GaugeMetricFamily("haplo_http_client_connections_open", "Connections open for outbound HTTP requests.", connectionStatistics.getConnections()));
+                return samples;
+            }
+        }.register();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    public static class BlacklistedAddressException extends SecurityException {
+        private String address;
+
+        BlacklistedAddressException(String address) {
+            super("IP [" + address + "] is blacklisted.");
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return this.address;
+        }
+    }
+
+    private static class ValidatingSocketAddressResolver extends SocketAddressResolver.Async {
+        private List<Pattern> blacklist;
+
+        ValidatingSocketAddressResolver(List<Pattern> blacklist, Executor executor, Scheduler scheduler, long timeout) {
+            super(executor, scheduler, timeout);
+            this.blacklist = blacklist;
+        }
+
+        public void resolve(String host, int port, Promise<List<InetSocketAddress>> promise) {
+            super.resolve(host, port, new Promise<List<InetSocketAddress>>() {
+                @Override
+                public void succeeded(List<InetSocketAddress> socketAddresses) {
+                    for(InetSocketAddress sockaddr : socketAddresses) {
+                        InetAddress ip = sockaddr.getAddress();
+                        String stringFormOfIP = ip.getHostAddress();
+                        for(Pattern p : blacklist) {
+                            if(p.matcher(stringFormOfIP).matches()) {
+                                promise.failed(new BlacklistedAddressException(stringFormOfIP));
+                                return;
+                            }
+                        }
+                    }
+                    promise.succeeded(socketAddresses);
+                }
+                @Override
+                public void failed(Throwable x) {
+                    promise.failed(x);
+                }
+            });
+        }
+    }
+}
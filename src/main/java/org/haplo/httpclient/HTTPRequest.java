@@ -6,13 +6,12 @@
 
 package org.haplo.httpclient;
 
-import org.haplo.op.Operation;
-
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.net.URISyntaxException;
 import java.net.URI;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.nio.ByteBuffer;
@@ -20,15 +19,13 @@ import java.nio.charset.Charset;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
 import java.nio.file.StandardOpenOption;
-import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -40,24 +37,16 @@ import javax.net.ssl.SSLHandshakeException;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.HttpClientTransport;
 import org.eclipse.jetty.client.HttpDestination;
-import org.eclipse.jetty.client.HttpContentResponse;
-import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.api.Response;
 import org.eclipse.jetty.client.api.Result;
 import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
 import org.eclipse.jetty.client.util.FormContentProvider;
 import org.eclipse.jetty.client.util.StringContentProvider;
-import org.eclipse.jetty.client.util.BufferingResponseListener;
 import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.MimeTypes;
 import org.eclipse.jetty.util.Fields;
-import org.eclipse.jetty.util.thread.QueuedThreadPool;
-import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
-import org.eclipse.jetty.util.thread.Scheduler;
-import org.eclipse.jetty.util.Promise;
 import org.eclipse.jetty.util.Callback;
-import org.eclipse.jetty.util.SocketAddressResolver;
-import org.eclipse.jetty.util.ssl.SslContextFactory;
 
 import org.apache.log4j.Logger;
 
@@ -67,18 +56,22 @@ import org.haplo.common.utils.SSLCertificates;
 import org.haplo.javascript.OAPIException;
 
 
-public class HTTPOperation extends Operation {
+/**
+ * An outbound HTTP request, made asynchronously on the shared HttpClients in
+ * HTTPClientPool, so no thread waits while the remote server responds.
+ *
+ * Response bodies are kept in memory if they're small, otherwise they're
+ * streamed to the spill file as they're received, without a size limit.
+ * Redirects are followed by sending another request from the completion
+ * handler. When the request has finished, the result map is complete and
+ * the onComplete Runnable is called.
+ */
+public class HTTPRequest {
 
-    protected static final String LOGGER_NAME = "org.haplo.httpclient.op";
+    protected static final String LOGGER_NAME = "org.haplo.httpclient";
 
     protected static final int MAX_IN_MEMORY_RESPONSE_SIZE = (32*1024); // relatively small
-    protected static final int MAX_ON_DISK_RESPONSE_SIZE = 2147483647; // 2GB should be enough
-    // NOTE: Increasing the MAX_ON_DISK_RESPONSE_SIZE limit will require re-implementing Jetty's BufferingResponseListener
-    // rather from deriving from it, as it has an int max size, and the onHeader handler checks the content length.
-
-    // Gadgets and gubbins
-    QueuedThreadPool executor;
-    ScheduledExecutorScheduler scheduler;
+    protected static final long REQUEST_IDLE_TIMEOUT = 300000;  // ms, allow for slow remote servers
 
     // Inputs
     private String url;
@@ -91,6 +84,7 @@ public class HTTPOperation extends Operation {
     private Map<String,List<String>> queryParams;
     private Map<String,String> headers;
     private int redirectLimit;
+    private String blacklistString;
     private List<Pattern> blacklist;
 
     private boolean httpAuthEnabled;
@@ -101,12 +95,20 @@ public class HTTPOperation extends Operation {
     private Certificate tlsClientCertificate;
     private PrivateKey tlsClientCertificatePrivateKey;
 
+    // State while the request is in progress
+    private HttpClient httpClient;
+    private CookieManager cookies;
+    private int redirectsLeft;
+    private Throwable setupFailure;
+    private Runnable onComplete;
+    private volatile boolean complete;
+
     // Outputs
     // Result map is processed in httpclient.rb
     // See there for how to return errors/success, etc
     public Map<String,Object> result;
 
-    public HTTPOperation(Map<String,String> details,
+    public HTTPRequest(Map<String,String> details,
                          Map<String,String> keychain,
                          String bodyPathname,
                          String blacklistString) {
@@ -187,6 +189,7 @@ public class HTTPOperation extends Operation {
         }
 
         // Parse blacklist
+        this.blacklistString = blacklistString;
         blacklist = new LinkedList<Pattern>();
         String[] blacklistEntries = blacklistString.split(",");
         for(String ble : blacklistEntries) {
@@ -196,28 +199,21 @@ public class HTTPOperation extends Operation {
         result = new HashMap<String,Object>();
 
         this.bodyPathname = bodyPathname;
-
-        executor = null;
-        scheduler = null;
     }
 
-    private void start() throws Exception {
-        executor = new QueuedThreadPool();
-        executor.start();
-
-        scheduler = new ScheduledExecutorScheduler("resolver", false);
-        scheduler.start();
+    private HTTPRequest(Throwable setupFailure, String bodyPathname) {
+        this.setupFailure = setupFailure;
+        this.bodyPathname = bodyPathname;
+        this.result = new HashMap<String,Object>();
     }
 
-    private void stop() throws Exception {
-        if(executor != null) {
-            executor.stop();
-            executor = null;
-        }
-        if(scheduler != null) {
-            scheduler.stop();
-            scheduler = null;
-        }
+    /**
+     * A request which couldn't be set up from its details, eg because the
+     * client certificate or blacklist was invalid. It fails when started, so
+     * the failure is reported in the result like any other.
+     */
+    public static HTTPRequest failedSetup(Throwable setupFailure, String bodyPathname) {
+        return new HTTPRequest(setupFailure, bodyPathname);
     }
 
     protected void putResult(String key, Object value) {
@@ -236,6 +232,7 @@ public class HTTPOperation extends Operation {
 
     protected void markRequestAsPermanentlyFailed(Throwable reason) {
         Logger.getLogger(LOGGER_NAME).error("Permanent request fail", reason);
+        putResult("exceptionType", reason.getClass().getName());
         StringBuffer sb = new StringBuffer();
         while(reason != null) {
            sb.append(reason.getMessage());
@@ -270,62 +267,8 @@ public class HTTPOperation extends Operation {
         }
     }
 
-    protected class ValidatingSocketAddressResolver extends SocketAddressResolver.Async {
-        public ValidatingSocketAddressResolver(Executor executor, Scheduler scheduler, long timeout) {
-            super(executor, scheduler, timeout);
-        }
-
-        public void resolve(String host, int port, Promise<List<InetSocketAddress>> promise) {
-            super.resolve(host, port, new Promise<List<InetSocketAddress>>() {
-                @Override
-                public void succeeded(List<InetSocketAddress> socketAddresses) {
-                    for(InetSocketAddress sockaddr : socketAddresses) {
-                        InetAddress ip = sockaddr.getAddress();
-                        String stringFormOfIP = ip.getHostAddress();
-                        for (Pattern p : blacklist) {
-                            if(p.matcher(stringFormOfIP).matches()) {
-                                promise.failed(new SecurityException("Illegal URL [" + url + "], IP [" + stringFormOfIP + "] is blacklisted."));
-                                return;
-                            }
-                        }
-                    }
-                    
-                    promise.succeeded(socketAddresses);
-                }
-                @Override
-                public void failed(Throwable x) {
-                    promise.failed(x);
-                }
-            });
-        }
-    }
-
     protected HttpClient setupHTTPClient() throws Exception {
-        SslContextFactory sslContextFactory = new SslContextFactory();
-        // TODO: Set up SSL options here from request params, see http://grepcode.com/file/repo1.maven.org/maven2/org.eclipse.jetty/jetty-util/9.2.1.v20140609/org/eclipse/jetty/util/ssl/SslContextFactory.java#SslContextFactory for available options to pick up from the settings.
-
-        // Enable checking of the server's certificate
-        sslContextFactory.setEndpointIdentificationAlgorithm("HTTPS");
-
-        // Client certificate?
-        if(tlsClientCertificate != null) {
-            KeyStore ks = KeyStore.getInstance("JKS", "SUN");
-            ks.load(null, new char[] {});
-            ks.setKeyEntry("CLIENT", tlsClientCertificatePrivateKey, new char[] {}, new Certificate[] {tlsClientCertificate});
-            sslContextFactory.setKeyStorePassword("");
-            sslContextFactory.setKeyStore(ks);
-        }
-
-        // Set up the transport
-        HttpClient httpClient = new HttpClient(sslContextFactory);
-        httpClient.setFollowRedirects(false);
-        httpClient.setRemoveIdleDestinations(true);
-
-        ValidatingSocketAddressResolver resolver = new ValidatingSocketAddressResolver(executor, scheduler, httpClient.getAddressResolutionTimeout());
-        httpClient.setSocketAddressResolver(resolver);
-        httpClient.start();
-
-        return httpClient;
+        return HTTPClientPool.getClient(blacklist, blacklistString, tlsClientCertificate, tlsClientCertificatePrivateKey);
     }
 
     protected void insertQueryParamsIntoUrl() {
@@ -394,17 +337,25 @@ public class HTTPOperation extends Operation {
     protected void processResult(ResponseListener responseListener) {
         Logger logger = Logger.getLogger(LOGGER_NAME);
         logger.info("Processing result from "+url);
-        ContentResponse response = responseListener.response;
+        Response response = responseListener.response;
+        String contentType = response.getHeaders().get("Content-Type");
+        String mediaType = null;
+        String encoding = null;
+        if(contentType != null) {
+            int semicolon = contentType.indexOf(';');
+            mediaType = ((semicolon == -1) ? contentType : contentType.substring(0, semicolon)).trim();
+            encoding = MimeTypes.getCharsetFromContentType(contentType);
+        }
         // TODO: If the request specifies caching, cache the result, storing
         // validity data.
         int status = response.getStatus();
         putResult("url", url); // We may have been redirected, so this may differ from the original.
-        putResult("mediaType", response.getMediaType());
-        putResult("encoding", response.getEncoding());
+        putResult("mediaType", mediaType);
+        putResult("encoding", encoding);
         if(responseListener.spilledToFile()) {
             putResult("bodySpilledToFile", true);
         } else {
-            putResult("body", response.getContent());
+            putResult("body", responseListener.getContent());
         }
         putResult("status", new Integer(status).toString());
         putResult("reason", response.getReason());
@@ -429,109 +380,130 @@ public class HTTPOperation extends Operation {
         logger.info("Result was "+result.get("type")+", error "+result.get("errorMessage"));
     }
 
-    protected void performOperation() throws Exception {
-        // We use the blocking Jetty HTTP client library, because we
-        // are already decoupled from the app via the Operation
-        // infrastructure; and we need to block this operation handler
-        // thread until the HTTP request is done anyway.
-        HttpClient httpClient = null;
-        try {
-            Logger logger = Logger.getLogger(LOGGER_NAME);
-
-            start();
+    // ----------------------------------------------------------------------
 
+    /**
+     * Send the request, calling onComplete when the result is available. Any
+     * failure is reported in the result, rather than thrown.
+     */
+    public void start(Runnable onComplete) {
+        this.onComplete = onComplete;
+        try {
+            if(this.setupFailure != null) {
+                throw this.setupFailure;
+            }
             // TODO: Check if the response is marked as cacheable, and a cached copy
             // meeting the validity requirements in the request exists, which also
             // meets the validity requirements of the request *that cached it*!
-            httpClient = setupHTTPClient();
+            this.httpClient = setupHTTPClient();
             insertQueryParamsIntoUrl();
+            // Cookies are only kept for the redirects within this request
+            this.cookies = new CookieManager(null, CookiePolicy.ACCEPT_ORIGINAL_SERVER);
+            this.redirectsLeft = redirectLimit;
+            sendRequest();
+        } catch(Throwable e) {
+            requestFailed(e);
+            finish();
+        }
+    }
 
-            boolean redirected;
-            int redirectsLeft = redirectLimit;
-            do { // Redirection loop
-                redirected = false;
-                Request request = null;
-                request = httpClient.newRequest(url);
-                request.method(method);
-                request.agent(agent);
-
-                initialiseRequestBody(request);
-                initialiseRequestHeaders(request);
-                initialiseRequestAuthentication(request);
+    public boolean isComplete() {
+        return this.complete;
+    }
 
-                ResponseListener responseListener = new ResponseListener(request, this.bodyPathname);
+    public String getBodyPathname() {
+        return this.bodyPathname;
+    }
 
-                logger.info("About to request "+url);
+    private void sendRequest() throws Exception {
+        Request request = httpClient.newRequest(url);
+        request.method(method);
+        request.agent(agent);
+        request.idleTimeout(REQUEST_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        initialiseRequestBody(request);
+        initialiseRequestHeaders(request);
+        initialiseRequestAuthentication(request);
+        URI uri = request.getURI();
+        for(String cookie : cookies.get(uri, Collections.emptyMap()).getOrDefault("Cookie", Collections.emptyList())) {
+            request.header("Cookie", cookie);
+        }
+        Logger.getLogger(LOGGER_NAME).info("About to request "+url);
+        request.send(new ResponseListener(request, this.bodyPathname));
+    }
 
-                try {
-                    //response = request.send();
-                    request.send(responseListener);
-                    responseListener.waitForResponse();
-                } catch(ExecutionException e) {
-                    // Unwrap execution exceptions
-                    throw e.getCause();
-                } finally {
-                    responseListener.ensureSpillFileClosed();
-                }
+    // Called by the ResponseListener on one of the HttpClient's threads
+    private void responseComplete(ResponseListener responseListener) {
+        Logger logger = Logger.getLogger(LOGGER_NAME);
+        try {
+            if(responseListener.failure != null) {
+                throw responseListener.failure;
+            }
 
-                int status = responseListener.response.getStatus();
-                // Loop back if we hit a redirect. Set redirected = true and mutate url.
-                if(isRedirect(status)) {
-                // Redirection
-                    String location = responseListener.response.getHeaders().get("Location");
-                    logger.info("Redirect from remote server to "+location);
-                    if(location != null && redirectsLeft > 0) {
-                        redirectsLeft--;
-                        redirected = true;
-                        url = location;
-
-                        if(status != 307) { // All other redirects go to a GET
-                            method = "GET";
-                        }
-
-                        continue; // Take another try around the redirect loop
+            HashMap<String,List<String>> setCookies = new HashMap<String,List<String>>();
+            setCookies.put("Set-Cookie", responseListener.response.getHeaders().getValuesList("Set-Cookie"));
+            cookies.put(responseListener.request.getURI(), setCookies);
+
+            int status = responseListener.response.getStatus();
+            // Send another request if we hit a redirect, mutating url.
+            if(isRedirect(status)) {
+                String location = responseListener.response.getHeaders().get("Location");
+                logger.info("Redirect from remote server to "+location);
+                if(location != null && redirectsLeft > 0) {
+                    redirectsLeft--;
+                    url = location;
+                    if(status != 307) { // All other redirects go to a GET
+                        method = "GET";
                     }
+                    sendRequest();
+                    return;
                 }
+            }
 
-                processResult(responseListener);
-            } while (redirected);
+            processResult(responseListener);
+        } catch(Throwable e) {
+            requestFailed(e);
+        }
+        finish();
+    }
 
-        } catch(InterruptedException e) {
-            markRequestAsTemporarilyFailed(e);
-        } catch(TimeoutException e) {
+    private void requestFailed(Throwable e) {
+        if((e instanceof InterruptedException) || (e instanceof TimeoutException)) {
             markRequestAsTemporarilyFailed(e);
-        } catch(SSLHandshakeException e) {
+        } else if(e instanceof SSLHandshakeException) {
             // SSL problems may be fixed at the remote end
             markRequestAsTemporarilyFailed(e);
-        } catch(SecurityException e) {
+        } else if(e instanceof HTTPClientPool.BlacklistedAddressException) {
             // The hostname failed validation
+            markRequestAsPermanentlyFailed(new SecurityException("Illegal URL [" + url + "], " + e.getMessage()));
+        } else {
             markRequestAsPermanentlyFailed(e);
-        } catch(Throwable e) {
-            markRequestAsPermanentlyFailed(e);
-        } finally {
-            if(httpClient != null) { httpClient.stop(); }
-            stop();
+        }
+    }
+
+    private void finish() {
+        this.complete = true;
+        if(this.onComplete != null) {
+            this.onComplete.run();
         }
     }
 
     // ----------------------------------------------------------------------
 
-    // A listener for the response which will spill long responses to a file
-    private static class ResponseListener extends BufferingResponseListener {
-        private final CountDownLatch latch = new CountDownLatch(1);
+    // A listener for the response which will spill long responses to a file.
+    // Content is written as it's received, so there's no limit on the size
+    // of the response, and no copy of a long response is kept in memory.
+    private class ResponseListener extends Response.Listener.Adapter {
         private Request request;
         private String spillFilePathname;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         private FileChannel spillFile;
-        private long preSpillLength = 0;
-        private Throwable failure;
+        private boolean spilledToFile;
 
         // Fields used by main class
-        public ContentResponse response;
+        public Response response;
+        public Throwable failure;
 
         public ResponseListener(Request request, String spillFilePathname) {
-            // Set max size to disk size, because BufferingResponseListener checks Content-Length header
-            // before receiving the response body.
-            super(HTTPOperation.MAX_ON_DISK_RESPONSE_SIZE);
             this.request = request;
             this.spillFilePathname = spillFilePathname;
         }
@@ -540,10 +512,14 @@ public class HTTPOperation extends Operation {
         public void onContent(Response response, ByteBuffer content) {
             try {
                 // Spill to file if the content size has exceeded the in memory buffer limit
-                if((this.spillFile == null) && (this.preSpillLength + content.remaining()) > HTTPOperation.MAX_IN_MEMORY_RESPONSE_SIZE) {
-                    this.spillFile = FileChannel.open(FileSystems.getDefault().getPath(this.spillFilePathname), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
-                    // Write content collected so far by the superclass BufferingResponseListener
-                    ByteBuffer c = ByteBuffer.wrap(this.getContent());
+                if((this.spillFile == null) && (this.buffer.size() + content.remaining()) > HTTPRequest.MAX_IN_MEMORY_RESPONSE_SIZE) {
+                    // Truncate, as a response to an earlier redirect may have been spilled
+                    this.spillFile = FileChannel.open(FileSystems.getDefault().getPath(this.spillFilePathname),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    this.spilledToFile = true;
+                    // Write content collected so far
+                    ByteBuffer c = ByteBuffer.wrap(this.buffer.toByteArray());
+                    this.buffer = null;
                     while(c.hasRemaining()) {
                         this.spillFile.write(c);
                     }
@@ -553,8 +529,9 @@ public class HTTPOperation extends Operation {
                         this.spillFile.write(content);
                     }
                 } else {
-                    this.preSpillLength += content.remaining();
-                    super.onContent(response, content);
+                    byte[] bytes = new byte[content.remaining()];
+                    content.get(bytes);
+                    this.buffer.write(bytes, 0, bytes.length);
                 }
             } catch(IOException e) {
                 this.request.abort(e);
@@ -563,7 +540,7 @@ public class HTTPOperation extends Operation {
 
         @Override
         public void onComplete(Result result) {
-            this.response = new HttpContentResponse(result.getResponse(), getContent(), getMediaType(), getEncoding());
+            this.response = result.getResponse();
             this.failure = result.getFailure();
 
             // Close spill file, if fails, set failure exception if it's not set by something else
@@ -575,24 +552,15 @@ public class HTTPOperation extends Operation {
                 }
             }
 
-            this.latch.countDown();
-        }
-
-        public void waitForResponse() throws InterruptedException, ExecutionException, TimeoutException {
-            // TODO: Does this need a timeout, or is letting Jetty handle this sufficient?
-            this.latch.await();
-            if(this.failure != null) { throw new ExecutionException(this.failure); }
+            responseComplete(this);
         }
 
-        public void ensureSpillFileClosed() throws IOException {
-            // Make sure spill file is always closed
-            if((this.spillFile != null) && this.spillFile.isOpen()) {
-                this.spillFile.close();
-            }
+        public boolean spilledToFile() {
+            return this.spilledToFile;
         }
 
-        public boolean spilledToFile() {
-            return this.spillFile != null;
+        public byte[] getContent() {
+            return (this.buffer == null) ? new byte[0] : this.buffer.toByteArray();
         }
     }
 }
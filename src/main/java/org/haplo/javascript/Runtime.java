@@ -8,13 +8,20 @@ package org.haplo.javascript;
 
 import java.io.LineNumberReader;
 import java.io.FileReader;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 
 import org.mozilla.javascript.*;
 import org.mozilla.javascript.json.JsonParser;
 
 import org.apache.commons.io.IOUtils;
 
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Histogram;
+
 import org.haplo.jsinterface.*;
 import org.haplo.jsinterface.i18n.KPluginStrings;
 import org.haplo.jsinterface.app.*;
@@ -27,6 +34,7 @@ import org.haplo.jsinterface.template.TemplateParserConfiguration;
 import org.haplo.jsinterface.template.TemplateIncludedRenderer;
 import org.haplo.jsinterface.template.TemplateFunctionRenderer;
 import org.haplo.jsinterface.template.TemplateTextTranslatorFactory;
+import org.haplo.jsinterface.template.TemplateParseCache;
 import org.haplo.jsinterface.template.GenericDeferredRender;
 import org.haplo.jsinterface.xml.*;
 import org.haplo.template.driver.rhinojs.*;
@@ -47,6 +55,9 @@ public class Runtime {
     private KHost host;
     private PluginTestingSupport testingSupport;
 
+    // Metrics, only created if collectMetrics() is called
+    private static Histogram buildTimeMetric;
+
     // Interface to load standard templates
     public interface StandardTemplateLoader {
         public String standardTemplateJSON();
@@ -65,6 +76,7 @@ public class Runtime {
             throw new RuntimeException("Runtime.initializeSharedEnvironment() not called yet");
         }
 
+        long startTime = System.nanoTime();
         Context cx = Runtime.enterContext();
         try {
             // Generate a new scope for the runtime, which borrows the objects in the main shared scope
@@ -78,6 +90,7 @@ public class Runtime {
         } finally {
             cx.exit();
         }
+        observeBuildTime("scope", System.nanoTime() - startTime);
     }
 
     private void callFrameworkInitialiser(Context cx, ScriptableObject scope) {
@@ -148,29 +161,27 @@ public class Runtime {
     }
 
     /**
-     * Load a script into the runtime
+     * Load a script into the runtime. The compiled script is shared with other
+     * runtimes through the ScriptCache.
      */
     public void loadScript(String scriptPathname, String givenFilename, String prefix, String suffix) throws java.io.IOException {
         checkContext();
-        FileReader script = new FileReader(scriptPathname);
-        try {
-            if(prefix != null || suffix != null) {
-                // TODO: Is it worth loading JS files with prefix+suffix using a fancy Reader which concatenates other readers?
-                StringBuilder builder = new StringBuilder();
-                if(prefix != null) {
-                    builder.append(prefix);
-                }
-                builder.append(IOUtils.toString(script));
-                if(suffix != null) {
-                    builder.append(suffix);
-                }
-                currentContext.evaluateString(runtimeScope, builder.toString(), givenFilename, 1, null /* no security domain */);
-            } else {
-                currentContext.evaluateReader(runtimeScope, script, givenFilename, 1, null /* no security domain */);
+        String source;
+        try(FileReader script = new FileReader(scriptPathname)) {
+            source = IOUtils.toString(script);
+        }
+        if(prefix != null || suffix != null) {
+            StringBuilder builder = new StringBuilder();
+            if(prefix != null) {
+                builder.append(prefix);
             }
-        } finally {
-            script.close();
+            builder.append(source);
+            if(suffix != null) {
+                builder.append(suffix);
+            }
+            source = builder.toString();
         }
+        ScriptCache.compile(currentContext, source, givenFilename).exec(currentContext, runtimeScope);
     }
 
     /**
@@ -184,6 +195,15 @@ public class Runtime {
         currentContext.evaluateString(runtimeScope, string, sourceName, 1, null /* no security domain */);
     }
 
+    /**
+     * Evaluate a string in the runtime, using the ScriptCache. Use for code
+     * which is evaluated in every new runtime, rather than one-off strings.
+     */
+    public void evaluateCachedString(String string, String sourceName) {
+        checkContext();
+        ScriptCache.compile(currentContext, string, sourceName).exec(currentContext, runtimeScope);
+    }
+
     /**
      * Get the main host object
      */
@@ -524,6 +544,7 @@ public class Runtime {
 
             // Templating integration
             JSPlatformIntegration.parserConfiguration = new TemplateParserConfiguration();
+            JSPlatformIntegration.templateParser = new TemplateParseCache();
             JSPlatformIntegration.includedTemplateRenderer = new TemplateIncludedRenderer();
             JSPlatformIntegration.platformFunctionRenderer = new TemplateFunctionRenderer();
             JSPlatformIntegration.textTranslatorFactory = new TemplateTextTranslatorFactory();
@@ -539,6 +560,47 @@ public class Runtime {
     // For logging
     static public long initializeSharedEnvironmentTimeTaken = 0;
 
+    // --------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Record the time taken to build part of a runtime. The "scope" stage is
+     * recorded by the constructor, and the caller records loading the plugins.
+     */
+    public static void observeBuildTime(String stage, long nanoseconds) {
+        if(buildTimeMetric != null) {
+            buildTimeMetric.labels(stage).observe(nanoseconds / 1.0e9);
+        }
+    }
+
+    /**
+     * Register metrics with prometheus
+     */
+    public static void collectMetrics() {
+        buildTimeMetric = Histogram.build().
+            name("haplo_javascript_runtime_build_seconds").
+            help("Time taken to build JavaScript runtimes.").
+            labelNames("stage").
+            buckets(0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30).
+            register();
+        new Collector() {
+            public List<MetricFamilySamples> collect() {
+                List<MetricFamilySamples> samples = new ArrayList<MetricFamilySamples>();
+                samples.add(new CounterMetricFamily("haplo_javascript_script_cache_hits_total", "Scripts loaded from the compiled script cache.", ScriptCache.getHits()));
+                samples.add(new CounterMetricFamily("haplo_javascript_script_cache_misses_total", "Scripts which had to be compiled.", ScriptCache.getMisses()));
+                samples.add(new CounterMetricFamily("haplo_javascript_script_compile_seconds_total", "Time spent compiling scripts.", ScriptCache.getCompileTimeSeconds()));
+                samples.add(new GaugeMetricFamily("haplo_javascript_script_cache_size", "Compiled scripts in the cache.", ScriptCache.size()));
+                samples.add(new CounterMetricFamily("haplo_javascript_template_cache_hits_total", "Templates loaded from the parsed template cache.", TemplateParseCache.getHits()));
+                samples.add(new CounterMetricFamily("haplo_javascript_template_cache_misses_total", "Templates which had to be parsed.", TemplateParseCache.getMisses()));
+                samples.add(new CounterMetricFamily("haplo_javascript_template_parse_seconds_total", "Time spent parsing templates.", TemplateParseCache.getParseTimeSeconds()));
+                samples.add(new GaugeMetricFamily("haplo_javascript_template_cache_size", "Parsed templates in the cache.", TemplateParseCache.size()));
+                samples.add(new GaugeMetricFamily("haplo_javascript_template_cache_source_chars", "Total length of the sources of the cached templates.", TemplateParseCache.getTotalSourceLength()));
+                samples.add(new CounterMetricFamily("haplo_javascript_db_query_cache_hits_total", "Plugin database queries which reused generated SQL.", JdTable.getGeneratedQueryCacheHits()));
+                samples.add(new CounterMetricFamily("haplo_javascript_db_query_cache_misses_total", "Plugin database queries which had to generate SQL.", JdTable.getGeneratedQueryCacheMisses()));
+                return samples;
+            }
+        }.register();
+    }
+
     private static void recursiveSealObjects(ScriptableObject object, ScriptableObject scope, HashSet<Object> seen, boolean sealThisObject) {
         // Avoid infinite recursion
         if(seen.contains(object)) {
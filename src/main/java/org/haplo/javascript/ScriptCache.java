@@ -0,0 +1,171 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.javascript;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+/**
+ * Process wide cache of compiled scripts, shared by all Runtimes.
+ *
+ * Compiled Scripts don't hold any reference to the scope they're executed in,
+ * so when a new Runtime loads the plugins for an application, it only has to
+ * execute the top level code of each script instead of parsing and compiling
+ * it again.
+ *
+ * Scripts are keyed by the source name, the optimisation level, and a hash
+ * of the source, so a changed plugin file is compiled again, and the old
+ * version is eventually evicted as least recently used.
+ */
+public class ScriptCache {
+    private static final int MAX_ENTRIES = 4096;
+    private static final long MAX_TOTAL_SOURCE_LENGTH = 64L * 1024 * 1024;    // chars
+
+    private static int optimisationLevel = Integer.getInteger("org.haplo.javascript.optimisationlevel", 0);
+
+    private static final LinkedHashMap<String, Entry> scripts = new LinkedHashMap<String, Entry>(256, 0.75f, true /* access order */);
+    private static long totalSourceLength = 0;
+    private static long hits = 0;
+    private static long misses = 0;
+    private static long compileTime = 0;   // ns
+
+    private static class Entry {
+        final Script script;
+        final int sourceLength;
+
+        Entry(Script script, int sourceLength) {
+            this.script = script;
+            this.sourceLength = sourceLength;
+        }
+    }
+
+    /**
+     * Optimisation level used when compiling scripts, -1 for interpreted
+     * mode, or 0 - 9. Defaults to the org.haplo.javascript.optimisationlevel
+     * system property, or 0.
+     */
+    public static void setOptimisationLevel(int level) {
+        if(!Context.isValidOptimizationLevel(level)) {
+            throw new IllegalArgumentException("Bad JavaScript optimisation level: " + level);
+        }
+        synchronized(scripts) {
+            optimisationLevel = level;
+        }
+    }
+
+    public static int getOptimisationLevel() {
+        synchronized(scripts) {
+            return optimisationLevel;
+        }
+    }
+
+    /**
+     * Return a compiled script for the source, compiling it if it's not in
+     * the cache. Must be called with a Context entered on this thread.
+     */
+    public static Script compile(Context cx, String source, String sourceName) {
+        int level = getOptimisationLevel();
+        String key = makeKey(source, sourceName, level);
+        synchronized(scripts) {
+            Entry entry = scripts.get(key);
+            if(entry != null) {
+                hits++;
+                return entry.script;
+            }
+            misses++;
+        }
+
+        // Compile outside the lock so other threads can use the cache. Another thread may
+        // compile the same script at the same time, but the result will be equivalent.
+        long startTime = System.nanoTime();
+        int previousLevel = cx.getOptimizationLevel();
+        Script script;
+        try {
+            cx.setOptimizationLevel(level);
+            script = cx.compileString(source, sourceName, 1, null /* no security domain */);
+        } finally {
+            cx.setOptimizationLevel(previousLevel);
+        }
+        long timeTaken = System.nanoTime() - startTime;
+
+        synchronized(scripts) {
+            compileTime += timeTaken;
+            Entry previous = scripts.put(key, new Entry(script, source.length()));
+            if(previous != null) {
+                totalSourceLength -= previous.sourceLength;
+            }
+            totalSourceLength += source.length();
+            evictWithoutSynchronization();
+        }
+        return script;
+    }
+
+    private static void evictWithoutSynchronization() {
+        Iterator<Map.Entry<String, Entry>> i = scripts.entrySet().iterator();
+        while(i.hasNext() && (scripts.size() > MAX_ENTRIES || totalSourceLength > MAX_TOTAL_SOURCE_LENGTH)) {
+            totalSourceLength -= i.next().getValue().sourceLength;
+            i.remove();
+        }
+    }
+
+    private static String makeKey(String source, String sourceName, int level) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+        byte[] hash = digest.digest(source.getBytes(StandardCharsets.UTF_8));
+        StringBuilder key = new StringBuilder(sourceName.length() + 80);
+        key.append(level).append(':');
+        for(byte b : hash) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        key.append(':').append(sourceName);
+        return key.toString();
+    }
+
+    public static void clear() {
+        synchronized(scripts) {
+            scripts.clear();
+            totalSourceLength = 0;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    public static int size() {
+        synchronized(scripts) {
+            return scripts.size();
+        }
+    }
+
+    public static long getHits() {
+        synchronized(scripts) {
+            return hits;
+        }
+    }
+
+    public static long getMisses() {
+        synchronized(scripts) {
+            return misses;
+        }
+    }
+
+    public static double getCompileTimeSeconds() {
+        synchronized(scripts) {
+            return compileTime / 1.0e9;
+        }
+    }
+}
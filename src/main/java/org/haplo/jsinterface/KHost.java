@@ -28,6 +28,7 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.WeakHashMap;
+import java.nio.CharBuffer;
 
 /**
  * Main Javascript host object for Haplo
@@ -308,9 +309,15 @@ public class KHost extends KScriptable {
     public Object[] callWebPublisherHandler(String host, String method, String path) {
         Scriptable plugin = this.plugins.get("std_web_publisher");
         Function handleRequest = findPluginFunction(plugin, "std_web_publisher", "$webPublisherHandle");
-        return callJSFunctionAndDecodeResponseObject(
+        Object[] info = callJSFunctionAndDecodeResponseObject(
             (runtime) -> handleRequest.call(runtime.getContext(), runtime.getJavaScriptScope(), plugin, new Object[] {host, method, path})
         );
+        // Wrap text bodies so JRuby doesn't convert them to Ruby Strings, allowing the page
+        // to be encoded to UTF-8 as it's written to the HTTP response by TextResponse.
+        if((info != null) && (info[RESPONSE_BODY_INDEX] instanceof String)) {
+            info[RESPONSE_BODY_INDEX] = CharBuffer.wrap((String)info[RESPONSE_BODY_INDEX]);
+        }
+        return info;
     }
 
     private Object[] callJSFunctionAndDecodeResponseObject(CallJSHandlerFn jsFn) {
@@ -541,7 +548,7 @@ public class KHost extends KScriptable {
         final Scriptable sharedScope = runtime.getSharedJavaScriptScope();
         final Scriptable scope = runtime.getJavaScriptScope();
         if("hsvt".equals(r[1])) {
-            HaploTemplate template = (HaploTemplate)cx.newObject(scope, "$HaploTemplate", new Object[]{r[0], templateName});
+            HaploTemplate template = (HaploTemplate)cx.newObject(scope, "$HaploTemplate", new Object[]{r[0], templateName, pluginName});
             template.put("kind", template, "html");
             template.setOwner(plugin);
             if(this.templateDebuggingEnabled) {
@@ -95,6 +95,42 @@ public class KObject extends KScriptable {
         return KObject.fromAppObject(appObject, false /* not mutable */);
     }
 
+    // Load many objects with as few database queries as possible. Returns an array in the same order, with null
+    // for refs which don't exist. Permissions are enforced as load().
+    public static Scriptable jsStaticFunction__loadMany(Object refs) {
+        AppObject[] appObjects = rubyInterface.readObjects(refsToObjIds(refs, "O.loadMany()"));
+        Object jsObjects[] = new Object[appObjects.length];
+        for(int i = 0; i < appObjects.length; ++i) {
+            jsObjects[i] = (appObjects[i] == null) ? null : KObject.fromAppObject(appObjects[i], false /* not mutable */);
+        }
+        Runtime runtime = Runtime.getCurrentRuntime();
+        return runtime.getContext().newArray(runtime.getJavaScriptScope(), jsObjects);
+    }
+
+    // Fill the object cache so later loads of these refs don't need to query the database
+    public static void jsStaticFunction__prefetch(Object refs) {
+        rubyInterface.prefetchObjects(refsToObjIds(refs, "O.prefetch()"));
+    }
+
+    private static int[] refsToObjIds(Object refs, String functionName) {
+        if(!(refs instanceof NativeArray)) {
+            throw new OAPIException("Must pass an array of refs to " + functionName);
+        }
+        NativeArray array = (NativeArray)refs;
+        int[] objIds = new int[(int)array.getLength()];
+        for(int i = 0; i < objIds.length; ++i) {
+            Object ref = array.get(i, array);
+            if(ref == null || ref instanceof Undefined) {
+                objIds[i] = 0;
+            } else if(ref instanceof KObjRef) {
+                objIds[i] = ((KObjRef)ref).jsGet_objId();
+            } else {
+                throw new OAPIException("Array passed to " + functionName + " must only contain refs");
+            }
+        }
+        return objIds;
+    }
+
     static public Scriptable loadVersion(KObjRef ref, int version) {
         AppObject appObject = rubyInterface.readObjectVersion(ref.jsGet_objId(), version);
         if(appObject == null) {
@@ -733,6 +769,8 @@ public class KObject extends KScriptable {
         public AppObject createObject(AppObject object, AppLabelChanges labelChanges);
 
         public AppObject readObject(int objID);
+        public AppObject[] readObjects(int[] objIDs);   // 0 for no object
+        public void prefetchObjects(int[] objIDs);
         public AppObject readObjectVersion(int objID, int version);
         public AppObject readObjectVersionAtTime(int objID, IRubyObject time);
 
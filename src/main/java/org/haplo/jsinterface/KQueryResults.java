@@ -94,5 +94,17 @@ public class KQueryResults extends KScriptable {
         this.results.ensure_range_loaded(startIndex, endIndex);
     }
 
+    // Load the objects linked from all the results, optionally only those linked by a single attribute
+    public Scriptable jsFunction_prefetchLinkedObjects(Object desc) {
+        Integer prefetchDesc = null;
+        if(desc instanceof Number) {
+            prefetchDesc = ((Number)desc).intValue();
+        } else if(desc != null && !(desc instanceof Undefined)) {
+            throw new OAPIException("Bad desc passed to prefetchLinkedObjects()");
+        }
+        this.results.prefetch_linked_objects(prefetchDesc);
+        return this;
+    }
+
     // --------------------------------------------------------------------------------------------------------------
 }
@@ -14,4 +14,6 @@ public interface AppQueryResults {
     public AppObject jsGet(int index);
 
     public void ensure_range_loaded(int startIndex, int endIndex);
+
+    public void prefetch_linked_objects(Integer desc);
 }
@@ -8,11 +8,13 @@ package org.haplo.jsinterface.db;
 
 import org.haplo.javascript.Runtime;
 import org.haplo.javascript.OAPIException;
+import org.haplo.javascript.JsGet;
 import org.haplo.jsinterface.KScriptable;
 import org.mozilla.javascript.*;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.sql.PreparedStatement;
 
 public class JdSelect extends JdSelectClause {
     private Scriptable[] results;
@@ -21,8 +23,11 @@ public class JdSelect extends JdSelectClause {
     private ArrayList<JdTable.LinkField> includes;
     private int limit;
     private int offset;
+    private int fetchSize;
+    private boolean hasPageAfter;
 
     private static final int NO_LIMIT = -1;
+    private static final int DEFAULT_FETCH_SIZE = 500;
 
     private static final String GENERIC_SQL_ERROR = "Couldn't execute SQL (does the underlying database table need migrating?) - ";
 
@@ -32,6 +37,7 @@ public class JdSelect extends JdSelectClause {
         this.stableOrder = false;
         this.limit = NO_LIMIT;
         this.offset = NO_LIMIT;
+        this.fetchSize = DEFAULT_FETCH_SIZE;
     }
 
     public String getClassName() {
@@ -47,6 +53,9 @@ public class JdSelect extends JdSelectClause {
     // API for describing queries
     public Scriptable jsFunction_order(String fieldName, boolean descending) {
         checkNotExecutedYet();
+        if(this.hasPageAfter) {
+            throw new OAPIException("order() must be used before pageAfter()");
+        }
         JdTable.Field field = this.table.getFieldOrGenericIdField(fieldName);
         if(field == null) {
             throw new OAPIException("Field '" + fieldName + "' given to order() clause doesn't exist in table");
@@ -85,6 +94,78 @@ public class JdSelect extends JdSelectClause {
         return this;
     }
 
+    // Number of rows read from the database at a time by stream()
+    public Scriptable jsFunction_fetchSize(int fetchSize) {
+        checkNotExecutedYet();
+        if(fetchSize < 1) {
+            throw new OAPIException("Fetch size must be at least 1");
+        }
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    // Keyset pagination: only select rows which come after the given row in the order() of this query.
+    // The id is always used as the last sort key to make the order stable. Use with limit() to read
+    // large tables in pages, passing the last row of each page, without the cost of large offsets.
+    public Scriptable jsFunction_pageAfter(Object rowObject) {
+        checkNotExecutedYet();
+        if(this.hasPageAfter) {
+            throw new OAPIException("pageAfter() can only be used once in a query");
+        }
+        if(!(rowObject instanceof Scriptable) ||
+                (JsGet.objectOfClass("$table", ((Scriptable)rowObject).getPrototype(), JdTable.class) != this.table)) {
+            throw new OAPIException("pageAfter() must be passed a row from table '" + this.table.jsGet_name() + "'");
+        }
+        Scriptable row = (Scriptable)rowObject;
+        if(JsGet.number("id", row) == null) {
+            throw new OAPIException("Database row object hasn't be saved and can't be used in pageAfter()");
+        }
+        Scriptable rowValues = (Scriptable)row.get("$values", row);
+        ArrayList<Ordering> keys = new ArrayList<Ordering>(4);
+        if(this.orderBy != null) {
+            keys.addAll(this.orderBy);
+        }
+        keys.add(new Ordering(this.table.getFieldOrGenericIdField("id"), false));
+        // (a after x) OR (a = x AND b after y) OR (a = x AND b = y AND id > z) ...
+        JdSelectClause anyAfter = (JdSelectClause)doWhereSubClause(null, false /* OR */);
+        for(int k = 0; k < keys.size(); ++k) {
+            Ordering key = keys.get(k);
+            if(!key.field.isSingleColumn()) {
+                throw new OAPIException("pageAfter() can't be used when ordering by field '" + key.field.getJsName() + "'");
+            }
+            Object value = keyValue(key.field, row, rowValues);
+            // NULLs sort after other values, so nothing comes after NULL in ascending order
+            if(value == null && !key.descending) {
+                continue;
+            }
+            JdSelectClause after = (JdSelectClause)anyAfter.doWhereSubClause(null, true /* AND */);
+            for(int e = 0; e < k; ++e) {
+                Ordering equalKey = keys.get(e);
+                after.jsFunction_where(equalKey.field.getJsName(), "=", keyValue(equalKey.field, row, rowValues));
+            }
+            String name = key.field.getJsName();
+            if(value == null) {
+                after.jsFunction_where(name, "<>", null);   // descending, NULLs come first
+            } else if(key.descending) {
+                after.jsFunction_where(name, "<", value);
+            } else if(key.field.isNullable()) {
+                JdSelectClause greaterOrNull = (JdSelectClause)after.doWhereSubClause(null, false /* OR */);
+                greaterOrNull.jsFunction_where(name, ">", value);
+                greaterOrNull.jsFunction_where(name, "=", null);
+            } else {
+                after.jsFunction_where(name, ">", value);
+            }
+        }
+        this.stableOrder = true;
+        this.hasPageAfter = true;
+        return this;
+    }
+
+    private static Object keyValue(JdTable.Field field, Scriptable row, Scriptable rowValues) {
+        Object value = field.getJsName().equals("id") ? row.get("id", row) : rowValues.get(field.getJsName(), rowValues);
+        return (value == Scriptable.NOT_FOUND || value instanceof Undefined) ? null : value;
+    }
+
     // Load references to linked objects in a single query
     public Scriptable jsFunction_include(String fieldName) {
         checkNotExecutedYet();
@@ -145,6 +226,29 @@ public class JdSelect extends JdSelectClause {
         return this;
     }
 
+    // Calls the function once for each result with (object, index), like each(), but reads
+    // rows from the database in batches and doesn't keep them, so large tables can be
+    // processed in constant memory. Return false from the function to stop early.
+    // Each call runs the query again, unless the results have already been loaded.
+    public Scriptable jsFunction_stream(Function iterator) {
+        if(this.results != null) {
+            Context context = Runtime.getCurrentRuntime().getContext();
+            for(int i = 0; i < this.results.length; ++i) {
+                Object r = iterator.call(context, iterator, iterator, new Object[]{this.results[i], i});
+                if(Boolean.FALSE.equals(r)) {
+                    break;
+                }
+            }
+            return this;
+        }
+        try {
+            this.table.executeStreamingQuery(this, this.fetchSize, iterator);
+        } catch(java.sql.SQLException e) {
+            throw new OAPIException(GENERIC_SQL_ERROR + e.getMessage(), e);
+        }
+        return this;
+    }
+
     // Performs a COUNT(*) instead of selecting all the values
     public Object jsFunction_count() {
         try {
@@ -309,20 +413,62 @@ public class JdSelect extends JdSelectClause {
         return null;
     }
 
+    // Key for the cache of generated SQL, or null if the SQL can't be reused
+    protected String generateShapeKey(String outputKey) {
+        StringBuilder key = new StringBuilder(outputKey);
+        key.append(" WHERE ");
+        if(!appendShapeKey(key)) {
+            return null;
+        }
+        if(this.includes != null) {
+            key.append(" INCLUDE ");
+            for(JdTable.LinkField field : this.includes) {
+                key.append(field.getJsName()).append(',');
+            }
+        }
+        if(this.orderBy != null) {
+            key.append(" ORDER ");
+            for(Ordering o : this.orderBy) {
+                key.append(o.field.getJsName()).append(o.descending ? "-," : "+,");
+            }
+        }
+        if(this.stableOrder) {
+            key.append(" STABLE");
+        }
+        // Limit and offset are parameters, so paginated queries share the generated SQL
+        if(this.limit != NO_LIMIT) {
+            key.append(" LIMIT");
+        }
+        if(this.offset != NO_LIMIT) {
+            key.append(" OFFSET");
+        }
+        return key.toString();
+    }
+
     protected String generateLimitAndOffsetSql() {
         if(this.limit == NO_LIMIT && this.offset == NO_LIMIT) {
             return null;
         }
         String fragment = "";
         if(this.limit != NO_LIMIT) {
-            fragment += " LIMIT " + this.limit;
+            fragment += " LIMIT ?";
         }
         if(this.offset != NO_LIMIT) {
-            fragment += " OFFSET " + this.offset;
+            fragment += " OFFSET ?";
         }
         return fragment;
     }
 
+    protected int setLimitAndOffsetValues(int parameterIndex, PreparedStatement statement) throws java.sql.SQLException {
+        if(this.limit != NO_LIMIT) {
+            statement.setInt(parameterIndex++, this.limit);
+        }
+        if(this.offset != NO_LIMIT) {
+            statement.setInt(parameterIndex++, this.offset);
+        }
+        return parameterIndex;
+    }
+
     // --------------------------------------------------------------------------------------------------------------
     private static final class Ordering {
         public final JdTable.Field field;
@@ -249,12 +249,28 @@ public class JdSelectClause extends KScriptable {
         }
     }
 
-    protected void setWhereValues(PreparedStatement statement) throws java.sql.SQLException {
+    // Describes the SQL which would be generated by the where clauses, without the values, so queries
+    // with the same key can reuse the SQL. Returns false if the SQL can't be reused.
+    protected boolean appendShapeKey(StringBuilder key) {
+        key.append(this.isAndClause ? '(' : '[');
+        if(this.whereClauses != null) {
+            for(WhereClause w : this.whereClauses) {
+                if(!w.appendShapeKey(key)) {
+                    return false;
+                }
+            }
+        }
+        key.append(this.isAndClause ? ')' : ']');
+        return true;
+    }
+
+    // Returns the index of the next parameter after the WHERE clause
+    protected int setWhereValues(PreparedStatement statement) throws java.sql.SQLException {
         if(this.whereClauses == null) {
-            return;
+            return 1;
         }
 
-        setWhereValues2(1, statement);
+        return setWhereValues2(1, statement);
     }
 
     protected int setWhereValues2(int parameterIndex, PreparedStatement statement) throws java.sql.SQLException {
@@ -305,6 +321,22 @@ public class JdSelectClause extends KScriptable {
             this.field.appendWhereSql(where, ta, this.comparison, this.value, this.valueTransformer);
         }
 
+        public boolean appendShapeKey(StringBuilder key) {
+            if(this.field.whereSqlDependsOnValue()) {
+                return false;
+            }
+            if(this.joinField != null) {
+                key.append(this.joinField.getJsName()).append('.');
+            }
+            key.append(this.field.getJsName()).append(' ').append(this.comparison);
+            key.append((this.value == null) ? " NULL" : " ?");
+            if(this.valueTransformer != null) {
+                key.append(" JSON");
+            }
+            key.append(',');
+            return true;
+        }
+
         public int setWhereValue(int parameterIndex, PreparedStatement statement) throws java.sql.SQLException {
             if(this.valueTransformer != null) {
                 return valueTransformer.setWhereValue(this.field, parameterIndex, statement, this.value);
@@ -332,6 +364,11 @@ public class JdSelectClause extends KScriptable {
             where.append(")");
         }
 
+        @Override
+        public boolean appendShapeKey(StringBuilder key) {
+            return this.subClause.appendShapeKey(key);
+        }
+
         public int setWhereValue(int parameterIndex, PreparedStatement statement) throws java.sql.SQLException {
             return this.subClause.setWhereValues2(parameterIndex, statement);
         }
@@ -351,6 +388,11 @@ public class JdSelectClause extends KScriptable {
             where.append(KUser.makeWhereClauseForIsMemberOf(tableAlias + "." + this.field.getDbName(), this.groupId));
         }
 
+        @Override
+        public boolean appendShapeKey(StringBuilder key) {
+            return false;   // SQL lists the groups, which may change
+        }
+
         @Override
         public int setWhereValue(int parameterIndex, PreparedStatement statement) throws java.sql.SQLException {
             return parameterIndex;
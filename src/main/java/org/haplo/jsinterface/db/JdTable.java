@@ -17,15 +17,21 @@ import java.math.BigDecimal;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.TransactionState;
+
 // JS host objects for field types
 import org.haplo.jsinterface.KObjRef;
 import org.haplo.jsinterface.KUser;
@@ -41,6 +47,11 @@ public class JdTable extends KScriptable {
     private Field[] fields;
     private JdNamespace namespace;
     private String databaseTableName;
+    private LinkedHashMap<String, GeneratedQuery> generatedQueries;
+
+    private static final int MAX_GENERATED_QUERIES = 64;
+    private static final AtomicLong generatedQueryCacheHits = new AtomicLong();
+    private static final AtomicLong generatedQueryCacheMisses = new AtomicLong();
 
     public JdTable() {
     }
@@ -220,35 +231,13 @@ public class JdTable extends KScriptable {
     }
 
     public void jsFunction_createNewRow(Scriptable row) throws java.sql.SQLException {
-        StringBuilder sql = new StringBuilder("INSERT INTO ");
-        sql.append(this.getDatabaseTableName());
-        sql.append(" (");
-        // Find the last field
-        Field lastField = null;
-        if(this.fields.length > 0) {
-            lastField = this.fields[this.fields.length - 1];
-        }
-        // Build the insert fields
-        for(Field field : fields) {
-            field.appendInsertColumnName(sql);
-            if(field != lastField) {
-                sql.append(',');
-            }
-        }
-        sql.append(") VALUES(");
-        for(Field field : fields) {
-            field.appendInsertMarker(sql);
-            if(field != lastField) {
-                sql.append(',');
-            }
-        }
-        sql.append(") RETURNING id");
+        String sql = generateInsertSql() + " RETURNING id";
 
         Scriptable rowValues = (Scriptable)row.get("$values", row);
 
         // Run the SQL
         Database.withConnection((db) -> {
-            PreparedStatement statement = db.prepareStatement(sql.toString());
+            PreparedStatement statement = db.prepareStatement(sql);
             try {
                 int parameterIndex = 1;
                 for(Field field : fields) {
@@ -314,6 +303,216 @@ public class JdTable extends KScriptable {
         });
     }
 
+    private String generateInsertSql() {
+        StringBuilder sql = new StringBuilder("INSERT INTO ");
+        sql.append(this.getDatabaseTableName());
+        sql.append(" (");
+        // Find the last field
+        Field lastField = null;
+        if(this.fields.length > 0) {
+            lastField = this.fields[this.fields.length - 1];
+        }
+        // Build the insert fields
+        for(Field field : fields) {
+            field.appendInsertColumnName(sql);
+            if(field != lastField) {
+                sql.append(',');
+            }
+        }
+        sql.append(") VALUES(");
+        for(Field field : fields) {
+            field.appendInsertMarker(sql);
+            if(field != lastField) {
+                sql.append(',');
+            }
+        }
+        sql.append(")");
+        return sql.toString();
+    }
+
+    // --------------------------------------------------------------------------------------------------------------
+    // Bulk writes, sent to the database as JDBC batches to avoid a round trip for each row
+
+    // rows is an Array of unsaved row objects, or objects of initial values for new rows.
+    // All the rows are inserted in a single batch, and the new row objects returned as an Array.
+    public Scriptable jsFunction_createMany(Object rows) throws java.sql.SQLException {
+        Runtime runtime = Runtime.getCurrentRuntime();
+        Object[] elements = elementsOfArrayOfRows(rows, "createMany");
+        Scriptable[] newRows = new Scriptable[elements.length];
+        for(int i = 0; i < elements.length; ++i) {
+            if(!(elements[i] instanceof Scriptable)) {
+                throw new OAPIException("createMany() must be passed an Array of rows or objects");
+            }
+            Scriptable row = (Scriptable)elements[i];
+            if(!isRowOfThisTable(row)) {
+                row = this.jsFunction_create(row);
+            } else if(!isUnsavedRow(row)) {
+                throw new OAPIException("Row " + i + " passed to createMany() has already been saved");
+            }
+            checkRowValues((Scriptable)row.get("$values", row), true, i);
+            newRows[i] = row;
+        }
+        insertRows(newRows);
+        return runtime.getContext().newArray(runtime.getJavaScriptScope(), (Object[])newRows);
+    }
+
+    // rows is an Array of row objects. New rows are inserted, and changes to existing rows are
+    // updated, with rows which changed the same fields sharing an UPDATE statement in a batch.
+    public void jsFunction_saveMany(Object rows) throws java.sql.SQLException {
+        ArrayList<Scriptable> newRows = new ArrayList<Scriptable>();
+        LinkedHashMap<String, BatchedUpdate> updates = new LinkedHashMap<String, BatchedUpdate>();
+        Object[] elements = elementsOfArrayOfRows(rows, "saveMany");
+        for(int i = 0; i < elements.length; ++i) {
+            if(!(elements[i] instanceof Scriptable) || !isRowOfThisTable((Scriptable)elements[i])) {
+                throw new OAPIException("saveMany() must be passed an Array of rows from table '" + this.jsName + "'");
+            }
+            Scriptable row = (Scriptable)elements[i];
+            if(isUnsavedRow(row)) {
+                checkRowValues((Scriptable)row.get("$values", row), true, i);
+                newRows.add(row);
+                continue;
+            }
+            Object changesO = row.get("$changes", row); // ConsString is checked
+            if(changesO == Scriptable.NOT_FOUND || !(changesO instanceof Scriptable)) {
+                continue;   // nothing changed
+            }
+            Scriptable changes = (Scriptable)changesO;
+            checkRowValues(changes, false, i);
+            // Group rows by the fields which changed
+            ParameterIndicies indicies = makeParameterIndicies();
+            StringBuilder update = new StringBuilder("UPDATE ");
+            update.append(this.getDatabaseTableName());
+            update.append(" SET ");
+            int lengthBeforeFields = update.length();
+            boolean needsComma = false;
+            int parameterIndex = 1;
+            for(Field field : this.fields) {
+                int nextParameterIndex = field.appendUpdateSQL(update, needsComma, changes, parameterIndex, indicies);
+                if(nextParameterIndex != parameterIndex) {
+                    parameterIndex = nextParameterIndex;
+                    needsComma = true;
+                }
+            }
+            if(update.length() == lengthBeforeFields) {
+                continue;
+            }
+            update.append(" WHERE id=?");
+            String sql = update.toString();
+            BatchedUpdate batch = updates.get(sql);
+            if(batch == null) {
+                batch = new BatchedUpdate(indicies, parameterIndex);
+                updates.put(sql, batch);
+            }
+            batch.ids.add(((Number)row.get("id", row)).intValue());
+            batch.changes.add(changes);
+        }
+
+        if(!newRows.isEmpty()) {
+            insertRows(newRows.toArray(new Scriptable[newRows.size()]));
+        }
+        if(updates.isEmpty()) {
+            return;
+        }
+        Database.withConnection((db) -> {
+            for(Map.Entry<String, BatchedUpdate> entry : updates.entrySet()) {
+                BatchedUpdate batch = entry.getValue();
+                try ( PreparedStatement statement = db.prepareStatement(entry.getKey()) ) {
+                    for(int i = 0; i < batch.ids.size(); ++i) {
+                        Scriptable changes = batch.changes.get(i);
+                        batch.indicies.nextRow();
+                        for(Field field : this.fields) {
+                            field.setUpdateField(statement, changes, batch.indicies);
+                        }
+                        statement.setInt(batch.idParameterIndex, batch.ids.get(i));
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+            return null;
+        });
+    }
+
+    private static class BatchedUpdate {
+        public final ParameterIndicies indicies;
+        public final int idParameterIndex;
+        public final ArrayList<Integer> ids = new ArrayList<Integer>();
+        public final ArrayList<Scriptable> changes = new ArrayList<Scriptable>();
+
+        BatchedUpdate(ParameterIndicies indicies, int idParameterIndex) {
+            this.indicies = indicies;
+            this.idParameterIndex = idParameterIndex;
+        }
+    }
+
+    // Values must have been checked with checkRowValues()
+    private void insertRows(Scriptable[] rows) throws java.sql.SQLException {
+        Scriptable[] rowValues = new Scriptable[rows.length];
+        for(int i = 0; i < rows.length; ++i) {
+            rowValues[i] = (Scriptable)rows[i].get("$values", rows[i]);
+        }
+        if(rows.length == 0) {
+            return;
+        }
+        String sql = generateInsertSql();
+        Database.withConnection((db) -> {
+            // One batch, so the driver sends every row before waiting, and the rows are inserted atomically
+            try ( PreparedStatement statement = db.prepareStatement(sql, new String[] {"id"}) ) {
+                for(Scriptable values : rowValues) {
+                    int parameterIndex = 1;
+                    for(Field field : fields) {
+                        parameterIndex = field.setStatementField(parameterIndex, statement, values);
+                    }
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                try ( ResultSet results = statement.getGeneratedKeys() ) {
+                    for(Scriptable row : rows) {
+                        if(!results.next()) {
+                            throw new OAPIException("Create row didn't return an id");
+                        }
+                        row.put("id", row, new Integer(results.getInt(1)));
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    // Check values before writing, so an error identifies the row, rather than failing the entire batch.
+    // If allFields is false, only the values present are checked.
+    private void checkRowValues(Scriptable values, boolean allFields, int rowIndex) {
+        for(Field field : this.fields) {
+            Object value = values.get(field.getJsName(), values); // ConsString is checked
+            if(value == Scriptable.NOT_FOUND || value instanceof Undefined) {
+                if(!allFields) {
+                    continue;
+                }
+                value = null;
+            }
+            if(!field.rowValueIsCompatible(value)) {
+                throw new OAPIException("Row " + rowIndex + " has " + ((value == null) ? "no value" : "a bad value") +
+                        " for field '" + field.getJsName() + "' in table '" + this.jsName + "'");
+            }
+        }
+    }
+
+    private boolean isRowOfThisTable(Scriptable object) {
+        return JsGet.objectOfClass("$table", object.getPrototype(), JdTable.class) == this;
+    }
+
+    private static boolean isUnsavedRow(Scriptable row) {
+        Object id = row.get("id", row);
+        return (id == Scriptable.NOT_FOUND) || (id == null) || (id instanceof Undefined);
+    }
+
+    private static Object[] elementsOfArrayOfRows(Object rows, String functionName) {
+        if(!(rows instanceof NativeArray)) {
+            throw new OAPIException(functionName + "() must be passed an Array");
+        }
+        return Runtime.getCurrentRuntime().getContext().getElements((Scriptable)rows);
+    }
+
     public Boolean jsFunction_deleteRow(int id) throws java.sql.SQLException {
         if(id <= 0) {
             throw new OAPIException("Bad id value for deleting row");
@@ -449,26 +648,57 @@ public class JdTable extends KScriptable {
 
     // Execute a query returning rows of data
     public Scriptable[] executeQuery(JdSelect query) throws java.sql.SQLException {
-        return (Scriptable[])buildAndExecuteQuery(query, new QueryExecution() {
-            public int appendOutputExpressions(StringBuilder select, ParameterIndicies indicies) {
-                return appendColumnNamesForSelect(1, "m", select, indicies);
-            }
-            public int appendOutputExpressionsForLinkedTable(JdTable otherTable, int parameterIndexStart, String tableAlias, StringBuilder select, ParameterIndicies indicies) {
-                select.append(',');
-                return otherTable.appendColumnNamesForSelect(parameterIndexStart, tableAlias, select, indicies);
-            }
-            public void appendGroupAndOrder(StringBuilder select) {
-                String order = query.generateOrderSql("m");
-                if(order != null) {
-                    select.append(" ORDER BY ");
-                    select.append(order);
-                }
-            }
+        return (Scriptable[])buildAndExecuteQuery(query, new RowsQueryExecution(query) {
             public Object createResultObject(ResultSet results, ParameterIndicies indicies, IncludedTable[] includes) throws java.sql.SQLException {
                 ArrayList<Scriptable> objects = jsObjectsFromResultsSet(results, 100 /* results size hint */, indicies, includes);
                 return objects.toArray(new Scriptable[objects.size()]);
             }
-        });
+        }, 0 /* fetch all rows */);
+    }
+
+    // Execute a query, calling the iterator with (object, index) for each row as it's read from the database.
+    // Rows are fetched in batches of fetchSize, and the iterator can return false to stop early.
+    public void executeStreamingQuery(JdSelect query, int fetchSize, Function iterator) throws java.sql.SQLException {
+        buildAndExecuteQuery(query, new RowsQueryExecution(query) {
+            public Object createResultObject(ResultSet results, ParameterIndicies indicies, IncludedTable[] includes) throws java.sql.SQLException {
+                Runtime runtime = Runtime.getCurrentRuntime();
+                Context context = runtime.getContext();
+                Scriptable scope = runtime.getJavaScriptScope();
+                int index = 0;
+                while(results.next()) {
+                    Scriptable o = readJsObjectWithIncludesFromResultSet(results, indicies, includes, scope, context);
+                    Object r = iterator.call(context, iterator, iterator, new Object[]{o, index++});
+                    if(Boolean.FALSE.equals(r)) {
+                        break;
+                    }
+                }
+                return null;
+            }
+        }, fetchSize);
+    }
+
+    private abstract class RowsQueryExecution implements QueryExecution {
+        private final JdSelect query;
+        RowsQueryExecution(JdSelect query) {
+            this.query = query;
+        }
+        public int appendOutputExpressions(StringBuilder select, ParameterIndicies indicies) {
+            return appendColumnNamesForSelect(1, "m", select, indicies);
+        }
+        public int appendOutputExpressionsForLinkedTable(JdTable otherTable, int parameterIndexStart, String tableAlias, StringBuilder select, ParameterIndicies indicies) {
+            select.append(',');
+            return otherTable.appendColumnNamesForSelect(parameterIndexStart, tableAlias, select, indicies);
+        }
+        public String getShapeKey() {
+            return "rows";
+        }
+        public void appendGroupAndOrder(StringBuilder select) {
+            String order = this.query.generateOrderSql("m");
+            if(order != null) {
+                select.append(" ORDER BY ");
+                select.append(order);
+            }
+        }
     }
 
     // How to interpret values returned by the database in executeSingleValueExpression()
@@ -519,6 +749,10 @@ public class JdTable extends KScriptable {
             public int appendOutputExpressionsForLinkedTable(JdTable otherTable, int parameterIndexStart, String tableAlias, StringBuilder select, ParameterIndicies indicies) {
                 return parameterIndexStart;
             };
+            public String getShapeKey() {
+                // sqlExpression and the group by fields are the only variable parts of the output
+                return (groupByFields == null) ? sqlExpression : (sqlExpression + " GROUP BY " + groupByExpression);
+            }
             public void appendGroupAndOrder(StringBuilder select) {
                 if(groupByFields != null) {
                     select.append(" GROUP BY ");
@@ -562,7 +796,7 @@ public class JdTable extends KScriptable {
                     return results.next() ? kind.get(results, expectedJdbcType) : kind.valueForNoResult(expectedJdbcType);
                 }
             }
-        });
+        }, 0 /* fetch all rows */);
     }
 
     // Generate parts of the SQL & interpret the results
@@ -570,64 +804,171 @@ public class JdTable extends KScriptable {
         int appendOutputExpressions(StringBuilder select, ParameterIndicies indicies);
         int appendOutputExpressionsForLinkedTable(JdTable otherTable, int parameterIndexStart, String tableAlias, StringBuilder select, ParameterIndicies indicies);
         void appendGroupAndOrder(StringBuilder select);
+        String getShapeKey();   // for the generated SQL cache
         Object createResultObject(ResultSet results, ParameterIndicies indicies, IncludedTable[] includes) throws java.sql.SQLException;
     }
 
-    private Object buildAndExecuteQuery(JdSelect query, QueryExecution execution) throws java.sql.SQLException {
+    // If fetchSize > 0, rows are read from a cursor in batches of that size
+    private Object buildAndExecuteQuery(JdSelect query, QueryExecution execution, int fetchSize) throws java.sql.SQLException {
         return Database.withConnection((db) -> {
-            ParameterIndicies indicies = makeParameterIndicies();
-            // Build SELECT statement
-            String from = this.getDatabaseTableName() + " AS m";
-            StringBuilder select = new StringBuilder("SELECT ");
-            int parameterIndexStart = execution.appendOutputExpressions(select, indicies);
-            // Load other tables at the same time?
-            JdTable.LinkField[] includeFields = query.getIncludes();
+            GeneratedQuery generated = getGeneratedQuery(query, execution);
+            // Indicies are copied so that nested queries of the same shape don't share them
+            ParameterIndicies indicies = generated.indicies.copy();
             IncludedTable includes[] = null;
-            if(includeFields != null) {
-                includes = new IncludedTable[includeFields.length];
-                // Go through each of the fields
-                for(int includeIndex = 0; includeIndex < includeFields.length; ++includeIndex) {
-                    // Get info about included tables
-                    JdTable.LinkField field = includeFields[includeIndex];
-                    JdTable otherTable = this.namespace.getTable(field.getOtherTableName());
-                    String otherAlias = field.getNameForQueryAlias();
-                    ParameterIndicies otherIndicies = otherTable.makeParameterIndicies();
-                    includes[includeIndex] = new IncludedTable(otherTable, field, otherIndicies);
-                    // Ask all the other tables to add their fields?
-                    parameterIndexStart = execution.appendOutputExpressionsForLinkedTable(otherTable, parameterIndexStart, otherAlias, select, otherIndicies);
-                    // Adjust the FROM statement
-                    from = "(" + from + " LEFT JOIN " + otherTable.getDatabaseTableName() + " AS " + otherAlias + " ON m." + field.getDbName() + "=" + otherAlias + ".id)";
+            if(generated.includes != null) {
+                includes = new IncludedTable[generated.includes.length];
+                for(int i = 0; i < includes.length; ++i) {
+                    includes[i] = generated.includes[i].copy();
                 }
             }
-            // FROM
-            select.append(" FROM ");
-            select.append(from);
-            // WHERE
-            String where = query.generateWhereSql("m");
-            if(where != null) {
-                select.append(" WHERE ");
-                select.append(where);
+
+            // Stream rows using a cursor on a separate connection, so that writes made while
+            // iterating use the thread's connection and transactions as usual.
+            if((fetchSize > 0) && connectionIsIdle(db)) {
+                try ( Connection cursorConnection = Database.getUnboundPooledConnection() ) {
+                    cursorConnection.setAutoCommit(false);
+                    try {
+                        return executeGeneratedQuery(cursorConnection, query, execution, generated, indicies, includes, fetchSize);
+                    } finally {
+                        try {
+                            cursorConnection.rollback();    // read only
+                        } finally {
+                            cursorConnection.setAutoCommit(true);
+                        }
+                    }
+                }
             }
-            // GROUP BY, ORDER BY, etc
-            execution.appendGroupAndOrder(select);
-            // LIMIT
-            String limit = query.generateLimitAndOffsetSql();
-            if(limit != null) {
-                select.append(limit);
+            return executeGeneratedQuery(db, query, execution, generated, indicies, includes, 0);
+        });
+    }
+
+    private static Object executeGeneratedQuery(Connection db, JdSelect query, QueryExecution execution, GeneratedQuery generated,
+            ParameterIndicies indicies, IncludedTable[] includes, int fetchSize) throws java.sql.SQLException {
+        try ( PreparedStatement statement = db.prepareStatement(generated.sql) ) {
+            int parameterIndex = 1;
+            if(generated.hasWhere) {
+                parameterIndex = query.setWhereValues(statement);
+            }
+            query.setLimitAndOffsetValues(parameterIndex, statement);
+            if(fetchSize > 0) {
+                statement.setFetchSize(fetchSize);
+            }
+            try ( ResultSet results = statement.executeQuery() ) {
+                return execution.createResultObject(results, indicies, includes);
             }
+        }
+    }
 
-            // Run the query
-            Object output = null;
-            try ( PreparedStatement statement = db.prepareStatement(select.toString()) ) {
-                if(where != null) {
-                    query.setWhereValues(statement);
+    // Plugins run the same queries with different values many times, so the generated SQL is cached
+    // for each shape of query. As the SQL is identical each time, the JDBC driver's per-connection
+    // cache will use a server side prepared statement after a few executions on each pooled connection.
+    private GeneratedQuery getGeneratedQuery(JdSelect query, QueryExecution execution) {
+        String key = query.generateShapeKey(execution.getShapeKey());
+        if(key == null) {
+            return generateQuery(query, execution);  // SQL depends on the values
+        }
+        if(this.generatedQueries == null) {
+            this.generatedQueries = new LinkedHashMap<String, GeneratedQuery>(16, 0.75f, true /* access order */) {
+                protected boolean removeEldestEntry(Map.Entry<String, GeneratedQuery> eldest) {
+                    return size() > MAX_GENERATED_QUERIES;
                 }
-                try ( ResultSet results = statement.executeQuery() ) {
-                    output = execution.createResultObject(results, indicies, includes);
+            };
+        }
+        GeneratedQuery generated = this.generatedQueries.get(key);
+        if(generated != null && generated.includedTablesAreCurrent(this.namespace)) {
+            generatedQueryCacheHits.incrementAndGet();
+            return generated;
+        }
+        generatedQueryCacheMisses.incrementAndGet();
+        generated = generateQuery(query, execution);
+        this.generatedQueries.put(key, generated);
+        return generated;
+    }
+
+    private GeneratedQuery generateQuery(JdSelect query, QueryExecution execution) {
+        ParameterIndicies indicies = makeParameterIndicies();
+        // Build SELECT statement
+        String from = this.getDatabaseTableName() + " AS m";
+        StringBuilder select = new StringBuilder("SELECT ");
+        int parameterIndexStart = execution.appendOutputExpressions(select, indicies);
+        // Load other tables at the same time?
+        JdTable.LinkField[] includeFields = query.getIncludes();
+        IncludedTable includes[] = null;
+        if(includeFields != null) {
+            includes = new IncludedTable[includeFields.length];
+            // Go through each of the fields
+            for(int includeIndex = 0; includeIndex < includeFields.length; ++includeIndex) {
+                // Get info about included tables
+                JdTable.LinkField field = includeFields[includeIndex];
+                JdTable otherTable = this.namespace.getTable(field.getOtherTableName());
+                String otherAlias = field.getNameForQueryAlias();
+                ParameterIndicies otherIndicies = otherTable.makeParameterIndicies();
+                includes[includeIndex] = new IncludedTable(otherTable, field, otherIndicies);
+                // Ask all the other tables to add their fields?
+                parameterIndexStart = execution.appendOutputExpressionsForLinkedTable(otherTable, parameterIndexStart, otherAlias, select, otherIndicies);
+                // Adjust the FROM statement
+                from = "(" + from + " LEFT JOIN " + otherTable.getDatabaseTableName() + " AS " + otherAlias + " ON m." + field.getDbName() + "=" + otherAlias + ".id)";
+            }
+        }
+        // FROM
+        select.append(" FROM ");
+        select.append(from);
+        // WHERE
+        String where = query.generateWhereSql("m");
+        if(where != null) {
+            select.append(" WHERE ");
+            select.append(where);
+        }
+        // GROUP BY, ORDER BY, etc
+        execution.appendGroupAndOrder(select);
+        // LIMIT
+        String limit = query.generateLimitAndOffsetSql();
+        if(limit != null) {
+            select.append(limit);
+        }
+        return new GeneratedQuery(select.toString(), where != null, indicies, includes);
+    }
+
+    private static final class GeneratedQuery {
+        public final String sql;
+        public final boolean hasWhere;
+        public final ParameterIndicies indicies;
+        public final IncludedTable[] includes;
+
+        GeneratedQuery(String sql, boolean hasWhere, ParameterIndicies indicies, IncludedTable[] includes) {
+            this.sql = sql;
+            this.hasWhere = hasWhere;
+            this.indicies = indicies;
+            this.includes = includes;
+        }
+
+        // Dynamic tables can be redefined, which would change the columns of included tables
+        boolean includedTablesAreCurrent(JdNamespace namespace) {
+            if(this.includes != null) {
+                for(IncludedTable include : this.includes) {
+                    if(namespace.getTable(include.table.jsGet_name()) != include.table) {
+                        return false;
+                    }
                 }
             }
-            return output;
-        });
+            return true;
+        }
+    }
+
+    public static long getGeneratedQueryCacheHits() {
+        return generatedQueryCacheHits.get();
+    }
+
+    public static long getGeneratedQueryCacheMisses() {
+        return generatedQueryCacheMisses.get();
+    }
+
+    // The JDBC driver only reads rows using a cursor when autocommit is off, which needs a connection
+    // of its own. If the thread's connection is in a transaction, the rows are read from that connection
+    // so the query sees the transaction's changes, but all the rows are fetched at once (JS objects are
+    // still created as they're used).
+    private static boolean connectionIsIdle(Connection db) throws java.sql.SQLException {
+        return db.getAutoCommit() && (db.unwrap(BaseConnection.class).getTransactionState() == TransactionState.IDLE);
     }
 
     // --------------------------------------------------------------------------------------------------------------
@@ -730,27 +1071,32 @@ public class JdTable extends KScriptable {
 
         // Turn the rows into a list of JavaScript objects
         while(results.next()) {
-            Scriptable o = readJsObjectFromResultSet(results, indicies, scope, context);
-            if(o == null) {
-                throw new RuntimeException("logic error, no results when results expected");
-            }
-            // Read other objects included in this SELECT statement
-            if(includes != null) {
-                // Objects should be added to the $values object with a suffix on the field name
-                Scriptable oValues = (Scriptable)o.get("$values", o);
-                for(IncludedTable include : includes) {
-                    Scriptable i = include.table.readJsObjectFromResultSet(results, include.indicies, scope, context);
-                    if(i != null) {
-                        oValues.put(include.valueKey, oValues, i);
-                    }
-                }
-            }
-            objects.add(o);
+            objects.add(readJsObjectWithIncludesFromResultSet(results, indicies, includes, scope, context));
         }
 
         return objects;
     }
 
+    private Scriptable readJsObjectWithIncludesFromResultSet(ResultSet results, ParameterIndicies indicies, IncludedTable[] includes, Scriptable scope, Context context)
+            throws java.sql.SQLException {
+        Scriptable o = readJsObjectFromResultSet(results, indicies, scope, context);
+        if(o == null) {
+            throw new RuntimeException("logic error, no results when results expected");
+        }
+        // Read other objects included in this SELECT statement
+        if(includes != null) {
+            // Objects should be added to the $values object with a suffix on the field name
+            Scriptable oValues = (Scriptable)o.get("$values", o);
+            for(IncludedTable include : includes) {
+                Scriptable i = include.table.readJsObjectFromResultSet(results, include.indicies, scope, context);
+                if(i != null) {
+                    oValues.put(include.valueKey, oValues, i);
+                }
+            }
+        }
+        return o;
+    }
+
     private Scriptable readJsObjectFromResultSet(ResultSet results, ParameterIndicies indicies, Scriptable scope, Context context)
             throws java.sql.SQLException {
         indicies.nextRow();
@@ -784,6 +1130,10 @@ public class JdTable extends KScriptable {
             this.indicies = indicies;
             this.valueKey = field.getJsName() + "_obj";
         }
+
+        IncludedTable copy() {
+            return new IncludedTable(this.table, this.field, this.indicies.copy());
+        }
     }
 
     // --------------------------------------------------------------------------------------------------------------
@@ -799,6 +1149,14 @@ public class JdTable extends KScriptable {
             this.getPos = 0;
         }
 
+        // Copy with independent read position, sharing the indicies which are not modified after they're set
+        ParameterIndicies copy() {
+            ParameterIndicies c = new ParameterIndicies(0);
+            c.indicies = this.indicies;
+            c.setPos = this.setPos;
+            return c;
+        }
+
         public void set(int index) {
             this.indicies[this.setPos++] = index;
         }
@@ -904,6 +1262,11 @@ public class JdTable extends KScriptable {
             return jsObjectIsCompatible(object, valueTransformer);
         }
 
+        // Values stored in the $values of row objects, which may be a different type to the value set
+        public boolean rowValueIsCompatible(Object object) {
+            return jsObjectIsCompatible(object, null);
+        }
+
         public void checkNonNullJsObjectForComparison(Object object, String comparison) {
             // Subclasses should throw an exception if they don't like the value
         }
@@ -1030,6 +1393,12 @@ public class JdTable extends KScriptable {
             where.append(dbName);
         }
 
+        // Whether the SQL generated by appendWhereSql() depends on anything other than the comparison
+        // and the value being null, in which case it can't be reused for other queries.
+        public boolean whereSqlDependsOnValue() {
+            return false;
+        }
+
         public void appendWhereSqlValueMarker(StringBuilder where) {
             where.append("?");
         }
@@ -1697,6 +2066,12 @@ public class JdTable extends KScriptable {
             return object instanceof KUser;
         }
 
+        @Override
+        public boolean rowValueIsCompatible(Object object) {
+            // Row objects store the user ID
+            return (object == null) ? this.nullable : (object instanceof Number);
+        }
+
         @Override
         public void appendWhereSql(StringBuilder where, String tableAlias, String comparison, Object value, ValueTransformer valueTransformer) {
             if(!(comparison.equals("=") || comparison.equals("<>"))) {
@@ -2001,6 +2376,11 @@ public class JdTable extends KScriptable {
             return parameterIndex;  // Embeds everything in generated SQL WHERE clause
         }
 
+        @Override
+        public boolean whereSqlDependsOnValue() {
+            return true;    // and the user's current permissions
+        }
+
         public void appendWhereSql(StringBuilder where, String tableAlias, String comparison, Object value, ValueTransformer valueTransformer) {
             KUser user = (KUser)value;
             where.append(user.makeWhereClauseForPermitRead(String.format("%1$s.%2$s", tableAlias, dbName)));
@@ -0,0 +1,174 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.jsinterface.template;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.haplo.template.driver.rhinojs.JSPlatformIntegration;
+import org.haplo.template.html.Parser;
+import org.haplo.template.html.ParseException;
+import org.haplo.template.html.Template;
+
+/**
+ * Process wide cache of parsed templates, shared by all Runtimes.
+ *
+ * Parsed templates aren't modified when they're rendered, so every runtime
+ * running the same version of a plugin can use the same Template. (Debug
+ * comments are added to a copy, see HaploTemplate.)
+ *
+ * Templates are keyed by plugin name, template name, and a hash of the
+ * source, so a changed template is parsed again. When a plugin is registered
+ * again with new code, its old templates are evicted. Memory use is limited
+ * by the total length of the template sources, which is roughly proportional
+ * to the size of the parsed trees.
+ */
+public class TemplateParseCache implements JSPlatformIntegration.JSTemplateParser {
+    private static final int MAX_ENTRIES = 8192;
+    private static long maxTotalSourceLength = 16L * 1024 * 1024;   // chars
+
+    private static final LinkedHashMap<String, Entry> templates = new LinkedHashMap<String, Entry>(256, 0.75f, true /* access order */);
+    private static long totalSourceLength = 0;
+    private static long hits = 0;
+    private static long misses = 0;
+    private static long parseTime = 0;   // ns
+
+    private static class Entry {
+        final Template template;
+        final String pluginName;
+        final int sourceLength;
+
+        Entry(Template template, String pluginName, int sourceLength) {
+            this.template = template;
+            this.pluginName = pluginName;
+            this.sourceLength = sourceLength;
+        }
+    }
+
+    /**
+     * Return a parsed template for the source, parsing it if it's not in the
+     * cache. pluginName may be null for platform templates.
+     */
+    public Template parse(String source, String name, String pluginName) throws ParseException {
+        String key = makeKey(source, name, pluginName);
+        synchronized(templates) {
+            Entry entry = templates.get(key);
+            if(entry != null) {
+                hits++;
+                return entry.template;
+            }
+            misses++;
+        }
+
+        // Parse outside the lock, as with ScriptCache
+        long startTime = System.nanoTime();
+        Template template = new Parser(source, name, JSPlatformIntegration.parserConfiguration).parse();
+        long timeTaken = System.nanoTime() - startTime;
+
+        synchronized(templates) {
+            parseTime += timeTaken;
+            Entry previous = templates.put(key, new Entry(template, pluginName, source.length()));
+            if(previous != null) {
+                totalSourceLength -= previous.sourceLength;
+            }
+            totalSourceLength += source.length();
+            evictWithoutSynchronization();
+        }
+        return template;
+    }
+
+    private static void evictWithoutSynchronization() {
+        Iterator<Map.Entry<String, Entry>> i = templates.entrySet().iterator();
+        while(i.hasNext() && (templates.size() > MAX_ENTRIES || totalSourceLength > maxTotalSourceLength)) {
+            totalSourceLength -= i.next().getValue().sourceLength;
+            i.remove();
+        }
+    }
+
+    private static String makeKey(String source, String name, String pluginName) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+        byte[] hash = digest.digest(source.getBytes(StandardCharsets.UTF_8));
+        StringBuilder key = new StringBuilder(name.length() + 128);
+        for(byte b : hash) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        key.append(':').append((pluginName == null) ? "" : pluginName).append(':').append(name);
+        return key.toString();
+    }
+
+    /**
+     * Called when a plugin is registered, as any templates from the previous
+     * version won't be used again.
+     */
+    public static void evictPlugin(String pluginName) {
+        synchronized(templates) {
+            Iterator<Map.Entry<String, Entry>> i = templates.entrySet().iterator();
+            while(i.hasNext()) {
+                Entry entry = i.next().getValue();
+                if(pluginName.equals(entry.pluginName)) {
+                    totalSourceLength -= entry.sourceLength;
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    public static void setMaximumTotalSourceLength(long length) {
+        synchronized(templates) {
+            maxTotalSourceLength = length;
+            evictWithoutSynchronization();
+        }
+    }
+
+    public static void clear() {
+        synchronized(templates) {
+            templates.clear();
+            totalSourceLength = 0;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    public static int size() {
+        synchronized(templates) {
+            return templates.size();
+        }
+    }
+
+    public static long getTotalSourceLength() {
+        synchronized(templates) {
+            return totalSourceLength;
+        }
+    }
+
+    public static long getHits() {
+        synchronized(templates) {
+            return hits;
+        }
+    }
+
+    public static long getMisses() {
+        synchronized(templates) {
+            return misses;
+        }
+    }
+
+    public static double getParseTimeSeconds() {
+        synchronized(templates) {
+            return parseTime / 1.0e9;
+        }
+    }
+}
@@ -6,39 +6,80 @@
 
 package org.haplo.op;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.BufferOverflowException;
-
-import org.haplo.common.io.ByteBufferInputStream;
-import org.haplo.common.io.ByteBufferOutputStream;
 
+/**
+ * Sends objects between the application server and the worker processes.
+ *
+ * Objects are encoded with OpCodec, then sent as a sequence of length
+ * prefixed frames, each no bigger than CHUNK_SIZE, through fixed size direct
+ * buffers. Encoded objects larger than FILE_HANDOFF_SIZE, usually the text
+ * extracted from large documents, are written to a temporary file instead,
+ * and only the pathname is sent over the socket. The worker processes always
+ * run on the same server, so the receiver can read the file directly.
+ *
+ * The pathname comes from the peer, which may not have been authenticated
+ * yet, so the receiver only opens and deletes files with the spill prefix
+ * in the spill directory, which only the server's user can write to.
+ *
+ * Frame: [int payload length][byte frame type][payload]
+ */
 public class ObjectPipe implements Waker {
-    public static final int BUFFER_SIZE = (4 * 1024 * 1024);    // max size of serialised objects
+    public static final int CHUNK_SIZE = (64 * 1024);   // max size of a frame payload
+    public static final int FILE_HANDOFF_SIZE = (4 * 1024 * 1024);  // encoded objects bigger than this are sent via a file
     public static int EXTRA_TIME_ALOWED_WHEN_RECEIVING = 1000;  // extra second when data has started to be received
 
+    private static final int FRAME_HEADER_SIZE = 5;
+    private static final byte FRAME_CHUNK = 0;  // part of an object, more frames follow
+    private static final byte FRAME_LAST = 1;   // last part of an object
+    private static final byte FRAME_FILE = 2;   // payload is the pathname of a temporary file containing the object
+
+    private static final int INITIAL_MESSAGE_BUFFER_SIZE = (64 * 1024);
+
+    private static final String SPILL_DIRECTORY_NAME = "haplo-op-spill";
+    private static final String SPILL_FILE_PREFIX = "haplo-op-";
+    private static final String SPILL_FILE_SUFFIX = ".bin";
+    private static File spillDirectory;
+
     private SocketChannel channel;
     private Selector selector;
     private SelectionKey selectionKey;
-    private ByteBuffer buffer;
-    private int nextObjectPosition;
-    private boolean wakeupFlag;
+    private ByteBuffer sendBuffer;
+    private ByteBuffer receiveBuffer;
+    private MessageBuffer sendMessage;
+    private MessageBuffer receiveMessage;
+    private volatile boolean wakeupFlag;
 
     public ObjectPipe(SocketChannel channel) throws IOException {
-        this.buffer = ByteBuffer.allocate(BUFFER_SIZE); // has a backing array
-        this.buffer.position(0).limit(0);
+        this.sendBuffer = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE + CHUNK_SIZE);
+        this.receiveBuffer = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE + CHUNK_SIZE);
+        this.sendMessage = new MessageBuffer();
+        this.receiveMessage = new MessageBuffer();
         this.channel = channel;
         this.selector = Selector.open();
         channel.configureBlocking(false);
         channel.socket().setTcpNoDelay(true);
         this.selectionKey = channel.register(this.selector, SelectionKey.OP_READ);
-        this.nextObjectPosition = 0;
         this.wakeupFlag = false;
     }
 
@@ -59,34 +100,61 @@ public class ObjectPipe implements Waker {
         return this.channel.socket().isClosed();
     }
 
-    public void sendObject(Object object) throws IOException {
-        if(this.buffer.hasRemaining() && this.buffer.position() != 0) {
-            throw new RuntimeException("Buffer has data remaining from read operation - call receiveObject() first");
-        }
+    // -------------------------------------------------------------------------------------------------------
 
+    public void sendObject(Object object) throws IOException {
         this.selectionKey.interestOps(SelectionKey.OP_WRITE);
 
-        this.buffer.clear();
-        this.buffer.putInt(0);
-        int posBefore = this.buffer.position();
+        MessageBuffer message = this.sendMessage;
+        message.reset();
+        File spillFile = null;
+        boolean sent = false;
         try {
-            ObjectOutputStream out = new ObjectOutputStream(new ByteBufferOutputStream(this.buffer));
-            out.writeObject(object);
-            out.close();
-        } catch(BufferOverflowException e) {
-            throw new RuntimeException("Serialised object too big to fit over ObjectPipe");
+            DataOutputStream out = new DataOutputStream(message);
+            OpCodec.write(out, object);
+            out.flush();
+            spillFile = message.finishSpill();
+            if(spillFile != null) {
+                byte[] pathname = spillFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+                sendFrame(FRAME_FILE, pathname, 0, pathname.length);
+            } else {
+                int offset = 0;
+                do {
+                    int length = Math.min(CHUNK_SIZE, message.count - offset);
+                    sendFrame(((offset + length) < message.count) ? FRAME_CHUNK : FRAME_LAST,
+                            message.bytes, offset, length);
+                    offset += length;
+                } while(offset < message.count);
+            }
+            sent = true;
+        } finally {
+            // Once sent, the receiver is responsible for deleting the spill file
+            if(!sent) {
+                message.abandon();
+                if(spillFile != null) {
+                    spillFile.delete();
+                }
+            }
+            message.reset();
         }
-        this.buffer.putInt(0, this.buffer.position());
-        this.buffer.limit(this.buffer.position());
-        this.buffer.position(0);
-        while(this.buffer.hasRemaining()) {
-            this.selector.select(4096);
-            this.selector.selectedKeys().clear();
-            this.channel.write(this.buffer);
+    }
+
+    private void sendFrame(byte frameType, byte[] bytes, int offset, int length) throws IOException {
+        this.sendBuffer.clear();
+        this.sendBuffer.putInt(length);
+        this.sendBuffer.put(frameType);
+        this.sendBuffer.put(bytes, offset, length);
+        this.sendBuffer.flip();
+        while(this.sendBuffer.hasRemaining()) {
+            if(this.channel.write(this.sendBuffer) == 0) {
+                this.selector.select(4096);
+                this.selector.selectedKeys().clear();
+            }
         }
-        this.buffer.position(0).limit(0);
     }
 
+    // -------------------------------------------------------------------------------------------------------
+
     public Object receiveObject(long timeout) throws IOException, ClassNotFoundException {
         long timeNow = System.currentTimeMillis();
         long requiredBy = timeNow + timeout;
@@ -94,40 +162,15 @@ public class ObjectPipe implements Waker {
 
         this.selectionKey.interestOps(SelectionKey.OP_READ);
 
-        if(nextObjectPosition == 0) {
-            // If there's nothing waiting in the buffer to be read (which could be the first bit of the next object
-            // left over from a previous call) then clear it, so there's room to read data.
-            // If nextObjectPosition == 0 then there can't be anything in the buffer because otherwise a timeout
-            // would have been thrown on the previous call.
-            this.buffer.clear();
-        }
-
         while(true) {
-            // See if there's anything ready to return -- before the select() in case we have the
-            // entire next object in the buffer.
-            if(this.buffer.position() >= (nextObjectPosition + 4)) {
-                int currentFrameLength = this.buffer.getInt(nextObjectPosition);
-                int currentReceivePosition = this.buffer.position();
-                if((nextObjectPosition + currentFrameLength) <= currentReceivePosition) {
-                    // Deserialise
-                    this.buffer.position(nextObjectPosition);
-                    this.buffer.getInt();
-                    ObjectInputStream in = new ObjectInputStream(new ByteBufferInputStream(this.buffer));
-                    Object r = in.readObject();
-                    if(currentReceivePosition == (nextObjectPosition + currentFrameLength)) {
-                        // Nothing left - so reset for possible write operation
-                        nextObjectPosition = 0;
-                        this.buffer.position(0).limit(0);
-                    } else {
-                        // Setup for next read
-                        nextObjectPosition = currentFrameLength;
-                        this.buffer.position(currentReceivePosition);
-                    }
-                    return r;
-                }
+            // See if there's anything ready to return -- before the select() in case the
+            // entire next object was received with the previous one.
+            Object r = takeReceivedObject();
+            if(r != null) {
+                return r;
             }
 
-            int bytesRead = this.channel.read(this.buffer);
+            int bytesRead = this.channel.read(this.receiveBuffer);
             if(bytesRead == -1) {
                 throw new IOException("ObjectPipe closed");
             } else if(bytesRead == 0) {
@@ -138,8 +181,8 @@ public class ObjectPipe implements Waker {
                 }
 
                 // If no bytes were read, check to see if the read has timed out
-                if((bytesRead == 0) && (timeNow > requiredBy)) {
-                    if(this.buffer.position() != 0) {
+                if(timeNow > requiredBy) {
+                    if(this.receiveBuffer.position() != 0 || this.receiveMessage.count != 0) {
                         if(allowedExtraTime) {
                             throw new IOException("Timed out read operation in middle of receiving data.");
                         } else {
@@ -164,4 +207,174 @@ public class ObjectPipe implements Waker {
             timeNow = System.currentTimeMillis();
         }
     }
+
+    // Consume all complete frames in the receive buffer, returning an object if the last frame was received.
+    // Partial frames are left in the buffer, and partial objects in receiveMessage, for the next call.
+    private Object takeReceivedObject() throws IOException, ClassNotFoundException {
+        ByteBuffer buffer = this.receiveBuffer;
+        buffer.flip();
+        try {
+            while(buffer.remaining() >= FRAME_HEADER_SIZE) {
+                int frameStart = buffer.position();
+                int length = buffer.getInt(frameStart);
+                if(length < 0 || length > CHUNK_SIZE) {
+                    throw new IOException("Bad frame length received by ObjectPipe");
+                }
+                if(buffer.remaining() < (FRAME_HEADER_SIZE + length)) {
+                    break;  // wait for rest of frame
+                }
+                buffer.position(frameStart + 4);
+                byte frameType = buffer.get();
+                switch(frameType) {
+                    case FRAME_CHUNK:
+                        this.receiveMessage.append(buffer, length);
+                        break;
+                    case FRAME_LAST:
+                        this.receiveMessage.append(buffer, length);
+                        try {
+                            return OpCodec.read(new DataInputStream(new ByteArrayInputStream(
+                                    this.receiveMessage.bytes, 0, this.receiveMessage.count)));
+                        } finally {
+                            this.receiveMessage.reset();
+                        }
+                    case FRAME_FILE:
+                        byte[] pathname = new byte[length];
+                        buffer.get(pathname);
+                        return readObjectFromFile(checkedSpillFile(new String(pathname, StandardCharsets.UTF_8)));
+                    default:
+                        throw new IOException("Unknown frame type received by ObjectPipe: " + frameType);
+                }
+            }
+            return null;
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    // Only files created by MessageBuffer can be read and deleted by the receiver
+    private static File checkedSpillFile(String pathname) throws IOException {
+        File file = new File(pathname).getCanonicalFile();
+        String name = file.getName();
+        if(!getSpillDirectory().equals(file.getParentFile()) ||
+                !name.startsWith(SPILL_FILE_PREFIX) || !name.endsWith(SPILL_FILE_SUFFIX) ||
+                !file.isFile()) {
+            throw new IOException("ObjectPipe received a file frame which isn't a spill file");
+        }
+        return file;
+    }
+
+    // Canonical pathname of the directory for spill files, created readable only by this user
+    private static synchronized File getSpillDirectory() throws IOException {
+        if(spillDirectory == null) {
+            File directory = new File(System.getProperty("java.io.tmpdir"), SPILL_DIRECTORY_NAME);
+            if(!directory.isDirectory()) {
+                try {
+                    Files.createDirectory(directory.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                } catch(FileAlreadyExistsException e) {
+                    // Created by another process
+                }
+            }
+            // Another user could have created the directory first in a shared temporary directory
+            if(!directory.isDirectory() ||
+                    !System.getProperty("user.name").equals(Files.getOwner(directory.toPath(), LinkOption.NOFOLLOW_LINKS).getName())) {
+                throw new IOException("ObjectPipe spill directory " + directory + " isn't a directory owned by this user");
+            }
+            spillDirectory = directory.getCanonicalFile();
+        }
+        return spillDirectory;
+    }
+
+    private static Object readObjectFromFile(File file) throws IOException, ClassNotFoundException {
+        try {
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), CHUNK_SIZE))) {
+                return OpCodec.read(in);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------
+
+    // Growable buffer for encoded objects, which switches to writing a temporary file when the
+    // encoded object gets bigger than FILE_HANDOFF_SIZE. Kept for the life of the pipe to avoid
+    // allocating buffers for every object.
+    private static class MessageBuffer extends OutputStream {
+        byte[] bytes = new byte[INITIAL_MESSAGE_BUFFER_SIZE];
+        int count = 0;
+        private File spillFile;
+        private OutputStream spill;
+
+        public void write(int b) throws IOException {
+            if(this.spill == null && this.count < this.bytes.length) {
+                this.bytes[this.count++] = (byte)b;
+            } else {
+                write(new byte[]{(byte)b}, 0, 1);
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(this.spill == null && (this.count + len) > FILE_HANDOFF_SIZE) {
+                // Too big to sensibly send through the socket, switch to a file
+                this.spillFile = File.createTempFile(SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX, getSpillDirectory());
+                this.spill = new BufferedOutputStream(new FileOutputStream(this.spillFile), CHUNK_SIZE);
+                this.spill.write(this.bytes, 0, this.count);
+                this.count = 0;
+            }
+            if(this.spill != null) {
+                this.spill.write(b, off, len);
+            } else {
+                ensureCapacity(this.count + len);
+                System.arraycopy(b, off, this.bytes, this.count, len);
+                this.count += len;
+            }
+        }
+
+        void append(ByteBuffer buffer, int length) throws IOException {
+            if((this.count + length) > FILE_HANDOFF_SIZE) {
+                throw new IOException("Object received by ObjectPipe is too large");
+            }
+            ensureCapacity(this.count + length);
+            buffer.get(this.bytes, this.count, length);
+            this.count += length;
+        }
+
+        private void ensureCapacity(int required) {
+            if(required > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, Math.min(FILE_HANDOFF_SIZE, Math.max(required, this.bytes.length * 2)));
+            }
+        }
+
+        // Returns the file containing the encoded object, if it was too big to be kept in memory.
+        // The receiver is responsible for deleting the file.
+        File finishSpill() throws IOException {
+            if(this.spill == null) {
+                return null;
+            }
+            this.spill.close();
+            this.spill = null;
+            File file = this.spillFile;
+            this.spillFile = null;
+            return file;
+        }
+
+        void abandon() {
+            if(this.spill != null) {
+                try { this.spill.close(); } catch(IOException e) { /* ignore */ }
+                this.spill = null;
+            }
+            if(this.spillFile != null) {
+                this.spillFile.delete();
+                this.spillFile = null;
+            }
+        }
+
+        void reset() {
+            this.count = 0;
+            // Don't keep hold of the memory used by unusually large objects
+            if(this.bytes.length > (1024 * 1024)) {
+                this.bytes = new byte[INITIAL_MESSAGE_BUFFER_SIZE];
+            }
+        }
+    }
 }
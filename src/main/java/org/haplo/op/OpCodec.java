@@ -0,0 +1,198 @@
+/* Haplo Platform                                     http://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2016    http://www.haplo-services.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.op;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of the messages sent over an ObjectPipe.
+ *
+ * The protocol messages are written field by field. Operations which
+ * implement Operation.BinaryEncoded write their own fields, and all other
+ * objects fall back to Java serialisation.
+ */
+public class OpCodec {
+    private static final byte TYPE_SERIALISED = 0;
+    private static final byte TYPE_AUTHENTICATE = 1;
+    private static final byte TYPE_AUTHENTICATE_ACCEPTED = 2;
+    private static final byte TYPE_DO_OPERATION = 3;
+    private static final byte TYPE_ACKNOWLEDGE_OPERATION = 4;
+    private static final byte TYPE_DONE_OPERATION = 5;
+
+    private static final byte OPERATION_NULL = 0;
+    private static final byte OPERATION_BINARY = 1;
+    private static final byte OPERATION_SERIALISED = 2;
+
+    public static void write(DataOutput out, Object object) throws IOException {
+        if(object instanceof OpServerMessage.Authenticate) {
+            OpServerMessage.Authenticate m = (OpServerMessage.Authenticate)object;
+            out.writeByte(TYPE_AUTHENTICATE);
+            out.writeInt(m.workerNumber);
+            writeString(out, m.authenticationToken);
+        } else if(object instanceof OpServerMessage.AuthenticateAccepted) {
+            out.writeByte(TYPE_AUTHENTICATE_ACCEPTED);
+            out.writeBoolean(((OpServerMessage.AuthenticateAccepted)object).accepted);
+        } else if(object instanceof OpServerMessage.DoOperation) {
+            OpServerMessage.DoOperation m = (OpServerMessage.DoOperation)object;
+            out.writeByte(TYPE_DO_OPERATION);
+            out.writeInt(m.requestId);
+            writeOperation(out, m.operation);
+        } else if(object instanceof OpServerMessage.AcknowledgeOperation) {
+            OpServerMessage.AcknowledgeOperation m = (OpServerMessage.AcknowledgeOperation)object;
+            out.writeByte(TYPE_ACKNOWLEDGE_OPERATION);
+            out.writeInt(m.requestId);
+            out.writeBoolean(m.ok);
+        } else if(object instanceof OpServerMessage.DoneOperation) {
+            OpServerMessage.DoneOperation m = (OpServerMessage.DoneOperation)object;
+            out.writeByte(TYPE_DONE_OPERATION);
+            out.writeInt(m.requestId);
+            writeOperation(out, m.resultOperation);
+            writeSerialised(out, m.resultException);
+            out.writeBoolean(m.willExit);
+        } else {
+            out.writeByte(TYPE_SERIALISED);
+            writeSerialised(out, object);
+        }
+    }
+
+    public static Object read(DataInput in) throws IOException, ClassNotFoundException {
+        byte type = in.readByte();
+        switch(type) {
+            case TYPE_AUTHENTICATE:
+                OpServerMessage.Authenticate authenticate = new OpServerMessage.Authenticate();
+                authenticate.workerNumber = in.readInt();
+                authenticate.authenticationToken = readString(in);
+                return authenticate;
+            case TYPE_AUTHENTICATE_ACCEPTED:
+                OpServerMessage.AuthenticateAccepted authenticateAccepted = new OpServerMessage.AuthenticateAccepted();
+                authenticateAccepted.accepted = in.readBoolean();
+                return authenticateAccepted;
+            case TYPE_DO_OPERATION:
+                OpServerMessage.DoOperation doOperation = new OpServerMessage.DoOperation();
+                doOperation.requestId = in.readInt();
+                doOperation.operation = readOperation(in);
+                return doOperation;
+            case TYPE_ACKNOWLEDGE_OPERATION:
+                OpServerMessage.AcknowledgeOperation acknowledgeOperation = new OpServerMessage.AcknowledgeOperation();
+                acknowledgeOperation.requestId = in.readInt();
+                acknowledgeOperation.ok = in.readBoolean();
+                return acknowledgeOperation;
+            case TYPE_DONE_OPERATION:
+                OpServerMessage.DoneOperation doneOperation = new OpServerMessage.DoneOperation();
+                doneOperation.requestId = in.readInt();
+                doneOperation.resultOperation = readOperation(in);
+                doneOperation.resultException = (Exception)readSerialised(in);
+                doneOperation.willExit = in.readBoolean();
+                return doneOperation;
+            case TYPE_SERIALISED:
+                return readSerialised(in);
+            default:
+                throw new IOException("Unknown message type in ObjectPipe: " + type);
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------
+
+    private static void writeOperation(DataOutput out, Operation operation) throws IOException {
+        if(operation == null) {
+            out.writeByte(OPERATION_NULL);
+        } else if(operation instanceof Operation.BinaryEncoded) {
+            out.writeByte(OPERATION_BINARY);
+            writeString(out, operation.getClass().getName());
+            ((Operation.BinaryEncoded)operation).writeFields(out);
+        } else {
+            out.writeByte(OPERATION_SERIALISED);
+            writeSerialised(out, operation);
+        }
+    }
+
+    private static Operation readOperation(DataInput in) throws IOException, ClassNotFoundException {
+        byte encoding = in.readByte();
+        switch(encoding) {
+            case OPERATION_NULL:
+                return null;
+            case OPERATION_BINARY:
+                // Don't initialise the class until it's known to be an operation
+                Class<?> operationClass = Class.forName(readString(in), false, OpCodec.class.getClassLoader());
+                if(!Operation.BinaryEncoded.class.isAssignableFrom(operationClass)) {
+                    throw new IOException("Operation class does not implement BinaryEncoded: " + operationClass.getName());
+                }
+                Operation operation;
+                try {
+                    Constructor<?> constructor = operationClass.getDeclaredConstructor();
+                    constructor.setAccessible(true);
+                    operation = (Operation)constructor.newInstance();
+                } catch(Exception e) {
+                    throw new IOException("Could not create " + operationClass.getName() + " with no-argument constructor", e);
+                }
+                ((Operation.BinaryEncoded)operation).readFields(in);
+                return operation;
+            case OPERATION_SERIALISED:
+                return (Operation)readSerialised(in);
+            default:
+                throw new IOException("Unknown operation encoding in ObjectPipe: " + encoding);
+        }
+    }
+
+    private static void writeSerialised(DataOutput out, Object object) throws IOException {
+        if(object == null) {
+            out.writeInt(-1);
+            return;
+        }
+        // Serialised separately so ObjectInputStream can't read ahead into the following fields
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+        objectOut.writeObject(object);
+        objectOut.close();
+        out.writeInt(bytes.size());
+        out.write(bytes.toByteArray());
+    }
+
+    private static Object readSerialised(DataInput in) throws IOException, ClassNotFoundException {
+        int length = in.readInt();
+        if(length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        return objectIn.readObject();
+    }
+
+    // -------------------------------------------------------------------------------------------------------
+
+    /**
+     * Write a string which may be null, and may be longer than writeUTF() allows.
+     */
+    public static void writeString(DataOutput out, String string) throws IOException {
+        if(string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if(length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -14,6 +14,8 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.SelectionKey;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -24,7 +26,7 @@ public class OpDispatchServer extends Thread {
     // able to respond very quickly if it's healthy.
     static final public int MAX_TIME_TO_ACKNOWLEDGE_OPERATION = 500;
 
-    // How long to wait for an operation to execute on the remote worker process.
+    // How long to wait for an operation to execute on the remote worker process, timed from the acknowledgement.
     static final public int MAX_TIME_TO_WAIT_FOR_OPERATION = 60 * 1000;
 
     private int port;
@@ -78,16 +80,41 @@ public class OpDispatchServer extends Thread {
         }
     }
 
+    // --------------------------------------------------------------------------------
+    // Operation sent to a worker process
+    static private class InFlight {
+        final int requestId;
+        final Operation operation;
+        final long sentTime;
+        long startTime;
+        boolean acknowledged;
+
+        InFlight(int requestId, Operation operation) {
+            this.requestId = requestId;
+            this.operation = operation;
+            this.sentTime = System.currentTimeMillis();
+        }
+
+        long deadline() {
+            return this.acknowledged ? (this.startTime + MAX_TIME_TO_WAIT_FOR_OPERATION) :
+                    (this.sentTime + MAX_TIME_TO_ACKNOWLEDGE_OPERATION);
+        }
+    }
+
     // --------------------------------------------------------------------------------
     static private class Connection extends Thread {
         private OpDispatcher dispatcher;
         private OpDispatcher.Worker worker;
         private ObjectPipe pipe;
+        private LinkedHashMap<Integer, InFlight> inFlight;
+        private int nextRequestId;
         private Logger logger;
 
         public Connection(SocketChannel socketChannel, OpDispatcher dispatcher) throws IOException {
             this.pipe = new ObjectPipe(socketChannel);
             this.dispatcher = dispatcher;
+            this.inFlight = new LinkedHashMap<Integer, InFlight>();
+            this.nextRequestId = 1;
             this.logger = Logger.getLogger("org.haplo.op.server");
         }
 
@@ -136,77 +163,127 @@ public class OpDispatchServer extends Thread {
             authAccepted.accepted = true;
             this.pipe.sendObject(authAccepted);
 
-            while(true) {
-                Operation operation = this.worker.getNextWork();
-
-                if(operation == null) {
-                    // Wait at least 20 seconds for work. Use the worker number to stagger the checks a little.
-                    // Use the ObjectPipe for waking so that disconnections will wake up the process and throw an exception.
-                    Object nothing = this.pipe.receiveObject((10 + auth.workerNumber) * 2000);
-                    if(nothing != null) {
-                        this.logger.error("Worker process didn't follow protocol -- unexpected object when waiting");
-                        throw new RuntimeException("Worker process didn't follow protocol");
-                    }
-                } else {
-                    this.logger.info("Dispatch op: " + operation);
+            try {
+                dispatchOperations(auth.workerNumber);
+            } catch(Exception e) {
+                // Anything the worker is running can't be completed now
+                if(!this.inFlight.isEmpty()) {
+                    this.logger.error("Exception when communicating with worker process", e);
+                    failWorker(e, null);
+                    return;
+                }
+                throw e;
+            }
+        }
 
-                    boolean operationSentOk = false;
-                    try {
+        // Send operations to the worker process as soon as it has capacity, without waiting for the previous
+        // operations to complete. Replies are matched to operations by request ID.
+        private void dispatchOperations(int workerNumber) throws IOException, ClassNotFoundException {
+            boolean workerWillExit = false;
+            while(true) {
+                if(!workerWillExit) {
+                    Operation operation;
+                    while((operation = this.worker.getNextWork()) != null) {
+                        this.logger.info("Dispatch op: " + operation);
+                        InFlight sent = new InFlight(this.nextRequestId++, operation);
+                        this.inFlight.put(sent.requestId, sent);
                         OpServerMessage.DoOperation doOperation = new OpServerMessage.DoOperation();
+                        doOperation.requestId = sent.requestId;
                         doOperation.operation = operation;
                         this.pipe.sendObject(doOperation);
+                    }
+                } else if(this.inFlight.isEmpty()) {
+                    this.logger.info("Worker process intends to exit now, finishing.");
+                    return;
+                }
+                if(this.inFlight.isEmpty() && !workerWillExit && this.worker.stopIfNotNeeded()) {
+                    this.logger.info("Worker process not needed, disconnecting.");
+                    return;
+                }
 
-                        // Worker process must respond reasonably quickly to say it's got the operation and intends
-                        // to start processing it.
-                        OpServerMessage.AcknowledgeOperation acknowledgeOperation
-                                = (OpServerMessage.AcknowledgeOperation)this.pipe.receiveObject(MAX_TIME_TO_ACKNOWLEDGE_OPERATION);
-                        if(acknowledgeOperation != null) {
-                            operationSentOk = acknowledgeOperation.ok;
-                        } else {
-                            this.logger.error("Didn't receive ack message from worker process within limit of " + MAX_TIME_TO_ACKNOWLEDGE_OPERATION + "ms");
-                            // Don't throw or return: cleanup happens next
+                // Wait for a reply until the next deadline. When idle, wait at least 20 seconds for work, using
+                // the worker number to stagger the checks a little. Use the ObjectPipe for waking so that
+                // disconnections will wake up the process and throw an exception.
+                long timeNow = System.currentTimeMillis();
+                long waitTime = (10 + workerNumber) * 2000;
+                for(InFlight f : this.inFlight.values()) {
+                    waitTime = Math.min(waitTime, f.deadline() - timeNow);
+                }
+                Object message = this.pipe.receiveObject(Math.max(1, waitTime));
+
+                if(message == null) {
+                    // Woken for new work, or a deadline may have passed
+                    timeNow = System.currentTimeMillis();
+                    for(InFlight f : this.inFlight.values()) {
+                        if(timeNow > f.deadline()) {
+                            if(f.acknowledged) {
+                                this.logger.error("Timed out waiting for the operation done response from worker");
+                            } else {
+                                this.logger.error("Didn't receive ack message from worker process within limit of " + MAX_TIME_TO_ACKNOWLEDGE_OPERATION + "ms");
+                            }
+                            failWorker(null, f);
+                            return;
                         }
-                    } catch(Exception e) {
-                        this.logger.error("Exception when sending message to worker process", e);
-                        // Don't throw or return: cleanup happens next
                     }
 
-                    // If it can't be verified that the worker process got the operation, give up on the worker
-                    // and requeue the operation.
-                    if(!operationSentOk) {
-                        this.worker.returnWork(operation, OpDispatcher.WorkerState.FAILED);
-                        return;
+                } else if(message instanceof OpServerMessage.AcknowledgeOperation) {
+                    // Worker process must respond reasonably quickly to say it's got the operation and intends
+                    // to start processing it.
+                    OpServerMessage.AcknowledgeOperation acknowledgeOperation = (OpServerMessage.AcknowledgeOperation)message;
+                    InFlight f = this.inFlight.get(acknowledgeOperation.requestId);
+                    if(f == null || f.acknowledged) {
+                        throw new RuntimeException("Worker process didn't follow protocol -- unexpected acknowledgement");
                     }
-
-                    // Wait for the operation to complete, sending a timeout exception & marking the worker as failed
-                    // if it takes too long or the worker disconnects.
-                    OpServerMessage.DoneOperation doneOperation = null;
-                    Exception operationException = null;
-                    try {
-                        doneOperation = (OpServerMessage.DoneOperation)this.pipe.receiveObject(MAX_TIME_TO_WAIT_FOR_OPERATION);
-                    } catch(Exception e) {
-                        this.logger.error("Exception when waiting for operation reply", e);
-                        operationException = e;
+                    if(!acknowledgeOperation.ok) {
+                        // If it can't be verified that the worker process got the operation, give up on the worker
+                        // and requeue the operation.
+                        failWorker(null, null);
+                        return;
                     }
-
-                    if(doneOperation == null) {
-                        this.logger.error("Timed out waiting for the operation done response from worker");
-                        operationException = new OperationTimeoutException(operation, "Operation timed out");
+                    f.acknowledged = true;
+                    f.startTime = System.currentTimeMillis();
+
+                } else if(message instanceof OpServerMessage.DoneOperation) {
+                    OpServerMessage.DoneOperation doneOperation = (OpServerMessage.DoneOperation)message;
+                    InFlight f = this.inFlight.remove(doneOperation.requestId);
+                    if(f == null || !f.acknowledged) {
+                        throw new RuntimeException("Worker process didn't follow protocol -- unexpected reply");
                     }
-                    if(operationException != null) {
-                        this.worker.finishedWork(operation, null, operationException, OpDispatcher.WorkerState.FAILED);
-                        return;
+                    this.logger.info("Got reply for: " + f.operation);
+                    // Once the worker process has signalled its intent to exit, send it no more work and
+                    // disconnect when all its operations have finished.
+                    if(doneOperation.willExit && !workerWillExit) {
+                        workerWillExit = true;
+                        this.worker.willExit();
                     }
+                    boolean disconnect = workerWillExit && this.inFlight.isEmpty();
+                    this.worker.finishedWork(f.operation, doneOperation.resultOperation, doneOperation.resultException,
+                            disconnect ? OpDispatcher.WorkerState.DISCONNECTING : OpDispatcher.WorkerState.OK);
 
-                    this.logger.info("Got reply for: " + operation);
-                    this.worker.finishedWork(operation, doneOperation.resultOperation, doneOperation.resultException,
-                            doneOperation.willExit ? OpDispatcher.WorkerState.DISCONNECTING : OpDispatcher.WorkerState.OK);
+                } else {
+                    this.logger.error("Worker process didn't follow protocol -- unexpected object when waiting");
+                    throw new RuntimeException("Worker process didn't follow protocol");
+                }
+            }
+        }
 
-                    // If the worker has signalled its intent to exit, exit now.
-                    if(doneOperation.willExit) {
-                        this.logger.info("Worker process intends to exit now, finishing.");
-                        return;
-                    }
+        // Give up on the worker. Operations it hadn't acknowledged are requeued. If the worker is being given up
+        // because of one operation, the other operations it was running are requeued too, as they're innocent
+        // victims of the failure. If communication with the worker failed, it's not known which operation caused
+        // it, so acknowledged operations fail with an exception rather than risk failing another worker.
+        // The worker is marked as failed with the last operation, so it's not disconnected with outstanding work.
+        private void failWorker(Exception exception, InFlight timedOut) {
+            ArrayList<InFlight> outstanding = new ArrayList<InFlight>(this.inFlight.values());
+            this.inFlight.clear();
+            for(int i = 0; i < outstanding.size(); ++i) {
+                InFlight f = outstanding.get(i);
+                OpDispatcher.WorkerState workerState = (i == (outstanding.size() - 1)) ? OpDispatcher.WorkerState.FAILED : OpDispatcher.WorkerState.OK;
+                if(f == timedOut) {
+                    this.worker.finishedWork(f.operation, null, new OperationTimeoutException(f.operation, "Operation timed out"), workerState);
+                } else if(!f.acknowledged || (exception == null)) {
+                    this.worker.returnWork(f.operation, workerState);
+                } else {
+                    this.worker.finishedWork(f.operation, null, exception, workerState);
                 }
             }
         }
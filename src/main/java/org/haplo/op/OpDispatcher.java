@@ -6,26 +6,79 @@
 
 package org.haplo.op;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.lang.Class;
+import java.util.HashMap;
+import java.util.List;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Histogram;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Queues operations and hands them out to workers.
+ *
+ * Each application has a queue for each operation priority. For every
+ * priority, the applications with queued operations take turns, so an
+ * application which queues lots of operations can't hold up the others.
+ * Applications are removed from the turn order while they're at the per
+ * application limit, and put back when one of their operations finishes, so
+ * choosing the next operation doesn't depend on the length of the queue or
+ * the number of workers.
+ *
+ * Interactive operations, such as thumbnails, are always dispatched before
+ * bulk operations, and bulk operations are not allowed to use every slot on
+ * the workers, so there's always somewhere to run an interactive operation.
+ *
+ * Workers can run more than one operation at once.
+ *
+ * The number of workers given operations scales between the policy's minimum
+ * and maximum with the length of the queue and how long operations wait. An
+ * extra spare worker process is kept running without work, so it's warmed up
+ * and ready to take over when a worker restarts to free memory, or when the
+ * pool grows.
+ */
 public class OpDispatcher {
+    private static final double QUEUE_WAIT_SMOOTHING = 0.1;
+
     private Policy policy;
     private OpWorkerSupervisor workerSupervisor;
     private Worker[] workers;
-    private ArrayList<QueueEntry> queue;
+    private HashMap<Long, ApplicationState> applications;
+    private PriorityClass[] priorities;
+    private int queueLength;
+    private int targetWorkers;          // number of workers which are given operations
+    private boolean[] processWanted;    // which worker processes should be running
+    private long lastTimeFullyUsed;
+    private double smoothedQueueWait;   // ms
+    private Histogram operationTimeMetric;
+    private Histogram queueTimeMetric;
     private Logger logger;
 
     public OpDispatcher(Policy policy) {
         this.policy = policy;
         this.workerSupervisor = null;
-        this.workers = new Worker[this.policy.numberOfWorkers];
+        this.workers = new Worker[this.policy.getNumberOfWorkerSlots()];
         for(int l = 0; l < this.workers.length; ++l) {
             this.workers[l] = new Worker(this, l);
         }
-        this.queue = new ArrayList<QueueEntry>(16 /* initial array size */);
+        this.applications = new HashMap<Long, ApplicationState>();
+        Operation.Priority[] priorityValues = Operation.Priority.values();
+        this.priorities = new PriorityClass[priorityValues.length];
+        for(int p = 0; p < priorityValues.length; ++p) {
+            this.priorities[p] = new PriorityClass();
+        }
+        this.queueLength = 0;
+        this.targetWorkers = this.policy.minWorkers;
+        // Supervisor starts the initial processes
+        this.processWanted = new boolean[this.workers.length];
+        for(int l = 0; l < this.policy.getInitialNumberOfProcesses(); ++l) {
+            this.processWanted[l] = true;
+        }
+        this.lastTimeFullyUsed = System.currentTimeMillis();
+        this.smoothedQueueWait = 0;
         this.logger = Logger.getLogger("org.haplo.op.dispatcher");
     }
 
@@ -33,6 +86,42 @@ public class OpDispatcher {
         return this.policy;
     }
 
+    /**
+     * Register metrics with prometheus
+     */
+    public void collectMetrics() {
+        this.operationTimeMetric = Histogram.build().
+            name("haplo_operation_seconds").
+            help("Time taken to run operations on worker processes.").
+            labelNames("operation", "worker").
+            buckets(0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60).
+            register();
+        this.queueTimeMetric = Histogram.build().
+            name("haplo_operation_queue_seconds").
+            help("Time operations waited before being sent to a worker process.").
+            labelNames("priority").
+            buckets(0.001, 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30).
+            register();
+        final OpDispatcher dispatcher = this;
+        new Collector() {
+            public List<MetricFamilySamples> collect() {
+                int active, connected = 0, queued;
+                synchronized(dispatcher) {
+                    active = dispatcher.targetWorkers;
+                    for(Worker worker : dispatcher.workers) {
+                        if(worker.connected) { connected++; }
+                    }
+                    queued = dispatcher.queueLength;
+                }
+                List<MetricFamilySamples> samples = new ArrayList<MetricFamilySamples>();
+                samples.add(new GaugeMetricFamily("haplo_operation_workers_active", "Worker processes which are given operations.", active));
+                samples.add(new GaugeMetricFamily("haplo_operation_workers_connected", "Worker processes connected, including spares.", connected));
+                samples.add(new GaugeMetricFamily("haplo_operations_queued", "Operations waiting for a worker process.", queued));
+                return samples;
+            }
+        }.register();
+    }
+
     public void useSupervisor(OpWorkerSupervisor workerSupervisor) {
         this.workerSupervisor = workerSupervisor;
         this.workerSupervisor.startSupervision(this.policy);
@@ -43,18 +132,26 @@ public class OpDispatcher {
         QueueEntry entry = new QueueEntry();
         entry.operation = operation;
         entry.applicationId = applicationId;
+        entry.priority = operation.getPriority();
         entry.notifyTarget = notifyTarget;
 
         synchronized(this) {
-            if(queue.size() >= this.policy.maxQueueLength) {
+            if(this.queueLength >= this.policy.maxTotalQueueLength) {
                 this.logger.error("OpDispatcher queue length exceeded");
                 throw new RuntimeException("Queue length exceeded");
             }
+            ApplicationState application = this.applications.get(applicationId);
+            if(application != null && application.queued >= this.policy.maxQueueLength) {
+                this.logger.error("OpDispatcher queue length exceeded for app " + applicationId);
+                throw new RuntimeException("Queue length exceeded");
+            }
 
+            entry.queuedTime = System.currentTimeMillis();
             addQueueEntryWithoutSynchronization(entry, QueueAdditionAction.QUEUE_NORMAL);
+            adjustWorkerPoolWithoutSynchronization();
         }
 
-        this.logger.info("Queued for app " + applicationId + ": " + operation);
+        this.logger.info("Queued for app " + applicationId + " (" + entry.priority + "): " + operation);
     }
 
     // -----------------------------------------------------------------------------------------
@@ -105,35 +202,25 @@ public class OpDispatcher {
 
         synchronized(this) {
             checkWorkerWithoutSynchronization(worker, null);
-            if(worker.currentWork != null) {
-                throw new RuntimeException("Logic error: Already working");
-            }
 
-            for(int i = 0; i < this.queue.size(); ++i) {
-                QueueEntry possible = this.queue.get(i);
-
-                int countForApp = 0;
-                for(int w = 0; w < this.workers.length; ++w) {
-                    Worker ww = this.workers[w];
-                    if(ww.currentWork != null && ww.currentWork.applicationId == possible.applicationId) {
-                        countForApp++;
+            if(worker.currentWork.size() < this.policy.operationsPerWorker && isWorkerActiveWithoutSynchronization(worker)) {
+                QueueEntry entry = takeNextQueueEntryWithoutSynchronization();
+                if(entry != null) {
+                    worker.currentWork.add(entry);
+                    nextWork = entry.operation;
+                    entry.startTime = System.currentTimeMillis();
+                    long queueWait = entry.startTime - entry.queuedTime;
+                    this.smoothedQueueWait += (queueWait - this.smoothedQueueWait) * QUEUE_WAIT_SMOOTHING;
+                    if(this.queueTimeMetric != null) {
+                        this.queueTimeMetric.labels(entry.priority.name().toLowerCase()).observe(queueWait / 1000.0);
+                    }
+                    if(freeActiveSlotsWithoutSynchronization() == 0) {
+                        this.lastTimeFullyUsed = entry.startTime;
                     }
-                }
 
-                // Choose this operation if the max ops per application policy wouldn't be exceeded
-                if(countForApp < this.policy.maxOpsPerApplication) {
-                    this.queue.remove(i);
-                    worker.currentWork = possible;
-                    nextWork = possible.operation;
-                    possible.startTime = System.currentTimeMillis();
-
-                    // Make sure the wake flag isn't set for this worker *in the synchronized block*,
-                    // otherwise if the worker doesn't have to wait, the wait flag will be set when
-                    // waiting for the ack from the worker. This would cause it to be timed out and
-                    // the worker failed.
+                    // Unset the wake flag *in the synchronized block*, as this worker has already
+                    // picked up the work it was woken for.
                     worker.unsetWakeFlag();
-
-                    break;
                 }
             }
         }
@@ -160,10 +247,7 @@ public class OpDispatcher {
 
     protected void workerReturnWork(Worker worker, Operation operation, WorkerState workerState) {
         synchronized(this) {
-            checkWorkerWithoutSynchronization(worker, operation);
-
-            QueueEntry returned = worker.currentWork;
-            worker.currentWork = null;
+            QueueEntry returned = removeWorkWithoutSynchronization(worker, operation);
 
             workerState.handleStateWithoutSynchronization(this, worker);
 
@@ -184,14 +268,11 @@ public class OpDispatcher {
         }
 
         synchronized(this) {
-            checkWorkerWithoutSynchronization(worker, operation);
-            if(worker.currentWork == null || worker.currentWork.operation != operation) {
-                throw new RuntimeException("Logic error: Wrong operation returned");
-            }
+            performed = removeWorkWithoutSynchronization(worker, operation);
 
             if(result != null) {
                 try {
-                    worker.currentWork.operation.copyResultsFromReturnedOperation(result);
+                    performed.operation.copyResultsFromReturnedOperation(result);
                 } catch(Exception e) {
                     // Report this exception instead
                     result = null;
@@ -199,13 +280,20 @@ public class OpDispatcher {
                 }
             }
 
-            performed = worker.currentWork;
-            worker.currentWork = null;
-
             workerState.handleStateWithoutSynchronization(this, worker);
+
+            // Other workers may be able to run this application's operations now
+            if(this.queueLength > 0) {
+                wakeWorkerWithoutSynchronization();
+                adjustWorkerPoolWithoutSynchronization();
+            }
         }
 
         long timeTaken = System.currentTimeMillis() - performed.startTime;
+        if(this.operationTimeMetric != null) {
+            this.operationTimeMetric.labels(operation.getClass().getSimpleName(), Integer.toString(worker.workerNumber)).
+                observe(timeTaken / 1000.0);
+        }
         if(exception != null) {
             this.logger.info("Operation on worker " + worker.workerNumber + " took " + timeTaken + "ms and threw exception, op: " + operation);
         } else {
@@ -220,20 +308,96 @@ public class OpDispatcher {
         }
     }
 
+    // The worker process will exit when its operations are done, so it's not given any more,
+    // and a spare worker takes its place.
+    protected void workerWillExit(Worker worker) {
+        synchronized(this) {
+            checkWorkerWithoutSynchronization(worker, null);
+            worker.draining = true;
+            if(this.queueLength > 0) {
+                wakeWorkerWithoutSynchronization();
+            }
+        }
+        this.logger.info("Worker " + worker.workerNumber + " will exit when its operations are done");
+    }
+
+    // Shrink the pool if it hasn't been fully used for a while. Only the highest numbered worker
+    // process is stopped, as workers are given operations in number order.
+    protected boolean stopWorkerIfNotNeeded(Worker worker) {
+        synchronized(this) {
+            checkWorkerWithoutSynchronization(worker, null);
+            if(!worker.currentWork.isEmpty() || worker.draining || this.queueLength > 0 ||
+                    this.targetWorkers <= this.policy.minWorkers ||
+                    (System.currentTimeMillis() - this.lastTimeFullyUsed) < this.policy.scaleDownIdleTime) {
+                return false;
+            }
+            int highest = this.processWanted.length - 1;
+            while(highest >= 0 && !this.processWanted[highest]) {
+                highest--;
+            }
+            if(worker.workerNumber != highest) {
+                return false;
+            }
+            this.targetWorkers--;
+            this.processWanted[highest] = false;
+            this.lastTimeFullyUsed = System.currentTimeMillis();    // one step at a time
+            disconnectWorkerWithoutSynchronization(worker);
+            if(this.workerSupervisor != null) {
+                this.workerSupervisor.stopWorker(worker.workerNumber);
+            }
+        }
+        this.logger.info("Stopped worker " + worker.workerNumber + " as it isn't needed, now " + this.targetWorkers + " active workers");
+        return true;
+    }
+
     // -----------------------------------------------------------------------------------------
     public static class Policy {
-        final static public int DEFAULT_WORKERS = 4;
+        final static public int DEFAULT_MIN_WORKERS = 3;
+        final static public int DEFAULT_MAX_WORKERS = 8;
+        final static public int DEFAULT_SPARE_WORKERS = 1;
+        final static public int DEFAULT_OPS_PER_WORKER = 2;
         final static public int DEFAULT_MAX_OPS_PER_APP = 2;
+        final static public int DEFAULT_SLOTS_RESERVED_FOR_INTERACTIVE = 1;
         final static public int DEFAULT_MAX_QUEUE_LENGTH = 512;
-
-        public int numberOfWorkers;
+        final static public int DEFAULT_MAX_TOTAL_QUEUE_LENGTH = 8192;
+        final static public int DEFAULT_SCALE_UP_QUEUE_DEPTH = 4;
+        final static public int DEFAULT_SCALE_UP_QUEUE_WAIT = 2000;
+        final static public int DEFAULT_SCALE_DOWN_IDLE_TIME = 5 * 60 * 1000;
+
+        public int minWorkers;
+        public int maxWorkers;
+        public int spareWorkers;                // idle processes kept ready to take over from a restarting worker
+        public int operationsPerWorker;         // how many operations a worker runs at once
         public int maxOpsPerApplication;
-        public int maxQueueLength;
+        public int slotsReservedForInteractive; // slots on the workers which bulk operations can't use
+        public int maxQueueLength;              // per application
+        public int maxTotalQueueLength;
+        public int scaleUpQueueDepth;           // add a worker if this many more operations are queued than free slots
+        public int scaleUpQueueWait;            // or operations are waiting longer than this, in ms
+        public int scaleDownIdleTime;           // remove a worker if the pool hasn't been fully used for this long, in ms
 
         public Policy() {
-            this.numberOfWorkers = DEFAULT_WORKERS;
+            this.minWorkers = DEFAULT_MIN_WORKERS;
+            this.maxWorkers = DEFAULT_MAX_WORKERS;
+            this.spareWorkers = DEFAULT_SPARE_WORKERS;
+            this.operationsPerWorker = DEFAULT_OPS_PER_WORKER;
             this.maxOpsPerApplication = DEFAULT_MAX_OPS_PER_APP;
+            this.slotsReservedForInteractive = DEFAULT_SLOTS_RESERVED_FOR_INTERACTIVE;
             this.maxQueueLength = DEFAULT_MAX_QUEUE_LENGTH;
+            this.maxTotalQueueLength = DEFAULT_MAX_TOTAL_QUEUE_LENGTH;
+            this.scaleUpQueueDepth = DEFAULT_SCALE_UP_QUEUE_DEPTH;
+            this.scaleUpQueueWait = DEFAULT_SCALE_UP_QUEUE_WAIT;
+            this.scaleDownIdleTime = DEFAULT_SCALE_DOWN_IDLE_TIME;
+        }
+
+        // Worker numbers are 0 to getNumberOfWorkerSlots() - 1
+        public int getNumberOfWorkerSlots() {
+            return this.maxWorkers + this.spareWorkers;
+        }
+
+        // Worker processes 0 to getInitialNumberOfProcesses() - 1 are started when supervision starts
+        public int getInitialNumberOfProcesses() {
+            return this.minWorkers + this.spareWorkers;
         }
     }
 
@@ -241,10 +405,47 @@ public class OpDispatcher {
     private static class QueueEntry {
         public Operation operation;
         public long applicationId;
+        public Operation.Priority priority;
         public OpNotifyTarget notifyTarget;
+        public long queuedTime;
         public long startTime;
     }
 
+    // Operations queued by one application at one priority
+    private static class ApplicationQueue {
+        final ApplicationState application;
+        final Operation.Priority priority;
+        final ArrayDeque<QueueEntry> entries = new ArrayDeque<QueueEntry>();
+        boolean scheduled;  // in the turn order for the priority, or parked in the application
+
+        ApplicationQueue(ApplicationState application, Operation.Priority priority) {
+            this.application = application;
+            this.priority = priority;
+        }
+    }
+
+    private static class ApplicationState {
+        final long applicationId;
+        final ApplicationQueue[] queues;
+        final ArrayList<ApplicationQueue> parked = new ArrayList<ApplicationQueue>();  // out of turn order while at limit
+        int queued;
+        int running;
+
+        ApplicationState(long applicationId) {
+            this.applicationId = applicationId;
+            Operation.Priority[] priorityValues = Operation.Priority.values();
+            this.queues = new ApplicationQueue[priorityValues.length];
+            for(int p = 0; p < priorityValues.length; ++p) {
+                this.queues[p] = new ApplicationQueue(this, priorityValues[p]);
+            }
+        }
+    }
+
+    private static class PriorityClass {
+        final ArrayDeque<ApplicationQueue> turns = new ArrayDeque<ApplicationQueue>();
+        int running;
+    }
+
     // -----------------------------------------------------------------------------------------
     public enum WorkerState {
         OK() {
@@ -272,7 +473,8 @@ public class OpDispatcher {
         private int workerNumber;
         private boolean connected;
         private boolean failed;
-        private QueueEntry currentWork;
+        private boolean draining;
+        private ArrayList<QueueEntry> currentWork;
         private Waker waker;
 
         protected Worker(OpDispatcher dispatcher, int workerNumber) {
@@ -280,6 +482,7 @@ public class OpDispatcher {
             this.workerNumber = workerNumber;
             this.connected = false;
             this.failed = false;
+            this.currentWork = new ArrayList<QueueEntry>(dispatcher.policy.operationsPerWorker);
         }
 
         protected void wake() {
@@ -299,6 +502,7 @@ public class OpDispatcher {
             this.waker = waker;
         }
 
+        // Returns null if there's no work, or the worker is running as many operations as it's allowed
         public Operation getNextWork() {
             return this.dispatcher.getNextWorkForWorker(this);
         }
@@ -319,6 +523,16 @@ public class OpDispatcher {
         public void finishedWork(Operation operation, Operation result, Exception exception, WorkerState workerState) {
             this.dispatcher.workerFinishedWork(this, operation, result, exception, workerState);
         }
+
+        // Called when the worker process says it will exit after finishing its operations
+        public void willExit() {
+            this.dispatcher.workerWillExit(this);
+        }
+
+        // Called when idle, returns true if the worker has been disconnected because it's not needed
+        public boolean stopIfNotNeeded() {
+            return this.dispatcher.stopWorkerIfNotNeeded(this);
+        }
     }
 
     // -----------------------------------------------------------------------------------------
@@ -328,29 +542,182 @@ public class OpDispatcher {
 
     // Must be called in a synchronized(this) block.
     private void addQueueEntryWithoutSynchronization(QueueEntry entry, QueueAdditionAction action) {
-        if(action == QueueAdditionAction.QUEUE_NORMAL) {
-            // TODO: Priority ordering of operations based on predicted speed of running
-            this.queue.add(entry);
+        ApplicationState application = this.applications.get(entry.applicationId);
+        if(application == null) {
+            application = new ApplicationState(entry.applicationId);
+            this.applications.put(entry.applicationId, application);
+        }
+        ApplicationQueue queue = application.queues[entry.priority.ordinal()];
+        boolean returned = (action == QueueAdditionAction.QUEUE_RETURNED);
+
+        if(returned) {
+            queue.entries.addFirst(entry);
         } else {
-            this.queue.add(0, entry);
+            queue.entries.addLast(entry);
+        }
+        application.queued++;
+        this.queueLength++;
+
+        if(!queue.scheduled) {
+            queue.scheduled = true;
+            if(application.running >= this.policy.maxOpsPerApplication) {
+                application.parked.add(queue);
+            } else if(returned) {
+                this.priorities[entry.priority.ordinal()].turns.addFirst(queue);
+            } else {
+                this.priorities[entry.priority.ordinal()].turns.addLast(queue);
+            }
         }
 
         // This op may not be runnable yet because of the limit on number of ops per application outstanding,
-        // but just wake the lowest numbered connected worker which isn't doing anything.
+        // but just wake a worker which can take it.
+        wakeWorkerWithoutSynchronization();
+    }
+
+    // Must be called in a synchronized(this) block.
+    private QueueEntry takeNextQueueEntryWithoutSynchronization() {
+        int maxBulkOperations = Math.max(1,
+            (this.targetWorkers * this.policy.operationsPerWorker) - this.policy.slotsReservedForInteractive);
+        for(int p = 0; p < this.priorities.length; ++p) {
+            PriorityClass priorityClass = this.priorities[p];
+            if(p == Operation.Priority.BULK.ordinal() && priorityClass.running >= maxBulkOperations) {
+                continue;
+            }
+            while(!priorityClass.turns.isEmpty()) {
+                ApplicationQueue queue = priorityClass.turns.pollFirst();
+                ApplicationState application = queue.application;
+                if(application.running >= this.policy.maxOpsPerApplication) {
+                    // Take the application out of the turn order until one of its operations finishes
+                    application.parked.add(queue);
+                    continue;
+                }
+                QueueEntry entry = queue.entries.pollFirst();
+                if(queue.entries.isEmpty()) {
+                    queue.scheduled = false;
+                } else {
+                    priorityClass.turns.addLast(queue);
+                }
+                application.queued--;
+                application.running++;
+                priorityClass.running++;
+                this.queueLength--;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // Must be called in a synchronized(this) block.
+    private QueueEntry removeWorkWithoutSynchronization(Worker worker, Operation operation) {
+        checkWorkerWithoutSynchronization(worker, operation);
+        QueueEntry entry = null;
+        for(int i = 0; i < worker.currentWork.size(); ++i) {
+            if(worker.currentWork.get(i).operation == operation) {
+                entry = worker.currentWork.remove(i);
+                break;
+            }
+        }
+
+        ApplicationState application = this.applications.get(entry.applicationId);
+        application.running--;
+        this.priorities[entry.priority.ordinal()].running--;
+        // Put any of the application's queues which were waiting for this to finish back into the turn order
+        for(ApplicationQueue queue : application.parked) {
+            this.priorities[queue.priority.ordinal()].turns.addLast(queue);
+        }
+        application.parked.clear();
+        if(application.running == 0 && application.queued == 0) {
+            this.applications.remove(application.applicationId);
+        }
+        return entry;
+    }
+
+    // Must be called in a synchronized(this) block.
+    private void wakeWorkerWithoutSynchronization() {
+        // Prefer the lowest numbered worker which isn't doing anything, then the least busy
+        Worker chosen = null;
         for(int l = 0; l < this.workers.length; ++l) {
             Worker worker = this.workers[l];
-            if(worker.connected && worker.currentWork == null) {
-                worker.wake();
+            if(worker.connected && worker.currentWork.size() < this.policy.operationsPerWorker &&
+                    (chosen == null || worker.currentWork.size() < chosen.currentWork.size()) &&
+                    isWorkerActiveWithoutSynchronization(worker)) {
+                chosen = worker;
+            }
+        }
+        if(chosen != null) {
+            chosen.wake();
+        }
+    }
+
+    // Workers are given operations in number order, skipping any which are about to exit. Connected workers
+    // beyond the target number are spares.
+    // Must be called in a synchronized(this) block.
+    private boolean isWorkerActiveWithoutSynchronization(Worker worker) {
+        if(!worker.connected || worker.draining) {
+            return false;
+        }
+        int activeBefore = 0;
+        for(int l = 0; l < worker.workerNumber; ++l) {
+            Worker w = this.workers[l];
+            if(w.connected && !w.draining) {
+                activeBefore++;
+            }
+        }
+        return activeBefore < this.targetWorkers;
+    }
+
+    // Must be called in a synchronized(this) block.
+    private int freeActiveSlotsWithoutSynchronization() {
+        int freeSlots = 0;
+        for(Worker worker : this.workers) {
+            if(isWorkerActiveWithoutSynchronization(worker)) {
+                freeSlots += this.policy.operationsPerWorker - worker.currentWork.size();
+            }
+        }
+        return freeSlots;
+    }
+
+    // Grow the pool if operations are queuing up.
+    // Must be called in a synchronized(this) block.
+    private void adjustWorkerPoolWithoutSynchronization() {
+        if(this.targetWorkers >= this.policy.maxWorkers) {
+            return;
+        }
+        int excess = this.queueLength - freeActiveSlotsWithoutSynchronization();
+        if(excess <= 0) {
+            return;
+        }
+        this.lastTimeFullyUsed = System.currentTimeMillis();
+        if(excess < this.policy.scaleUpQueueDepth && this.smoothedQueueWait < this.policy.scaleUpQueueWait) {
+            return;
+        }
+        // Wait for any worker process which is starting before adding another
+        for(int l = 0; l < this.processWanted.length; ++l) {
+            if(this.processWanted[l] && !this.workers[l].connected) {
+                return;
+            }
+        }
+        // The spare worker starts getting operations, and another process is started to be the new spare
+        this.targetWorkers++;
+        for(int l = 0; l < this.processWanted.length; ++l) {
+            if(!this.processWanted[l]) {
+                this.processWanted[l] = true;
+                if(this.workerSupervisor != null) {
+                    this.workerSupervisor.startWorker(l);
+                }
                 break;
             }
         }
+        this.logger.info("Increased number of active workers to " + this.targetWorkers + " as " + excess +
+                " operations are waiting, average wait " + (int)this.smoothedQueueWait + "ms");
+        wakeWorkerWithoutSynchronization();
     }
 
     private void disconnectWorkerWithoutSynchronization(Worker worker) {
         if(!worker.connected) {
             throw new RuntimeException("Worker isn't connected.");
         }
-        if(worker.currentWork != null) {
+        if(!worker.currentWork.isEmpty()) {
             throw new RuntimeException("Worker has outstanding work when disconnecting.");
         }
         // Instead of just doing worker.connected = false, replace the Worker object in the list
@@ -382,7 +749,14 @@ public class OpDispatcher {
             throw new RuntimeException("Logic error: Worker isn't part of this dispatcher");
         }
         if(operation != null) {
-            if(worker.currentWork == null || worker.currentWork.operation != operation) {
+            boolean running = false;
+            for(QueueEntry entry : worker.currentWork) {
+                if(entry.operation == operation) {
+                    running = true;
+                    break;
+                }
+            }
+            if(!running) {
                 throw new RuntimeException("Logic error: Worker isn't running the expected operation");
             }
         }
@@ -18,17 +18,21 @@ public class OpServerMessage implements Serializable {
         public boolean accepted;
     }
 
+    // Workers may be sent several operations at once, identified by requestId in the replies
     static public class DoOperation extends OpServerMessage {
+        public int requestId;
         public Operation operation;
     }
 
     static public class AcknowledgeOperation extends OpServerMessage {
+        public int requestId;
         public boolean ok;
     }
 
     static public class DoneOperation extends OpServerMessage {
+        public int requestId;
         public Operation resultOperation;
         public Exception resultException;
-        public boolean willExit;    // process intends to exit (and will be restarted)
+        public boolean willExit;    // process intends to exit when all its operations are done (and will be restarted)
     }
 }
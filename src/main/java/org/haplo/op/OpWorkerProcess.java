@@ -10,6 +10,7 @@ import java.nio.channels.SocketChannel;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
@@ -28,11 +29,13 @@ public class OpWorkerProcess extends Thread {
 
     private int workerNumber;
     private String authenticationToken;
+    private ConcurrentLinkedQueue<OpServerMessage.DoneOperation> completed;
     private Logger logger;
 
     public OpWorkerProcess(int workerNumber, String authenticationToken) {
         this.workerNumber = workerNumber;
         this.authenticationToken = authenticationToken;
+        this.completed = new ConcurrentLinkedQueue<OpServerMessage.DoneOperation>();
         this.logger = Logger.getLogger("org.haplo.op.worker.w" + workerNumber);
     }
 
@@ -67,6 +70,8 @@ public class OpWorkerProcess extends Thread {
     }
 
     public void run2() throws IOException, ClassNotFoundException {
+        warmUp();
+
         SocketChannel socketChannel = null;
         int connectionAttempts = CONNECTION_ATTEMPTS;
         while(socketChannel == null) {
@@ -107,50 +112,111 @@ public class OpWorkerProcess extends Thread {
         this.logger.info("Approx initial memory usage: " + initialMemoryUsage + "%, will restart when memory usage over " + restartWhenMemoryUsageOver + "%");
         logNumberOfOpenFiles();
 
+        // The server may send several operations at once. Each runs in its own thread, and the results are
+        // sent from this thread, which is woken through the pipe when an operation completes.
+        boolean willExit = false;
+        int running = 0;
         while(true) {
-            OpServerMessage.DoOperation doOperation = (OpServerMessage.DoOperation)pipe.receiveObject(1000 * 60 * 5);
-            if(doOperation != null) {
-                // Immediately send an "ack" message back to the server so it knows the operation has been recieved,
-                // processing is started, and doesn't need to return it to the queue.
-                OpServerMessage.AcknowledgeOperation acknowledgeOperation = new OpServerMessage.AcknowledgeOperation();
-                acknowledgeOperation.ok = true;
-                pipe.sendObject(acknowledgeOperation);
-
-                OpServerMessage.DoneOperation doneOperation = new OpServerMessage.DoneOperation();
-                doneOperation.willExit = false;
-                try {
-                    this.logger.info("Start operation: " + doOperation.operation);
-
-                    doOperation.operation.performOperation();
-                    doneOperation.resultOperation = doOperation.operation;
-                } catch(Exception e) {
-                    this.logger.error("Exception performing operation: " + doOperation.operation, e);
-                    doneOperation.resultException = e;
-                }
-
+            OpServerMessage.DoneOperation doneOperation;
+            while((doneOperation = this.completed.poll()) != null) {
+                running--;
                 logNumberOfOpenFiles();
 
                 // Check memory usage
                 int memoryPercent = approxMemoryUsagePercent();
                 this.logger.info("Approx memory usage after operation: " + memoryPercent + "%");
-                if((memoryPercent > restartWhenMemoryUsageOver) && restartOnHighMemoryUsage) {
-                    this.logger.info("Will exit after sending reply.");
-                    doneOperation.willExit = true;
+                if((memoryPercent > restartWhenMemoryUsageOver) && restartOnHighMemoryUsage && !willExit) {
+                    this.logger.info("Will exit when all operations are complete.");
+                    willExit = true;
                 }
 
                 this.logger.info("Sending reply.");
+                doneOperation.willExit = willExit;
                 pipe.sendObject(doneOperation);
+            }
 
-                if(doneOperation.willExit) {
-                    // Wait a small amount of time then exit
-                    try {
-                        Thread.sleep(250);
-                    } catch(InterruptedException interrupted) {
-                    }
+            Object message = null;
+            try {
+                message = pipe.receiveObject(1000 * 60 * 5);
+            } catch(IOException e) {
+                // The server closes the connection when the worker intends to exit and all operations are done,
+                // or when the worker isn't needed any more.
+                if(running == 0) {
+                    this.logger.info("Server closed connection, exiting.");
                     return;
                 }
+                throw e;
+            }
+            if(message != null) {
+                OpServerMessage.DoOperation doOperation = (OpServerMessage.DoOperation)message;
+
+                // Immediately send an "ack" message back to the server so it knows the operation has been recieved,
+                // processing is started, and doesn't need to return it to the queue.
+                OpServerMessage.AcknowledgeOperation acknowledgeOperation = new OpServerMessage.AcknowledgeOperation();
+                acknowledgeOperation.requestId = doOperation.requestId;
+                acknowledgeOperation.ok = true;
+                pipe.sendObject(acknowledgeOperation);
+
+                running++;
+                OperationThread thread = new OperationThread(doOperation, pipe);
+                thread.setName(getName() + "-op" + doOperation.requestId);
+                thread.setDaemon(true);     // mustn't stop the process exiting to be restarted after an error
+                thread.start();
+            }
+        }
+    }
+
+    private class OperationThread extends Thread {
+        private OpServerMessage.DoOperation doOperation;
+        private ObjectPipe pipe;
+
+        OperationThread(OpServerMessage.DoOperation doOperation, ObjectPipe pipe) {
+            this.doOperation = doOperation;
+            this.pipe = pipe;
+        }
+
+        public void run() {
+            Operation.markThreadAsWorker(); // so "performOperationLocally" sub-processes work
+            OpServerMessage.DoneOperation doneOperation = new OpServerMessage.DoneOperation();
+            doneOperation.requestId = this.doOperation.requestId;
+            try {
+                logger.info("Start operation: " + this.doOperation.operation);
+
+                this.doOperation.operation.performOperation();
+                doneOperation.resultOperation = this.doOperation.operation;
+            } catch(Exception e) {
+                logger.error("Exception performing operation: " + this.doOperation.operation, e);
+                doneOperation.resultException = e;
+            }
+            completed.add(doneOperation);
+            this.pipe.wakeup();
+        }
+    }
+
+    // Load the libraries used by the slower operations before connecting, so a new worker process
+    // doesn't make the first operations it's given wait for class loading.
+    static final private String[] WARM_UP_CLASSES = {
+        "org.haplo.text.Analyser",
+        "org.apache.pdfbox.pdmodel.PDDocument",
+        "org.apache.pdfbox.text.PDFTextStripper",
+        "org.apache.pdfbox.rendering.PDFRenderer",
+        "org.apache.poi.ooxml.extractor.ExtractorFactory",
+        "org.apache.poi.ss.usermodel.WorkbookFactory",
+        "org.apache.poi.xssf.usermodel.XSSFWorkbook"
+    };
+
+    protected void warmUp() {
+        long startTime = System.currentTimeMillis();
+        ClassLoader loader = getClass().getClassLoader();
+        for(String className : WARM_UP_CLASSES) {
+            try {
+                Class.forName(className, true, loader);
+            } catch(Throwable e) {
+                this.logger.info("Couldn't load " + className + " when warming up: " + e);
             }
         }
+        javax.imageio.ImageIO.getReaderFormatNames();  // loads image plugins
+        this.logger.info("Warmed up in " + (System.currentTimeMillis() - startTime) + "ms");
     }
 
     protected int approxMemoryUsagePercent() {
@@ -7,7 +7,13 @@
 package org.haplo.op;
 
 public interface OpWorkerSupervisor {
+    // Start the policy's initial number of worker processes
     public void startSupervision(OpDispatcher.Policy policy);
 
     public void workerFailed(int workerNumber);
+
+    // Start or stop worker processes as the pool changes size
+    public void startWorker(int workerNumber);
+
+    public void stopWorker(int workerNumber);
 }
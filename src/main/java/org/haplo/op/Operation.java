@@ -6,6 +6,9 @@
 
 package org.haplo.op;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
@@ -98,6 +101,23 @@ public class Operation implements Serializable {
         performOperation();
     }
 
+    /**
+     * Relative priority of operations when they're waiting in the queue.
+     */
+    public enum Priority {
+        INTERACTIVE,    // a user is probably waiting for the result, eg thumbnails
+        NORMAL,
+        BULK            // background processing which may be queued in large numbers, eg text extraction
+    }
+
+    /**
+     * Override to change the priority of this operation when dispatched to a
+     * worker process.
+     */
+    public Priority getPriority() {
+        return Priority.NORMAL;
+    }
+
     /**
      * Operations implement this to do their work.
      */
@@ -147,6 +167,20 @@ public class Operation implements Serializable {
         }
     }
 
+    // -------------------------------------------------------------------------------------------------------
+    /**
+     * Operations can implement this interface to be sent to and from worker
+     * processes with a compact binary encoding, instead of Java serialisation.
+     *
+     * Implementing classes must have a no-argument constructor, which may be
+     * private. readFields() must read exactly what writeFields() wrote.
+     */
+    public interface BinaryEncoded {
+        void writeFields(DataOutput out) throws IOException;
+
+        void readFields(DataInput in) throws IOException;
+    }
+
     // -------------------------------------------------------------------------------------------------------
     private static class WaitingNotifyTarget implements OpNotifyTarget {
         public Exception exception;
@@ -10,7 +10,10 @@
 
 package org.haplo.op;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.stream.Collectors;
 import org.apache.log4j.Logger;
 
 public class SupervisordSupervisor implements OpWorkerSupervisor {
@@ -18,6 +21,8 @@ public class SupervisordSupervisor implements OpWorkerSupervisor {
     private static final String SUPERVISORD = "/usr/bin/supervisord";
     private static final String SUPERVISORCTL = "/usr/bin/supervisorctl";
     private static final String SUPERVISORD_CONF="/opt/haplo/config/haplo-supervisord.conf";
+    private static final int STOP_ATTEMPTS = 5;
+    private static final long STOP_RETRY_DELAY = 1000;  // ms
     private static boolean supervising = false;
 
     private Logger logger;
@@ -27,7 +32,8 @@ public class SupervisordSupervisor implements OpWorkerSupervisor {
     }
 
     public void startSupervision(OpDispatcher.Policy policy) {
-        this.logger.info("Starting supervisord supervision of " + policy.numberOfWorkers + " workers.");
+        // The initial workers are started by supervisord, see haplo-supervisord.conf
+        this.logger.info("Starting supervisord supervision of " + policy.getInitialNumberOfProcesses() + " workers.");
 	startWorkers();
     }
 
@@ -36,6 +42,57 @@ public class SupervisordSupervisor implements OpWorkerSupervisor {
 	restartWorker(workerNumber);
     }
 
+    public void startWorker(int workerNumber) {
+        this.logger.info("Starting worker instance " + workerNumber + ".");
+        supervisorctl("start w" + workerNumber);
+    }
+
+    // The worker exits by itself when the dispatcher disconnects it, and supervisord restarts workers
+    // which exit, so the stop can find it not running, then supervisord starts it again. Keep stopping
+    // it until supervisord reports it as stopped, in another thread so the dispatcher isn't held up.
+    public void stopWorker(int workerNumber) {
+        this.logger.info("Stopping worker instance " + workerNumber + ".");
+        Thread thread = new Thread(() -> {
+            for(int attempt = 0; attempt < STOP_ATTEMPTS; ++attempt) {
+                supervisorctlAndWait("stop w" + workerNumber);
+                String status = supervisorctlAndWait("status w" + workerNumber);
+                if(status == null || status.contains("STOPPED")) {
+                    return;
+                }
+                try {
+                    Thread.sleep(STOP_RETRY_DELAY);
+                } catch(InterruptedException e) {
+                    return;
+                }
+            }
+            this.logger.error("Worker instance " + workerNumber + " was not stopped by supervisord.");
+        }, "stop-worker-" + workerNumber);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void supervisorctl(String command) {
+	try {
+	    Process p = Runtime.getRuntime().exec(SUPERVISORCTL + " -c " + SUPERVISORD_CONF + " " + command);
+	} catch (IOException ioe) {}
+    }
+
+    // Returns the output, or null if supervisorctl couldn't be run
+    private String supervisorctlAndWait(String command) {
+        try {
+            Process p = Runtime.getRuntime().exec(SUPERVISORCTL + " -c " + SUPERVISORD_CONF + " " + command);
+            p.getOutputStream().close();
+            String output;
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                output = reader.lines().collect(Collectors.joining("\n"));
+            }
+            p.waitFor();
+            return output;
+        } catch(IOException | InterruptedException e) {
+            return null;
+        }
+    }
+
     private void startWorkers() {
 	if (!supervising) {
 	    try {
@@ -6,16 +6,22 @@
 
 package org.haplo.op.test;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import org.haplo.op.Operation;
+import org.haplo.op.OpCodec;
 
 // A very simple operation used for testing
-public class TestOperation extends Operation {
+public class TestOperation extends Operation implements Operation.BinaryEncoded {
     public String string;
     public int useMemory;   // in Kbytes
     public int sleepSeconds;
     public boolean throwException;
     public boolean callExit;
     public boolean infiniteLoop;
+    public Priority dispatchPriority = Priority.NORMAL;   // only used by the dispatcher, not sent to the worker
 
     public TestOperation(String string) {
         this.string = string;
@@ -26,6 +32,31 @@ public class TestOperation extends Operation {
         this.infiniteLoop = false;
     }
 
+    private TestOperation() {    // for binary decoding
+    }
+
+    public void writeFields(DataOutput out) throws IOException {
+        OpCodec.writeString(out, this.string);
+        out.writeInt(this.useMemory);
+        out.writeInt(this.sleepSeconds);
+        out.writeBoolean(this.throwException);
+        out.writeBoolean(this.callExit);
+        out.writeBoolean(this.infiniteLoop);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        this.string = OpCodec.readString(in);
+        this.useMemory = in.readInt();
+        this.sleepSeconds = in.readInt();
+        this.throwException = in.readBoolean();
+        this.callExit = in.readBoolean();
+        this.infiniteLoop = in.readBoolean();
+    }
+
+    public Priority getPriority() {
+        return this.dispatchPriority;
+    }
+
     protected void performOperation() throws Exception {
         if(this.useMemory > 0) {
             // Allocate and use a load of memory, but in small chunks on the heap, and make
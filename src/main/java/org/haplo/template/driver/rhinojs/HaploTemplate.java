@@ -30,8 +30,13 @@ public class HaploTemplate extends ScriptableObject implements Callable, Driver.
         return "$HaploTemplate";
     }
 
-    public void jsConstructor(String source, String name) throws ParseException {
-        this.template = new Parser(source, name, JSPlatformIntegration.parserConfiguration).parse();
+    public void jsConstructor(String source, String name, Object pluginName) throws ParseException {
+        if(JSPlatformIntegration.templateParser != null) {
+            this.template = JSPlatformIntegration.templateParser.parse(source, name,
+                (pluginName instanceof CharSequence) ? pluginName.toString() : null);
+        } else {
+            this.template = new Parser(source, name, JSPlatformIntegration.parserConfiguration).parse();
+        }
     }
 
     public Template getTemplate() {
@@ -89,7 +94,8 @@ public class HaploTemplate extends ScriptableObject implements Callable, Driver.
 
     public Scriptable jsFunction_addDebugComment(String comment) {
         if(this.template == null) { throw new RuntimeException("No template"); }
-        this.template.addDebugComment(comment);
+        // Parsed templates may be shared with other runtimes, so comments are added to a copy
+        this.template = this.template.copyWithDebugComment(comment);
         return this;
     }
 
@@ -9,6 +9,8 @@ package org.haplo.template.driver.rhinojs;
 import org.mozilla.javascript.Scriptable;
 
 import org.haplo.template.html.ParserConfiguration;
+import org.haplo.template.html.ParseException;
+import org.haplo.template.html.Template;
 import org.haplo.template.html.Driver;
 import org.haplo.template.html.Context;
 import org.haplo.template.html.FunctionBinding;
@@ -18,6 +20,13 @@ public class JSPlatformIntegration {
     // Parser configuration for JS templates
     public static ParserConfiguration parserConfiguration;
 
+    // Implementation of template parsing, which may return a Template shared with other runtimes
+    public static JSTemplateParser templateParser;
+
+    public interface JSTemplateParser {
+        Template parse(String source, String name, String pluginName) throws ParseException;
+    }
+
     // Implementation of platform included template rendering
     public static JSIncludedTemplateRenderer includedTemplateRenderer;
 
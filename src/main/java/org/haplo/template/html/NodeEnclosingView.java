@@ -15,6 +15,10 @@ final class NodeEnclosingView extends Node {
         this.blockHead = blockHead;
     }
 
+    protected Node getBlockHead() {
+        return this.blockHead;
+    }
+
     public void render(StringBuilder builder, Driver driver, Object view, Context context) throws RenderException {
         this.blockHead.renderWithNextNodes(builder, driver, driver.recallView(this.rememberedViewIndex), context);
     }
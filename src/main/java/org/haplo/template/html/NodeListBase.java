@@ -8,15 +8,27 @@ package org.haplo.template.html;
 
 abstract class NodeListBase extends Node {
     protected Node listHead;
+    private boolean textContext;
+    private Node[] compiledNodes;   // flattened list, set by TemplateCompiler after parsing
 
     protected NodeListBase() {
     }
 
     public void add(Node node, Context context) {
         boolean tryMerge = (context == Context.TEXT);
+        if(tryMerge) { this.textContext = true; }
         this.listHead = Node.appendToNodeList(this.listHead, node, tryMerge);
     }
 
+    protected boolean wasAddedInTextContext() {
+        return this.textContext;
+    }
+
+    protected void setCompiledNodes(Node listHead, Node[] compiledNodes) {
+        this.listHead = listHead;
+        this.compiledNodes = compiledNodes;
+    }
+
     public boolean hasOneMember() {
         return (this.listHead != null) && (this.listHead.getNextNode() == null);
     }
@@ -26,7 +38,12 @@ abstract class NodeListBase extends Node {
     }
 
     public void renderList(StringBuilder builder, Driver driver, Object view, Context context) throws RenderException {
-        if(this.listHead != null) {
+        Node[] nodes = this.compiledNodes;
+        if(nodes != null) {
+            for(int i = 0; i < nodes.length; ++i) {
+                nodes[i].render(builder, driver, view, context);
+            }
+        } else if(this.listHead != null) {
             this.listHead.renderWithNextNodes(builder, driver, view, context);
         }
     }
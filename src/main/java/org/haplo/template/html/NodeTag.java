@@ -9,6 +9,7 @@ package org.haplo.template.html;
 final class NodeTag extends Node {
     private String name;
     private String start;
+    private String end = ">";
     private Attribute attributesHead;
     private Node attributeDictionaryValue;
 
@@ -69,6 +70,15 @@ final class NodeTag extends Node {
         this.attributeDictionaryValue = value;
     }
 
+    // Used by TemplateCompiler to merge the literals either side of the tag into the tag's output
+    protected void mergeLiteralBefore(String literal) {
+        this.start = literal+this.start;
+    }
+
+    protected void mergeLiteralAfter(String literal) {
+        this.end += literal;
+    }
+
     private boolean canOmitQuotesForValue(CharSequence value) {
         int len = value.length();
         if(len == 0) { return false; }
@@ -130,13 +140,13 @@ final class NodeTag extends Node {
                 }
             });
         }
-        builder.append('>');
+        builder.append(this.end);
     }
 
     public void dumpToBuilder(StringBuilder builder, String linePrefix) {
         builder.append(linePrefix).append("TAG ").append(this.start);
         if(this.attributesHead == null) {
-            builder.append(">\n");  // although this case should be simplified to a literal
+            builder.append(this.end).append("\n");  // although this case should be simplified to a literal
         } else {
             int count = 0;
             StringBuilder attributesBuilder = new StringBuilder(256);
@@ -147,7 +157,7 @@ final class NodeTag extends Node {
                 attribute.value.dumpToBuilder(attributesBuilder, linePrefix+"    ");
                 attribute = attribute.nextAttribute;
             }
-            builder.append("> with "+count+" attributes:\n").
+            builder.append(this.end).append(" with "+count+" attributes:\n").
                     append(attributesBuilder);
         }
     }
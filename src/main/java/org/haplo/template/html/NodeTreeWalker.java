@@ -0,0 +1,49 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.template.html;
+
+
+// Visits every node in a parsed template, including the nodes in lists,
+// function arguments and blocks, tag attribute values and enclosing views.
+abstract class NodeTreeWalker {
+    // Return true to walk the nodes contained by this node
+    abstract protected boolean visit(Node node);
+
+    public void walk(Node node) {
+        while(node != null) {
+            if(visit(node)) {
+                walkContainedNodes(node);
+            }
+            node = node.getNextNode();
+        }
+    }
+
+    protected void walkContainedNodes(Node node) {
+        if(node instanceof NodeListBase) {
+            walk(((NodeListBase)node).getListHeadMaybe());
+
+        } else if(node instanceof NodeFunction) {
+            NodeFunction fn = (NodeFunction)node;
+            walk(fn.getArgumentsHead());
+            if(fn.hasAnyBlocks()) {
+                walk(fn.getBlock(Node.BLOCK_ANONYMOUS));
+                for(String block : fn.getAllNamedBlockNames()) {
+                    walk(fn.getBlock(block));
+                }
+            }
+
+        } else if(node instanceof NodeTag) {
+            ((NodeTag)node).interateOverAttributes((name, value, context) -> {
+                walk(value);
+            });
+
+        } else if(node instanceof NodeEnclosingView) {
+            walk(((NodeEnclosingView)node).getBlockHead());
+
+        }
+    }
+}
@@ -36,7 +36,9 @@ final public class Parser {
     }
 
     public Template parse() throws ParseException {
-        Template template = new Template(this.templateName, parseList(-1, "template"), this.nextRememberIndex);
+        NodeList nodes = parseList(-1, "template");
+        TemplateCompiler.compile(nodes);
+        Template template = new Template(this.templateName, nodes, this.nextRememberIndex);
         if(optionDisableDebugComments) {
             template.disableDebugComments();
         }
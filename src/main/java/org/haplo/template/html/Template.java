@@ -25,6 +25,17 @@ final public class Template {
         this.numberOfRememberedViews = numberOfRememberedViews;
     }
 
+    private Template(Template template) {
+        this.name = template.name;
+        this.nodes = template.nodes;
+        this.numberOfRememberedViews = template.numberOfRememberedViews;
+        if((template.debugComments == null) || (template.debugComments == DEBUG_COMMENTS_DISABLED)) {
+            this.debugComments = template.debugComments;
+        } else {
+            this.debugComments = new ArrayList<String>(template.debugComments);
+        }
+    }
+
     public String getName() {
         return this.name;
     }
@@ -95,6 +106,14 @@ final public class Template {
         }
     }
 
+    // Templates aren't modified by rendering, so can be shared between threads if
+    // this is used instead of addDebugComment(). The node tree is shared with the copy.
+    public Template copyWithDebugComment(String comment) {
+        Template template = new Template(this);
+        template.addDebugComment(comment);
+        return template;
+    }
+
     public void disableDebugComments() {
         this.debugComments = DEBUG_COMMENTS_DISABLED;
     }
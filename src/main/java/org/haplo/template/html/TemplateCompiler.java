@@ -0,0 +1,59 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+package org.haplo.template.html;
+
+import java.util.ArrayList;
+
+
+// Runs once after parsing to prepare the node tree for repeated rendering.
+//
+// Lists in document text are flattened into arrays, and literals next to tags
+// are merged into the tag's output, so a run of markup with a few dynamic
+// attributes renders as a single node appending a handful of pre-escaped
+// strings. Literals are always trusted and pre-escaped by the parser.
+class TemplateCompiler extends NodeTreeWalker {
+    public static void compile(Node node) {
+        new TemplateCompiler().walk(node);
+    }
+
+    protected boolean visit(Node node) {
+        if(node instanceof NodeList) {
+            compileList((NodeList)node);
+            return false;
+        }
+        return true;
+    }
+
+    private void compileList(NodeList list) {
+        Node head = list.getListHeadMaybe();
+        if(head == null) { return; }
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        Node node = head;
+        while(node != null) {
+            Node next = node.getNextNode();
+            node.setNextNode(null);
+            walk(node);
+            Node previous = nodes.isEmpty() ? null : nodes.get(nodes.size() - 1);
+            // Adjacent literals were merged as the list was built, but only within
+            // document text is it safe to merge literals into a tag's output.
+            if(list.wasAddedInTextContext() && (previous instanceof NodeTag) && (node instanceof NodeLiteral)) {
+                ((NodeTag)previous).mergeLiteralAfter(((NodeLiteral)node).getLiteralString());
+            } else if(list.wasAddedInTextContext() && (previous instanceof NodeLiteral) && (node instanceof NodeTag)) {
+                ((NodeTag)node).mergeLiteralBefore(((NodeLiteral)previous).getLiteralString());
+                nodes.set(nodes.size() - 1, node);
+            } else {
+                nodes.add(node);
+            }
+            node = next;
+        }
+        // Relink the remaining nodes so the list is consistent for dumps and string extraction
+        for(int i = 0; i < nodes.size() - 1; ++i) {
+            nodes.get(i).setNextNode(nodes.get(i + 1));
+        }
+        list.setCompiledNodes(nodes.get(0), nodes.toArray(new Node[nodes.size()]));
+    }
+}
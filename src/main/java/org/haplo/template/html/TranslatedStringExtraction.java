@@ -9,33 +9,22 @@ package org.haplo.template.html;
 import java.util.ArrayList;
 
 
-class TranslatedStringExtraction {
+class TranslatedStringExtraction extends NodeTreeWalker {
     public static void extract(Node node, ArrayList<String> strings) {
-        while(node != null) {
-
-            if(node instanceof NodeFunctionTranslatedString) {
-                strings.add(((NodeFunctionTranslatedString)node).getOriginalString());
-
-            } else if(node instanceof NodeListBase) {
-                extract(((NodeListBase)node).getListHeadMaybe(), strings);
+        new TranslatedStringExtraction(strings).walk(node);
+    }
 
-            } else if(node instanceof NodeFunction) {
-                NodeFunction fn = (NodeFunction)node;
-                extract(fn.getArgumentsHead(), strings);
-                if(fn.hasAnyBlocks()) {
-                    extract(fn.getBlock(Node.BLOCK_ANONYMOUS), strings);
-                    for(String block : fn.getAllNamedBlockNames()) {
-                        extract(fn.getBlock(block), strings);
-                    }
-                }
+    private final ArrayList<String> strings;
 
-            } else if(node instanceof NodeTag) {
-                ((NodeTag)node).interateOverAttributes((name, value, context) -> {
-                    extract(value, strings);
-                });
+    private TranslatedStringExtraction(ArrayList<String> strings) {
+        this.strings = strings;
+    }
 
-            }
-            node = node.getNextNode();
+    protected boolean visit(Node node) {
+        if(node instanceof NodeFunctionTranslatedString) {
+            this.strings.add(((NodeFunctionTranslatedString)node).getOriginalString());
+            return false;
         }
+        return true;
     }
 }
@@ -7,6 +7,7 @@
 package org.haplo.text;
 
 import com.ibm.icu.text.Normalizer;
+import com.ibm.icu.text.Normalizer2;
 import com.ibm.icu.lang.UCharacter;
 import com.ibm.icu.lang.UCharacterCategory;
 import com.ibm.icu.lang.UProperty;
@@ -127,7 +128,12 @@ public class Analyser {
         boolean term(String term, boolean terminatedWithStar);    // return true to continue
     }
 
-    static public class TermAbsorberString implements TermAbsorber {
+    // Receives terms without allocating a String for each one. The term is only valid until term() returns.
+    interface TermSequenceAbsorber {
+        boolean term(CharSequence term, boolean terminatedWithStar);    // return true to continue
+    }
+
+    static public class TermAbsorberString implements TermSequenceAbsorber {
         StringBuilder builder;
         boolean preserveTerminationWithStar;
 
@@ -137,7 +143,7 @@ public class Analyser {
             this.preserveTerminationWithStar = preserveTerminationWithStar;
         }
 
-        public boolean term(String term, boolean terminatedWithStar) {
+        public boolean term(CharSequence term, boolean terminatedWithStar) {
             builder.append(term);
             if(terminatedWithStar && preserveTerminationWithStar) {
                 builder.append('*');
@@ -159,16 +165,144 @@ public class Analyser {
                 (1 << UCharacterCategory.OTHER_SYMBOL))) != 0;
     }
 
+    // -------------------------------------------------------------------------------------------------------------------
+    // The ICU character properties used by analyse() are looked up in tables for the Basic Multilingual Plane,
+    // which is all the text most applications will see. Other characters use ICU directly.
+
+    private static final int END_OF_TEXT = -1;
+
+    private static final int CLASS_LETTER = 1;
+    private static final int CLASS_DIGIT = 2;
+    private static final int CLASS_SYMBOL = 4;   // characterIsSymbolAllowedInTerm()
+    private static final int CLASS_ACCENT = 8;   // in the combining diacritical marks block, and skipped
+
+    private static final byte[] bmpCharacterClasses = new byte[0x10000];
+    private static final char[] bmpLowerCase = new char[0x10000];
+
+    static {
+        for(int c = 0; c < 0x10000; ++c) {
+            bmpCharacterClasses[c] = (byte)lookUpCharacterClass(c);
+            bmpLowerCase[c] = (char)UCharacter.toLowerCase(c);
+        }
+    }
+
+    private static int lookUpCharacterClass(int character) {
+        int characterClass = 0;
+        if(UCharacter.isLetter(character)) { characterClass |= CLASS_LETTER; }
+        if(UCharacter.isDigit(character)) { characterClass |= CLASS_DIGIT; }
+        if(characterIsSymbolAllowedInTerm(character)) { characterClass |= CLASS_SYMBOL; }
+        if(UCharacter.getIntPropertyValue(character, UProperty.BLOCK) == UCharacter.UnicodeBlock.COMBINING_DIACRITICAL_MARKS_ID) {
+            characterClass |= CLASS_ACCENT;
+        }
+        return characterClass;
+    }
+
+    private static int characterClass(int character) {
+        if(character < 0) {
+            return 0;   // END_OF_TEXT
+        }
+        return (character < 0x10000) ? bmpCharacterClasses[character] : lookUpCharacterClass(character);
+    }
+
+    private static char lowerCase(int character) {
+        return (character < 0x10000) ? bmpLowerCase[character] : (char)UCharacter.toLowerCase(character);
+    }
+
+    // Text which is entirely ASCII is unchanged by normalisation
+    private static CharSequence normalizeForAnalysis(String input) {
+        int length = input.length();
+        for(int i = 0; i < length; ++i) {
+            if(input.charAt(i) >= 0x80) {
+                return Normalizer2.getNFKDInstance().normalize(input);
+            }
+        }
+        return input;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------------
+    // Stemmers and buffers are reused by each thread, and the stems of common words are cached.
+
+    private static final int STEM_CACHE_SIZE = 4096;    // must be power of 2
+    private static final int STEM_CACHE_MAX_WORD_LENGTH = 32;
+
+    private static class Workspace {
+        final EnglishStemmer stemmer = new EnglishStemmer();
+        final StringBuilder word = new StringBuilder(MAX_TERM_LENGTH);
+        final StringBuilder term = new StringBuilder((MAX_TERM_LENGTH * 2) + 1);
+        // Direct mapped cache, so lookups don't need to allocate a String for the word
+        final String[] cachedWords = new String[STEM_CACHE_SIZE];
+        final String[] cachedStems = new String[STEM_CACHE_SIZE];
+        boolean inUse;
+
+        String stem(StringBuilder builder) {
+            int length = builder.length();
+            if(length > STEM_CACHE_MAX_WORD_LENGTH) {
+                return stemWord(builder.toString());
+            }
+            int hash = 0;
+            for(int i = 0; i < length; ++i) {
+                hash = (31 * hash) + builder.charAt(i);
+            }
+            int index = (hash ^ (hash >>> 16)) & (STEM_CACHE_SIZE - 1);
+            String cached = this.cachedWords[index];
+            if(cached != null && cached.length() == length) {
+                int i = 0;
+                while(i < length && cached.charAt(i) == builder.charAt(i)) { ++i; }
+                if(i == length) {
+                    return this.cachedStems[index];
+                }
+            }
+            String word = builder.toString();
+            String stem = stemWord(word);
+            this.cachedWords[index] = word;
+            this.cachedStems[index] = stem;
+            return stem;
+        }
+
+        private String stemWord(String word) {
+            this.stemmer.setCurrent(word);
+            this.stemmer.stem();
+            return this.stemmer.getCurrent();
+        }
+    }
+
+    private static final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(Workspace::new);
+
+    // -------------------------------------------------------------------------------------------------------------------
+
     public void analyse(String input, TermAbsorber absorber) {
-        Normalizer normalizer = new Normalizer(input, normalizationMode, 0 /* no options */);
+        analyse(input, (TermSequenceAbsorber)(term, terminatedWithStar) -> absorber.term(term.toString(), terminatedWithStar));
+    }
 
-        // TODO: Choice of stemmer for text analysis
-        EnglishStemmer stemmer = new EnglishStemmer();
+    public void analyse(String input, TermSequenceAbsorber absorber) {
+        Workspace workspace = workspaces.get();
+        if(workspace.inUse) {
+            // Absorber is analysing other text
+            workspace = new Workspace();
+        } else {
+            workspace.inUse = true;
+        }
+        try {
+            analyse(input, absorber, workspace);
+        } finally {
+            workspace.inUse = false;
+        }
+    }
 
-        StringBuilder builder = new StringBuilder();
+    private void analyse(String input, TermSequenceAbsorber absorber, Workspace workspace) {
+        CharSequence text = normalizeForAnalysis(input);
+        int length = text.length();
+        int position = 0;
+
+        StringBuilder builder = workspace.word;
+        builder.setLength(0);
 
         int character = ' ';
-        int nextchar = normalizer.first();
+        int nextchar = END_OF_TEXT;
+        if(length > 0) {
+            nextchar = Character.codePointAt(text, 0);
+            position = Character.charCount(nextchar);
+        }
 
         // Remember to reset state after a term has been output
         boolean inTerm = false;
@@ -176,35 +310,37 @@ public class Analyser {
         boolean shouldStem = true;
 
         do {
+            int characterClass = characterClass(character);
             // Skip accents
-            if(UCharacter.getIntPropertyValue(character, UProperty.BLOCK) != UCharacter.UnicodeBlock.COMBINING_DIACRITICAL_MARKS_ID) {
-                if(UCharacter.isLetter(character)) {
+            if((characterClass & CLASS_ACCENT) == 0) {
+                if((characterClass & CLASS_LETTER) != 0) {
                     // Append char, converted to lowercase
-                    builder.append((char)UCharacter.toLowerCase(character));
+                    builder.append(lowerCase(character));
                     inTerm = true;
-                } else if(UCharacter.isDigit(character) || characterIsSymbolAllowedInTerm(character)) {
+                } else if((characterClass & (CLASS_DIGIT | CLASS_SYMBOL)) != 0) {
                     // Append digit
                     builder.append((char)character);
                     inTerm = true;
                     hasNumber = true;
                     shouldStem = false;
                 } else {
+                    int nextClass = characterClass(nextchar);
                     if(inTerm) {
                         // There are some cases where stuff shouldn't be output
                         boolean shouldOutput = true;
                         boolean terminatedWithStar = false;
-                        if((character == '\'' || character == '.') && UCharacter.isLetter(nextchar)) {
+                        if((character == '\'' || character == '.') && (nextClass & CLASS_LETTER) != 0) {
                             shouldOutput = false;
                         } else if(character == '*') {
                             terminatedWithStar = true;
                         } else if((character == '-' || character == '_' || character == '/'
                                 || character == '\\' || character == '.' || character == ',')
-                                && ((hasNumber && UCharacter.isLetterOrDigit(nextchar)) || UCharacter.isDigit(nextchar))) {
+                                && ((hasNumber && (nextClass & (CLASS_LETTER | CLASS_DIGIT)) != 0) || (nextClass & CLASS_DIGIT) != 0)) {
                             // Product number, or some other random symbol type thing
                             shouldOutput = false;
                             shouldStem = false; // don't stem this!
                             builder.append((char)character);
-                        } else if((character == '@' || character == '&') && UCharacter.isLetter(nextchar)) {
+                        } else if((character == '@' || character == '&') && (nextClass & CLASS_LETTER) != 0) {
                             // Symbols internal to company name
                             shouldOutput = false;
                             shouldStem = false;
@@ -218,7 +354,7 @@ public class Analyser {
                                 shouldStem = false;
                             }
                             // Send to absorber
-                            if(!sendStringToAbsorber(builder, absorber, shouldStem ? stemmer : null, terminatedWithStar)) {
+                            if(!sendStringToAbsorber(workspace, absorber, shouldStem, terminatedWithStar)) {
                                 // Absorber told the process to stop
                                 return;
                             }
@@ -228,7 +364,7 @@ public class Analyser {
                         }
                     } else {
                         // Special handling for '&'
-                        if(character == '&' && !(UCharacter.isLetterOrDigit(nextchar))) {
+                        if(character == '&' && (nextClass & (CLASS_LETTER | CLASS_DIGIT)) == 0) {
                             // Send an 'and' to the absorber, directly
                             absorber.term(TERM_FOR_LONE_AMPERSAND, false);
                         }
@@ -237,36 +373,39 @@ public class Analyser {
             }
 
             character = nextchar;
-            nextchar = normalizer.next();
-        } while(character != Normalizer.DONE);
+            if(position < length) {
+                nextchar = Character.codePointAt(text, position);
+                position += Character.charCount(nextchar);
+            } else {
+                nextchar = END_OF_TEXT;
+            }
+        } while(character != END_OF_TEXT);
 
         // Output any final term
-        sendStringToAbsorber(builder, absorber, shouldStem ? stemmer : null, false /* can't have been terminated with a star */);
+        sendStringToAbsorber(workspace, absorber, shouldStem, false /* can't have been terminated with a star */);
     }
 
-    private static boolean sendStringToAbsorber(StringBuilder builder, TermAbsorber absorber, EnglishStemmer stemmer, boolean terminatedWithStar) {
+    private static boolean sendStringToAbsorber(Workspace workspace, TermSequenceAbsorber absorber, boolean shouldStem, boolean terminatedWithStar) {
         boolean r = true;
-        if(builder.length() > 0) {
-            String word = builder.toString();
-            String s = word;
-
-            if(stemmer != null) {
-                stemmer.setCurrent(s);
-                stemmer.stem();
-                s = stemmer.getCurrent();
-            }
+        StringBuilder word = workspace.word;
+        if(word.length() > 0) {
+            StringBuilder term = workspace.term;
+            term.setLength(0);
 
             // Truncate if necessary
-            if(word.length() > MAX_TERM_LENGTH) {
-                word = word.substring(0, MAX_TERM_LENGTH - 1);
-            }
-            if(s.length() > MAX_TERM_LENGTH) {
-                s = s.substring(0, MAX_TERM_LENGTH - 1);
+            int wordLength = word.length();
+            term.append(word, 0, (wordLength > MAX_TERM_LENGTH) ? (MAX_TERM_LENGTH - 1) : wordLength);
+            term.append(':');
+            if(shouldStem) {
+                String s = workspace.stem(word);
+                term.append(s, 0, (s.length() > MAX_TERM_LENGTH) ? (MAX_TERM_LENGTH - 1) : s.length());
+            } else {
+                term.append(word, 0, (wordLength > MAX_TERM_LENGTH) ? (MAX_TERM_LENGTH - 1) : wordLength);
             }
 
-            r = absorber.term(word + ':' + s, terminatedWithStar);
+            r = absorber.term(term, terminatedWithStar);
 
-            builder.setLength(0);
+            word.setLength(0);
         }
         return r;
     }
@@ -6,6 +6,8 @@
 
 package org.haplo.text;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.InputStream;
 import java.io.FileInputStream;
@@ -17,8 +19,9 @@ import org.xml.sax.*;
 import org.xml.sax.helpers.*;
 
 import org.haplo.op.Operation;
+import org.haplo.op.OpCodec;
 
-public abstract class TextExtractOp extends Operation {
+public abstract class TextExtractOp extends Operation implements Operation.BinaryEncoded {
     private String inputPathname;
     // volatile required because output is written in one thread and immediately read in another, and under load
     // without it, occasionally output appears to be null.
@@ -28,6 +31,10 @@ public abstract class TextExtractOp extends Operation {
         this.inputPathname = inputPathname;
     }
 
+    public Priority getPriority() {
+        return Priority.BULK;
+    }
+
     protected void performOperation() {
         try {
             String text = extract();
@@ -38,6 +45,20 @@ public abstract class TextExtractOp extends Operation {
         }
     }
 
+    /**
+     * Binary encoding, as the output can be very large. Derived classes need a
+     * no-argument constructor.
+     */
+    public void writeFields(DataOutput out) throws IOException {
+        OpCodec.writeString(out, inputPathname);
+        OpCodec.writeString(out, output);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        inputPathname = OpCodec.readString(in);
+        output = OpCodec.readString(in);
+    }
+
     protected void copyResultsFromReturnedOperation(Operation resultOperation) {
         this.output = ((TextExtractOp)resultOperation).getOutput();
     }
@@ -21,6 +21,10 @@ public class HTML extends TextExtractOp {
     private static boolean jerichoInitialised = false;
     private static Object jerichoInitLock = new Object();
 
+    private HTML() {    // for binary decoding
+        this(null);
+    }
+
     public HTML(String inputPathname) {
         super(inputPathname);
 
@@ -76,6 +76,10 @@ public class IWorkSFF extends TextExtractOp {
         }
     }
 
+    private IWorkSFF() {    // for binary decoding
+        super(null);
+    }
+
     public IWorkSFF(String inputPathname) {
         super(inputPathname);
     }
@@ -20,6 +20,10 @@ import java.io.IOException;
 import org.haplo.text.TextExtractOp;
 
 public class MSOffice extends TextExtractOp {
+    private MSOffice() {    // for binary decoding
+        super(null);
+    }
+
     public MSOffice(String inputPathname) {
         super(inputPathname);
     }
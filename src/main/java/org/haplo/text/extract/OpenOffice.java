@@ -61,6 +61,10 @@ public class OpenOffice extends TextExtractOp {
         }
     }
 
+    private OpenOffice() {    // for binary decoding
+        super(null);
+    }
+
     public OpenOffice(String inputPathname) {
         super(inputPathname);
     }
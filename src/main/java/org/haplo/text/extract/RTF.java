@@ -17,6 +17,10 @@ import javax.swing.text.BadLocationException;
 import org.haplo.text.TextExtractOp;
 
 public class RTF extends TextExtractOp {
+    private RTF() {    // for binary decoding
+        super(null);
+    }
+
     public RTF(String inputPathname) {
         super(inputPathname);
     }
@@ -18,6 +18,10 @@ import com.ibm.icu.text.CharsetMatch;
 import org.haplo.text.TextExtractOp;
 
 public class Text extends TextExtractOp {
+    private Text() {    // for binary decoding
+        super(null);
+    }
+
     public Text(String inputPathname) {
         super(inputPathname);
     }
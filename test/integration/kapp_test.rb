@@ -10,6 +10,17 @@ class KAppIntegrationTest < IntegrationTest
   CACHE_TEST1 = KApp.cache_register(Array, "Test cache 1")
   CACHE_TEST2 = KApp.cache_register(SyncedLookupCache.factory(proc { |x| "VALUE #{x}" }), "Test cache 2", :shared)
 
+  class PooledTestObject
+    attr_reader :checkouts
+    def initialize
+      @checkouts = 0
+    end
+    def kapp_cache_checkout
+      @checkouts += 1
+    end
+  end
+  CACHE_TEST3 = KApp.cache_register(PooledTestObject, "Test cache 3", :pooled, {:min_warm => 1, :max_idle => 1})
+
   def setup
     # To avoid counters getting screwed up
     @assert_lock = Mutex.new
@@ -170,6 +181,28 @@ class KAppIntegrationTest < IntegrationTest
 
   # =======================================================================================================================
 
+  def test_pooled_cache
+    KApp.in_application(@app_id) do
+      assert_equal 1, KApp.cache(CACHE_TEST3).checkouts
+    end
+    # Pool has max_idle objects, so a warm up wouldn't build anything
+    assert KApp._cache_pool_full?(CACHE_TEST3)
+    KApp.in_application(@app_id) do
+      # Idle object is reused
+      assert_equal 2, KApp.cache(CACHE_TEST3).checkouts
+      KApp.cache_invalidate(CACHE_TEST3)
+    end
+    assert ! KApp._cache_pool_full?(CACHE_TEST3)
+    # Replacement is built by the background task, but do it here in case it's not running
+    KApp._cache_pool_do_warm_ups
+    KApp.in_application(@app_id) do
+      # Object was checked out once when it was built in the background
+      assert_equal 2, KApp.cache(CACHE_TEST3).checkouts
+    end
+  end
+
+  # =======================================================================================================================
+
   def test_app_globals
     run_multiple_threads :tag_thread1, :tag_thread2
   end
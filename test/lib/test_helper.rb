@@ -34,8 +34,7 @@ class Test::Unit::TestCase
       end
       without_application do
         queues.keys.each do |queue|
-          runner = KJob::Runner.new(queue)
-          adjust_kjob_runner_for_tests(runner)
+          runner = KJob::Runner.new(queue, _TEST_APP_ID)
           # Run the jobs
           while runner.run_next_job
             # nothing
@@ -54,12 +53,6 @@ class Test::Unit::TestCase
     end
   end
 
-  def adjust_kjob_runner_for_tests(runner)
-    # Hack the select next job SQL in the runner so it only finds jobs for the app being tested in this thread
-    sql = runner.instance_variable_get(:@next_job_sql)
-    runner.instance_variable_set(:@next_job_sql, sql.gsub('WHERE queue', "WHERE application_id=#{_TEST_APP_ID} AND queue"))
-  end
-
   # Helpers for checking audit entries
   def about_to_create_an_audit_entry
     @_audit_entry_current_id = audit_entries_last_id(true)
@@ -128,6 +128,13 @@ TEST(function() {
         n2: { type:"numeric", nullable:true, precision:10, scale:4 }
     });
 
+    db.table("bulk1", {
+        name: { type:"text" },
+        number: { type:"int" },
+        user: { type:"user", nullable:true },
+        data: { type:"json", nullable:true }
+    });
+
     // Set up the storage
     $host._testCallback("");
 
@@ -180,7 +187,7 @@ TEST(function() {
         // Check that the query can't be modified after it's been run
         alldepartments.where("name","=",'Human resources');
     }, "Query has been executed, and cannot be modified.");
-    _.each(["order","stableOrder","limit","offset","include","whereMemberOfGroup","and","or"], function(fn) {
+    _.each(["order","stableOrder","limit","offset","fetchSize","pageAfter","include","whereMemberOfGroup","and","or"], function(fn) {
         TEST.assert_exceptions(function() {
             alldepartments[fn].call(alldepartments);
         }, "Query has been executed, and cannot be modified.");
@@ -558,9 +565,61 @@ TEST(function() {
     TEST.assert_equal("", t_res(db.numbers.select().where("medium", "<", 349).offset(100).order("medium", true)));
     TEST.assert_equal("a3:a1:", t_res(db.numbers.select().where("big", "=", null).limit(2).where("medium", ">=", 10).order("medium", true)));
     TEST.assert_equal("a4:a2:", t_res(db.numbers.select().offset(1).where("medium", "<", 349).order("medium", true)));
+    // Pages of the same query use the same SQL with different values
+    TEST.assert_equal("a2:", t_res(db.numbers.select().where("pingTime", "=", null).offset(0).limit(1).order("medium")));
+    TEST.assert_equal("a4:", t_res(db.numbers.select().where("pingTime", "=", null).offset(1).limit(1).order("medium")));
+    TEST.assert_equal("a1:", t_res(db.numbers.select().where("pingTime", "=", null).offset(2).limit(1).order("medium")));
+    TEST.assert_equal("", t_res(db.numbers.select().where("pingTime", "=", null).offset(3).limit(1).order("medium")));
     TEST.assert_exceptions(function() { db.numbers.select().limit(-1); }, "Limit cannot be negative");
     TEST.assert_exceptions(function() { db.numbers.select().offset(-1); }, "Offset cannot be negative");
 
+    // Streaming
+    var streamed = "";
+    db.numbers.select().where("medium", "<", 349).order("medium", true).fetchSize(2).stream(function(row, i) {
+        streamed += i+row.name+":";
+    });
+    TEST.assert_equal("0a1:1a4:2a2:", streamed);
+    streamed = "";
+    db.numbers.select().order("name").fetchSize(1).stream(function(row, i) {
+        streamed += row.name+":";
+        return i !== 1; // stop after second row
+    });
+    TEST.assert_equal("a1:a2:", streamed);
+    // Store objects can be saved while streaming, in their own transactions
+    var streamedRefs = [];
+    db.numbers.select().order("name").fetchSize(2).stream(function(row, i) {
+        var obj = O.object();
+        obj.appendType(TYPE["std:type:book"]);
+        obj.appendTitle("Streamed "+row.name);
+        obj.save();
+        streamedRefs.push(obj.ref);
+    });
+    TEST.assert_equal(6, streamedRefs.length);
+    _.each(streamedRefs, function(ref, i) {
+        TEST.assert_equal("Streamed a"+(i+1), ref.load().title);
+    });
+    TEST.assert_exceptions(function() { db.numbers.select().fetchSize(0); }, "Fetch size must be at least 1");
+
+    // Keyset pagination
+    var t_pages = function(makeQuery) {
+        var x = "", last;
+        while(true) {
+            var q = makeQuery().limit(2);
+            if(last) { q.pageAfter(last); }
+            if(q.length === 0) { return x; }
+            x += t_res(q) + "|";
+            last = q[q.length - 1];
+        }
+    };
+    TEST.assert_equal("a1:a2:|a3:a4:|a5:a6:|", t_pages(function() { return db.numbers.select(); }));
+    TEST.assert_equal("a6:a5:|a1:a2:|a3:a4:|", t_pages(function() { return db.numbers.select().order("big"); }));
+    TEST.assert_equal("a1:a2:|a3:a4:|a5:a6:|", t_pages(function() { return db.numbers.select().order("big", true); }));
+    TEST.assert_equal("a1:a3:|a2:a5:|a6:a4:|", t_pages(function() { return db.numbers.select().order("bools").order("small", true); }));
+    TEST.assert_equal("a4:a1:", t_res(db.numbers.select().where("medium", "<", 349).order("medium").pageAfter(db.numbers.select().where("name", "=", "a2")[0])));
+    TEST.assert_exceptions(function() { db.numbers.select().pageAfter(db.numbers.select()[0]).order("medium"); }, "order() must be used before pageAfter()");
+    TEST.assert_exceptions(function() { db.numbers.select().pageAfter(db.numbers.create({name:"x", small:1, medium:1})); }, "Database row object hasn't be saved and can't be used in pageAfter()");
+    TEST.assert_exceptions(function() { db.numbers.select().pageAfter(db.department.create({name:"x"})); }, "pageAfter() must be passed a row from table 'numbers'");
+
     // Aggregate functions
 (function() { // TODO: Work out why this anon function is necessary to stop Rhino getting upset
     var selectForAggregate = db.numbers.select();   // for reuse a few times
@@ -214,6 +214,50 @@ TEST(function() {
     testRequiredStateAgainstDB();
 
 
+    // =====================================================================================
+    // Bulk inserts and updates
+    var bulkRows = db.bulk1.createMany([
+        {name:"b0", number:10},
+        {name:"b1", number:11, user:O.user(41), data:{x:1}},
+        db.bulk1.create({name:"b2", number:12})
+    ]);
+    TEST.assert_equal(3, bulkRows.length);
+    TEST.assert(bulkRows[0].id < bulkRows[1].id && bulkRows[1].id < bulkRows[2].id);
+    _.each(bulkRows, function(row, i) {
+        var loaded = db.bulk1.load(row.id);
+        TEST.assert_equal("b"+i, loaded.name);
+        TEST.assert_equal(10+i, loaded.number);
+    });
+    TEST.assert_equal(41, db.bulk1.load(bulkRows[1].id).user.id);
+    TEST.assert_equal(1, db.bulk1.load(bulkRows[1].id).data.x);
+    TEST.assert_equal(0, db.bulk1.createMany([]).length);
+    // Mix of new rows and updates, with different fields changed
+    bulkRows[0].number = 20;
+    bulkRows[1].number = 21;
+    bulkRows[2].name = "c2";
+    bulkRows[2].user = O.user(42);
+    var bulkNew = db.bulk1.create({name:"b3", number:13});
+    db.bulk1.saveMany([bulkRows[0], bulkNew, bulkRows[1], bulkRows[2]]);
+    TEST.assert(bulkNew.id > bulkRows[2].id);
+    var bulkSaved = [];
+    db.bulk1.select().order("id").each(function(r) { bulkSaved.push(r.name+":"+r.number); });
+    TEST.assert_equal("b0:20,b1:21,c2:12,b3:13", bulkSaved.join(","));
+    TEST.assert_equal(42, db.bulk1.load(bulkRows[2].id).user.id);
+    // Rows are checked before anything is written
+    TEST.assert_exceptions(function() {
+        db.bulk1.createMany([{name:"x1", number:1}, {name:"x2"}]);
+    }, "Row 1 has no value for field 'number' in table 'bulk1'");
+    TEST.assert_exceptions(function() {
+        db.bulk1.createMany([bulkNew]);
+    }, "Row 0 passed to createMany() has already been saved");
+    TEST.assert_exceptions(function() {
+        db.bulk1.saveMany([db.numerics.create({})]);
+    }, "saveMany() must be passed an Array of rows from table 'bulk1'");
+    TEST.assert_exceptions(function() {
+        db.bulk1.createMany({name:"x"});
+    }, "createMany() must be passed an Array");
+    TEST.assert_equal(4, db.bulk1.select().count());
+
     // =====================================================================================
     // Very simple migration test
     db.forMigration.create({number1:2}).save();
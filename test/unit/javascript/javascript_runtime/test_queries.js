@@ -200,6 +200,19 @@ TEST(function() {
     test_sparse_queries(false);
     test_sparse_queries(true);
 
+    // Loading many objects at once
+    var results4 = O.query().link(TYPE["std:type:book"], ATTR.Type).sortByTitle().setSparseResults(true).execute();
+    results4.prefetchLinkedObjects(ATTR.Type).prefetchLinkedObjects();
+    var refs4 = [results4.refAtIndex(2), null, results4.refAtIndex(0)];
+    O.prefetch(refs4);
+    var loaded4 = O.loadMany(refs4);
+    TEST.assert_equal(3, loaded4.length);
+    TEST.assert_equal("Flutes", loaded4[0].firstTitle().toString());
+    TEST.assert_equal(null, loaded4[1]);
+    TEST.assert_equal("ABC", loaded4[2].firstTitle().toString());
+    TEST.assert_equal(0, O.loadMany([]).length);
+    TEST.assert_exceptions(function() { O.loadMany(["not a ref"]); }, "Array passed to O.loadMany() must only contain refs");
+
     // See what happens if you try and pass something to each() which isn't an iterator
     TEST.assert_exceptions(function() {
         O.query("ping").execute().each();
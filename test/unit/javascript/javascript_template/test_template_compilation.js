@@ -0,0 +1,63 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+
+TEST(function() {
+
+    // Literals next to tags are merged into the tag when the template is parsed,
+    // which mustn't change the rendered output.
+    var view = {
+        value: "x<y",
+        url: "/do/a b",
+        attrs: {title: "T&", "data-x": "1"},
+        params: {p: "q r"},
+        items: [{name:"a"}, {name:"b"}],
+        empty: ""
+    };
+    var render = function(source, expected) {
+        var template = new $HaploTemplate(source, "test-template-compilation");
+        TEST.assert_equal(expected, template.render(view));
+        // Compiled nodes are reused on the next render
+        TEST.assert_equal(expected, template.render(view));
+    };
+
+    // Literals either side of tags, without and with dynamic attributes
+    render('"Before " <b> "bold" </b> " after"',
+        'Before <b>bold</b> after');
+    render('"Before " <b title=value> value </b> " after"',
+        'Before <b title="x&lt;y">x&lt;y</b> after');
+    render('<p> "One " <span class="c d" title="t u"> "two" </span> " three " <i data-v=value> value </i> </p>',
+        '<p>One <span class="c d" title="t u">two</span> three <i data-v="x&lt;y">x&lt;y</i></p>');
+
+    // Attribute dictionaries
+    render('"x" <div *attrs> "y" </div> "z"',
+        'x<div title="T&amp;" data-x="1">y</div>z');
+    render('"x" <div title=value *attrs> value </div> "z"',
+        'x<div title="x&lt;y" title="T&amp;" data-x="1">x&lt;y</div>z');
+
+    // Tags with attributes in URL context
+    render('"Link: " <a href=url> "go" </a> " end"',
+        'Link: <a href="/do/a%20b">go</a> end');
+    render('"Link: " <a href=["/do/thing" url "/x" ? v=value *params]> "go" </a> "!"',
+        'Link: <a href="/do/thing%2Fdo%2Fa%20b/x?v=x%3Cy&p=q%20r">go</a>!');
+    render('<a href=["/do/" value # "frag"]> "f" </a> "after"',
+        '<a href="/do/x%3Cy#frag">f</a>after');
+
+    // Lists in attribute values are not merged into tags
+    render('<span title=["a" value "b"]> "t" </span> "after"',
+        '<span title="a x&lt;y b">t</span>after');
+
+    // Nested blocks
+    render('<ul> each(items) { "[" <li title=name> name </li> "]" } </ul>',
+        '<ul>[<li title="a">a</li>][<li title="b">b</li>]</ul>');
+    render('if(value) { "a" <b> value </b> "c" } else { "d" <i> "e" </i> }',
+        'a<b>x&lt;y</b>c');
+    render('if(empty) { "a" <b> "b" </b> } else { "d" <i> "e" </i> "f" }',
+        'd<i>e</i>f');
+    render('<div> if(value) { <p> "one" each(items) { <span> name </span> " " } "two" </p> } "end" </div>',
+        '<div><p>one<span>a</span> <span>b</span> two</p>end</div>');
+
+});
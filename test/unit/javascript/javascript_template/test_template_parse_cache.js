@@ -0,0 +1,25 @@
+/* Haplo Platform                                    https://haplo.org
+ * (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.         */
+
+
+TEST(function() {
+
+    // Same source and name uses the shared parsed template
+    var t1 = new $HaploTemplate('<p> "Shared " value </p>', "test-parse-cache");
+    var t2 = new $HaploTemplate('<p> "Shared " value </p>', "test-parse-cache");
+    TEST.assert_equal("<p>Shared x</p>", t1.render({value:"x"}));
+    TEST.assert_equal("<p>Shared y</p>", t2.render({value:"y"}));
+
+    // Debug comments don't leak into other users of the shared template
+    t1.addDebugComment("first");
+    TEST.assert_equal("<!-- BEGIN first --><p>Shared x</p><!-- END first -->", t1.render({value:"x"}));
+    TEST.assert_equal("<p>Shared y</p>", t2.render({value:"y"}));
+
+    // Changed source is parsed again
+    var t3 = new $HaploTemplate('<p> "Changed " value </p>', "test-parse-cache");
+    TEST.assert_equal("<p>Changed z</p>", t3.render({value:"z"}));
+
+});
@@ -92,11 +92,14 @@ __E
                                'unit/javascript/javascript_http_client/test_httpclient.js',
                                {"TEST_SERVER_PORT"=>TEST_SERVER_PORT},
                                "grant_privileges_plugin", :preserve_js_runtime)
-      run_all_jobs({})
-      sleep(2) # Retry jobs
-      run_all_jobs({})
-      sleep(2) # Retry jobs
-      run_all_jobs({})
+      # Requests are made asynchronously, and some are retried, so keep running
+      # jobs until every request has had its callback.
+      scope = rt.getJavaScriptScope
+      60.times do
+        run_all_jobs({})
+        break if scope.get("REQUESTS_TRIED",scope) == scope.get("REQUESTS_REPLIED",scope)
+        sleep(0.5)
+      end
       uninstall_grant_privileges_plugin()
 
       # Was the large file added to the store?
@@ -105,8 +108,6 @@ __E
       assert_equal 64*1024, stored_file.size
       assert_equal "sixty-four-k.txt", stored_file.presentation_filename
 
-      # KJSPluginRuntime.current.runtime
-      scope = rt.getJavaScriptScope
       assert_equal "No", scope.get("FAILED",scope)
       assert_equal scope.get("REQUESTS_TRIED"), scope.get("REQUESTS_REPLIED",scope)
     ensure
@@ -1067,6 +1067,7 @@ __E
     # Create some test files
     file1 = StoredFile.from_upload(fixture_file_upload('files/example10.tiff', 'image/tiff'))
     file2 = StoredFile.from_upload(fixture_file_upload('files/example7.html', 'text/html'))
+    query_cache_hits = Java::OrgHaploJsinterfaceDb::JdTable.getGeneratedQueryCacheHits()
     # Run test which defines tables
     runtime = run_javascript_test(:file, 'unit/javascript/javascript_runtime/test_database.js', nil, "grant_privileges_plugin", :preserve_js_runtime) do |runtime|
       # Before running tests, tell the namespace the name to use, via the host
@@ -1102,6 +1103,8 @@ __E
     end
     # Test is split into two parts to avoid the function being too long
     run_javascript_test(:file, 'unit/javascript/javascript_runtime/test_database2.js', nil, "grant_privileges_plugin")
+    # Queries with the same shape reused the generated SQL
+    assert Java::OrgHaploJsinterfaceDb::JdTable.getGeneratedQueryCacheHits() > query_cache_hits
     KApp.with_pg_database do |db|
       # Check columns for the dynamic table
       column_defns = db.exec("SELECT column_name,data_type FROM information_schema.columns WHERE table_schema='a#{KApp.current_application}' AND table_name='j_dbtest_dyn1'").to_a.sort
@@ -1548,6 +1551,22 @@ __E
     @runtime2.stopUsingOnThisThread();
   end
 
+  def test_compiled_script_cache_shared_between_runtimes
+    script_cache = Java::OrgHaploJavascript::ScriptCache
+    code = %Q! var scriptCacheTest = (this.scriptCacheTest || 0) + 1; $host._debug_string = (scriptCacheTest === 1) ? 'OK' : 'FAIL'; !
+    hits = script_cache.getHits()
+    misses = script_cache.getMisses()
+    [make_javascript_runtime(), make_javascript_runtime()].each do |runtime|
+      runtime.useOnThisThread(JSSupportRoot.new)
+      runtime.evaluateCachedString(code, "test/script_cache_#{code.hash}.js")
+      # Top level code is executed in each runtime's own scope
+      assert_from_runtime runtime
+      runtime.stopUsingOnThisThread()
+    end
+    assert_equal misses + 1, script_cache.getMisses()
+    assert_equal hits + 1, script_cache.getHits()
+  end
+
   def assert_from_runtime(runtime)
     assert_equal 'OK', runtime.host.jsGet__debug_string()
   end
@@ -47,4 +47,19 @@ class JavascriptTemplateTest < Test::Unit::TestCase
   def test_template_is_deferred_render
     run_javascript_test(:file, 'unit/javascript/javascript_template/test_template_is_deferred_render.js');
   end
+
+  def test_template_compilation
+    run_javascript_test(:file, 'unit/javascript/javascript_template/test_template_compilation.js');
+  end
+
+  def test_template_parse_cache
+    cache = Java::OrgHaploJsinterfaceTemplate::TemplateParseCache
+    cache.clear
+    hits = cache.getHits()
+    misses = cache.getMisses()
+    run_javascript_test(:file, 'unit/javascript/javascript_template/test_template_parse_cache.js');
+    # Runtime creation may have parsed other templates as well
+    assert cache.getHits() >= hits + 1
+    assert cache.getMisses() >= misses + 2
+  end
 end
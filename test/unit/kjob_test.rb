@@ -62,6 +62,23 @@ class TestJob2 < KJob
   end
 end
 
+# ------------------------
+class TestJob3 < KJob
+  def self.run_order
+    Thread.current[:_tj3_run_order] ||= []
+  end
+  def initialize(name, priority)
+    @name = name
+    @priority = priority
+  end
+  def default_priority
+    @priority
+  end
+  def run(context)
+    TestJob3.run_order << @name
+  end
+end
+
 # ------------------------
 class KJobTest < Test::Unit::TestCase
 
@@ -76,8 +93,7 @@ class KJobTest < Test::Unit::TestCase
     TestJob2.reset_run_count
 
     # Make a runner
-    runner = KJob::Runner.new(KJob::QUEUE_DEFAULT)
-    adjust_kjob_runner_for_tests(runner)
+    runner = KJob::Runner.new(KJob::QUEUE_DEFAULT, _TEST_APP_ID)
 
     # Set a user -- KJob picks it up from AuthContext
     old_auth_state = AuthContext.set_user(User.cache[42], User.cache[42])
@@ -169,8 +185,7 @@ class KJobTest < Test::Unit::TestCase
     end
 
     # Test that jobs only run in their specified queue
-    runner2 = KJob::Runner.new(KJob::QUEUE_DEFAULT + 1)
-    adjust_kjob_runner_for_tests(runner)
+    runner2 = KJob::Runner.new(KJob::QUEUE_DEFAULT + 1, _TEST_APP_ID)
     TestJob1.reset_run_count
     TestJob1.new.submit
     without_application do
@@ -182,5 +197,40 @@ class KJobTest < Test::Unit::TestCase
     end
 
   end
-end
 
+  def test_job_priority
+    runner = KJob::Runner.new(KJob::QUEUE_DEFAULT, _TEST_APP_ID)
+    TestJob3.run_order.clear
+    AuthContext.with_system_user do
+      TestJob3.new('low', -1).submit
+      TestJob3.new('normal1', 0).submit
+      TestJob3.new('high', 5).submit
+      TestJob3.new('normal2', 0).submit
+      TestJob3.new('explicit', 0).submit(nil, nil, nil, 10)
+    end
+    without_application do
+      while runner.run_next_job
+      end
+    end
+    assert_equal ['explicit', 'high', 'normal1', 'normal2', 'low'], TestJob3.run_order
+  end
+
+  def test_claimed_jobs_are_released
+    runner = KJob::Runner.new(KJob::QUEUE_DEFAULT, _TEST_APP_ID)
+    TestJob1.reset_run_count
+    AuthContext.with_system_user do
+      3.times { TestJob1.new.submit }
+    end
+    without_application do
+      assert_equal true, runner.run_next_job
+      assert_equal 1, TestJob1.run_count
+      # Stopping the runner returns the other jobs to the queue
+      runner.set_to_stop
+      runner2 = KJob::Runner.new(KJob::QUEUE_DEFAULT, _TEST_APP_ID)
+      assert_equal true, runner2.run_next_job
+      assert_equal true, runner2.run_next_job
+      assert_equal false, runner2.run_next_job
+      assert_equal 3, TestJob1.run_count
+    end
+  end
+end
@@ -286,6 +286,92 @@ class KLabelsTest < Test::Unit::TestCase
 
   # ----------------------------------------------------------------------------------------------------
 
+  def test_compiled_statements
+    random = Random.new(1234)
+    random_labels = Proc.new { |count| KLabelList.new((0...count).map { 1 + random.rand(2000) }) }
+    make_statements = Proc.new do
+      statements = KLabelStatementsOps.new
+      statements.statement(:read, random_labels.call(400), random_labels.call(30))
+      statements.statement(:update, random_labels.call(50), random_labels.call(5))
+      statements.freeze
+    end
+    a = make_statements.call
+    b = make_statements.call
+    c = make_statements.call
+    [
+      a,
+      KLabelStatements.combine(a, b, :and),
+      KLabelStatements.combine(a, b, :or),
+      KLabelStatements.combine(KLabelStatements.combine(a, b, :or), c, :and),
+      KLabelStatements.combine(a, KLabelStatements.super_user, :and),
+      KLabelStatements.combine(a, KLabelStatements.new.freeze, :or)
+    ].each do |statements|
+      [:read, :update].each do |operation|
+        assert_not_equal nil, statements._compiled(operation)
+        label_lists = (0...200).map { random_labels.call(random.rand(8)) }
+        expected = label_lists.map { |l| statements._evaluate_allow?(operation, l) }
+        assert expected.include?(true) && expected.include?(false)
+        assert_equal expected, label_lists.map { |l| statements.allow?(operation, l) }
+        assert_equal expected, statements.allow_each(operation, label_lists)
+        (1..2000).each do |label|
+          assert_equal statements._evaluate_label_is_allowed?(operation, label), statements.label_is_allowed?(operation, label)
+        end
+      end
+    end
+
+    # Statements which aren't frozen aren't compiled, as they could still change
+    unfrozen = KLabelStatementsOps.new
+    unfrozen.statement(:read, KLabelList.new([1]), KLabelList.new([]))
+    assert_equal nil, unfrozen._compiled(:read)
+    combined_with_unfrozen = KLabelStatements.combine(unfrozen, a, :or)
+    assert_equal nil, combined_with_unfrozen._compiled(:read)
+    # ... but frozen statements which can't be compiled aren't tried again
+    assert_equal false, combined_with_unfrozen.instance_variable_get(:@compiled)['read']
+    assert_equal [true, false], unfrozen.allow_each(:read, [KLabelList.new([1]), KLabelList.new([2])])
+
+    # Operations without statements behave as before
+    assert_raises(RuntimeError) { a.allow?(:carrots, KLabelList.new([1])) }
+    assert_raises(RuntimeError) { a.allow_each(:carrots, [KLabelList.new([1])]) }
+    assert ! a.label_is_allowed?(:carrots, 1)
+    assert_equal false, a.instance_variable_get(:@compiled)['carrots']
+
+    # Super-user
+    assert_equal [true, true], KLabelStatements.super_user.allow_each(:read, [KLabelList.new([]), KLabelList.new([1])])
+  end
+
+  def _test_compiled_statements_non_representative_benchmark
+    random = Random.new(1234)
+    random_labels = Proc.new { |count| KLabelList.new((0...count).map { 1 + random.rand(20000) }) }
+    # Objects have a few labels, users have permissions with a range of label counts, combined with
+    # the statements returned by plugins.
+    label_lists = (0...1000).map { random_labels.call(1 + random.rand(8)) }
+    [10, 100, 1000, 10000].each do |label_count|
+      make_statements = Proc.new do
+        statements = KLabelStatementsOps.new
+        statements.statement(:read, random_labels.call(label_count), random_labels.call(label_count / 10))
+        statements.freeze
+      end
+      statements = KLabelStatements.combine(KLabelStatements.combine(make_statements.call, make_statements.call, :or), make_statements.call, :and)
+      number_of_runs = 100
+      2.times do # second time is after warm up
+        evaluate_ms = KApp.execution_time_ms do
+          number_of_runs.times { label_lists.each { |l| statements._evaluate_allow?(:read, l) } }
+        end
+        allow_ms = KApp.execution_time_ms do
+          number_of_runs.times { label_lists.each { |l| statements.allow?(:read, l) } }
+        end
+        allow_each_ms = KApp.execution_time_ms do
+          number_of_runs.times { statements.allow_each(:read, label_lists) }
+        end
+        checks = (number_of_runs * label_lists.length).to_f
+        puts "#{label_count} labels per statement, each check took: evaluated #{evaluate_ms.to_f / checks}ms, "+
+          "compiled allow? #{allow_ms.to_f / checks}ms, compiled allow_each #{allow_each_ms.to_f / checks}ms"
+      end
+    end
+  end
+
+  # ----------------------------------------------------------------------------------------------------
+
   def test_superuser_statements
     superuser = KLabelStatements.super_user
     assert superuser.frozen?
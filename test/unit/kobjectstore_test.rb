@@ -121,6 +121,7 @@ class KObjectStoreTest < Test::Unit::TestCase
 
     # Set some labels directly on the row in the database, then read the object, checking the labels updated
     KApp.with_pg_database { |pg| pg.perform("UPDATE #{KApp.db_schema_name}.os_objects SET labels='{8,5,10}'::int[] WHERE id=#{obj.objref.obj_id}") }
+    KObjectStore::SHARED_OBJECT_CACHE.clear_app(_TEST_APP_ID) # because the database was changed behind the store's back
     retrieved2 = KObjectStore.read(obj.objref)
     assert retrieved2.frozen?
     assert_equal 1, retrieved2.version # doesn't change version
@@ -526,6 +527,99 @@ class KObjectStoreTest < Test::Unit::TestCase
     end
   end
 
+  def test_shared_object_cache
+    restore_store_snapshot("min")
+    obj = KObject.new()
+    obj.add_attr("shared", 100)
+    KObjectStore.create(obj)
+    shared_hits = KObjectStore.statistics.shared_cache_hit
+    obj_read = KObjectStore.read(obj.objref)
+    assert_equal shared_hits, KObjectStore.statistics.shared_cache_hit
+
+    # Another thread, with its own store, uses the object read by this thread
+    read_in_other_thread = proc do
+      result = nil
+      Thread.new do
+        KApp.in_application(_TEST_APP_ID) do
+          result = [KObjectStore.read(obj.objref), KObjectStore.statistics.shared_cache_hit]
+        end
+      end.join
+      result
+    end
+    other_obj, other_shared_hits = read_in_other_thread.call
+    assert other_obj.equal?(obj_read)
+    assert_equal 1, other_shared_hits
+
+    # Updates are seen by the other thread
+    obj_update = obj_read.dup
+    obj_update.add_attr("x", 101)
+    KObjectStore.update(obj_update)
+    other_obj, other_shared_hits = read_in_other_thread.call
+    assert_equal 0, other_shared_hits
+    assert_equal 2, other_obj.version
+
+    # Permissions are enforced on objects from the shared cache
+    KObjectStore.read(obj.objref) # make sure it's in the shared cache
+    objectstore_cache.clear
+    perms = KLabelStatementsOps.new
+    perms.statement(:read, KLabelList.new([1234]), KLabelList.new([9876]))
+    set_mock_objectstore_user(87, perms)
+    shared_hits = KObjectStore.statistics.shared_cache_hit
+    assert_raises(KObjectStore::PermissionDenied) do
+      KObjectStore.read(obj.objref)
+    end
+    assert_equal shared_hits + 1, KObjectStore.statistics.shared_cache_hit
+    set_mock_objectstore_user(0)
+  end
+
+  def test_read_many_and_prefetch
+    restore_store_snapshot("min")
+    objs = (0..4).map do |i|
+      obj = KObject.new([1234])
+      obj.add_attr("many #{i}", 100)
+      KObjectStore.create(obj)
+      obj
+    end
+    linked = KObjectStore.create(KObject.new([9876])).objref # labelled so it can't be read below
+    linking = objs[4].dup
+    linking.add_attr(linked, 101)
+    KObjectStore.update(linking)
+    KObjectStore::SHARED_OBJECT_CACHE.clear_app(_TEST_APP_ID)
+    objectstore_cache.clear
+
+    # Prefetch loads into the store's cache, without checking permissions
+    KObjectStore.prefetch([objs[0].objref, nil, objs[1].objref, KObjRef.new(9999999)])
+    assert objectstore_cache.include?(objs[0].objref.to_i)
+    assert objectstore_cache.include?(objs[1].objref.to_i)
+    expecting_store_cache_hit(2) do
+      assert_equal "many 0", KObjectStore.read(objs[0].objref).first_attr(100)
+      assert_equal "many 1", KObjectStore.read(objs[1].objref).first_attr(100)
+    end
+
+    # read_many returns objects in order, with nil for missing objects
+    many = KObjectStore.read_many([objs[3].objref, KObjRef.new(9999999), nil, objs[2].objref, objs[3].objref])
+    assert_equal ["many 3", nil, nil, "many 2", "many 3"], many.map { |o| o && o.first_attr(100) }
+
+    # Permissions are enforced as read()
+    perms = KLabelStatementsOps.new
+    perms.statement(:read, KLabelList.new([1234]), KLabelList.new([]))
+    set_mock_objectstore_user(87, perms)
+    assert_equal 2, KObjectStore.read_many([objs[0].objref, objs[2].objref]).length
+    KObjectStore.prefetch([linked])
+    assert_raises(KObjectStore::PermissionDenied) do
+      KObjectStore.read_many([objs[0].objref, linked])
+    end
+    set_mock_objectstore_user(0)
+
+    # Query results load from the shared cache, and prefetch linked objects
+    results = KObjectStore.query_and.link(linked, 101).execute(:all, :any)
+    assert_equal 1, results.length
+    KObjectStore::SHARED_OBJECT_CACHE.clear_app(_TEST_APP_ID)
+    objectstore_cache.clear
+    results.prefetch_linked_objects(101)
+    assert objectstore_cache.include?(linked.to_i)
+  end
+
   def objectstore_cache
     KObjectStore.store.instance_variable_get(:@object_cache)
   end
@@ -1809,6 +1903,36 @@ __E
     end
   end
 
+  def test_dirty_text_coalesced
+    restore_store_snapshot("basic")
+    obj = KObject.new()
+    obj.add_attr("Coalesce me", 1)
+    KObjectStore.create(obj)
+    3.times { KObjectStore.reindex_text_for_object(obj.objref) }
+    dirty_count = proc do
+      KApp.with_pg_database { |db| db.exec("SELECT COUNT(*) FROM public.os_dirty_text WHERE app_id=#{_TEST_APP_ID} AND osobj_id=#{obj.objref.obj_id}").first.first.to_i }
+    end
+    assert_equal 4, dirty_count.call
+    without_application do
+      work = KObjectStore::StoreReindexWork.new(_TEST_APP_ID)
+      assert work.prepare
+      dirty_objects = work.instance_variable_get(:@dirty_objects)
+      assert_equal 1, dirty_objects.length
+      assert_equal 4, dirty_objects[obj.objref.obj_id].length
+    end
+    run_outstanding_text_indexing
+    assert_equal 0, dirty_count.call
+    assert_equal 1, KObjectStore.query_and.free_text("coalesce").execute(:all, :any).length
+  end
+
+  def test_xapian_writer_term_count
+    # Must match the number of terms posted by the Xapian extension, so positions are allocated correctly
+    assert_equal 0, KXapianWriter.term_count("")
+    assert_equal 3, KXapianWriter.term_count(KTextAnalyser.text_to_terms("Fishes are swimming"))
+    assert_equal 2, KXapianWriter.term_count("  a:b\n\tc:d  nocolon ")
+    assert_equal 1, KXapianWriter.term_count("ecole:ecol")
+  end
+
   def test_free_text_search
     restore_store_snapshot("min")
 
@@ -0,0 +1,160 @@
+# frozen_string_literal: true
+
+# Haplo Platform                                    https://haplo.org
+# (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+
+class OpCodecTest < Test::Unit::TestCase
+
+  OpCodec = Java::OrgHaploOp::OpCodec
+  ObjectPipe = Java::OrgHaploOp::ObjectPipe
+  OpServerMessage = Java::OrgHaploOp::OpServerMessage
+  TestOperation = Java::OrgHaploOpTest::TestOperation
+
+  # ------------------------------------------------------------------------------------
+
+  def round_trip(object)
+    bytes = java.io.ByteArrayOutputStream.new
+    OpCodec.write(java.io.DataOutputStream.new(bytes), object)
+    input = java.io.ByteArrayInputStream.new(bytes.toByteArray())
+    decoded = OpCodec.read(java.io.DataInputStream.new(input))
+    assert_equal 0, input.available() # everything was read
+    decoded
+  end
+
+  def make_operation(string)
+    operation = TestOperation.new(string)
+    operation.useMemory = 12
+    operation.sleepSeconds = 3
+    operation.throwException = true
+    operation
+  end
+
+  def assert_operation_equal(expected, operation)
+    assert operation.kind_of?(TestOperation)
+    assert_equal expected.string, operation.string
+    assert_equal expected.useMemory, operation.useMemory
+    assert_equal expected.sleepSeconds, operation.sleepSeconds
+    assert_equal expected.throwException, operation.throwException
+    assert_equal expected.callExit, operation.callExit
+    assert_equal expected.infiniteLoop, operation.infiniteLoop
+  end
+
+  # ------------------------------------------------------------------------------------
+
+  def test_codec_round_trip
+    authenticate = OpServerMessage::Authenticate.new
+    authenticate.workerNumber = 7
+    authenticate.authenticationToken = "token é中"
+    decoded = round_trip(authenticate)
+    assert decoded.kind_of?(OpServerMessage::Authenticate)
+    assert_equal 7, decoded.workerNumber
+    assert_equal "token é中", decoded.authenticationToken
+
+    accepted = OpServerMessage::AuthenticateAccepted.new
+    accepted.accepted = true
+    assert_equal true, round_trip(accepted).accepted
+
+    operation = make_operation("Hello")
+    do_operation = OpServerMessage::DoOperation.new
+    do_operation.requestId = 12345
+    do_operation.operation = operation
+    decoded = round_trip(do_operation)
+    assert decoded.kind_of?(OpServerMessage::DoOperation)
+    assert_equal 12345, decoded.requestId
+    assert_operation_equal operation, decoded.operation
+
+    acknowledge = OpServerMessage::AcknowledgeOperation.new
+    acknowledge.requestId = 99
+    acknowledge.ok = true
+    decoded = round_trip(acknowledge)
+    assert_equal 99, decoded.requestId
+    assert_equal true, decoded.ok
+
+    done = OpServerMessage::DoneOperation.new
+    done.requestId = 4
+    done.resultOperation = nil
+    done.resultException = TestOperation::TestOpException.new("Failed op")
+    done.willExit = true
+    decoded = round_trip(done)
+    assert_equal 4, decoded.requestId
+    assert_equal nil, decoded.resultOperation
+    assert decoded.resultException.kind_of?(TestOperation::TestOpException)
+    assert_equal "Failed op", decoded.resultException.getMessage()
+    assert_equal true, decoded.willExit
+
+    # Null strings are preserved
+    operation = make_operation(nil)
+    done = OpServerMessage::DoneOperation.new
+    done.resultOperation = operation
+    decoded = round_trip(done)
+    assert_operation_equal operation, decoded.resultOperation
+    assert_equal nil, decoded.resultException
+
+    # Other objects are serialised
+    list = java.util.ArrayList.new
+    list.add("a")
+    list.add(java.lang.Integer.new(2))
+    assert_equal list, round_trip(list)
+  end
+
+  def test_codec_rejects_classes_which_are_not_operations
+    bytes = java.io.ByteArrayOutputStream.new
+    out = java.io.DataOutputStream.new(bytes)
+    out.writeByte(3) # DoOperation
+    out.writeInt(1)
+    out.writeByte(1) # binary encoded operation
+    OpCodec.writeString(out, "java.lang.String")
+    assert_raises(java.io.IOException) do
+      OpCodec.read(java.io.DataInputStream.new(java.io.ByteArrayInputStream.new(bytes.toByteArray())))
+    end
+  end
+
+  # ------------------------------------------------------------------------------------
+
+  def test_object_pipe
+    server = java.nio.channels.ServerSocketChannel.open()
+    server.bind(java.net.InetSocketAddress.new("127.0.0.1", 0))
+    client_channel = java.nio.channels.SocketChannel.open(server.getLocalAddress())
+    server_channel = server.accept()
+    server.close()
+    sender = ObjectPipe.new(client_channel)
+    receiver = ObjectPipe.new(server_channel)
+    begin
+      spill_directory = java.io.File.new(java.lang.System.getProperty("java.io.tmpdir"), "haplo-op-spill")
+      # Small objects in one frame, objects bigger than a chunk in several frames, and
+      # objects bigger than the file handoff size via a spill file
+      [
+        "Small",
+        "x" * (ObjectPipe::CHUNK_SIZE * 3 + 17),
+        "y" * (ObjectPipe::FILE_HANDOFF_SIZE + 1024)
+      ].each do |string|
+        operation = make_operation(string)
+        # Send in another thread, as large objects won't fit in the socket buffers
+        send_thread = Thread.new { sender.sendObject(operation) }
+        received = receiver.receiveObject(10000)
+        send_thread.join
+        assert_operation_equal operation, received
+        # Spill files are deleted by the receiver
+        if spill_directory.isDirectory()
+          assert_equal [], spill_directory.list().to_a.select { |name| name.start_with?("haplo-op-") }
+        end
+      end
+      assert spill_directory.isDirectory() # spill path was used
+      # Several objects sent before the receiver reads are received in order
+      sender.sendObject(make_operation("One"))
+      sender.sendObject(make_operation("Two"))
+      assert_equal "One", receiver.receiveObject(10000).string
+      assert_equal "Two", receiver.receiveObject(10000).string
+      # Nothing else to receive
+      assert_equal nil, receiver.receiveObject(10)
+    ensure
+      sender.close()
+      receiver.close()
+    end
+  end
+
+end
@@ -38,15 +38,25 @@ class OpDispatcherTest < Test::Unit::TestCase
     def initialize
       @started_with_workers = -1
       @last_failure = -1
+      @started = []
+      @stopped = []
     end
     attr_reader :started_with_workers
     attr_reader :last_failure
+    attr_reader :started
+    attr_reader :stopped
     def startSupervision(policy)
-      @started_with_workers = policy.numberOfWorkers
+      @started_with_workers = policy.getInitialNumberOfProcesses()
     end
     def workerFailed(workerNumber)
       @last_failure = workerNumber
     end
+    def startWorker(workerNumber)
+      @started << workerNumber
+    end
+    def stopWorker(workerNumber)
+      @stopped << workerNumber
+    end
   end
 
   # ------------------------------------------------------------------------------------
@@ -69,14 +79,17 @@ class OpDispatcherTest < Test::Unit::TestCase
 
   def test_op_dispatcher
 
-    # Set up dispatcher and get worker interfaces
+    # Set up dispatcher with a fixed number of workers and get worker interfaces
     default_policy = OpDispatcher::Policy.new()
+    default_policy.minWorkers = 4
+    default_policy.maxWorkers = 4
+    default_policy.spareWorkers = 0
     dispatcher = OpDispatcher.new(default_policy)
 
     supervisor = TestOpWorkerSupervisor.new
     assert supervisor.started_with_workers < 0
     dispatcher.useSupervisor(supervisor)
-    assert_equal default_policy.numberOfWorkers, supervisor.started_with_workers
+    assert_equal 4, supervisor.started_with_workers
 
     worker0 = dispatcher.workerConnected(0)
     worker0_waker = TestWorkerWaker.new
@@ -91,7 +104,7 @@ class OpDispatcherTest < Test::Unit::TestCase
     # Can't connect a worker twice
     assert_raises(RuntimeException) { dispatcher.workerConnected(0) }
 
-    # Test queue, dispatch, completion notifications, and that only 2 ops from a single app can be in flight at any time.
+    # Test queue, dispatch, completion notifications, that applications take turns, and that only 2 ops from a single app can be in flight at any time.
     notifications = []
     assert_equal false, worker0_waker.get_signaled() # not flagged before work is added
     test_ops = [
@@ -109,23 +122,23 @@ class OpDispatcherTest < Test::Unit::TestCase
     op1 = worker1.getNextWork()
     op2 = worker2.getNextWork()
     assert_equal "ABC", op0.string # 1234
-    assert_equal "DEF", op1.string # 1234
-    assert_equal "012", op2.string  # 2354 NOT "XYZ" because of two app rule
+    assert_equal "012", op1.string # 2354, as apps take turns
+    assert_equal "DEF", op2.string # 1234
     assert notifications.empty?
+    op3 = worker3.getNextWork()
+    assert_equal "872", op3.string # 2354
+    assert_equal nil, worker3.getNextWork() # NOT "XYZ" because of two app rule, even though the worker could run another op
     worker0.finishedWork(op0, TestOperation.new("PING"), nil, WorkerState::OK) # app 1234
     check_notification(notifications, :notifyOperationComplete, "PING") # string value comes from completed op
     op0 = worker0.getNextWork() # 1234
     assert_equal "XYZ", op0.string  # as 1234 had a task finish
-    op3 = worker3.getNextWork() # 2354
-    assert_equal "872", op3.string # 2354
-    worker2.finishedWork(op2, TestOperation.new("HELLO"), nil, WorkerState::OK) # app 2354
+    worker2.finishedWork(op2, TestOperation.new("HELLO"), nil, WorkerState::OK) # app 1234
     check_notification(notifications, :notifyOperationComplete, "HELLO")
     op2 = worker2.getNextWork()
-    assert_equal nil, op2 # because two 1234 tasks still in flight, and all 2354 task are returned or in flight
+    assert_equal "YYY", op2.string
+    assert_equal nil, worker2.getNextWork() # everything is in flight
     worker0.finishedWork(op0, TestOperation.new("HELLO3"), nil, WorkerState::OK) # 1234
     check_notification(notifications, :notifyOperationComplete, "HELLO3")
-    op2 = worker2.getNextWork()
-    assert_equal "YYY", op2.string
     worker2.finishedWork(op2, TestOperation.new("HELLO2"), nil, WorkerState::OK)
     check_notification(notifications, :notifyOperationComplete, "HELLO2")
     assert_equal nil, worker2.getNextWork()
@@ -143,6 +156,59 @@ class OpDispatcherTest < Test::Unit::TestCase
     assert_equal nil, worker2.getNextWork()
     assert_equal nil, worker3.getNextWork()
 
+    # Workers can run more than one operation at once
+    dispatcher.queueOperation(TestOperation.new("P1"), 1, TestNotifyTarget.new(notifications))
+    dispatcher.queueOperation(TestOperation.new("P2"), 2, TestNotifyTarget.new(notifications))
+    dispatcher.queueOperation(TestOperation.new("P3"), 3, TestNotifyTarget.new(notifications))
+    op0a = worker0.getNextWork()
+    op0b = worker0.getNextWork()
+    assert_equal ["P1", "P2"], [op0a.string, op0b.string]
+    assert_equal nil, worker0.getNextWork() # at capacity
+    op1 = worker1.getNextWork()
+    assert_equal "P3", op1.string
+    worker0.finishedWork(op0b, TestOperation.new("P2 DONE"), nil, WorkerState::OK)
+    check_notification(notifications, :notifyOperationComplete, "P2 DONE")
+    assert_raises(RuntimeException) { dispatcher.workerDisconnected(worker0) } # still running P1
+    worker0.finishedWork(op0a, TestOperation.new("P1 DONE"), nil, WorkerState::OK)
+    check_notification(notifications, :notifyOperationComplete, "P1 DONE")
+    worker1.finishedWork(op1, TestOperation.new("P3 DONE"), nil, WorkerState::OK)
+    check_notification(notifications, :notifyOperationComplete, "P3 DONE")
+
+    # Interactive operations go before others, and bulk operations can't use every slot on the workers
+    workers = [worker0, worker1, worker2, worker3]
+    8.times do |i|
+      op = TestOperation.new("BULK#{i}")
+      op.dispatchPriority = Operation::Priority::BULK
+      dispatcher.queueOperation(op, 100 + (i / 2), TestNotifyTarget.new(notifications))
+    end
+    bulk_running = []
+    workers.each { |w| 2.times { op = w.getNextWork(); bulk_running << [w, op] if op } }
+    assert_equal 7, bulk_running.length # one slot reserved
+    dispatcher.queueOperation(TestOperation.new("NORMAL"), 200, TestNotifyTarget.new(notifications))
+    interactive = TestOperation.new("THUMBNAIL")
+    interactive.dispatchPriority = Operation::Priority::INTERACTIVE
+    dispatcher.queueOperation(interactive, 201, TestNotifyTarget.new(notifications))
+    op3 = worker3.getNextWork()
+    assert_equal "THUMBNAIL", op3.string # queued after NORMAL, but goes first
+    workers.each { |w| assert_equal nil, w.getNextWork() } # all slots used
+    worker3.finishedWork(op3, TestOperation.new("THUMBNAIL DONE"), nil, WorkerState::OK)
+    check_notification(notifications, :notifyOperationComplete, "THUMBNAIL DONE")
+    op3 = worker3.getNextWork()
+    assert_equal "NORMAL", op3.string
+    worker3.finishedWork(op3, TestOperation.new("NORMAL DONE"), nil, WorkerState::OK)
+    check_notification(notifications, :notifyOperationComplete, "NORMAL DONE")
+    assert_equal nil, worker3.getNextWork() # last bulk op still can't use the reserved slot
+    w, op = bulk_running.shift
+    w.finishedWork(op, TestOperation.new("BULK DONE"), nil, WorkerState::OK)
+    check_notification(notifications, :notifyOperationComplete, "BULK DONE")
+    bulk_running << [w, w.getNextWork()]
+    assert_equal "BULK7", bulk_running.last.last.string
+    bulk_running.each do |w, op|
+      w.finishedWork(op, TestOperation.new("BULK DONE"), nil, WorkerState::OK)
+      check_notification(notifications, :notifyOperationComplete, "BULK DONE")
+    end
+    workers.each { |w| assert_equal nil, w.getNextWork() }
+
     # Test exception notifications
     dispatcher.queueOperation(TestOperation.new("Exceptional"), 1234, TestNotifyTarget.new(notifications))
     op0 = worker0.getNextWork()
@@ -201,6 +267,66 @@ class OpDispatcherTest < Test::Unit::TestCase
     assert_raises(RuntimeException) { dispatcher.queueOperation(TestOperation.new("DEF"), 1234, TestNotifyTarget.new(notifications)) }
   end
 
+  # ------------------------------------------------------------------------------------
+
+  def test_elastic_worker_pool
+    policy = OpDispatcher::Policy.new()
+    policy.minWorkers = 1
+    policy.maxWorkers = 2
+    policy.spareWorkers = 1
+    policy.operationsPerWorker = 1
+    policy.scaleUpQueueDepth = 2
+    policy.scaleDownIdleTime = 0
+    dispatcher = OpDispatcher.new(policy)
+    supervisor = TestOpWorkerSupervisor.new
+    dispatcher.useSupervisor(supervisor)
+    assert_equal 2, supervisor.started_with_workers # one active, one spare
+    worker0 = dispatcher.workerConnected(0)
+    worker1 = dispatcher.workerConnected(1)
+    assert_raises(RuntimeException) { dispatcher.workerConnected(3) }
+
+    # Only one worker is given operations, the other is a spare
+    notifications = []
+    ["A", "B"].each_with_index { |str, i| dispatcher.queueOperation(TestOperation.new(str), 10 + i, TestNotifyTarget.new(notifications)) }
+    assert_equal nil, worker1.getNextWork()
+    op0 = worker0.getNextWork()
+    assert_equal "A", op0.string
+    assert_equal [], supervisor.started # only one op waiting
+
+    # Queue grows, spare starts getting operations and a new spare is started
+    dispatcher.queueOperation(TestOperation.new("C"), 12, TestNotifyTarget.new(notifications))
+    assert_equal [2], supervisor.started
+    op1 = worker1.getNextWork()
+    assert_equal "B", op1.string
+    dispatcher.queueOperation(TestOperation.new("D"), 13, TestNotifyTarget.new(notifications))
+    assert_equal [2], supervisor.started # already at maximum
+    worker2 = dispatcher.workerConnected(2)
+    assert_equal nil, worker2.getNextWork() # spare
+
+    # Worker which is going to restart is replaced by the spare
+    worker0.willExit()
+    op2 = worker2.getNextWork()
+    assert_equal "C", op2.string
+    worker0.finishedWork(op0, TestOperation.new("A DONE"), nil, WorkerState::DISCONNECTING)
+    check_notification(notifications, :notifyOperationComplete, "A DONE")
+    assert_equal false, worker0.isConnected()
+    worker0 = dispatcher.workerConnected(0) # restarted
+    op0 = worker0.getNextWork()
+    assert_equal "D", op0.string
+    [[worker0, op0], [worker1, op1], [worker2, op2]].each do |w, op|
+      w.finishedWork(op, TestOperation.new("DONE"), nil, WorkerState::OK)
+      check_notification(notifications, :notifyOperationComplete, "DONE")
+    end
+
+    # Pool shrinks when idle, stopping the highest numbered worker only
+    assert_equal false, worker0.stopIfNotNeeded()
+    assert_equal false, worker1.stopIfNotNeeded()
+    assert_equal true, worker2.stopIfNotNeeded()
+    assert_equal [2], supervisor.stopped
+    assert_equal false, worker2.isConnected()
+    assert_equal false, worker1.stopIfNotNeeded() # at minimum
+  end
+
   def check_notification(notifications, *info)
     assert_equal 1, notifications.length
     assert_equal info, notifications.pop
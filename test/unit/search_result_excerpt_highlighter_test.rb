@@ -25,4 +25,22 @@ __E
     assert_equal EXPECTED, results
   end
 
+  def test_highlighter_finds_terms_far_into_long_text
+    long_text = ("Lorem ipsum dolor sit amet. " * 1000) + "Proin arcu risus, pong ac augue in."
+    results = SearchResultExcerptHighlighter.highlight(long_text, 'pong', 160)
+    assert_equal 1, results.length
+    assert results.first.include?("<b>pong</b>")
+  end
+
+  def test_highlighter_reused_for_many_results
+    # Queries and highlighters are reused for following calls with the same terms
+    3.times do
+      assert_equal EXPECTED, SearchResultExcerptHighlighter.highlight(TEXT, 'pong world', 160)
+      assert_equal ["Proin arcu risus, &lt;semper&gt; <b>pong</b>"], SearchResultExcerptHighlighter.highlight("Proin arcu risus, <semper> pong", 'pong', 160)
+      no_terms = SearchResultExcerptHighlighter.highlight(TEXT, '', 160)
+      assert no_terms.length > 0
+      assert no_terms.none? { |excerpt| excerpt.include?('<b>') }
+    end
+  end
+
 end
@@ -0,0 +1,29 @@
+# Haplo Platform                                    https://haplo.org
+# (c) Haplo Services Ltd 2006 - 2020            https://www.haplo.com
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+
+class TextResponseTest < Test::Unit::TestCase
+
+  def test_text_encoded_as_utf8
+    text = "Text é€\u{1F600} response " * 50000
+    java_text = java.lang.StringBuilder.new(text)
+    response = Java::OrgHaploAppserver::TextResponse.new(java_text, 200)
+    assert_equal text.bytesize, response.getContentLength()
+    output = java.io.ByteArrayOutputStream.new
+    response.writeToOutputStream(output)
+    assert_equal text.b, String.from_java_bytes(output.toByteArray())
+    # Large enough to be gzipped as it's written
+    assert_equal Java::OrgHaploAppserver::Response::CONTENT_LENGTH_UNCERTAIN, response.getContentLengthGzipped()
+    gzipped = java.io.ByteArrayOutputStream.new
+    response.writeToOutputStreamGzipped(gzipped)
+    ungzipped = org.apache.commons.io.IOUtils.toByteArray(java.util.zip.GZIPInputStream.new(java.io.ByteArrayInputStream.new(gzipped.toByteArray())))
+    assert_equal text.b, String.from_java_bytes(ungzipped)
+    # Ruby response objects use TextResponse for Java text
+    assert KFramework::DataResponse.new(java_text, 'text/html; charset=utf-8').make_java_object.kind_of?(Java::OrgHaploAppserver::TextResponse)
+    assert KFramework::DataResponse.new(text, 'text/html; charset=utf-8').make_java_object.kind_of?(Java::OrgHaploAppserver::DataResponse)
+  end
+
+end
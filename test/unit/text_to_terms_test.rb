@@ -24,6 +24,18 @@ class TextToTermsTest < Test::Unit::TestCase
     assert_equal %Q!before:befor after:after !, KTextAnalyser.text_to_terms(%"Before\u0000After")  # control character
   end
 
+  def test_repeated_and_long_terms
+    # Stems of repeated words come from the cache
+    assert_equal %Q!fishes:fish fishing:fish fishes:fish fishes:fish !, KTextAnalyser.text_to_terms("fishes fishing Fishes FISHES")
+    assert_equal %Q!fishes:fishes* fishes:fish !, KTextAnalyser.text_to_terms("fishes* fishes", true)
+    # Terms are truncated
+    long_word = 'x' * 200
+    assert_equal "#{'x' * 127}:#{'x' * 127} ", KTextAnalyser.text_to_terms(long_word)
+    # ASCII and non-ASCII text analysed the same way
+    assert_equal %Q!cafe:cafe plain:plain !, KTextAnalyser.text_to_terms("Café plain")
+    assert_equal %Q!cafe:cafe plain:plain !, KTextAnalyser.text_to_terms("Cafe plain")
+  end
+
   def test_sort_as_normalise
     assert_equal "abc def", KTextAnalyser.sort_as_normalise("Abc Def")
     assert_equal "foret ping!", KTextAnalyser.sort_as_normalise("Forêt ping!")